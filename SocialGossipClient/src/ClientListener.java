@@ -1,6 +1,5 @@
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -16,12 +15,14 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Random;
 
+import condivise.ConnectionCodec;
 import condivise.Message;
 import condivise.MessageHandler;
 import condivise.RequestCode;
 import condivise.RequestMessage;
 import condivise.ResponseMessage;
 import condivise.TextMessage;
+import condivise.WireProtocol;
 import exceptions.MalformedMessageException;
 
 /**
@@ -44,6 +45,8 @@ import exceptions.MalformedMessageException;
 public class ClientListener extends Thread {
 
 	// socket dei messaggi, questa classe non ha accesso a quello di controllo
+	// (se la connessione e' multiplexed e' lo stesso socket, ma il codec legge
+	// e scrive solo sul canale dei messaggi)
 	private Socket messageSocket;
 
 	// il timeout del socket dei messaggi
@@ -63,9 +66,25 @@ public class ClientListener extends Thread {
 
 	private SG_Home gui;
 
+	// il codec della connessione dei messaggi, nel formato negoziato con il
+	// server
+	private ConnectionCodec codec;
+
+	// timeout per la lettura di un messaggio gia' iniziato
+	private int frameTimeout = 2000;
+
 	public ClientListener(Socket message, MulticastSocket chatroomSock, SG_Home home) {
+		this(message, chatroomSock, home, WireProtocol.JSON);
+	}
+
+	public ClientListener(Socket message, MulticastSocket chatroomSock, SG_Home home, WireProtocol protocol) {
+		this(new ConnectionCodec(message, protocol), chatroomSock, home);
+	}
+
+	public ClientListener(ConnectionCodec messages, MulticastSocket chatroomSock, SG_Home home) {
 		// COSTRUTTORE
-		this.messageSocket = message;
+		this.messageSocket = messages.getSocket();
+		this.codec = messages;
 		this.messageHandler = new MessageHandler();
 		this.chatroomSocket = chatroomSock;
 		gui = home;
@@ -74,12 +93,10 @@ public class ClientListener extends Thread {
 	public void run() {
 
 		// inizializzo le variabili
-		BufferedReader reader = null;
 		try {
 			// setto un timeout molto basso per il chatroom socket
 			this.chatroomSocket.setSoTimeout(20);
-			this.messageSocket.setSoTimeout(socketTimeout);
-			reader = new BufferedReader(new InputStreamReader(messageSocket.getInputStream()));
+			this.codec.setTimeouts(socketTimeout, frameTimeout);
 			// apro il socketchannel per lo scambio di file
 			this.serverChannel = ServerSocketChannel.open();
 			// non voglio che si blocchi nelle accept
@@ -112,35 +129,10 @@ public class ClientListener extends Thread {
 
 		// ciclo while del listener
 		while (!Thread.interrupted()) {
-			// leggo prima la size (mi viene inviato un long)
-			long messageSize = 0;
-
 			try {
-				String size = (reader.readLine());
-				if (size == null) {
-					// il server ha chiuso la connessione con me
-					System.out.println("Server crashed?");
-					System.exit(1);
-				}
-				// parso la stringa e ottengo il long
-				messageSize = Long.parseLong(size);
-
-				// adesso invece leggo il messaggio vero e proprio
-				String msg = reader.readLine();
-
-				if (msg == null) {
-					// il server ha chiuso la connessione con me
-					System.out.println("Server crashed?");
-					System.exit(1);
-				}
-
-				if (messageSize != msg.length())
-					System.out.println("Messaggio di lunghezza non corretta");
-				// ignoro questo errore, provo comunque a vedere se il messaggio
-				// e' sensato
-
-				// parso il messaggio e ne ottengo il Message
-				Message message = this.messageHandler.JSONString2Message(msg);
+				// leggo il messaggio, la size seguita dal messaggio JSON o un
+				// frame binario a seconda del formato negoziato
+				Message message = this.codec.readMessage();
 
 				// messaggio puo' essere una richiesta di apertura di
 				// connessione o un messaggio di testo
@@ -152,7 +144,7 @@ public class ClientListener extends Thread {
 						ResponseMessage reply = ResponseMessage.BuildConnectionP2PAck(req.getReceiver(),
 								Message.SERVERNAME, RequestCode.OPEN_P2PCONN, InetAddress.getByName("localhost"),
 								this.P2PPort);
-						messageHandler.sendMessage(messageSocket, reply);
+						this.codec.writeMessage(reply);
 						// ho inviato al server il mio indirizzo e la porta
 					}
 					// altrimenti non lo era e lo ignoro
@@ -163,6 +155,10 @@ public class ClientListener extends Thread {
 			} catch (SocketTimeoutException e) {
 				// son stato fermo 200 ms ad aspettare una read
 				// ignoro e vado al prossimo passo
+			} catch (EOFException e) {
+				// il server ha chiuso la connessione con me
+				System.out.println("Server crashed?");
+				System.exit(1);
 			} catch (IOException e) {
 				// ignore
 			} catch (MalformedMessageException e) {
@@ -1,7 +1,4 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
@@ -16,12 +13,12 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.json.simple.JSONObject;
-
-import condivise.MessageHandler;
+import condivise.ConnectionCodec;
+import condivise.Message;
 import condivise.Notifier;
 import condivise.RequestMessage;
 import condivise.ResponseMessage;
@@ -40,6 +37,11 @@ import exceptions.NotAFieldException;
  * interpreta la risposta e consegna alla GUI (che utilizza questa classe) il
  * risultato dell'operazione in un formato noto a priori.
  * 
+ * Sulle connessioni multiplexed alcune operazioni (ad esempio il lookup di
+ * tutti gli amici) inviano piu' richieste senza attendere le risposte,
+ * distinguendole con un identificativo (vedi Message.getRequestId): il server
+ * puo' servirle in parallelo e rispondere in un ordine qualsiasi.
+ * 
  * @author Lorenzo Bellomo, Nicolo' Lucchesi
  */
 public class ClientOps {
@@ -53,9 +55,6 @@ public class ClientOps {
 	// timeout richiesta
 	private int timeout = 2000;
 
-	// socket di connessione al server
-	private Socket controlSocket = null;
-
 	// dimensione buffer per l'invio/ricezione messaggi
 	private int buffDim = 2048;
 
@@ -71,9 +70,23 @@ public class ClientOps {
 	// gui utente
 	private SG_Home home;
 
+	// il codec della connessione di controllo, nel formato negoziato con il
+	// server
+	private ConnectionCodec codec;
+
+	// ultimo identificativo assegnato ad una richiesta inviata senza
+	// attendere la risposta delle precedenti
+	private int lastRequestId = 0;
+
 	public ClientOps(Vector<String> online, Vector<String> offline, Socket controlSocket,
 			MulticastSocket chatroomSocket, ConcurrentHashMap<String, InetAddress> chatrooms, SG_Home gui) {
+		this(online, offline, new ConnectionCodec(controlSocket), chatroomSocket, chatrooms, gui);
+	}
+
+	public ClientOps(Vector<String> online, Vector<String> offline, ConnectionCodec control,
+			MulticastSocket chatroomSocket, ConcurrentHashMap<String, InetAddress> chatrooms, SG_Home gui) {
 		// COSTRUTTORE
+		this.codec = control;
 		onlineFriends = online;
 		offlineFriends = offline;
 		this.chatroomSocket = chatroomSocket;
@@ -81,8 +94,7 @@ public class ClientOps {
 		home = gui;
 		// effettuo la connessione al server
 		try {
-			this.controlSocket = controlSocket;
-			controlSocket.setSoTimeout(timeout);
+			control.setTimeouts(timeout, timeout);
 		} catch (IOException e) {
 			// errore nel setting del timeout
 			System.out.println("Errore connessione al server");
@@ -101,32 +113,13 @@ public class ClientOps {
 	 * @return 0 in caso di succeso, -1 altrimenti
 	 */
 	private int sendRequest(RequestMessage m, Notifier stub) {
-		// 'traduco' il messaggio in JSON
-		MessageHandler msgHandler = new MessageHandler();
-		String msg = "";
-
+		// lo stub, se e' una richiesta di registrazione o di login, viaggia
+		// insieme alla richiesta
+		m.setStub(stub);
 		try {
-			// preparo il messaggio in formato JSON
-			JSONObject obj = msgHandler.Message2JSONObject(m);
-			msg = obj.toJSONString();
-
-			// preparo un ObjectOutputStream, inviero' per prima cosa la size
-			// del messaggio, poi il messaggio ed infine eventualmente lo stub,
-			// se e' una richiesta di registrazione o di login
-			ObjectOutputStream objOut = new ObjectOutputStream(this.controlSocket.getOutputStream());
-			// devo mandare la size del messaggio se non devo inviare anche lo
-			// stub, altrimenti la size + 1
-			if (stub == null) // stub non da inviare
-				objOut.writeInt(msg.length());
-			else // stub da inviare
-				objOut.writeInt(msg.length() + 1);
-			// mando il messaggio adesso
-			objOut.writeObject(msg);
-
-			// ed eventualmente lo stub
-			if (stub != null)
-				objOut.writeObject(stub);
-
+			// il codec traduce il messaggio nel formato negoziato e lo invia
+			// con una sola write
+			this.codec.writeRequest(m);
 		} catch (MalformedMessageException e) {
 			return -1;
 		} catch (IOException e) {
@@ -145,40 +138,28 @@ public class ClientOps {
 	 * @return il messaggio di risposta
 	 */
 	private ResponseMessage getResponse() {
-		// la risposta del server viaggera' su un BufferedWriter
-		InputStreamReader in;
-		String response;
-		long size;
+		// la risposta viene letta dallo stream bufferizzato del codec, creato
+		// una sola volta per tutta la connessione
+		Message response;
 		try {
-			// mi preparo il BufferedReader che leggera' le richieste in entrata
-			in = new InputStreamReader(controlSocket.getInputStream());
-			BufferedReader inbuff = new BufferedReader(in);
-			// leggo la size del messaggio di risposta
-			size = Long.parseLong(inbuff.readLine());
-			// leggo il messaggio vero e proprio
-			response = inbuff.readLine();
-			if (response.length() != size)
-				System.out.println("Lunghezza messaggio e size non corrispondono");
-			// ignoro questo errore, e vedo se il messaggio e' comunque sensato
+			response = this.codec.readMessage();
 		} catch (SocketTimeoutException e) {
 			// timeout scattato
 			return null;
 		} catch (IOException e) {
 			// errore inaspettato nella lettura
 			return null;
-		}
-		// parso il messaggio e lo restituisco
-		MessageHandler handler = new MessageHandler();
-		ResponseMessage m = null;
-		try {
-			// provo il parsing
-			m = (ResponseMessage) handler.JSONString2Message(response);
 		} catch (MalformedMessageException e) {
 			return null;
 		}
-		System.out.println(response);
+		if (response.getType() != Message.RESPONSE)
+			return null;
+		// risposta in ritardo ad una richiesta con identificativo, di cui
+		// avevo smesso di aspettare la risposta: la scarto
+		if (response.getRequestId() != 0)
+			return this.getResponse();
 		// successo, il messaggio di risposta e' arrivato ed e' sensato
-		return m; // ritorno il messaggio parsato
+		return (ResponseMessage) response; // ritorno il messaggio parsato
 	}
 
 	/**
@@ -356,6 +337,69 @@ public class ClientOps {
 		// aspetto il messaggio di risposta
 		ResponseMessage recvM = getResponse();
 
+		return lookupResult(recvM);
+	}
+
+	/**
+	 * Funzione che esegue il lookup di piu' utenti insieme. Se la connessione
+	 * e' multiplexed le richieste vengono inviate tutte subito, ognuna con il
+	 * proprio identificativo, e le risposte raccolte man mano che arrivano,
+	 * in qualunque ordine; altrimenti i lookup vengono eseguiti uno alla volta
+	 * 
+	 * @param targetNames,
+	 *            gli username degli utenti che vogliamo vedere
+	 * @return per ogni utente, nello stesso ordine, il risultato di NewLookup
+	 */
+	public int[] NewLookups(String[] targetNames) {
+		int[] results = new int[targetNames.length];
+		if (!this.codec.isMultiplexed() || myUsername == null) {
+			for (int i = 0; i < targetNames.length; i++)
+				results[i] = NewLookup(targetNames[i]);
+			return results;
+		}
+
+		// invio tutte le richieste, ricordando a quale utente corrisponde
+		// ogni identificativo
+		HashMap<Integer, Integer> pending = new HashMap<Integer, Integer>();
+		for (int i = 0; i < targetNames.length; i++) {
+			results[i] = -1;
+			if (targetNames[i] == null)
+				continue;
+			RequestMessage msg = RequestMessage.BuildLookUp(myUsername, targetNames[i]);
+			msg.setRequestId(nextRequestId());
+			if (sendRequest(msg, null) == -1)
+				return results;
+			pending.put(msg.getRequestId(), i);
+		}
+
+		// raccolgo le risposte, nell'ordine in cui il server le invia
+		while (!pending.isEmpty()) {
+			Message response;
+			try {
+				response = this.codec.readMessage();
+			} catch (IOException | MalformedMessageException e) {
+				// timeout scattato o errore in lettura: le risposte mancanti
+				// restano -1
+				return results;
+			}
+			if (response.getType() != Message.RESPONSE)
+				continue;
+			// le risposte che non aspetto sono in ritardo, le scarto
+			Integer index = pending.remove(response.getRequestId());
+			if (index != null)
+				results[index] = lookupResult((ResponseMessage) response);
+		}
+		return results;
+	}
+
+	/**
+	 * Utility privata: interpreta la risposta ad una richiesta di lookup
+	 * 
+	 * @param recvM
+	 *            la risposta, null in caso di timeout o errore in lettura
+	 * @return il risultato come in NewLookup
+	 */
+	private int lookupResult(ResponseMessage recvM) {
 		if (recvM == null)
 			return -1; // timeout scattato, oppure errore in lettura
 
@@ -379,7 +423,16 @@ public class ClientOps {
 		default:
 			return -1;
 		}
+	}
 
+	/**
+	 * Utility privata: il prossimo identificativo di richiesta, sempre
+	 * positivo
+	 */
+	private int nextRequestId() {
+		if (lastRequestId == Integer.MAX_VALUE)
+			lastRequestId = 0;
+		return ++lastRequestId;
 	}
 
 	/**
@@ -1,8 +1,11 @@
 import java.rmi.RemoteException;
 import java.rmi.server.RemoteObject;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Vector;
 
 import condivise.Notifier;
+import condivise.PresenceEvent;
 
 /**
  * Classe che implementa le notifiche di tipo RMI per il cambio di stato di
@@ -60,4 +63,32 @@ public class RMINotifier extends RemoteObject implements Notifier {
 		this.offline.add(nickname);
 	}
 
+	public void NotifyPresenceBatch(List<PresenceEvent> events) throws RemoteException {
+		if (events == null)
+			return;
+
+		// nuovo stato di ogni amico, da mostrare nella GUI tutto insieme
+		LinkedHashMap<String, Integer> statuses = new LinkedHashMap<String, Integer>();
+		for (PresenceEvent event : events) {
+			String nickname = event.getFriend();
+			// tolgo l'amico da entrambi i vettori e lo inserisco in quello
+			// corrispondente al suo nuovo stato
+			boolean known = this.online.remove(nickname);
+			known = this.offline.remove(nickname) || known;
+			if (!known) {
+				// nuovo amico, lo aggiungo nell'interfaccia
+				home.addFriend(nickname);
+			}
+			if (event.isOnline()) {
+				this.online.add(nickname);
+				statuses.put(nickname, 1);
+			} else {
+				this.offline.add(nickname);
+				statuses.put(nickname, 0);
+			}
+		}
+		// notifico la GUI dei cambiamenti di stato in una sola passata
+		home.changeStatus(statuses);
+	}
+
 }
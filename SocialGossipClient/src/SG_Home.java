@@ -7,6 +7,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseListener;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 import javax.swing.*;
 
@@ -264,9 +265,16 @@ public class SG_Home extends JFrame {
 					if (reply == null || reply.length == 0)
 						displayDialogWindow(13);
 					else {
+						// lo stato di tutti gli amici, con un lookup per
+						// amico (in parallelo se la connessione lo permette)
+						int[] status = reqHandler.NewLookups(reply);
 						String list_of_friends = "";
-						for (String s : reply) {
-							list_of_friends = list_of_friends.concat(s);
+						for (int i = 0; i < reply.length; i++) {
+							list_of_friends = list_of_friends.concat(reply[i]);
+							if (status[i] == 15)
+								list_of_friends = list_of_friends.concat(" (online)");
+							else if (status[i] == 16)
+								list_of_friends = list_of_friends.concat(" (offline)");
 							list_of_friends = list_of_friends.concat("\n");
 						}
 						// mostro gli amici
@@ -738,4 +746,45 @@ public class SG_Home extends JFrame {
 		friendslist.repaint();
 	}
 
+	/**
+	 * Funzione utilizzata per cambiare lo stato di piu' amici in una volta
+	 * sola, scorrendo una sola volta le JLabel dell'interfaccia e ridisegnando
+	 * la lista degli amici solo alla fine
+	 * 
+	 * @param statuses
+	 *            associazione username dell'amico -> nuovo stato (0 offline, 1
+	 *            online)
+	 */
+	public void changeStatus(Map<String, Integer> statuses) {
+		if (statuses == null || statuses.isEmpty())
+			return;
+
+		// aggiorno il valore delle JLabel relative
+		for (Component a : friendslist.getComponents()) {
+			if (a == null)
+				break;
+
+			Integer userStatus = statuses.get(a.getName());
+			if (userStatus == null)
+				continue;
+			if (userStatus == 0)
+				((JLabel) a).setText(a.getName() + ":offline");
+			else if (userStatus == 1)
+				((JLabel) a).setText(a.getName() + ":online");
+		}
+
+		// aggiorno i vecchi valori di status
+		for (Map.Entry<String, Integer> entry : statuses.entrySet()) {
+			if (!myFriends.containsKey(entry.getKey()))
+				continue;
+			if (entry.getValue() == 0)
+				myFriends.put(entry.getKey(), status.offline);
+			else if (entry.getValue() == 1)
+				myFriends.put(entry.getKey(), status.online);
+		}
+
+		friendslist.revalidate();
+		friendslist.repaint();
+	}
+
 }
@@ -1,15 +1,22 @@
 
 import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
+import condivise.BinaryCodec;
+import condivise.ConnectionCodec;
+import condivise.WireProtocol;
+import exceptions.NoSuchCodeException;
+
 /**
  * Classe principale del client, si occupa di inizializzare tutte le strutture
  * dati condivise e far partire il thread listener e la HOME della GUI
@@ -26,6 +33,12 @@ public class SocialGossipClient {
 	
 	private static final int chatroomPort = 7080;
 
+	// i formati dei messaggi offerti al server, in ordine di preferenza
+	private static final String offer = WireProtocol.BINARY.getName() + "," + WireProtocol.JSON.getName();
+
+	// tempo massimo di attesa della risposta alla negoziazione del formato
+	private static final int handshakeTimeout = 2000;
+
 	// elenco dei nickname degli amici online
 	private static Vector<String> online;
 
@@ -40,7 +53,8 @@ public class SocialGossipClient {
 	// inoltre con questo socket apriro' le connessioni P2P dei
 	private static ServerSocket acceptor;
 
-	// il socket della connessione dei messaggi
+	// il socket della connessione dei messaggi, null se la connessione di
+	// controllo e' multiplexed
 	private static Socket messageSocket;
 
 	// l'indirizzo IP del server
@@ -74,28 +88,47 @@ public class SocialGossipClient {
 		offline = new Vector<>();
 
 		int port = 0;
+		// il codec della connessione di controllo
+		ConnectionCodec control = null;
+		// il codec su cui il listener riceve i messaggi
+		ConnectionCodec messages = null;
 		// apro le connessioni di controllo e dei messaggi
 		try {
+			// apro anche il socket multicast per le chatroom
+			chatroomSocket = new MulticastSocket(chatroomPort);
+			// provo prima con una sola connessione multiplexed, su cui
+			// viaggiano sia le risposte che i messaggi
+			control = openMultiplexed();
+		} catch (IOException e) {
+			System.out.println("Connessione con il server fallita");
+			System.exit(1);
+		}
+		if (control != null) {
+			messages = control.openChannel(BinaryCodec.MESSAGE_CHANNEL);
+		} else try {
+			// il server non conosce le connessioni multiplexed
 			// apro una connessione di controllo con il server
 			controlSocket = new Socket(serverAddress, serverPort);
 			// preparo un acceptor su una porta a caso per accettare la
 			// connessione dei messaggi che verra' aperta attivamente dal server
 			acceptor = new ServerSocket(0);
-			// apro anche il socket multicast per le chatroom
-			chatroomSocket = new MulticastSocket(chatroomPort);
 			// ottengo la porta effimera del socket acceptor
 			port = acceptor.getLocalPort();
 			// ottengo l'output stream della connessione di controllo per
 			// inviare la porta
 			BufferedWriter output = new BufferedWriter(new OutputStreamWriter(controlSocket.getOutputStream()));
-			// invio la porta
-			output.write(port + "\n");
+			// invio la porta ed i formati dei messaggi che conosco
+			output.write(port + " " + offer + "\n");
 			output.flush();
 			// accetto la connessione del server, ho aperto la connessione
 			// dei messaggi
 			messageSocket = acceptor.accept();
 			// l'acceptor ha finito la sua utilita'
 			acceptor.close();
+			// il server mi comunica il formato scelto
+			control = new ConnectionCodec(controlSocket);
+			control.setProtocol(readProtocol(control));
+			messages = new ConnectionCodec(messageSocket, control.getProtocol());
 		} catch (IOException e) {
 			System.out.println("Connessione con il server fallita");
 			System.exit(1);
@@ -105,8 +138,8 @@ public class SocialGossipClient {
 
 		// creo e faccio partire il listener della connessione dei messaggi e
 		// delle chatroom
-		ClientListener listener = new ClientListener(messageSocket, chatroomSocket, home);
-		ClientOps client = new ClientOps(online, offline, controlSocket, chatroomSocket, chatrooms, home);
+		ClientListener listener = new ClientListener(messages, chatroomSocket, home);
+		ClientOps client = new ClientOps(online, offline, control, chatroomSocket, chatrooms, home);
 		listener.start();
 
 		// home grafica
@@ -124,7 +157,8 @@ public class SocialGossipClient {
 		}
 		// chiudo i socket
 		try {
-			messageSocket.close();
+			if (messageSocket != null)
+				messageSocket.close();
 			controlSocket.close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -132,4 +166,70 @@ public class SocialGossipClient {
 
 	}
 
+	/**
+	 * Apre una connessione multiplexed con il server (vedi
+	 * WireProtocol.MULTIPLEXED), su cui viaggiano sia le richieste con le
+	 * relative risposte che i messaggi inviati dal server
+	 * 
+	 * @return il codec del canale di controllo della connessione, null se il
+	 *         server non supporta le connessioni multiplexed
+	 * @throws IOException
+	 *             se non e' possibile connettersi al server
+	 */
+	private static ConnectionCodec openMultiplexed() throws IOException {
+		Socket socket = new Socket(serverAddress, serverPort);
+		ConnectionCodec control = new ConnectionCodec(socket);
+		// al posto della porta chiedo la connessione multiplexed, che usa
+		// sempre il formato binario
+		BufferedWriter output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+		output.write(WireProtocol.MULTIPLEXED + " " + WireProtocol.BINARY.getName() + "\n");
+		output.flush();
+		// un server che non la supporta chiude la connessione
+		String line;
+		control.setTimeouts(handshakeTimeout, handshakeTimeout);
+		try {
+			line = control.readLine();
+		} catch (IOException e) {
+			// timeout o connessione chiusa dal server
+			line = null;
+		}
+		if (line == null || !line.trim().equals(WireProtocol.BINARY.getName())) {
+			socket.close();
+			return null;
+		}
+		control.setProtocol(WireProtocol.BINARY);
+		control.setMultiplexed(true);
+		controlSocket = socket;
+		return control;
+	}
+
+	/**
+	 * Legge la riga con cui il server comunica il formato dei messaggi scelto.
+	 * La riga viene letta tramite il codec della connessione, che conserva
+	 * nel proprio buffer i byte delle risposte successive
+	 * 
+	 * @param control
+	 *            il codec della connessione di controllo
+	 * @return il formato scelto dal server, JSON se il server non risponde
+	 * @throws IOException
+	 *             se la connessione viene chiusa
+	 */
+	private static WireProtocol readProtocol(ConnectionCodec control) throws IOException {
+		String line;
+		control.setTimeouts(handshakeTimeout, handshakeTimeout);
+		try {
+			line = control.readLine();
+		} catch (SocketTimeoutException e) {
+			// server che non negozia il formato
+			return WireProtocol.JSON;
+		}
+		if (line == null)
+			throw new EOFException();
+		try {
+			return WireProtocol.DescriptionOf(line.trim());
+		} catch (NoSuchCodeException e) {
+			return WireProtocol.JSON;
+		}
+	}
+
 }
@@ -0,0 +1,905 @@
+package condivise;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import exceptions.MalformedMessageException;
+import exceptions.NoSuchCodeException;
+import exceptions.NotAFieldException;
+
+/**
+ * Codifica e decodifica dei messaggi nel formato JSON (WireProtocol.JSON) senza
+ * passare per i JSONObject di json.simple. La codifica scrive i campi del
+ * messaggio direttamente in uno StringBuilder riutilizzato, la decodifica
+ * scorre la stringa una sola volta e tiene solo i campi che conosce, scartando
+ * gli altri. Il formato e' lo stesso di MessageHandler.Message2JSONObject:
+ * stesse chiavi, stessi valori, il messaggio di testo annidato in una
+ * richiesta viaggia come stringa JSON e le stringhe vengono codificate con lo
+ * stesso escape di json.simple, per cui client e server che usano ancora
+ * json.simple continuano a funzionare.
+ *
+ * Un oggetto di questa classe riutilizza gli stessi buffer per tutte le
+ * codifiche e decodifiche, per cui non e' thread safe.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class JSONCodec {
+
+	// le chiavi dei campi, le stesse di MessageHandler
+	private static final String TYPE = "Type";
+	private static final String SENDER = "Sender";
+	private static final String RECEIVER = "Receiver";
+	private static final String RESPCODE = "RespCode";
+	private static final String REQCODE = "ReqCode";
+	private static final String TEXTMESSAGE = "textMessage";
+	private static final String MESSAGE = "Message";
+	private static final String CHATROOM = "ChatName";
+	private static final String TARGET = "TargetUser";
+	private static final String LIST = "List";
+	private static final String ADDRESS = "Address";
+	private static final String PORT = "Port";
+	private static final String LANGUAGE = "Language";
+	private static final String ISONLINE = "IsOnline";
+	private static final String ONLINELIST = "OnlineList";
+	private static final String AFTER = "After";
+	private static final String REQUESTID = "RequestId";
+
+	// cifre esadecimali per gli escape \\uXXXX
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	// il buffer di codifica
+	private StringBuilder out;
+
+	// il buffer in cui viene codificato il messaggio di testo annidato
+	private StringBuilder nested;
+
+	// il buffer della size seguita dal messaggio, vedi encodeLines
+	private StringBuilder lines;
+
+	// buffer per le chiavi e le stringhe con escape in decodifica
+	private StringBuilder token;
+
+	// i campi letti dal messaggio e da quello di testo annidato
+	private Fields fields;
+	private Fields nestedFields;
+
+	// la stringa da cui si sta decodificando
+	private String in;
+
+	// posizione di lettura in in
+	private int pos;
+
+	public JSONCodec() {
+		// COSTRUTTORE
+		this.out = new StringBuilder(256);
+		this.nested = new StringBuilder(128);
+		this.lines = new StringBuilder(256);
+		this.token = new StringBuilder(64);
+		this.fields = new Fields();
+		this.nestedFields = new Fields();
+	}
+
+	/* CODIFICA */
+
+	/**
+	 * Codifica un messaggio in una stringa JSON
+	 *
+	 * @param m
+	 *            il messaggio da codificare
+	 * @return la stringa JSON
+	 * @throws NullPointerException
+	 *             se il messaggio e' null
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public String encode(Message m) throws MalformedMessageException {
+		if (m == null)
+			throw new NullPointerException();
+		this.out.setLength(0);
+		this.write(m, this.out);
+		return this.out.toString();
+	}
+
+	/**
+	 * Codifica un messaggio come la size del messaggio JSON seguita dal
+	 * messaggio stesso, ognuno su una riga
+	 *
+	 * @param m
+	 *            il messaggio da codificare
+	 * @return i byte da scrivere sulla connessione
+	 * @throws NullPointerException
+	 *             se il messaggio e' null
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public byte[] encodeLines(Message m) throws MalformedMessageException {
+		if (m == null)
+			throw new NullPointerException();
+		this.out.setLength(0);
+		this.write(m, this.out);
+		this.lines.setLength(0);
+		this.lines.append(this.out.length()).append('\n').append(this.out).append('\n');
+		return this.lines.toString().getBytes();
+	}
+
+	/**
+	 * Funzione di utilita' privata, scrive in sb l'oggetto JSON di un
+	 * messaggio
+	 */
+	private void write(Message message, StringBuilder sb) throws MalformedMessageException {
+		sb.append('{');
+		this.field(sb, TYPE, true).append(message.getType());
+		this.string(this.field(sb, SENDER, false), message.getSender());
+		this.string(this.field(sb, RECEIVER, false), message.getReceiver());
+		if (message.getRequestId() != 0)
+			this.field(sb, REQUESTID, false).append(message.getRequestId());
+		try {
+			switch (message.getType()) {
+			case (Message.REQUEST): {
+				RequestMessage msg = (RequestMessage) message;
+				this.field(sb, REQCODE, false).append(msg.TypeOfRequest().getCode());
+				switch (msg.TypeOfRequest()) {
+				// il messaggio di testo e' annidato come stringa JSON
+				case CHATROOM_MSG:
+					this.text(sb, msg.getTextMessage());
+					this.string(this.field(sb, CHATROOM, false), msg.getTarget());
+					break;
+				case CLOSE_CHAT:
+				case CREATE_CHATROOM:
+				case ADD_TO_CHATROOM:
+					this.string(this.field(sb, CHATROOM, false), msg.getTarget());
+					break;
+				case MSG2FRIEND:
+					this.text(sb, msg.getTextMessage());
+					this.string(this.field(sb, TARGET, false), msg.getTarget());
+					break;
+				case FILE2FRIEND:
+				case FRIENDSHIP:
+				case LOOKUP:
+				case OPEN_P2PCONN:
+				case MUTUAL_FRIENDS:
+				case FRIENDSHIP_PATH:
+					this.string(this.field(sb, TARGET, false), msg.getTarget());
+					break;
+				case SEARCH_USERS:
+					this.string(this.field(sb, TARGET, false), msg.getTarget());
+					if (msg.getAfter() != null)
+						this.string(this.field(sb, AFTER, false), msg.getAfter());
+					break;
+				case REGISTER:
+					this.string(this.field(sb, LANGUAGE, false), msg.getLanguage());
+					break;
+				case LOGIN:
+				case FRIEND_LIST:
+				case CHATROOM_LIST:
+				case SUGGEST_FRIENDS:
+					break;
+				default:
+					throw new MalformedMessageException();
+				}
+				break;
+			}
+			case (Message.RESPONSE): {
+				ResponseMessage msg = (ResponseMessage) message;
+				this.field(sb, RESPCODE, false).append(msg.TypeOfResponse().getCode());
+				this.field(sb, REQCODE, false).append(msg.TypeOfRequest().getCode());
+				if (msg.TypeOfResponse() == ResponseCode.OP_OK) {
+					RequestCode request = msg.TypeOfRequest();
+					if (request == RequestCode.CHATROOM_LIST || request == RequestCode.FRIEND_LIST
+							|| request == RequestCode.SUGGEST_FRIENDS || request == RequestCode.MUTUAL_FRIENDS
+							|| request == RequestCode.FRIENDSHIP_PATH) {
+						this.field(sb, LIST, false).append('[');
+						String[] list = msg.getList();
+						for (int i = 0; i < list.length; i++) {
+							if (i > 0)
+								sb.append(',');
+							this.string(sb, list[i]);
+						}
+						sb.append(']');
+					} else if (request == RequestCode.SEARCH_USERS) {
+						this.field(sb, LIST, false).append('[');
+						String[] list = msg.getList();
+						for (int i = 0; i < list.length; i++) {
+							if (i > 0)
+								sb.append(',');
+							this.string(sb, list[i]);
+						}
+						this.field(sb.append(']'), ONLINELIST, false).append('[');
+						boolean[] online = msg.getOnlineList();
+						for (int i = 0; i < online.length; i++) {
+							if (i > 0)
+								sb.append(',');
+							sb.append(online[i]);
+						}
+						sb.append(']');
+					} else if (request == RequestCode.OPEN_P2PCONN || request == RequestCode.FILE2FRIEND) {
+						this.string(this.field(sb, ADDRESS, false), address(msg.getPeerAddress()));
+						this.field(sb, PORT, false).append(msg.getPeerPort());
+					} else if (request == RequestCode.FRIENDSHIP || request == RequestCode.LOOKUP) {
+						this.field(sb, ISONLINE, false).append(msg.isOnline());
+					} else if (request == RequestCode.CREATE_CHATROOM || request == RequestCode.ADD_TO_CHATROOM) {
+						this.string(this.field(sb, ADDRESS, false), address(msg.getChatroomAddress()));
+					}
+				}
+				break;
+			}
+			case (Message.TEXT): {
+				this.string(this.field(sb, MESSAGE, false), ((TextMessage) message).getMessage());
+				break;
+			}
+			default:
+				throw new UnsupportedOperationException();
+			}
+		} catch (NotAFieldException e) {
+			// Il messaggio era fatto male
+			throw new MalformedMessageException();
+		}
+		sb.append('}');
+	}
+
+	/**
+	 * Funzione di utilita' privata, scrive la chiave di un campo
+	 */
+	private StringBuilder field(StringBuilder sb, String key, boolean first) {
+		if (!first)
+			sb.append(',');
+		return sb.append('"').append(key).append("\":");
+	}
+
+	/**
+	 * Funzione di utilita' privata, scrive il messaggio di testo annidato in
+	 * una richiesta come stringa JSON
+	 */
+	private void text(StringBuilder sb, TextMessage text) throws MalformedMessageException {
+		if (text == null)
+			throw new MalformedMessageException();
+		this.nested.setLength(0);
+		this.write(text, this.nested);
+		this.string(this.field(sb, TEXTMESSAGE, false), this.nested);
+	}
+
+	/**
+	 * Funzione di utilita' privata, scrive una stringa JSON con lo stesso
+	 * escape di json.simple
+	 */
+	private void string(StringBuilder sb, CharSequence s) {
+		if (s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '/':
+				sb.append("\\/");
+				break;
+			case '\b':
+				sb.append("\\b");
+				break;
+			case '\f':
+				sb.append("\\f");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c <= '\u001F' || (c >= '\u007F' && c <= '\u009F') || (c >= '\u2000' && c <= '\u20FF'))
+					sb.append("\\u").append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+							.append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Funzione di utilita' privata, l'IP di un indirizzo. Il toString
+	 * dell'InetAddress mette l'indirizzo in una stringa del tipo
+	 * "NomeHost/IP", a me interessa solo l'IP
+	 */
+	private static String address(InetAddress address) {
+		String addr = address.toString();
+		return addr.substring(addr.lastIndexOf('/') + 1);
+	}
+
+	/* DECODIFICA */
+
+	/**
+	 * Decodifica una stringa JSON nel messaggio corrispondente
+	 *
+	 * @param json
+	 *            la stringa JSON
+	 * @return il messaggio decodificato
+	 * @throws NullPointerException
+	 *             se la stringa e' null
+	 * @throws MalformedMessageException
+	 *             se la stringa non e' un messaggio valido
+	 */
+	public Message decode(String json) throws MalformedMessageException {
+		if (json == null)
+			throw new NullPointerException();
+		Message msg = this.build(this.parse(json, this.fields), true);
+		Long requestId = this.fields.requestId;
+		if (requestId != null) {
+			if (requestId.longValue() < 0 || requestId.longValue() > Integer.MAX_VALUE)
+				throw new MalformedMessageException();
+			msg.setRequestId(requestId.intValue());
+		}
+		return msg;
+	}
+
+	/**
+	 * Funzione di utilita' privata, costruisce il messaggio dai campi letti
+	 */
+	private Message build(Fields f, boolean outer) throws MalformedMessageException {
+		if (f.type == null)
+			throw new MalformedMessageException();
+		String sender = f.sender;
+		String receiver = f.receiver;
+
+		switch (f.type.intValue()) {
+		case (Message.REQUEST): {
+			// se ho un messaggio di testo all'interno devo fare il parsing
+			// pure di esso, che non puo' a sua volta contenerne altri
+			TextMessage textMessage = null;
+			if (f.textMessage != null) {
+				if (!outer)
+					throw new MalformedMessageException();
+				Message text = this.build(this.parse(f.textMessage, this.nestedFields), false);
+				if (text.getType() != Message.TEXT)
+					throw new MalformedMessageException();
+				textMessage = (TextMessage) text;
+			}
+			switch (requestCode(f)) {
+			case ADD_TO_CHATROOM:
+				return RequestMessage.BuildJoinChatroom(sender, f.chatName);
+			case CHATROOM_LIST:
+				return RequestMessage.BuildChatroomList(sender);
+			case CHATROOM_MSG:
+				return RequestMessage.BuildMessageToChatroom(sender, f.chatName, textMessage);
+			case CLOSE_CHAT:
+				return RequestMessage.BuildDeleteChatroom(sender, f.chatName);
+			case CREATE_CHATROOM:
+				return RequestMessage.BuildCreateChatroom(sender, f.chatName);
+			case FILE2FRIEND:
+				return RequestMessage.BuildFileToFriend(sender, f.target);
+			case FRIENDSHIP:
+				return RequestMessage.BuildFriendship(sender, f.target);
+			case FRIEND_LIST:
+				return RequestMessage.BuildFriendList(sender);
+			case LOGIN:
+				return RequestMessage.BuildLogin(sender);
+			case LOOKUP:
+				return RequestMessage.BuildLookUp(sender, f.target);
+			case MUTUAL_FRIENDS:
+				return RequestMessage.BuildMutualFriends(sender, f.target);
+			case FRIENDSHIP_PATH:
+				return RequestMessage.BuildFriendshipPath(sender, f.target);
+			case MSG2FRIEND:
+				return RequestMessage.BuildMessageToFriend(sender, f.target, textMessage);
+			case OPEN_P2PCONN:
+				return RequestMessage.BuildOpenConnection(f.target, receiver);
+			case REGISTER:
+				return RequestMessage.BuildRegister(sender, f.language);
+			case SUGGEST_FRIENDS:
+				return RequestMessage.BuildSuggestFriends(sender);
+			case SEARCH_USERS:
+				return RequestMessage.BuildSearchUsers(sender, f.target, f.after);
+			default:
+				throw new MalformedMessageException();
+			}
+		}
+		case (Message.RESPONSE): {
+			if (f.respCode == null)
+				throw new MalformedMessageException();
+			RequestCode request = requestCode(f);
+			ResponseCode response;
+			try {
+				response = ResponseCode.DescriptionOf(f.respCode.intValue());
+			} catch (NoSuchCodeException e) {
+				throw new MalformedMessageException();
+			}
+			// NACK, errore nella richiesta
+			if (response != ResponseCode.OP_OK)
+				return ResponseMessage.BuildError(response, request, receiver);
+			if (request == RequestCode.CHATROOM_LIST || request == RequestCode.FRIEND_LIST
+					|| request == RequestCode.SUGGEST_FRIENDS || request == RequestCode.MUTUAL_FRIENDS
+					|| request == RequestCode.FRIENDSHIP_PATH) {
+				if (f.list == null)
+					throw new MalformedMessageException();
+				return ResponseMessage.BuildListAck(receiver, request, f.list.toArray(new String[f.list.size()]));
+			} else if (request == RequestCode.SEARCH_USERS) {
+				if (f.list == null || f.onlineList == null || f.list.size() != f.onlineList.length)
+					throw new MalformedMessageException();
+				return ResponseMessage.BuildSearchAck(receiver, f.list.toArray(new String[f.list.size()]),
+						f.onlineList);
+			} else if (request == RequestCode.OPEN_P2PCONN || request == RequestCode.FILE2FRIEND) {
+				if (f.port == null)
+					throw new MalformedMessageException();
+				return ResponseMessage.BuildConnectionP2PAck(sender, receiver, request, inetAddress(f.address),
+						f.port.intValue());
+			} else if (request == RequestCode.FRIENDSHIP || request == RequestCode.LOOKUP) {
+				if (f.isOnline == null)
+					throw new MalformedMessageException();
+				return ResponseMessage.BuildOnlineAck(receiver, request, f.isOnline.booleanValue());
+			} else if (request == RequestCode.ADD_TO_CHATROOM || request == RequestCode.CREATE_CHATROOM) {
+				return ResponseMessage.BuildChatroomAck(receiver, request, inetAddress(f.address));
+			}
+			// ack generico
+			return ResponseMessage.BuildAck(receiver, request);
+		}
+		case (Message.TEXT):
+			return TextMessage.BuildTextMessage(sender, receiver, f.message);
+		default: // cosa mi e' stato passato?
+			throw new MalformedMessageException();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, la richiesta corrispondente al codice
+	 * letto
+	 */
+	private static RequestCode requestCode(Fields f) throws MalformedMessageException {
+		if (f.reqCode == null)
+			throw new MalformedMessageException();
+		try {
+			return RequestCode.DescriptionOf(f.reqCode.intValue());
+		} catch (NoSuchCodeException e) {
+			throw new MalformedMessageException();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, l'indirizzo corrispondente ad un IP letto
+	 */
+	private static InetAddress inetAddress(String addr) throws MalformedMessageException {
+		if (addr == null)
+			throw new MalformedMessageException();
+		try {
+			return InetAddress.getByName(addr);
+		} catch (UnknownHostException e) {
+			throw new MalformedMessageException();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge un oggetto JSON e ne memorizza i
+	 * campi noti in f, in un'unica passata
+	 */
+	private Fields parse(String json, Fields f) throws MalformedMessageException {
+		f.reset();
+		this.in = json;
+		this.pos = 0;
+		try {
+			this.expect('{');
+			if (this.peek() == '}') {
+				this.pos++;
+			} else {
+				while (true) {
+					this.expect('"');
+					this.key();
+					this.expect(':');
+					this.value(f);
+					char c = this.next();
+					if (c == '}')
+						break;
+					if (c != ',')
+						throw new MalformedMessageException();
+				}
+			}
+			if (this.peek() != 0)
+				throw new MalformedMessageException();
+		} catch (StringIndexOutOfBoundsException e) {
+			// stringa terminata prima della fine dell'oggetto
+			throw new MalformedMessageException();
+		}
+		return f;
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge il valore del campo la cui chiave e'
+	 * in token e, se il campo e' noto, lo memorizza in f
+	 */
+	private void value(Fields f) throws MalformedMessageException {
+		StringBuilder key = this.token;
+		if (equals(key, TYPE))
+			f.type = this.number();
+		else if (equals(key, SENDER))
+			f.sender = this.string();
+		else if (equals(key, RECEIVER))
+			f.receiver = this.string();
+		else if (equals(key, REQCODE))
+			f.reqCode = this.number();
+		else if (equals(key, RESPCODE))
+			f.respCode = this.number();
+		else if (equals(key, TEXTMESSAGE))
+			f.textMessage = this.string();
+		else if (equals(key, MESSAGE))
+			f.message = this.string();
+		else if (equals(key, CHATROOM))
+			f.chatName = this.string();
+		else if (equals(key, TARGET))
+			f.target = this.string();
+		else if (equals(key, LANGUAGE))
+			f.language = this.string();
+		else if (equals(key, ADDRESS))
+			f.address = this.string();
+		else if (equals(key, PORT))
+			f.port = this.number();
+		else if (equals(key, ISONLINE))
+			f.isOnline = this.bool();
+		else if (equals(key, REQUESTID))
+			f.requestId = this.number();
+		else if (equals(key, LIST))
+			f.list = this.list(f.listBuffer);
+		else if (equals(key, ONLINELIST))
+			f.onlineList = this.bools();
+		else if (equals(key, AFTER))
+			f.after = this.string();
+		else
+			this.skip();
+	}
+
+	/**
+	 * Funzione di utilita' privata, confronta una chiave senza creare stringhe
+	 */
+	private static boolean equals(StringBuilder key, String name) {
+		if (key.length() != name.length())
+			return false;
+		for (int i = 0; i < name.length(); i++)
+			if (key.charAt(i) != name.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Funzione di utilita' privata, il prossimo carattere che non sia uno
+	 * spazio, senza consumarlo. 0 a fine stringa
+	 */
+	private char peek() {
+		while (this.pos < this.in.length()) {
+			char c = this.in.charAt(this.pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+				return c;
+			this.pos++;
+		}
+		return 0;
+	}
+
+	/**
+	 * Funzione di utilita' privata, consuma e restituisce il prossimo
+	 * carattere che non sia uno spazio
+	 */
+	private char next() throws MalformedMessageException {
+		char c = this.peek();
+		if (c == 0)
+			throw new MalformedMessageException();
+		this.pos++;
+		return c;
+	}
+
+	/**
+	 * Funzione di utilita' privata, consuma il carattere atteso
+	 */
+	private void expect(char expected) throws MalformedMessageException {
+		if (this.next() != expected)
+			throw new MalformedMessageException();
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge in token una stringa di cui e' gia'
+	 * stato consumato il primo '"'
+	 */
+	private void key() throws MalformedMessageException {
+		this.token.setLength(0);
+		while (true) {
+			char c = this.in.charAt(this.pos++);
+			if (c == '"')
+				return;
+			if (c == '\\')
+				c = this.escape();
+			this.token.append(c);
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge un valore stringa o null
+	 */
+	private String string() throws MalformedMessageException {
+		char c = this.next();
+		if (c == 'n') {
+			this.literal("ull");
+			return null;
+		}
+		if (c != '"')
+			throw new MalformedMessageException();
+		// caso comune, nessun escape: la stringa e' una sottostringa
+		int start = this.pos;
+		int end = this.in.indexOf('"', start);
+		if (end < 0)
+			throw new MalformedMessageException();
+		int backslash = this.in.indexOf('\\', start);
+		if (backslash < 0 || backslash > end) {
+			this.pos = end + 1;
+			return this.in.substring(start, end);
+		}
+		this.key();
+		return this.token.toString();
+	}
+
+	/**
+	 * Funzione di utilita' privata, decodifica un escape di cui e' gia' stato
+	 * consumato il '\\'
+	 */
+	private char escape() throws MalformedMessageException {
+		char c = this.in.charAt(this.pos++);
+		switch (c) {
+		case '"':
+		case '\\':
+		case '/':
+			return c;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(this.in.charAt(this.pos++), 16);
+				if (digit < 0)
+					throw new MalformedMessageException();
+				value = (value << 4) | digit;
+			}
+			return (char) value;
+		default:
+			throw new MalformedMessageException();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge un intero o null
+	 */
+	private Long number() throws MalformedMessageException {
+		char c = this.peek();
+		if (c == 'n') {
+			this.pos++;
+			this.literal("ull");
+			return null;
+		}
+		boolean negative = c == '-';
+		if (negative)
+			this.pos++;
+		long value = 0;
+		int digits = 0;
+		while (this.pos < this.in.length()) {
+			int digit = this.in.charAt(this.pos) - '0';
+			if (digit < 0 || digit > 9)
+				break;
+			if (++digits > 18)
+				throw new MalformedMessageException();
+			value = value * 10 + digit;
+			this.pos++;
+		}
+		if (digits == 0)
+			throw new MalformedMessageException();
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge un booleano o null
+	 */
+	private Boolean bool() throws MalformedMessageException {
+		char c = this.next();
+		switch (c) {
+		case 't':
+			this.literal("rue");
+			return Boolean.TRUE;
+		case 'f':
+			this.literal("alse");
+			return Boolean.FALSE;
+		case 'n':
+			this.literal("ull");
+			return null;
+		default:
+			throw new MalformedMessageException();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge un array di stringhe (o null) nella
+	 * lista riutilizzata
+	 */
+	private ArrayList<String> list(ArrayList<String> list) throws MalformedMessageException {
+		char c = this.next();
+		if (c == 'n') {
+			this.literal("ull");
+			return null;
+		}
+		if (c != '[')
+			throw new MalformedMessageException();
+		list.clear();
+		if (this.peek() == ']') {
+			this.pos++;
+			return list;
+		}
+		while (true) {
+			list.add(this.string());
+			c = this.next();
+			if (c == ']')
+				return list;
+			if (c != ',')
+				throw new MalformedMessageException();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge un array di booleani o null
+	 */
+	private boolean[] bools() throws MalformedMessageException {
+		char c = this.next();
+		if (c == 'n') {
+			this.literal("ull");
+			return null;
+		}
+		if (c != '[')
+			throw new MalformedMessageException();
+		if (this.peek() == ']') {
+			this.pos++;
+			return new boolean[0];
+		}
+		boolean[] values = new boolean[16];
+		int size = 0;
+		while (true) {
+			Boolean value = this.bool();
+			if (value == null)
+				throw new MalformedMessageException();
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value.booleanValue();
+			c = this.next();
+			if (c == ']')
+				return Arrays.copyOf(values, size);
+			if (c != ',')
+				throw new MalformedMessageException();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, consuma il resto di una parola chiave
+	 */
+	private void literal(String rest) throws MalformedMessageException {
+		if (!this.in.startsWith(rest, this.pos))
+			throw new MalformedMessageException();
+		this.pos += rest.length();
+	}
+
+	/**
+	 * Funzione di utilita' privata, scarta un valore qualsiasi di un campo non
+	 * noto
+	 */
+	private void skip() throws MalformedMessageException {
+		char c = this.next();
+		switch (c) {
+		case '"':
+			this.key();
+			break;
+		case '{':
+			if (this.peek() == '}') {
+				this.pos++;
+				break;
+			}
+			while (true) {
+				this.expect('"');
+				this.key();
+				this.expect(':');
+				this.skip();
+				c = this.next();
+				if (c == '}')
+					break;
+				if (c != ',')
+					throw new MalformedMessageException();
+			}
+			break;
+		case '[':
+			if (this.peek() == ']') {
+				this.pos++;
+				break;
+			}
+			while (true) {
+				this.skip();
+				c = this.next();
+				if (c == ']')
+					break;
+				if (c != ',')
+					throw new MalformedMessageException();
+			}
+			break;
+		case 't':
+			this.literal("rue");
+			break;
+		case 'f':
+			this.literal("alse");
+			break;
+		case 'n':
+			this.literal("ull");
+			break;
+		default:
+			// numero, anche con parte decimale o esponente
+			if (c != '-' && (c < '0' || c > '9'))
+				throw new MalformedMessageException();
+			while (this.pos < this.in.length() && "0123456789.eE+-".indexOf(this.in.charAt(this.pos)) >= 0)
+				this.pos++;
+		}
+	}
+
+	/**
+	 * I campi noti letti da un oggetto JSON, null se assenti
+	 */
+	private static class Fields {
+
+		Long type;
+		Long reqCode;
+		Long respCode;
+		Long port;
+		Long requestId;
+		Boolean isOnline;
+		String sender;
+		String receiver;
+		String textMessage;
+		String message;
+		String chatName;
+		String target;
+		String language;
+		String address;
+		String after;
+		ArrayList<String> list;
+		boolean[] onlineList;
+
+		// la lista riutilizzata per il campo List
+		ArrayList<String> listBuffer = new ArrayList<String>();
+
+		void reset() {
+			this.type = null;
+			this.reqCode = null;
+			this.respCode = null;
+			this.port = null;
+			this.requestId = null;
+			this.isOnline = null;
+			this.sender = null;
+			this.receiver = null;
+			this.textMessage = null;
+			this.message = null;
+			this.chatName = null;
+			this.target = null;
+			this.language = null;
+			this.address = null;
+			this.list = null;
+			this.after = null;
+			this.onlineList = null;
+		}
+
+	}
+
+}
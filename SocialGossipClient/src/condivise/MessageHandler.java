@@ -1,19 +1,15 @@
 package condivise;
 
-import java.io.BufferedWriter;
+import java.io.BufferedWriter; 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.net.InetAddress;
 import java.net.Socket;
-import java.net.UnknownHostException;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 import exceptions.MalformedMessageException;
-import exceptions.NoSuchCodeException;
 import exceptions.NotAFieldException;
 
 /**
@@ -43,13 +39,19 @@ public class MessageHandler {
 	public final String LANGUAGE = "Language";
 	public final String STUB = "Stub";
 	public final String ISONLINE = "IsOnline";
+	public final String ONLINELIST = "OnlineList";
+	public final String AFTER = "After";
+	public final String REQUESTID = "RequestId";
 
-	// il parser per le operazioni di parsing di stringhe JSON
-	JSONParser parser;
+	// il codificatore del formato JSON, senza JSONObject intermedi
+	private JSONCodec jsonCodec;
+
+	// il codificatore del formato binario, creato al primo utilizzo
+	private BinaryCodec binaryCodec;
 
 	public MessageHandler() {
 		// COSTRUTTORE
-		this.parser = new JSONParser();
+		this.jsonCodec = new JSONCodec();
 	}
 
 	// Per evitare warning sulle put su JSONObject, per via del fatto che
@@ -83,6 +85,10 @@ public class MessageHandler {
 		msgJSON.put(this.TYPE, message.getType()); // richiesta/risposta/testo
 		msgJSON.put(this.SENDER, message.getSender());
 		msgJSON.put(this.RECEIVER, message.getReceiver());
+		// l'identificativo della richiesta solo se presente, cosi' che i
+		// messaggi senza identificativo restino quelli di sempre
+		if (message.getRequestId() != 0)
+			msgJSON.put(this.REQUESTID, message.getRequestId());
 		try {
 			// adesso devo controllare il tipo del messaggio per riempire i vari
 			// campi
@@ -117,7 +123,16 @@ public class MessageHandler {
 				case FRIENDSHIP:
 				case LOOKUP:
 				case OPEN_P2PCONN:
+				case MUTUAL_FRIENDS:
+				case FRIENDSHIP_PATH:
+					msgJSON.put(this.TARGET, msg.getTarget());
+					break;
+				// la ricerca ha il prefisso e, dalla seconda pagina, l'ultimo
+				// nickname ricevuto
+				case SEARCH_USERS:
 					msgJSON.put(this.TARGET, msg.getTarget());
+					if (msg.getAfter() != null)
+						msgJSON.put(this.AFTER, msg.getAfter());
 					break;
 				// register e' l'unico con il campo lingua
 				case REGISTER:
@@ -128,6 +143,7 @@ public class MessageHandler {
 				case LOGIN:
 				case FRIEND_LIST:
 				case CHATROOM_LIST:
+				case SUGGEST_FRIENDS:
 					break;
 				default:
 					throw new MalformedMessageException();
@@ -146,7 +162,10 @@ public class MessageHandler {
 				// campo
 				if (msg.TypeOfResponse() == ResponseCode.OP_OK) {
 					if (msg.TypeOfRequest() == RequestCode.CHATROOM_LIST
-							|| msg.TypeOfRequest() == RequestCode.FRIEND_LIST) {
+							|| msg.TypeOfRequest() == RequestCode.FRIEND_LIST
+							|| msg.TypeOfRequest() == RequestCode.SUGGEST_FRIENDS
+							|| msg.TypeOfRequest() == RequestCode.MUTUAL_FRIENDS
+							|| msg.TypeOfRequest() == RequestCode.FRIENDSHIP_PATH) {
 						// messaggio di listing, devo aggiungere un JSONArray
 						// relativo alle stringhe di nomi di amici/chatroom
 						JSONArray list = new JSONArray();
@@ -154,6 +173,17 @@ public class MessageHandler {
 							list.add(s);
 						}
 						msgJSON.put(this.LIST, list);
+					} else if (msg.TypeOfRequest() == RequestCode.SEARCH_USERS) {
+						// la pagina di nickname trovati, ognuno con il suo
+						// stato
+						JSONArray list = new JSONArray();
+						JSONArray online = new JSONArray();
+						for (String s : msg.getList())
+							list.add(s);
+						for (boolean b : msg.getOnlineList())
+							online.add(b);
+						msgJSON.put(this.LIST, list);
+						msgJSON.put(this.ONLINELIST, online);
 					} else if (msg.TypeOfRequest() == RequestCode.OPEN_P2PCONN
 							|| msg.TypeOfRequest() == RequestCode.FILE2FRIEND) {
 						// richiesta di scambio di file, devo comunicare
@@ -204,9 +234,27 @@ public class MessageHandler {
 		return msgJSON;
 	}
 
+	/**
+	 * Metodo che dato un messaggio crea direttamente la stringa JSON
+	 * corrispondente, nello stesso formato di Message2JSONObject ma senza
+	 * costruire il JSONObject (vedi JSONCodec)
+	 * 
+	 * @param message
+	 *            il messaggio da codificare
+	 * @return la stringa JSON
+	 * @throws MalformedMessageException
+	 *             Se il messaggio passato come parametro e' malformato
+	 * @throws NullPointerException
+	 *             se il messaggio passato come parametro e' null
+	 */
+	public String Message2JSONString(Message message) throws MalformedMessageException {
+		return this.jsonCodec.encode(message);
+	}
+
 	/**
 	 * Metodo che data una stringa in formato JSON, ricostruisce il messaggio
-	 * corrispondente.
+	 * corrispondente. La stringa viene letta in un'unica passata, senza
+	 * costruire l'albero dei JSONObject (vedi JSONCodec)
 	 * 
 	 * @param stringJSON
 	 *            La stringa di cui voglio fare parsing
@@ -217,187 +265,125 @@ public class MessageHandler {
 	 *             se la stringa e' null
 	 */
 	public Message JSONString2Message(String stringJSON) throws MalformedMessageException {
+		return this.jsonCodec.decode(stringJSON);
+	}
 
-		// controllo la correttezza del parametro
-		if (stringJSON == null)
+	/**
+	 * Codifica un messaggio nello stesso formato utilizzato da sendMessage, la
+	 * size del messaggio JSON seguita dal messaggio stesso, ognuno su una riga.
+	 * Utile quando il messaggio non viene scritto direttamente su un Socket
+	 * bloccante ma su un canale NIO
+	 * 
+	 * @param m
+	 *            il messaggio da codificare
+	 * @return i byte da scrivere sul canale
+	 * @throws NullPointerException
+	 *             se il messaggio e' null
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public byte[] Message2Bytes(Message m) throws MalformedMessageException {
+		if (m == null)
 			throw new NullPointerException();
-		// msg e' la variabile che ritornero'
-		Message msg = null;
-		// obj e' il JSON object su cui lavorero' e recuperero' i campi
-		JSONObject obj = null;
-		try {
-			obj = (JSONObject) this.parser.parse(stringJSON);
-		} catch (ParseException e) {
-			// se fallisce il parsing allora la stringa non era valida
-			throw new MalformedMessageException();
-		}
 
-		// recupero alcuni campi che in ogni caso dovro' utilizzare
-		int msgType = ((Long) obj.get(this.TYPE)).intValue();
-		String sender = (String) obj.get(this.SENDER);
-		String receiver = (String) obj.get(this.RECEIVER);
+		return this.jsonCodec.encodeLines(m);
+	}
 
-		// adesso lavoro diversamente se e' richiesta, risposta o testo
-		switch (msgType) {
-		case (Message.REQUEST): {
-			// MESSAGGIO DI RICHIESTA
-			// scopro quale era la richiesta
-			int reqCode = ((Long) obj.get(this.REQCODE)).intValue();
-			RequestCode request = null;
-			try {
-				// ottengo dal codice numerico la richiesta effettiva
-				request = RequestCode.DescriptionOf(reqCode);
-			} catch (NoSuchCodeException e) {
-				throw new MalformedMessageException();
-			}
-			// adesso ottengo tutti i campi che potrebbero servirmi, usero' nei
-			// prossimi passi solo quelli utili, gli altri probabilmente saranno
-			// null ma poco importa
-			String chatName = (String) obj.get(this.CHATROOM);
-			String textJSON = (String) obj.get(this.TEXTMESSAGE);
-			String target = (String) obj.get(this.TARGET);
-			String language = (String) obj.get(this.LANGUAGE);
-			// se ho un messaggio di testo all'interno devo fare il parsing pure
-			// di esso, la gestione dei messaggi di testo e' in fondo a questo
-			// metodo
-			TextMessage textMessage = null;
-			if (textJSON != null)
-				textMessage = (TextMessage) JSONString2Message(textJSON);
-			// adesso costruisco i messaggi diversi a seconda del tipo di
-			// richiesta con i relativi metodi statici
-			switch (request) {
-			case ADD_TO_CHATROOM:
-				msg = RequestMessage.BuildJoinChatroom(sender, chatName);
-				break;
-			case CHATROOM_LIST:
-				msg = RequestMessage.BuildChatroomList(sender);
-				break;
-			case CHATROOM_MSG:
-				msg = RequestMessage.BuildMessageToChatroom(sender, chatName, textMessage);
-				break;
-			case CLOSE_CHAT:
-				msg = RequestMessage.BuildDeleteChatroom(sender, chatName);
-				break;
-			case CREATE_CHATROOM:
-				msg = RequestMessage.BuildCreateChatroom(sender, chatName);
-				break;
-			case FILE2FRIEND:
-				msg = RequestMessage.BuildFileToFriend(sender, target);
-				break;
-			case FRIENDSHIP:
-				msg = RequestMessage.BuildFriendship(sender, target);
-				break;
-			case FRIEND_LIST:
-				msg = RequestMessage.BuildFriendList(sender);
-				break;
-			case LOGIN:
-				msg = RequestMessage.BuildLogin(sender);
-				break;
-			case LOOKUP:
-				msg = RequestMessage.BuildLookUp(sender, target);
-				break;
-			case MSG2FRIEND:
-				msg = RequestMessage.BuildMessageToFriend(sender, target, textMessage);
-				break;
-			case OPEN_P2PCONN:
-				msg = RequestMessage.BuildOpenConnection(target, receiver);
-				break;
-			case REGISTER:
-				msg = RequestMessage.BuildRegister(sender, language);
-				break;
-			default: // non dovrei mai arrivare qua
-				throw new MalformedMessageException();
-			}
-			// fine gestione richiesta
-			break;
-		}
-		case (Message.RESPONSE): {
-			// MESSAGGI DI RISPOSTA
-			// ottengo alcune cose che mi saranno sicuramente utili
-			int respCode = ((Long) obj.get(this.RESPCODE)).intValue();
-			int reqCode = ((Long) obj.get(this.REQCODE)).intValue();
-			RequestCode request = null;
-			ResponseCode response = null;
-			try {
-				// ricavo sia richiesta che risposta dai relativi codici
-				request = RequestCode.DescriptionOf(reqCode);
-				response = ResponseCode.DescriptionOf(respCode);
-			} catch (NoSuchCodeException e) {
-				throw new MalformedMessageException();
-			}
-			// 2 casi: ACK positivo o negativo
-			if (response == ResponseCode.OP_OK) {
-				// ACK POSITIVO
-				// 5 sottocasi: ack per lista, ack per open conn, ack online,
-				// ack per chatroom ed ack generico
-				if (request == RequestCode.CHATROOM_LIST || request == RequestCode.FRIEND_LIST) {
-					// ack per lista, devo ottenere la lista di nomi
-					JSONArray listJSON = (JSONArray) obj.get(this.LIST);
-					String[] list = new String[listJSON.size()];
-					// per ogni elemento nel JSONArray, prendo la sua
-					// controparte String
-					for (int i = 0; i < listJSON.size(); i++)
-						list[i] = (String) listJSON.get(i);
-					// adesso creo l'ack vero e proprio col metoto statico
-					msg = ResponseMessage.BuildListAck(receiver, request, list);
-				} else if (request == RequestCode.OPEN_P2PCONN || request == RequestCode.FILE2FRIEND) {
-					// ack per apertura connessione P2P
-					// ottengo l'indirizzo del socket del secondo client
-					String addr = (String) obj.get(this.ADDRESS);
-					InetAddress address;
-					try {
-						address = InetAddress.getByName(addr);
-					} catch (UnknownHostException e) {
-						e.printStackTrace();
-						throw new MalformedMessageException();
-					}
-					int port = ((Long) obj.get(this.PORT)).intValue();
-					// creo il messaggio con il metodo statico
-					msg = ResponseMessage.BuildConnectionP2PAck(sender, receiver, request, address, port);
-				} else if (request == RequestCode.FRIENDSHIP || request == RequestCode.LOOKUP) {
-					boolean isOnline = (boolean) obj.get(this.ISONLINE);
-					msg = ResponseMessage.BuildOnlineAck(receiver, request, isOnline);
-				} else if (request == RequestCode.ADD_TO_CHATROOM || request == RequestCode.CREATE_CHATROOM) {
-					String addr = (String) obj.get(this.ADDRESS);
-					InetAddress address;
-					try {
-						address = InetAddress.getByName(addr);
-					} catch (UnknownHostException e) {
-						e.printStackTrace();
-						throw new MalformedMessageException();
-					}
-					msg = ResponseMessage.BuildChatroomAck(receiver, request, address);
-					// ack generico, mi limito a creare il messaggio
-				} else {
-					msg = ResponseMessage.BuildAck(receiver, request);
-				}
-			} else {
-				// NACK, errore nella richiesta
-				// mi limito a creare un messaggio di errore
-				msg = ResponseMessage.BuildError(response, request, receiver);
-			}
-			// fine gestione risposte
-			break;
-		}
-		case (Message.TEXT): {
-			// MESSAGGI DI TESTO
-			// per questi messaggi basta ottenere la stringa del messaggio
-			String text = (String) obj.get(this.MESSAGE);
-			// e creare il messaggio
-			msg = TextMessage.BuildTextMessage(sender, receiver, text);
-			break;
-		}
-		default: // cosa mi e' stato passato?
-			throw new MalformedMessageException();
-		}
+	/**
+	 * Codifica un messaggio nel formato richiesto: per il formato JSON come
+	 * Message2Bytes(m), per il formato binario un frame di BinaryCodec
+	 * 
+	 * @param m
+	 *            il messaggio da codificare
+	 * @param protocol
+	 *            il formato negoziato sulla connessione
+	 * @return i byte da scrivere sulla connessione
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public byte[] Message2Bytes(Message m, WireProtocol protocol) throws MalformedMessageException {
+		if (m == null || protocol == null)
+			throw new NullPointerException();
 
-		// a questo punto dovrei aver inizializzato msg, per sicurezza verifico
-		// che sia stato inizializzato, dopodiche' lo ritorno
-		if (msg == null)
-			throw new MalformedMessageException();
-		;
+		if (protocol == WireProtocol.BINARY)
+			return this.getBinaryCodec().encode(m);
+		return Message2Bytes(m);
+	}
+
+	/**
+	 * Codifica un messaggio da inviare su un canale di una connessione
+	 * multiplexed (vedi BinaryCodec), che usa sempre il formato binario. Con
+	 * il canale BinaryCodec.NO_CHANNEL si comporta come Message2Bytes(m,
+	 * protocol)
+	 * 
+	 * @param m
+	 *            il messaggio da codificare
+	 * @param protocol
+	 *            il formato negoziato sulla connessione
+	 * @param channel
+	 *            il canale su cui inviare il messaggio
+	 * @return i byte da scrivere sulla connessione
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 * @throws IllegalArgumentException
+	 *             se il canale non esiste o il formato non e' quello binario
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public byte[] Message2Bytes(Message m, WireProtocol protocol, int channel) throws MalformedMessageException {
+		if (channel == BinaryCodec.NO_CHANNEL)
+			return Message2Bytes(m, protocol);
+		if (m == null || protocol == null)
+			throw new NullPointerException();
+		if (protocol != WireProtocol.BINARY)
+			throw new IllegalArgumentException();
+
+		return this.getBinaryCodec().encode(m, channel);
+	}
+
+	/**
+	 * Restituisce il codificatore del formato binario di questo handler
+	 * 
+	 * @return il BinaryCodec, non thread safe come questo handler
+	 */
+	public BinaryCodec getBinaryCodec() {
+		if (this.binaryCodec == null)
+			this.binaryCodec = new BinaryCodec();
+		return this.binaryCodec;
+	}
 
-		return msg;
+	/**
+	 * Invia un messaggio ad un client nel formato negoziato sulla connessione.
+	 * Per il formato JSON si comporta come sendMessage(clientSocket, m), per
+	 * il formato binario scrive l'intero frame con una sola write
+	 * 
+	 * @param clientSocket
+	 *            il socket a cui inviare il messaggio
+	 * @param m
+	 *            il messaggio da inviare
+	 * @param protocol
+	 *            il formato negoziato sulla connessione
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 * @throws IOException
+	 *             in caso di errore durante la write
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public void sendMessage(Socket clientSocket, Message m, WireProtocol protocol)
+			throws IOException, MalformedMessageException {
+		if (clientSocket == null || m == null || protocol == null)
+			throw new NullPointerException();
+
+		if (protocol == WireProtocol.JSON) {
+			this.sendMessage(clientSocket, m);
+			return;
+		}
+		OutputStream out = clientSocket.getOutputStream();
+		out.write(this.getBinaryCodec().encode(m));
+		out.flush();
 	}
 
 	/**
@@ -434,8 +420,7 @@ public class MessageHandler {
 		BufferedWriter buff = new BufferedWriter(out);
 
 		// converto il messaggio nel formato inviabile, JSON
-		JSONObject jsonMsg = Message2JSONObject(m);
-		String jsonString = jsonMsg.toJSONString();
+		String jsonString = Message2JSONString(m);
 
 		// prima invio la size del messaggio di risposta
 		long size = jsonString.length();
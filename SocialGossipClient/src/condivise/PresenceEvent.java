@@ -0,0 +1,66 @@
+package condivise;
+
+import java.io.Serializable;
+
+/**
+ * Notifica di presenza recapitata dal server ad un client tramite il suo stub
+ * RMI: un amico del client e' passato online, e' passato offline oppure e' un
+ * nuovo amico (ed e' online). Le notifiche vengono inviate dal server in
+ * blocchi, vedi Notifier.NotifyPresenceBatch.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class PresenceEvent implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// tipi di notifica, i primi due con gli stessi valori di stato usati dalla
+	// GUI del client
+	public static final int OFFLINE = 0;
+	public static final int ONLINE = 1;
+	public static final int NEW_FRIEND = 2;
+
+	// il tipo della notifica
+	private int type;
+
+	// il nome dell'amico che ha cambiato stato
+	private String friend;
+
+	public PresenceEvent(int type, String friend) {
+		// COSTRUTTORE
+		if (friend == null)
+			throw new NullPointerException();
+		if (type != OFFLINE && type != ONLINE && type != NEW_FRIEND)
+			throw new IllegalArgumentException();
+		this.type = type;
+		this.friend = friend;
+	}
+
+	/**
+	 * Restituisce il tipo della notifica (ONLINE, OFFLINE o NEW_FRIEND)
+	 *
+	 * @return il tipo della notifica
+	 */
+	public int getType() {
+		return this.type;
+	}
+
+	/**
+	 * Restituisce il nome dell'amico che ha cambiato stato
+	 *
+	 * @return il nome dell'amico
+	 */
+	public String getFriend() {
+		return this.friend;
+	}
+
+	/**
+	 * Restituisce true se l'amico, dopo questa notifica, e' online
+	 *
+	 * @return il valore di verita' di "l'amico e' online"
+	 */
+	public boolean isOnline() {
+		return this.type != OFFLINE;
+	}
+
+}
@@ -25,7 +25,8 @@ public enum ResponseCode {
 	ALREADY_A_FRIEND(208),
 	ALREADY_IN_CHATROOM(209),
 	NO_ONE_ONLINE(210),
-	CHATROOM_UNKNOWN(211);
+	CHATROOM_UNKNOWN(211),
+	NO_PATH(212);
 
 	// il codice relativo ad ogni opzione
 	private int code;
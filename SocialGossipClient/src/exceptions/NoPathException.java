@@ -0,0 +1,22 @@
+package exceptions;
+
+/**
+ * Eccezione che viene lanciata lato server quando fra due utenti non esiste
+ * una catena di amicizie, o non viene trovata entro il numero massimo di
+ * utenti da visitare
+ * 
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class NoPathException extends Exception {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public NoPathException() {
+		super();
+	}
+	
+	public NoPathException(String s) {
+		super(s);
+	}
+
+}
@@ -1,7 +1,10 @@
 import java.io.IOException;
+import java.net.DatagramSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Thread acceptor, resta fermo in attesa di connessioni sulla porta nota del
@@ -11,6 +14,10 @@ import java.util.concurrent.BlockingQueue;
  * condivisa con i thread worker del thread pool. A loro stara' il compito di
  * accettare la connessione dei messaggi
  * 
+ * Nella modalita' "thread" del server, invece, l'Acceptor non usa la coda ma
+ * affida ogni client accettato ad un SessionWorker dedicato, eseguito
+ * dall'executor delle sessioni (un thread per connessione)
+ * 
  * @author Lorenzo Bellomo, Nicolo' Lucchesi
  */
 public class Acceptor extends Thread {
@@ -22,11 +29,35 @@ public class Acceptor extends Thread {
 	// il socket di controllo che aspetta nuove connessioni
 	private ServerSocket controlSocket;
 
+	// executor delle sessioni, null se i client vanno messi nella coda
+	private ExecutorService sessions;
+
+	// strutture condivise passate ai SessionWorker in modalita' "thread"
+	private OnlineRegistry onlineUsers;
+	private SocialGraph graph;
+	private Vector<ChatRoom> chatrooms;
+	private DatagramSocket chatroomSocket;
+	private TranslationPipeline translations;
+	private FriendSuggestions suggestions;
+
 	public Acceptor(BlockingQueue<WorkerTask> sockQueue) {
 		// COSTRUTTORE
 		this.queue = sockQueue;
 	}
 
+	public Acceptor(ExecutorService sessions, OnlineRegistry list, SocialGraph g, Vector<ChatRoom> chatrooms,
+			DatagramSocket chatSock, TranslationPipeline translations,
+			FriendSuggestions suggestions) {
+		// COSTRUTTORE per la modalita' un thread per connessione
+		this.sessions = sessions;
+		this.onlineUsers = list;
+		this.graph = g;
+		this.chatrooms = chatrooms;
+		this.chatroomSocket = chatSock;
+		this.translations = translations;
+		this.suggestions = suggestions;
+	}
+
 	public void run() {
 
 		try {
@@ -48,7 +79,13 @@ public class Acceptor extends Thread {
 
 				// se il clientSocket non e' null l'accept ha rilevato una nuova
 				// connessione
-				if (clientSocket != null) {
+				if (clientSocket != null && sessions != null) {
+					// modalita' un thread per connessione: il SessionWorker
+					// si occupera' del client per tutta la sua sessione
+					sessions.execute(new SessionWorker(clientSocket, onlineUsers, graph, chatrooms, chatroomSocket,
+							translations, suggestions));
+					System.out.println("Ricevuta nuova connessione!");
+				} else if (clientSocket != null) {
 					// aggiungo il clientSocket alla relativa coda; non utilizzo
 					// 'offer()' poiche' controllo nell'if precedente che la
 					// coda abbia spazio sufficiente ad ospitare un altro
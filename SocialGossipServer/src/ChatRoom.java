@@ -1,15 +1,19 @@
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import exceptions.AlreadyInChatroomException;
 
 /**
  * Classe che modella le chatroom, che sono caratterizzate da un
  * identificativo, ovvero una stringa che le rappresenta, un indirizzo
- * multicast ed un elenco di utenti che vi sono registrati. Questa classe
+ * multicast per ogni lingua dei suoi utenti ed un elenco di utenti che vi sono
+ * registrati. Ogni utente si unisce al gruppo multicast della propria lingua,
+ * per cui un messaggio della chatroom viene tradotto una volta per lingua ed
+ * inviato ad ogni gruppo nella lingua dei suoi membri. Questa classe
  * inoltre tiene traccia del prossimo indirizzo multicast da assegnare ad
- * una chatroom nuova
+ * un gruppo nuovo
  * 
  * @author Lorenzo Bellomo, Nicolo' Lucchesi
  */
@@ -21,29 +25,41 @@ public class ChatRoom {
 	// il nome della chatroom
 	private String chatName;
 
-	// l'indirizzo multicast della chatroom
-	private InetAddress multicastAddress;
+	// gli indirizzi multicast della chatroom, uno per lingua
+	private HashMap<String, InetAddress> groups;
 
-	// variabile statica, indica l'indirizzo multicast della prossima chat
-	// che verra' creata
+	// variabile statica, indica l'indirizzo multicast del prossimo gruppo
+	// che verra' creato
 	private static String nextFreeIP = "225.0.0.0";
 
 	// l'elenco degli utenti di questa chatroom
 	private ArrayList<String> users;
 
-	public ChatRoom(String chatName, String creator) {
+	public ChatRoom(String chatName, String creator, String language) {
 		// COSTRUTTORE
 		this.chatName = chatName;
+		// creo l'array di utenti presenti e aggiungo il creator, con il gruppo
+		// della sua lingua
+		this.users = new ArrayList<>();
+		this.users.add(creator);
+		this.groups = new HashMap<>();
+		this.groups.put(language, nextAddress());
+	}
+
+	/**
+	 * Funzione di utilita' privata, restituisce il prossimo indirizzo
+	 * multicast libero e lo segna come occupato
+	 * 
+	 * @return l'indirizzo per un nuovo gruppo
+	 */
+	private static synchronized InetAddress nextAddress() {
+		InetAddress address = null;
 		try {
-			// parso il prossimo indirizzo buono e lo metto come indirizzo di
-			// questa chatroom
-			this.multicastAddress = InetAddress.getByName(nextFreeIP);
+			// parso il prossimo indirizzo buono
+			address = InetAddress.getByName(nextFreeIP);
 		} catch (UnknownHostException e) {
 			System.out.println("Ip Errato: " + nextFreeIP);
 		}
-		// creo l'array di utenti presenti e aggiungo il creator
-		this.users = new ArrayList<>();
-		this.users.add(creator);
 
 		// aggiorno il next Free IP
 		// divido la stringa del nuovo IP sul punto e ottengo i
@@ -63,6 +79,7 @@ public class ChatRoom {
 		}
 		// concateno di nuovo gli ottetti e ottengo un nuovo IP
 		nextFreeIP = octet[0] + "." + octet[1] + "." + octet[2] + "." + octet[3];
+		return address;
 	}
 
 	/**
@@ -75,12 +92,18 @@ public class ChatRoom {
 	}
 
 	/**
-	 * Metodo getter, ottiene l'indirizzo della chatroom
+	 * Restituisce l'indirizzo del gruppo multicast della chatroom per una
+	 * lingua, creando il gruppo se nessun utente con quella lingua vi si era
+	 * ancora unito
 	 * 
-	 * @return L'indirizzo della chatroom
+	 * @param language
+	 *            la lingua del gruppo
+	 * @return L'indirizzo del gruppo della chatroom per quella lingua
 	 */
-	public InetAddress getAddress() {
-		return this.multicastAddress;
+	public synchronized InetAddress getAddress(String language) {
+		if (language == null)
+			throw new NullPointerException();
+		return this.groups.computeIfAbsent(language, l -> nextAddress());
 	}
 
 	/**
@@ -88,7 +111,7 @@ public class ChatRoom {
 	 * 
 	 * @return l'elenco degli utenti registrati a tale chatroom
 	 */
-	public String[] getUserList() {
+	public synchronized String[] getUserList() {
 		return this.users.toArray(new String[0]);
 	}
 
@@ -101,7 +124,7 @@ public class ChatRoom {
 	 * @throws AlreadyInChatroomException
 	 *             se l'utente e' gia' nella chatroom richiesta
 	 */
-	public void addUser(String nickname) throws AlreadyInChatroomException {
+	public synchronized void addUser(String nickname) throws AlreadyInChatroomException {
 		if (nickname == null)
 			throw new NullPointerException();
 
@@ -118,7 +141,7 @@ public class ChatRoom {
 	 * @param user l'utente di cui voglio verificare l'appartenenza
 	 * @return true se l'utente e' nella chatroom, false altrimenti
 	 */
-	public boolean isInChatroom(String user) {
+	public synchronized boolean isInChatroom(String user) {
 		if(user == null) throw new NullPointerException();
 		
 		return this.users.contains(user);
@@ -0,0 +1,150 @@
+/**
+ * Interruttore che protegge il server da un servizio esterno (il servizio di
+ * traduzione) non disponibile o troppo lento. Finche' il servizio risponde
+ * l'interruttore e' chiuso e tutte le chiamate passano; dopo un certo numero di
+ * chiamate consecutive fallite o troppo lente l'interruttore si apre, e per un
+ * certo tempo le chiamate vengono rifiutate subito, senza attendere il timeout
+ * del servizio. Trascorso tale tempo viene lasciata passare una sola chiamata
+ * di prova: se va a buon fine l'interruttore si richiude, altrimenti resta
+ * aperto per un altro periodo.
+ *
+ * Chi usa l'interruttore chiede il permesso con allow e, se lo ottiene, deve
+ * poi riportare l'esito della chiamata con success, failure o ignore.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class CircuitBreaker {
+
+	// gli stati dell'interruttore
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	// il nome del servizio protetto, per i messaggi di log
+	private String name;
+
+	// chiamate consecutive fallite (o lente) dopo cui l'interruttore si apre
+	private int failureThreshold;
+
+	// durata oltre la quale una chiamata riuscita e' considerata lenta, in
+	// millisecondi
+	private long slowCallMillis;
+
+	// tempo per cui l'interruttore resta aperto, in millisecondi
+	private long openMillis;
+
+	// stato corrente
+	private int state;
+
+	// chiamate consecutive fallite o lente
+	private int failures;
+
+	// istante in cui l'interruttore si e' aperto
+	private long openedAt;
+
+	// true se una chiamata di prova e' in corso
+	private boolean trial;
+
+	/**
+	 * Crea un interruttore chiuso
+	 *
+	 * @param name
+	 *            il nome del servizio protetto
+	 * @param failureThreshold
+	 *            le chiamate consecutive fallite o lente dopo cui aprirsi
+	 * @param slowCallMillis
+	 *            la durata oltre cui una chiamata e' lenta, in millisecondi
+	 * @param openMillis
+	 *            il tempo per cui restare aperto, in millisecondi
+	 * @throws IllegalArgumentException
+	 *             se uno dei valori numerici non e' positivo
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long slowCallMillis, long openMillis) {
+		// COSTRUTTORE
+		if (failureThreshold <= 0 || slowCallMillis <= 0 || openMillis <= 0)
+			throw new IllegalArgumentException();
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.slowCallMillis = slowCallMillis;
+		this.openMillis = openMillis;
+		this.state = CLOSED;
+	}
+
+	/**
+	 * Chiede il permesso di effettuare una chiamata al servizio
+	 *
+	 * @return true se la chiamata puo' essere effettuata, false se il servizio
+	 *         va considerato non disponibile
+	 */
+	public synchronized boolean allow() {
+		switch (this.state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() - this.openedAt < this.openMillis)
+				return false;
+			// periodo scaduto, provo con una sola chiamata
+			this.state = HALF_OPEN;
+			this.trial = true;
+			return true;
+		default:
+			// HALF_OPEN: passa solo la chiamata di prova
+			if (this.trial)
+				return false;
+			this.trial = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Riporta una chiamata andata a buon fine. Se e' stata troppo lenta conta
+	 * come un fallimento
+	 *
+	 * @param elapsedMillis
+	 *            la durata della chiamata, in millisecondi
+	 */
+	public synchronized void success(long elapsedMillis) {
+		if (elapsedMillis > this.slowCallMillis) {
+			this.failure();
+			return;
+		}
+		if (this.state != CLOSED)
+			System.out.println("Servizio " + this.name + " di nuovo disponibile");
+		this.state = CLOSED;
+		this.failures = 0;
+		this.trial = false;
+	}
+
+	/**
+	 * Riporta una chiamata fallita
+	 */
+	public synchronized void failure() {
+		this.trial = false;
+		this.failures++;
+		if (this.state == HALF_OPEN || (this.state == CLOSED && this.failures >= this.failureThreshold)) {
+			if (this.state == CLOSED)
+				System.out.println("Servizio " + this.name + " non disponibile, chiamate sospese");
+			this.state = OPEN;
+			this.openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Riporta una chiamata il cui esito non dice nulla sullo stato del
+	 * servizio (ad esempio rifiutata per parametri non validi prima di
+	 * contattarlo)
+	 */
+	public synchronized void ignore() {
+		this.trial = false;
+	}
+
+	/**
+	 * Restituisce lo stato corrente dell'interruttore
+	 *
+	 * @return CLOSED, OPEN o HALF_OPEN
+	 */
+	public synchronized int getState() {
+		return this.state;
+	}
+
+}
@@ -0,0 +1,86 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+import exceptions.IllegalLanguageException;
+
+/**
+ * Traduzione interna al server, senza alcun servizio esterno: ogni parola del
+ * testo viene cercata in un dizionario per la coppia di lingue e, se non
+ * presente, lasciata invariata. Con il dizionario vuoto il testo viene
+ * restituito cosi' com'e', per cui il provider permette di eseguire il server
+ * senza rete e di misurarne le prestazioni senza la latenza del servizio vero.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class DictionaryProvider implements TranslationProvider {
+
+	// le traduzioni delle parole, per coppia di lingue
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, String>> dictionaries;
+
+	public DictionaryProvider() {
+		// COSTRUTTORE
+		this.dictionaries = new ConcurrentHashMap<String, ConcurrentHashMap<String, String>>();
+	}
+
+	/**
+	 * Aggiunge una parola al dizionario di una coppia di lingue
+	 *
+	 * @param mittLanguage
+	 *            la lingua della parola
+	 * @param destLanguage
+	 *            la lingua della traduzione
+	 * @param word
+	 *            la parola
+	 * @param translation
+	 *            la sua traduzione
+	 * @throws NullPointerException
+	 *             se un parametro e' null
+	 */
+	public void put(String mittLanguage, String destLanguage, String word, String translation) {
+		if (word == null || translation == null)
+			throw new NullPointerException();
+		this.dictionaries.computeIfAbsent(pair(mittLanguage, destLanguage), k -> new ConcurrentHashMap<>())
+				.put(word.toLowerCase(), translation);
+	}
+
+	public String translate(String text, String mittLanguage, String destLanguage) throws IllegalLanguageException {
+		if (text == null)
+			throw new NullPointerException();
+		ConcurrentHashMap<String, String> dictionary = this.dictionaries.get(pair(mittLanguage, destLanguage));
+		if (dictionary == null)
+			return text;
+
+		// traduco parola per parola, lasciando invariati spazi e
+		// punteggiatura
+		StringBuilder sb = new StringBuilder(text.length());
+		int i = 0;
+		while (i < text.length()) {
+			int start = i;
+			while (i < text.length() && Character.isLetter(text.charAt(i)))
+				i++;
+			if (i == start) {
+				sb.append(text.charAt(i++));
+				continue;
+			}
+			String word = text.substring(start, i);
+			String translation = dictionary.get(word.toLowerCase());
+			sb.append(translation == null ? word : translation);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "dizionario interno";
+	}
+
+	/**
+	 * Funzione di utilita' privata, la chiave del dizionario di una coppia di
+	 * lingue
+	 */
+	private static String pair(String mittLanguage, String destLanguage) {
+		if (mittLanguage == null || destLanguage == null)
+			throw new NullPointerException();
+		return mittLanguage + '|' + destLanguage;
+	}
+
+}
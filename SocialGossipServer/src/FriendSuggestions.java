@@ -0,0 +1,332 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import exceptions.UnknownUserException;
+
+/**
+ * Suggerimenti di amicizia, calcolati sul SocialGraph del server: ad un utente
+ * vengono suggeriti gli amici dei suoi amici che non sono gia' suoi amici,
+ * ordinati per numero di amici in comune (a parita' di amici in comune prima
+ * chi si e' registrato prima), fino ad un massimo di SUGGESTIONS utenti.
+ *
+ * Il calcolo scorre gli amici degli amici dell'utente contando quante volte
+ * compare ogni utente, in una tabella hash di interi (IntMap), e ne estrae i
+ * migliori con un heap di SUGGESTIONS elementi (TopK). Se l'utente ha molti
+ * amici i candidati vengono divisi per identificativo fra i thread di un
+ * ForkJoinPool, in due passate: prima ogni thread smista gli amici degli amici
+ * di una parte degli amici (Split) nelle parti dei candidati, poi ogni thread
+ * conta solo i candidati della propria parte (Rank), per cui ogni amico di un
+ * amico viene letto una volta sola, le tabelle restano piccole e non vanno
+ * sommate. Ogni thread restituisce i propri migliori, che vengono poi uniti.
+ *
+ * I suggerimenti calcolati restano in cache finche' non cambia un'amicizia che
+ * li riguarda: i suggerimenti di un utente dipendono dalle sue amicizie e da
+ * quelle dei suoi amici, per cui quando l'amicizia fra a e b viene aggiunta o
+ * rimossa vengono scartati i suggerimenti di a, di b e dei loro amici. Un
+ * calcolo che si sovrappone ad una modifica non viene messo in cache.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class FriendSuggestions implements GraphListener {
+
+	// numero massimo di utenti suggeriti
+	public static final int SUGGESTIONS = 10;
+
+	// numero massimo di utenti di cui tenere i suggerimenti in cache
+	public static final int CAPACITY = 100000;
+
+	// oltre questo numero di amici il calcolo viene diviso fra i thread
+	private static final int PARALLEL_DEGREE = 256;
+
+	// il grafo del server
+	private SocialGraph graph;
+
+	// i thread che dividono il calcolo per gli utenti con molti amici
+	private ForkJoinPool pool;
+
+	// i suggerimenti in cache per ogni identificativo di utente; un Entry
+	// senza suggerimenti indica un calcolo in corso
+	private ConcurrentHashMap<Integer, Entry> cache;
+
+	// statistiche dei suggerimenti
+	private LongAdder hits;
+	private LongAdder misses;
+	private LongAdder parallel;
+
+	/**
+	 * Crea i suggerimenti di amicizia per un grafo, registrandosi per essere
+	 * avvisato delle modifiche alle amicizie
+	 *
+	 * @param graph
+	 *            il grafo del server
+	 * @throws NullPointerException
+	 *             se graph e' null
+	 */
+	public FriendSuggestions(SocialGraph graph) {
+		// COSTRUTTORE
+		if (graph == null)
+			throw new NullPointerException();
+		this.graph = graph;
+		this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		this.cache = new ConcurrentHashMap<Integer, Entry>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.parallel = new LongAdder();
+		graph.addListener(this);
+	}
+
+	/**
+	 * Restituisce gli utenti suggeriti come amici ad un utente
+	 *
+	 * @param nickname
+	 *            l'utente
+	 * @return al massimo SUGGESTIONS utenti, dal piu' consigliato
+	 * @throws NullPointerException
+	 *             se nickname e' null
+	 * @throws UnknownUserException
+	 *             se l'utente non esiste
+	 */
+	public String[] suggest(String nickname) throws NullPointerException, UnknownUserException {
+		int id = this.graph.getId(nickname);
+		Entry entry = this.cache.get(id);
+		if (entry != null && entry.suggested != null) {
+			this.hits.increment();
+			return entry.suggested;
+		}
+		this.misses.increment();
+
+		// segno il calcolo in corso: se nel frattempo un'amicizia lo rende
+		// vecchio l'Entry viene rimosso ed il risultato non va in cache
+		Entry pending = new Entry(null);
+		if (entry == null) {
+			if (this.cache.size() >= CAPACITY)
+				this.evict();
+			entry = this.cache.putIfAbsent(id, pending);
+		} else if (this.cache.replace(id, entry, pending))
+			entry = null;
+		String[] suggested = this.compute(id);
+		if (entry == null)
+			this.cache.replace(id, pending, new Entry(suggested));
+		return suggested;
+	}
+
+	/**
+	 * Scarta i suggerimenti che dipendono dall'amicizia fra due utenti
+	 */
+	@Override
+	public void friendshipChanged(int id1, int id2) {
+		this.invalidate(id1);
+		this.invalidate(id2);
+	}
+
+	/**
+	 * Termina i thread del calcolo parallelo
+	 */
+	public void shutdown() {
+		this.pool.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "Suggerimenti di amicizia: " + this.cache.size() + " utenti in cache, " + this.hits.sum() + " trovati, "
+				+ this.misses.sum() + " calcolati (" + this.parallel.sum() + " in parallelo)";
+	}
+
+	/**
+	 * Funzione di utilita' privata, scarta i suggerimenti di un utente e dei
+	 * suoi amici
+	 */
+	private void invalidate(int id) {
+		this.cache.remove(id);
+		for (int friend : this.graph.getFriendIds(id))
+			this.cache.remove(friend);
+	}
+
+	/**
+	 * Funzione di utilita' privata, libera un posto nella cache scartando un
+	 * utente qualsiasi
+	 */
+	private void evict() {
+		Iterator<Integer> it = this.cache.keySet().iterator();
+		if (it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, calcola i suggerimenti di un utente
+	 */
+	private String[] compute(int id) {
+		int[] friends = this.graph.getFriendIds(id);
+		int[][] rows = new int[friends.length][];
+		long visits = 0;
+		for (int i = 0; i < friends.length; i++) {
+			rows[i] = this.graph.getFriendIds(friends[i]);
+			visits += rows[i].length;
+		}
+
+		// con molti amici divido i candidati fra i thread del pool: le righe
+		// vengono divise in parts pezzi di circa visits / parts candidati,
+		// ognuno smistato per parte, ed ogni thread conta poi solo i propri
+		// candidati e ne restituisce i migliori
+		TopK top;
+		int parts = this.pool.getParallelism();
+		if (friends.length > PARALLEL_DEGREE && parts > 1 && !this.pool.isShutdown()) {
+			this.parallel.increment();
+			int[] bounds = new int[parts + 1];
+			Arrays.fill(bounds, 1, parts + 1, rows.length);
+			long seen = 0;
+			for (int i = 0, chunk = 1; i < rows.length && chunk < parts; i++) {
+				seen += rows[i].length;
+				while (chunk < parts && seen * parts >= visits * chunk)
+					bounds[chunk++] = i + 1;
+			}
+			int[][][] buckets = new int[parts][][];
+			this.pool.invoke(new Split(rows, bounds, buckets, 0, parts));
+			top = this.pool.invoke(new Rank(id, friends, buckets, 0, parts));
+		} else {
+			// una sola parte: ogni riga e' gia' un pezzo
+			int[][][] buckets = new int[rows.length][][];
+			for (int i = 0; i < rows.length; i++)
+				buckets[i] = new int[][] { rows[i] };
+			top = new Rank(id, friends, buckets, 0, 1).compute();
+		}
+		long[] best = top.toArray();
+
+		String[] suggested = new String[best.length];
+		for (int i = 0; i < best.length; i++)
+			suggested[i] = this.graph.getName(Integer.MAX_VALUE - (int) best[i]);
+		return suggested;
+	}
+
+	/**
+	 * I suggerimenti in cache di un utente, null se il calcolo e' in corso
+	 */
+	private static class Entry {
+
+		private final String[] suggested;
+
+		private Entry(String[] suggested) {
+			// COSTRUTTORE
+			this.suggested = suggested;
+		}
+	}
+
+	/**
+	 * Smista i candidati dei pezzi da first a last - 1: il pezzo c contiene le
+	 * righe da bounds[c] a bounds[c + 1] - 1, ed i suoi candidati vengono
+	 * scritti in buckets[c][p], dove p e' il resto della divisione
+	 * dell'identificativo del candidato per il numero di parti
+	 */
+	private static class Split extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[][] rows;
+		private final int[] bounds;
+		private final int[][][] buckets;
+		private final int first;
+		private final int last;
+
+		private Split(int[][] rows, int[] bounds, int[][][] buckets, int first, int last) {
+			// COSTRUTTORE
+			this.rows = rows;
+			this.bounds = bounds;
+			this.buckets = buckets;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.last - this.first > 1) {
+				int middle = (this.first + this.last) >>> 1;
+				invokeAll(new Split(this.rows, this.bounds, this.buckets, this.first, middle),
+						new Split(this.rows, this.bounds, this.buckets, middle, this.last));
+				return;
+			}
+
+			// conto i candidati di ogni parte, poi li copio
+			int parts = this.bounds.length - 1;
+			int[] sizes = new int[parts];
+			for (int i = this.bounds[this.first]; i < this.bounds[this.first + 1]; i++)
+				for (int candidate : this.rows[i])
+					sizes[candidate % parts]++;
+			int[][] chunk = new int[parts][];
+			for (int p = 0; p < parts; p++)
+				chunk[p] = new int[sizes[p]];
+			Arrays.fill(sizes, 0);
+			for (int i = this.bounds[this.first]; i < this.bounds[this.first + 1]; i++)
+				for (int candidate : this.rows[i]) {
+					int p = candidate % parts;
+					chunk[p][sizes[p]++] = candidate;
+				}
+			this.buckets[this.first] = chunk;
+		}
+	}
+
+	/**
+	 * Classifica i candidati delle parti da first a last - 1: i candidati
+	 * della parte p sono in buckets[c][p] per ogni pezzo c (vedi Split).
+	 * Restituisce i migliori candidati, codificati come amici in comune nella
+	 * parte alta e identificativo negato nella parte bassa, cosi' che a
+	 * parita' di amici vinca l'identificativo minore
+	 */
+	private static class Rank extends RecursiveTask<TopK> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int id;
+		private final int[] friends;
+		private final int[][][] buckets;
+		private final int first;
+		private final int last;
+
+		private Rank(int id, int[] friends, int[][][] buckets, int first, int last) {
+			// COSTRUTTORE
+			this.id = id;
+			this.friends = friends;
+			this.buckets = buckets;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected TopK compute() {
+			if (this.last - this.first > 1) {
+				int middle = (this.first + this.last) >>> 1;
+				Rank left = new Rank(this.id, this.friends, this.buckets, this.first, middle);
+				left.fork();
+				TopK right = new Rank(this.id, this.friends, this.buckets, middle, this.last).compute();
+				return right.addAll(left.join());
+			}
+
+			// conto quante volte compare ogni candidato della mia parte
+			long visits = 0;
+			for (int[][] chunk : this.buckets)
+				visits += chunk[this.first].length;
+			IntMap counts = new IntMap((int) Math.min(visits, 1 << 20));
+			for (int[][] chunk : this.buckets)
+				for (int candidate : chunk[this.first])
+					counts.increment(candidate);
+
+			// i migliori candidati, escludendo l'utente stesso ed i suoi
+			// amici
+			TopK top = new TopK(SUGGESTIONS);
+			for (int i = 0; i < counts.capacity(); i++) {
+				int candidate = counts.keyAt(i);
+				if (candidate < 0 || candidate == this.id || Arrays.binarySearch(this.friends, candidate) >= 0)
+					continue;
+				top.offer(((long) counts.valueAt(i) << 32) | (Integer.MAX_VALUE - candidate));
+			}
+			return top;
+		}
+	}
+
+}
@@ -0,0 +1,339 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Statistiche sul grafo degli utenti, per la pianificazione delle risorse:
+ * distribuzione del numero di amici, utenti con piu' amici, componenti
+ * connesse e coefficienti di clustering. Il calcolo avviene su una vista del
+ * grafo in un certo istante (vedi GraphView), per cui non blocca le richieste
+ * degli utenti e non risente delle modifiche concorrenti, ed e' diviso fra i
+ * thread di un ForkJoinPool dedicato con gli stream paralleli. Il risultato
+ * viene scritto in un file di testo nella cartella dei report.
+ *
+ * Le componenti connesse sono calcolate con una union-find senza lock (le
+ * unioni avvengono con compareAndSet, il rappresentante di una componente e'
+ * sempre il suo identificativo minore). Il coefficiente di clustering di un
+ * utente e' la frazione delle coppie dei suoi amici che sono a loro volta
+ * amici: i triangoli di un utente si contano intersecando la sua lista di
+ * amici con quella di ogni amico, per cui il costo dipende dal numero di
+ * amicizie e non dal quadrato del numero di amici.
+ *
+ * Il server esegue le statistiche periodicamente (vedi SocialGossipServer),
+ * ma possono essere calcolate in qualunque momento con report().
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class GraphAnalytics implements Runnable {
+
+	// numero di utenti con piu' amici da riportare
+	public static final int TOP_USERS = 20;
+
+	// intervalli della distribuzione dei coefficienti di clustering
+	private static final int CLUSTERING_BUCKETS = 10;
+
+	// prefisso e suffisso dei nomi dei report
+	private static final String PREFIX = "analytics-";
+	private static final String SUFFIX = ".txt";
+
+	// il grafo del server
+	private SocialGraph graph;
+
+	// la cartella dei report
+	private File directory;
+
+	// i thread del calcolo, separati da quelli che servono le richieste
+	private ForkJoinPool pool;
+
+	/**
+	 * Crea le statistiche di un grafo
+	 *
+	 * @param graph
+	 *            il grafo del server
+	 * @param directory
+	 *            la cartella in cui scrivere i report, creata se non esiste
+	 * @throws IOException
+	 *             se la cartella non puo' essere creata
+	 * @throws NullPointerException
+	 *             se un parametro e' null
+	 */
+	public GraphAnalytics(SocialGraph graph, File directory) throws IOException {
+		// COSTRUTTORE
+		if (graph == null || directory == null)
+			throw new NullPointerException();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Impossibile creare " + directory);
+		this.graph = graph;
+		this.directory = directory;
+		this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setName("Analytics-" + t.getPoolIndex());
+			t.setDaemon(true);
+			return t;
+		}, null, false);
+	}
+
+	/**
+	 * Calcola le statistiche e le scrive in un report, stampando l'esito;
+	 * non lancia eccezioni, cosi' che i report successivi restino in
+	 * programma
+	 */
+	@Override
+	public void run() {
+		try {
+			long start = System.nanoTime();
+			File report = this.report();
+			System.out.println("Statistiche del grafo scritte in " + report + " ("
+					+ (System.nanoTime() - start) / 1000000 + " ms)");
+		} catch (IOException e) {
+			System.out.println("Impossibile scrivere le statistiche del grafo: " + e.getMessage());
+		} catch (RuntimeException e) {
+			// un'eccezione che uscisse da run annullerebbe tutti i report
+			// successivi dello ScheduledExecutorService
+			System.out.println("Errore nel calcolo delle statistiche del grafo: " + e);
+		}
+	}
+
+	/**
+	 * Calcola le statistiche del grafo in questo istante e le scrive in un
+	 * nuovo report, il cui nome contiene data ed ora. Il report viene scritto
+	 * in un file temporaneo e rinominato solo quando e' completo
+	 *
+	 * @return il file del report
+	 * @throws IOException
+	 *             se il report non puo' essere scritto
+	 */
+	public File report() throws IOException {
+		String text = this.compute();
+		String name = PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + SUFFIX;
+		File file = new File(this.directory, name);
+		File tmp = new File(this.directory, name + ".tmp");
+		Files.write(tmp.toPath(), text.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+
+	/**
+	 * Calcola le statistiche del grafo in questo istante
+	 *
+	 * @return il testo del report
+	 */
+	public String compute() {
+		try {
+			return this.pool.submit(() -> this.analyze(this.graph.view())).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Termina i thread del calcolo
+	 */
+	public void shutdown() {
+		this.pool.shutdownNow();
+	}
+
+	/**
+	 * Funzione di utilita' privata, calcola le statistiche di una vista.
+	 * Eseguita da un thread del pool, per cui gli stream paralleli usano i
+	 * thread del pool
+	 */
+	private String analyze(GraphView view) {
+		long start = System.nanoTime();
+		int n = view.size();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Statistiche del grafo di SocialGossip\n");
+		sb.append("Istante: ").append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(view.getTime())))
+				.append(", thread: ").append(this.pool.getParallelism()).append("\n\n");
+
+		// liste di amici, lette una volta sola
+		int[][] rows = new int[n][];
+		IntStream.range(0, n).parallel().filter(view::isUser).forEach(id -> rows[id] = view.getFriendIds(id));
+
+		// distribuzione del numero di amici, per potenze di due
+		long[] degrees = IntStream.range(0, n).parallel().filter(id -> rows[id] != null).collect(
+				() -> new long[33], (h, id) -> h[bucket(rows[id].length)]++, GraphAnalytics::add);
+		long friendships = IntStream.range(0, n).parallel().filter(id -> rows[id] != null)
+				.mapToLong(id -> rows[id].length).sum() / 2;
+		int users = view.users();
+		sb.append("Utenti: ").append(users).append(", amicizie: ").append(friendships);
+		sb.append(String.format(", amici in media: %.2f%n%n", users == 0 ? 0.0 : 2.0 * friendships / users));
+		sb.append("Distribuzione del numero di amici:\n");
+		histogram(sb, degrees);
+
+		// utenti con piu' amici, a parita' prima chi si e' registrato prima
+		TopK top = IntStream.range(0, n).parallel().filter(id -> rows[id] != null).collect(() -> new TopK(TOP_USERS),
+				(t, id) -> t.offer(((long) rows[id].length << 32) | (Integer.MAX_VALUE - id)), TopK::addAll);
+		sb.append("\nUtenti con piu' amici:\n");
+		for (long key : top.toArray())
+			sb.append("  ").append(view.getName(Integer.MAX_VALUE - (int) key)).append(": ").append(key >>> 32)
+					.append('\n');
+
+		// componenti connesse: ogni utente parte come rappresentante di se'
+		// stesso, poi ogni amicizia unisce le due componenti
+		AtomicIntegerArray parent = new AtomicIntegerArray(n);
+		IntStream.range(0, n).parallel().forEach(id -> parent.set(id, id));
+		IntStream.range(0, n).parallel().filter(id -> rows[id] != null).forEach(id -> {
+			for (int friend : rows[id])
+				if (friend > id)
+					union(parent, id, friend);
+		});
+		AtomicIntegerArray sizes = new AtomicIntegerArray(n);
+		IntStream.range(0, n).parallel().filter(id -> rows[id] != null)
+				.forEach(id -> sizes.incrementAndGet(find(parent, id)));
+		long[] components = IntStream.range(0, n).parallel().filter(id -> sizes.get(id) > 0)
+				.collect(() -> new long[33], (h, id) -> h[bucket(sizes.get(id))]++, GraphAnalytics::add);
+		int largest = IntStream.range(0, n).parallel().map(sizes::get).max().orElse(0);
+		long count = 0;
+		for (long c : components)
+			count += c;
+		sb.append("\nComponenti connesse: ").append(count).append(", la piu' grande con ").append(largest)
+				.append(" utenti");
+		sb.append(String.format(" (%.2f%%), utenti senza amici: %d%n", users == 0 ? 0.0 : 100.0 * largest / users,
+				degrees[0]));
+		sb.append("Distribuzione del numero di utenti per componente:\n");
+		histogram(sb, components);
+
+		// coefficienti di clustering: per ogni utente con almeno due amici
+		// il numero di amicizie fra i suoi amici
+		Clustering clustering = IntStream.range(0, n).parallel().filter(id -> rows[id] != null && rows[id].length > 1)
+				.collect(Clustering::new, (c, id) -> {
+					int[] friends = rows[id];
+					long links = 0;
+					for (int friend : friends)
+						links += SocialGraph.intersect(friends, rows[friend], null);
+					c.add(links / 2, (long) friends.length * (friends.length - 1) / 2);
+				}, Clustering::addAll);
+		sb.append(String.format("%nTriangoli: %d, coefficiente di clustering globale: %.6f, medio: %.6f "
+				+ "(su %d utenti con almeno due amici)%n", clustering.links / 3,
+				clustering.pairs == 0 ? 0.0 : (double) clustering.links / clustering.pairs,
+				clustering.users == 0 ? 0.0 : clustering.sum / clustering.users, clustering.users));
+		sb.append("Distribuzione dei coefficienti di clustering:\n");
+		for (int i = 0; i < CLUSTERING_BUCKETS; i++)
+			sb.append(String.format("  [%.1f - %.1f%s: %d%n", (double) i / CLUSTERING_BUCKETS,
+					(double) (i + 1) / CLUSTERING_BUCKETS, i == CLUSTERING_BUCKETS - 1 ? "]" : ")",
+					clustering.histogram[i]));
+
+		sb.append("\nCalcolate in ").append((System.nanoTime() - start) / 1000000).append(" ms\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Funzione di utilita' privata, l'intervallo di un istogramma per potenze
+	 * di due: 0 per lo zero, k per i valori da 2^(k-1) a 2^k - 1
+	 */
+	private static int bucket(int value) {
+		return 32 - Integer.numberOfLeadingZeros(value);
+	}
+
+	/**
+	 * Funzione di utilita' privata, somma due istogrammi
+	 */
+	private static void add(long[] h1, long[] h2) {
+		for (int i = 0; i < h1.length; i++)
+			h1[i] += h2[i];
+	}
+
+	/**
+	 * Funzione di utilita' privata, scrive un istogramma per potenze di due,
+	 * dal primo all'ultimo intervallo non vuoto
+	 */
+	private static void histogram(StringBuilder sb, long[] h) {
+		int first = 0, last = h.length - 1;
+		while (first < last && h[first] == 0)
+			first++;
+		while (last > first && h[last] == 0)
+			last--;
+		for (int k = first; k <= last; k++) {
+			long from = k == 0 ? 0 : 1L << (k - 1);
+			long to = k == 0 ? 0 : (1L << k) - 1;
+			sb.append("  ").append(from == to ? String.valueOf(from) : from + " - " + to).append(": ").append(h[k])
+					.append('\n');
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, il rappresentante della componente di un
+	 * utente, accorciando il cammino verso di esso
+	 */
+	private static int find(AtomicIntegerArray parent, int id) {
+		int p;
+		while ((p = parent.get(id)) != id) {
+			int gp = parent.get(p);
+			if (gp != p)
+				parent.compareAndSet(id, p, gp);
+			id = gp;
+		}
+		return id;
+	}
+
+	/**
+	 * Funzione di utilita' privata, unisce le componenti di due utenti: il
+	 * rappresentante maggiore viene collegato a quello minore, con un
+	 * compareAndSet che fallisce se nel frattempo ha smesso di essere un
+	 * rappresentante
+	 */
+	private static void union(AtomicIntegerArray parent, int id1, int id2) {
+		while (true) {
+			int root1 = find(parent, id1);
+			int root2 = find(parent, id2);
+			if (root1 == root2)
+				return;
+			if (root1 < root2) {
+				int tmp = root1;
+				root1 = root2;
+				root2 = tmp;
+			}
+			if (parent.compareAndSet(root1, root1, root2))
+				return;
+		}
+	}
+
+	/**
+	 * Somme parziali dei coefficienti di clustering, accumulate da ogni
+	 * thread e poi unite
+	 */
+	private static class Clustering {
+
+		// amicizie fra amici e coppie di amici, su tutti gli utenti
+		private long links;
+		private long pairs;
+		// somma dei coefficienti ed utenti considerati
+		private double sum;
+		private long users;
+		// distribuzione dei coefficienti
+		private long[] histogram = new long[CLUSTERING_BUCKETS];
+
+		private void add(long links, long pairs) {
+			double coefficient = (double) links / pairs;
+			this.links += links;
+			this.pairs += pairs;
+			this.sum += coefficient;
+			this.users++;
+			this.histogram[Math.min(CLUSTERING_BUCKETS - 1, (int) (coefficient * CLUSTERING_BUCKETS))]++;
+		}
+
+		private void addAll(Clustering other) {
+			this.links += other.links;
+			this.pairs += other.pairs;
+			this.sum += other.sum;
+			this.users += other.users;
+			for (int i = 0; i < CLUSTERING_BUCKETS; i++)
+				this.histogram[i] += other.histogram[i];
+		}
+	}
+
+}
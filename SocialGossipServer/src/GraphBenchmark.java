@@ -0,0 +1,189 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import exceptions.NoPathException;
+
+/**
+ * Misura la latenza delle interrogazioni sul grafo (amici in comune, catena di
+ * amicizie, suggerimenti di amicizia, ricerca per prefisso e lista degli amici,
+ * sia sugli utenti registrati che su quelli di uno snapshot) su un grafo
+ * sintetico, per conoscerne i tempi prima di offrirle a tutti gli utenti, ed il
+ * tempo delle statistiche di GraphAnalytics, insieme a quanto la vista del
+ * grafo da cui partono trattiene la lock del grafo. Il grafo ha il numero di
+ * utenti richiesto, ognuno dei quali stringe amicizia con alcuni utenti scelti
+ * a caso, ed un piccolo numero di utenti molto popolari.
+ *
+ * Uso: java GraphBenchmark [utenti] [amicizie per utente] [interrogazioni]
+ * (di default 1000000, 10 e 10000)
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class GraphBenchmark {
+
+	// numero di utenti molto popolari, e loro numero di amici
+	private static final int CELEBRITIES = 10;
+	private static final int CELEBRITY_FRIENDS = 50000;
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int degree = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int queries = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		Random random = new Random(1);
+
+		// costruzione del grafo
+		long start = System.nanoTime();
+		SocialGraph graph = new SocialGraph();
+		User[] nodes = new User[users];
+		for (int i = 0; i < users; i++) {
+			nodes[i] = new User("user" + i, User.DEFAULT_LANGUAGE);
+			graph.addNode(nodes[i]);
+		}
+		long friendships = 0;
+		for (int i = 0; i < users; i++)
+			for (int k = 0; k < degree / 2; k++)
+				friendships += link(graph, nodes[i], nodes[random.nextInt(users)]);
+		for (int c = 0; c < CELEBRITIES; c++)
+			for (int k = 0; k < Math.min(CELEBRITY_FRIENDS, users); k++)
+				friendships += link(graph, nodes[c], nodes[random.nextInt(users)]);
+		System.out.println("Grafo: " + users + " utenti, " + friendships + " amicizie, costruito in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		// amici in comune fra utenti qualsiasi e fra un utente ed una
+		// celebrita'
+		long[] times = new long[queries];
+		long found = 0;
+		for (int i = 0; i < queries; i++) {
+			String u1 = nodes[random.nextInt(users)].getUsername();
+			String u2 = nodes[i % 2 == 0 ? random.nextInt(CELEBRITIES) : random.nextInt(users)].getUsername();
+			long t = System.nanoTime();
+			found += graph.getMutualFriends(u1, u2).length;
+			times[i] = System.nanoTime() - t;
+		}
+		report("Amici in comune", times, found + " amici trovati");
+
+		// catena di amicizie fra utenti qualsiasi
+		long length = 0;
+		int missing = 0;
+		for (int i = 0; i < queries; i++) {
+			String u1 = nodes[random.nextInt(users)].getUsername();
+			String u2 = nodes[random.nextInt(users)].getUsername();
+			long t = System.nanoTime();
+			try {
+				length += graph.getPath(u1, u2, RequestHandler.PATH_BUDGET).length - 1;
+			} catch (NoPathException e) {
+				missing++;
+			}
+			times[i] = System.nanoTime() - t;
+		}
+		report("Catena di amicizie", times, "lunghezza media "
+				+ (queries == missing ? 0 : length * 100 / (queries - missing) / 100.0) + ", non trovate " + missing);
+
+		// suggerimenti di amicizia, senza cache
+		FriendSuggestions suggestions = new FriendSuggestions(graph);
+		for (int i = 0; i < queries; i++) {
+			String u = nodes[random.nextInt(users)].getUsername();
+			long t = System.nanoTime();
+			suggestions.suggest(u);
+			times[i] = System.nanoTime() - t;
+		}
+		report("Suggerimenti di amicizia", times, queries + " richieste");
+		System.out.println(suggestions);
+		suggestions.shutdown();
+
+		// ricerca per prefisso, fra gli utenti registrati e fra quelli dello
+		// stesso grafo ripristinato da uno snapshot
+		search("Ricerca utenti", graph, nodes, queries, random, times);
+		List<String> names = new ArrayList<String>();
+		List<String> languages = new ArrayList<String>();
+		List<String[]> friends = new ArrayList<String[]>();
+		graph.export(names, languages, friends);
+		File file = File.createTempFile("benchmark", ".snapshot");
+		file.deleteOnExit();
+		GraphSnapshot.Write(file, names, languages, friends, new ArrayList<String>(), new ArrayList<String[]>());
+		SocialGraph restored = new SocialGraph();
+		restored.setSnapshot(GraphSnapshot.Open(file));
+		names = null;
+		friends = null;
+		search("Ricerca utenti (snapshot)", restored, nodes, queries, random, times);
+
+		// lista degli amici, calcolata alla prima richiesta e poi condivisa
+		// finche' gli amici non cambiano
+		for (int round = 0; round < 2; round++) {
+			Random same = new Random(2);
+			for (int i = 0; i < queries; i++) {
+				String u = nodes[same.nextInt(users)].getUsername();
+				long t = System.nanoTime();
+				restored.getFriends(u);
+				times[i] = System.nanoTime() - t;
+			}
+			report(round == 0 ? "Lista amici (snapshot)" : "Lista amici (snapshot, ripetuta)", times,
+					queries + " richieste");
+		}
+
+		// statistiche del grafo, senza scrivere il report
+		start = System.nanoTime();
+		graph.view();
+		System.out.println("Vista del grafo: " + (System.nanoTime() - start) / 1000 + " us");
+		GraphAnalytics analytics = new GraphAnalytics(graph, new File(System.getProperty("java.io.tmpdir")));
+		start = System.nanoTime();
+		String report = analytics.compute();
+		System.out.println("Statistiche: " + (System.nanoTime() - start) / 1000000 + " ms");
+		System.out.print(report);
+		analytics.shutdown();
+	}
+
+	/**
+	 * Funzione di utilita' privata, aggiunge un'amicizia se possibile
+	 *
+	 * @return 1 se l'amicizia e' stata aggiunta, 0 altrimenti
+	 */
+	private static int link(SocialGraph graph, User u1, User u2) {
+		try {
+			graph.addEdge(u1, u2);
+			return 1;
+		} catch (IllegalArgumentException e) {
+			// stesso utente o gia' amici
+			return 0;
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, misura la ricerca per prefisso: prefissi
+	 * di lunghezza diversa del nome di un utente a caso, meta' delle volte a
+	 * partire dalla seconda pagina
+	 */
+	private static void search(String name, SocialGraph graph, User[] nodes, int queries, Random random,
+			long[] times) {
+		long found = 0;
+		for (int i = 0; i < queries; i++) {
+			String nickname = nodes[random.nextInt(nodes.length)].getUsername();
+			String prefix = nickname.substring(0, Math.min(nickname.length(), 4 + random.nextInt(4)));
+			String after = i % 2 == 0 ? null : nickname;
+			long t = System.nanoTime();
+			found += graph.search(prefix, after, RequestHandler.SEARCH_LIMIT).length;
+			times[i] = System.nanoTime() - t;
+		}
+		report(name, times, found + " utenti trovati");
+	}
+
+	/**
+	 * Funzione di utilita' privata, stampa i percentili dei tempi misurati
+	 */
+	private static void report(String name, long[] times, String details) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		System.out.println(name + ": mediana " + micros(sorted, 0.5) + " us, 99% " + micros(sorted, 0.99)
+				+ " us, massimo " + sorted[sorted.length - 1] / 1000 + " us (" + details + ")");
+	}
+
+	/**
+	 * Funzione di utilita' privata, un percentile in microsecondi
+	 */
+	private static long micros(long[] sorted, double percentile) {
+		return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)] / 1000;
+	}
+
+}
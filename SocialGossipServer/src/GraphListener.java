@@ -0,0 +1,22 @@
+/**
+ * Interfaccia di chi vuole essere avvisato delle modifiche alle amicizie di un
+ * SocialGraph (vedi SocialGraph.addListener). Le notifiche arrivano mentre il
+ * thread che modifica il grafo detiene la sua lock, dopo che la modifica e'
+ * gia' visibile: l'implementazione deve quindi essere breve e non deve
+ * modificare il grafo.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public interface GraphListener {
+
+	/**
+	 * Avvisa che l'amicizia fra due utenti e' stata aggiunta o rimossa
+	 *
+	 * @param id1
+	 *            l'identificativo del primo utente (vedi SocialGraph.getId)
+	 * @param id2
+	 *            l'identificativo del secondo utente
+	 */
+	public void friendshipChanged(int id1, int id2);
+
+}
@@ -0,0 +1,471 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Snapshot del grafo degli utenti in un formato binario che viene mappato in
+ * memoria ed interrogato direttamente, senza ricreare un oggetto per ogni
+ * utente o amicizia: all'avvio il server mappa l'ultimo snapshot (operazione
+ * che non dipende dalla dimensione del grafo) ed e' subito in grado di
+ * rispondere; le pagine del file vengono caricate dal sistema operativo alla
+ * prima lettura che le tocca. Le modifiche successive allo snapshot sono
+ * mantenute dal SocialGraph separatamente (vedi SocialGraph).
+ *
+ * Ogni utente e' identificato dalla sua posizione nello snapshot: gli utenti
+ * sono ordinati per nome (confrontando i byte in UTF-8), per cui un nome si
+ * cerca con una ricerca binaria. Gli amici di un utente sono memorizzati in
+ * formato CSR: un unico array di identificativi, in cui gli amici dell'utente
+ * i occupano le posizioni da adjOffsets[i] ad adjOffsets[i+1], ordinati.
+ *
+ * Formato (interi big endian): intestazione di HEADER byte (magic, versione,
+ * numero di utenti N, lunghezza dell'array degli amici M, lunghezza dei nomi,
+ * numero di lingue, posizione delle chatroom, lunghezza del file), seguita da
+ * nameOffsets (N+1 int), adjOffsets (N+1 int), gli amici (M int), l'indice
+ * della lingua di ogni utente (N byte), i nomi in UTF-8, la tabella delle
+ * lingue e le chatroom (nome e membri, in UTF-8 modificato). Lingue e
+ * chatroom sono poche, e vengono lette all'apertura.
+ *
+ * Lo snapshot viene scritto in un file temporaneo e rinominato solo quando e'
+ * completo (vedi OperationLog), per cui all'apertura ne vengono controllate
+ * solo l'intestazione e la lunghezza, senza leggere l'intero file.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class GraphSnapshot {
+
+	// identificano uno snapshot ed il suo formato (la versione 1 e' quella
+	// letta da OperationLog)
+	public static final int MAGIC = 0x5347534E;
+	public static final int VERSION = 2;
+
+	// dimensione dell'intestazione
+	private static final int HEADER = 32;
+
+	// posizioni dei campi dell'intestazione
+	private static final int NODES_FIELD = 8;
+	private static final int ADJACENCY_FIELD = 12;
+	private static final int NAMES_FIELD = 16;
+	private static final int LANGUAGES_FIELD = 20;
+	private static final int CHATROOMS_FIELD = 24;
+	private static final int LENGTH_FIELD = 28;
+
+	// lingue diverse al massimo, l'indice della lingua e' un byte
+	private static final int MAX_LANGUAGES = 256;
+
+	// il file mappato
+	private MappedByteBuffer buffer;
+
+	// numero di utenti e posizioni delle sezioni del file
+	private int nodes;
+	private int nameOffsets;
+	private int adjOffsets;
+	private int adjacency;
+	private int languageIndex;
+	private int names;
+
+	// le lingue degli utenti, ed i nomi e membri delle chatroom
+	private String[] languages;
+	private ArrayList<String> chatrooms;
+	private ArrayList<String[]> members;
+
+	private GraphSnapshot(MappedByteBuffer buffer) {
+		// COSTRUTTORE
+		this.buffer = buffer;
+		this.chatrooms = new ArrayList<String>();
+		this.members = new ArrayList<String[]>();
+	}
+
+	/**
+	 * Mappa in memoria uno snapshot
+	 *
+	 * @param file
+	 *            il file dello snapshot
+	 * @return lo snapshot
+	 * @throws IOException
+	 *             se il file non puo' essere letto o non e' uno snapshot
+	 *             valido
+	 */
+	public static GraphSnapshot Open(File file) throws IOException {
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Snapshot non valido: " + file);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+				|| buffer.getInt(LENGTH_FIELD) != buffer.capacity())
+			throw new IOException("Snapshot non valido: " + file);
+
+		GraphSnapshot snapshot = new GraphSnapshot(buffer);
+		snapshot.nodes = buffer.getInt(NODES_FIELD);
+		snapshot.nameOffsets = HEADER;
+		snapshot.adjOffsets = snapshot.nameOffsets + (snapshot.nodes + 1) * 4;
+		snapshot.adjacency = snapshot.adjOffsets + (snapshot.nodes + 1) * 4;
+		snapshot.languageIndex = snapshot.adjacency + buffer.getInt(ADJACENCY_FIELD) * 4;
+		snapshot.names = snapshot.languageIndex + snapshot.nodes;
+
+		// lingue e chatroom, in fondo al file
+		int tables = snapshot.names + buffer.getInt(NAMES_FIELD);
+		byte[] data = new byte[buffer.capacity() - tables];
+		ByteBuffer view = buffer.duplicate();
+		view.position(tables);
+		view.get(data);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		snapshot.languages = new String[buffer.getInt(LANGUAGES_FIELD)];
+		for (int i = 0; i < snapshot.languages.length; i++)
+			snapshot.languages[i] = in.readUTF();
+		if (tables + data.length - in.available() != buffer.getInt(CHATROOMS_FIELD))
+			throw new IOException("Snapshot non valido: " + file);
+		for (int n = in.readInt(); n > 0; n--) {
+			snapshot.chatrooms.add(in.readUTF());
+			String[] list = new String[in.readInt()];
+			for (int i = 0; i < list.length; i++)
+				list[i] = in.readUTF();
+			snapshot.members.add(list);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Scrive uno snapshot su file, e lo forza su disco
+	 *
+	 * @param file
+	 *            il file da scrivere
+	 * @param users
+	 *            i nomi degli utenti, in qualsiasi ordine
+	 * @param userLanguages
+	 *            i codici delle lingue degli utenti, nello stesso ordine
+	 * @param friends
+	 *            i nomi degli amici di ogni utente, nello stesso ordine
+	 * @param chatrooms
+	 *            i nomi delle chatroom
+	 * @param members
+	 *            i membri di ogni chatroom, a partire dal creatore
+	 * @throws IOException
+	 *             se il file non puo' essere scritto, o lo stato e' troppo
+	 *             grande per un unico file mappato
+	 */
+	public static void Write(File file, List<String> users, List<String> userLanguages, List<String[]> friends,
+			List<String> chatrooms, List<String[]> members) throws IOException {
+		int n = users.size();
+
+		// ordino gli utenti per nome, l'identificativo e' la posizione
+		byte[][] encoded = new byte[n][];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			encoded[i] = users.get(i).getBytes(StandardCharsets.UTF_8);
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> compare(encoded[a], encoded[b]));
+		HashMap<String, Integer> ids = new HashMap<String, Integer>(n * 2);
+		for (int id = 0; id < n; id++)
+			ids.put(users.get(order[id]), id);
+
+		// tabella delle lingue
+		ArrayList<String> languageTable = new ArrayList<String>();
+		HashMap<String, Integer> languageIds = new HashMap<String, Integer>();
+		for (String language : userLanguages)
+			if (languageIds.putIfAbsent(language, languageTable.size()) == null)
+				languageTable.add(language);
+		if (languageTable.size() > MAX_LANGUAGES)
+			throw new IOException("Troppe lingue per lo snapshot");
+
+		// dimensioni delle sezioni
+		long adjacencyLength = 0;
+		long namesLength = 0;
+		for (int i = 0; i < n; i++) {
+			adjacencyLength += friends.get(i).length;
+			namesLength += encoded[i].length;
+		}
+		long tables = HEADER + (n + 1) * 8L + adjacencyLength * 4 + n + namesLength;
+		ByteArrayOutputStream tail = new ByteArrayOutputStream();
+		DataOutputStream tailOut = new DataOutputStream(tail);
+		for (String language : languageTable)
+			tailOut.writeUTF(language);
+		long chatroomsOffset = tables + tail.size();
+		tailOut.writeInt(chatrooms.size());
+		for (int i = 0; i < chatrooms.size(); i++) {
+			tailOut.writeUTF(chatrooms.get(i));
+			tailOut.writeInt(members.get(i).length);
+			for (String member : members.get(i))
+				tailOut.writeUTF(member);
+		}
+		long length = tables + tail.size();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Stato troppo grande per lo snapshot");
+
+		try (FileOutputStream stream = new FileOutputStream(file);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt((int) adjacencyLength);
+			out.writeInt((int) namesLength);
+			out.writeInt(languageTable.size());
+			out.writeInt((int) chatroomsOffset);
+			out.writeInt((int) length);
+
+			int offset = 0;
+			for (int id = 0; id < n; id++) {
+				out.writeInt(offset);
+				offset += encoded[order[id]].length;
+			}
+			out.writeInt(offset);
+			offset = 0;
+			for (int id = 0; id < n; id++) {
+				out.writeInt(offset);
+				offset += friends.get(order[id]).length;
+			}
+			out.writeInt(offset);
+			for (int id = 0; id < n; id++) {
+				String[] list = friends.get(order[id]);
+				int[] row = new int[list.length];
+				for (int i = 0; i < list.length; i++) {
+					Integer friend = ids.get(list[i]);
+					if (friend == null)
+						throw new IOException("Amico sconosciuto nello snapshot: " + list[i]);
+					row[i] = friend;
+				}
+				Arrays.sort(row);
+				for (int friend : row)
+					out.writeInt(friend);
+			}
+			for (int id = 0; id < n; id++)
+				out.writeByte(languageIds.get(userLanguages.get(order[id])));
+			for (int id = 0; id < n; id++)
+				out.write(encoded[order[id]]);
+			tail.writeTo(out);
+			out.flush();
+			stream.getFD().sync();
+		}
+	}
+
+	/**
+	 * Restituisce il numero di utenti dello snapshot
+	 *
+	 * @return il numero di utenti
+	 */
+	public int size() {
+		return this.nodes;
+	}
+
+	/**
+	 * Cerca un utente per nome
+	 *
+	 * @param nickname
+	 *            il nome dell'utente
+	 * @return l'identificativo dell'utente, -1 se non presente
+	 */
+	public int find(String nickname) {
+		byte[] key = nickname.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = this.nodes - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = this.compareName(mid, key, false);
+			if (c < 0)
+				low = mid + 1;
+			else if (c > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Cerca il primo utente, nell'ordine dello snapshot, il cui nome segue un
+	 * nome dato
+	 *
+	 * @param nickname
+	 *            il nome da cui partire, che non deve essere per forza un
+	 *            utente
+	 * @param inclusive
+	 *            se un utente con lo stesso nome va incluso
+	 * @return l'identificativo del primo utente successivo, size() se non ce
+	 *         ne sono
+	 */
+	public int ceiling(String nickname, boolean inclusive) {
+		return this.bound(nickname.getBytes(StandardCharsets.UTF_8), false, inclusive);
+	}
+
+	/**
+	 * Cerca la fine degli utenti il cui nome inizia con un prefisso: gli
+	 * utenti con il prefisso sono quelli da ceiling(prefix, true) a
+	 * prefixEnd(prefix) escluso
+	 *
+	 * @param prefix
+	 *            il prefisso
+	 * @return l'identificativo del primo utente successivo a quelli con il
+	 *         prefisso, size() se non ce ne sono
+	 */
+	public int prefixEnd(String prefix) {
+		return this.bound(prefix.getBytes(StandardCharsets.UTF_8), true, false);
+	}
+
+	/**
+	 * Restituisce il nome di un utente
+	 *
+	 * @param id
+	 *            l'identificativo dell'utente
+	 * @return il suo nome
+	 */
+	public String getName(int id) {
+		int start = this.names + this.buffer.getInt(this.nameOffsets + id * 4);
+		byte[] name = new byte[this.names + this.buffer.getInt(this.nameOffsets + id * 4 + 4) - start];
+		for (int i = 0; i < name.length; i++)
+			name[i] = this.buffer.get(start + i);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Restituisce il codice della lingua di un utente
+	 *
+	 * @param id
+	 *            l'identificativo dell'utente
+	 * @return il codice della lingua
+	 */
+	public String getLanguage(int id) {
+		return this.languages[this.buffer.get(this.languageIndex + id) & 0xFF];
+	}
+
+	/**
+	 * Restituisce il numero di amici di un utente
+	 *
+	 * @param id
+	 *            l'identificativo dell'utente
+	 * @return il numero di amici
+	 */
+	public int degree(int id) {
+		return this.buffer.getInt(this.adjOffsets + id * 4 + 4) - this.buffer.getInt(this.adjOffsets + id * 4);
+	}
+
+	/**
+	 * Restituisce un amico di un utente
+	 *
+	 * @param id
+	 *            l'identificativo dell'utente
+	 * @param i
+	 *            la posizione dell'amico, da 0 a degree(id) escluso
+	 * @return l'identificativo dell'amico
+	 */
+	public int friend(int id, int i) {
+		return this.buffer.getInt(this.adjacency + (this.buffer.getInt(this.adjOffsets + id * 4) + i) * 4);
+	}
+
+	/**
+	 * Verifica se due utenti sono amici, con una ricerca binaria fra gli amici
+	 * del primo
+	 *
+	 * @param id1
+	 *            l'identificativo del primo utente
+	 * @param id2
+	 *            l'identificativo del secondo utente
+	 * @return true se sono amici, false altrimenti
+	 */
+	public boolean areFriends(int id1, int id2) {
+		int low = this.buffer.getInt(this.adjOffsets + id1 * 4);
+		int high = this.buffer.getInt(this.adjOffsets + id1 * 4 + 4) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int friend = this.buffer.getInt(this.adjacency + mid * 4);
+			if (friend < id2)
+				low = mid + 1;
+			else if (friend > id2)
+				high = mid - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Restituisce i nomi delle chatroom dello snapshot
+	 *
+	 * @return i nomi delle chatroom
+	 */
+	public List<String> getChatrooms() {
+		return this.chatrooms;
+	}
+
+	/**
+	 * Restituisce i membri delle chatroom dello snapshot, nello stesso ordine
+	 * di getChatrooms, ciascuno a partire dal creatore
+	 *
+	 * @return i membri delle chatroom
+	 */
+	public List<String[]> getMembers() {
+		return this.members;
+	}
+
+	@Override
+	public String toString() {
+		return "Snapshot del grafo: " + this.nodes + " utenti, " + this.buffer.getInt(ADJACENCY_FIELD) / 2
+				+ " amicizie, " + this.chatrooms.size() + " chatroom";
+	}
+
+	/**
+	 * Funzione di utilita' privata, ricerca binaria del primo utente il cui
+	 * nome e' maggiore (o uguale, se inclusive) di key; se prefix i nomi
+	 * vengono troncati alla lunghezza di key
+	 */
+	private int bound(byte[] key, boolean prefix, boolean inclusive) {
+		int low = 0;
+		int high = this.nodes;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int c = this.compareName(mid, key, prefix);
+			if (c < 0 || (c == 0 && !inclusive))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Funzione di utilita' privata, confronta il nome di un utente dello
+	 * snapshot con un nome cercato, byte per byte; se prefix un nome che
+	 * inizia con quello cercato risulta uguale
+	 */
+	private int compareName(int id, byte[] key, boolean prefix) {
+		int start = this.names + this.buffer.getInt(this.nameOffsets + id * 4);
+		int length = this.names + this.buffer.getInt(this.nameOffsets + id * 4 + 4) - start;
+		for (int i = 0; i < length && i < key.length; i++) {
+			int c = (this.buffer.get(start + i) & 0xFF) - (key[i] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		if (prefix && length >= key.length)
+			return 0;
+		return length - key.length;
+	}
+
+	/**
+	 * Funzione di utilita' privata, confronta due nomi in UTF-8 byte per byte
+	 * (lo stesso ordine dei code point)
+	 */
+	private static int compare(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return a.length - b.length;
+	}
+
+}
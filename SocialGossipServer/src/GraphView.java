@@ -0,0 +1,108 @@
+/**
+ * Vista del SocialGraph in un certo istante (vedi SocialGraph.view), che non
+ * cambia con le modifiche successive al grafo: serve alle elaborazioni che
+ * scorrono l'intero grafo, come GraphAnalytics, senza trattenere la lock del
+ * grafo ne' vedere uno stato a meta' fra due modifiche.
+ *
+ * La vista contiene, per ogni identificativo, la lista di amici in uso nel
+ * grafo al momento della sua creazione: il grafo non modifica mai una lista
+ * ma la sostituisce con una nuova, per cui le liste possono essere condivise
+ * senza copiarle. Gli amici che il grafo legge ancora dallo snapshot su disco
+ * vengono letti dallo stesso snapshot, anch'esso immutabile.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class GraphView {
+
+	// il grafo, per i nomi degli utenti che non cambiano mai
+	private final SocialGraph graph;
+	// le liste di amici per identificativo, null se nello snapshot
+	private final int[][] rows;
+	// la lista che indica un utente eliminato
+	private final int[] deleted;
+	// lo snapshot da cui leggere le altre liste, null se assente
+	private final GraphSnapshot snapshot;
+	// numero di utenti registrati
+	private final int users;
+	// istante di creazione della vista
+	private final long time;
+
+	GraphView(SocialGraph graph, int[][] rows, int[] deleted, GraphSnapshot snapshot, int users) {
+		// COSTRUTTORE
+		this.graph = graph;
+		this.rows = rows;
+		this.deleted = deleted;
+		this.snapshot = snapshot;
+		this.users = users;
+		this.time = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return il numero di identificativi, compresi quelli degli utenti
+	 *         eliminati
+	 */
+	public int size() {
+		return this.rows.length;
+	}
+
+	/**
+	 * @return il numero di utenti registrati
+	 */
+	public int users() {
+		return this.users;
+	}
+
+	/**
+	 * @return l'istante di creazione della vista, in millisecondi
+	 */
+	public long getTime() {
+		return this.time;
+	}
+
+	/**
+	 * @param id
+	 *            un identificativo minore di size()
+	 * @return true se l'utente era registrato, false se era stato eliminato
+	 */
+	public boolean isUser(int id) {
+		return this.rows[id] != this.deleted;
+	}
+
+	/**
+	 * Restituisce gli amici di un utente, in ordine crescente di
+	 * identificativo. L'array restituito non va modificato
+	 *
+	 * @param id
+	 *            un identificativo minore di size()
+	 * @return gli identificativi dei suoi amici
+	 */
+	public int[] getFriendIds(int id) {
+		int[] friends = this.rows[id];
+		if (friends != null)
+			return friends;
+		friends = new int[this.snapshot.degree(id)];
+		for (int i = 0; i < friends.length; i++)
+			friends[i] = this.snapshot.friend(id, i);
+		return friends;
+	}
+
+	/**
+	 * @param id
+	 *            un identificativo minore di size()
+	 * @return il numero di amici dell'utente
+	 */
+	public int degree(int id) {
+		int[] friends = this.rows[id];
+		return friends != null ? friends.length : this.snapshot.degree(id);
+	}
+
+	/**
+	 * @param id
+	 *            un identificativo minore di size()
+	 * @return il nome dell'utente
+	 */
+	public String getName(int id) {
+		return this.graph.getName(id);
+	}
+
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.net.Socket;
+
+import condivise.ConnectionCodec;
+import condivise.WireProtocol;
+
+/**
+ * La riga con cui un client apre la connessione di controllo: la porta su cui
+ * aspetta la connessione dei messaggi, seguita facoltativamente da uno spazio
+ * e dalla lista dei formati di messaggio che conosce (vedi WireProtocol). Se
+ * il client ha offerto dei formati, il server gli comunica quello scelto con
+ * una riga sulla connessione di controllo, dopo aver aperto la connessione dei
+ * messaggi; un client che invia solo la porta usa il formato JSON e non
+ * riceve risposta. Al posto della porta il client puo' chiedere una connessione
+ * multiplexed (vedi WireProtocol.MULTIPLEXED), in cui i messaggi viaggiano
+ * sulla connessione di controllo stessa.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class Handshake {
+
+	// la porta della connessione dei messaggi
+	private int port;
+
+	// il formato scelto per la connessione
+	private WireProtocol protocol;
+
+	// true se il client ha offerto dei formati ed aspetta la risposta
+	private boolean negotiated;
+
+	// true se il client ha chiesto una connessione multiplexed
+	private boolean multiplexed;
+
+	private Handshake(int port, WireProtocol protocol, boolean negotiated, boolean multiplexed) {
+		// COSTRUTTORE PRIVATO, si usa il metodo statico Parse
+		this.port = port;
+		this.protocol = protocol;
+		this.negotiated = negotiated;
+		this.multiplexed = multiplexed;
+	}
+
+	/**
+	 * Interpreta la riga inviata dal client
+	 *
+	 * @param line
+	 *            la riga letta dalla connessione di controllo
+	 * @return la richiesta di apertura della connessione
+	 * @throws IllegalArgumentException
+	 *             se la riga non contiene una porta valida, o chiede una
+	 *             connessione multiplexed senza offrire il formato binario
+	 */
+	public static Handshake Parse(String line) {
+		if (line == null)
+			throw new NumberFormatException("null");
+		line = line.trim();
+		int space = line.indexOf(' ');
+		if (space < 0)
+			return new Handshake(Integer.parseInt(line), WireProtocol.JSON, false, false);
+		String first = line.substring(0, space);
+		WireProtocol protocol = WireProtocol.Negotiate(line.substring(space + 1));
+		if (first.equals(WireProtocol.MULTIPLEXED)) {
+			if (protocol != WireProtocol.BINARY)
+				throw new IllegalArgumentException("Connessione multiplexed senza formato binario");
+			return new Handshake(-1, protocol, true, true);
+		}
+		return new Handshake(Integer.parseInt(first), protocol, true, false);
+	}
+
+	/**
+	 * Restituisce la porta su cui il client aspetta la connessione dei
+	 * messaggi
+	 *
+	 * @return la porta, -1 se la connessione e' multiplexed
+	 */
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * Restituisce il formato dei messaggi scelto per la connessione
+	 *
+	 * @return il formato
+	 */
+	public WireProtocol getProtocol() {
+		return this.protocol;
+	}
+
+	/**
+	 * Restituisce true se il client ha chiesto una connessione multiplexed
+	 *
+	 * @return il valore di verita' di "la connessione e' multiplexed"
+	 */
+	public boolean isMultiplexed() {
+		return this.multiplexed;
+	}
+
+	/**
+	 * Apre il canale dei messaggi richiesto dal client, per i server che
+	 * leggono la connessione di controllo da uno stream bloccante: la
+	 * connessione dei messaggi, aperta attivamente verso la porta comunicata,
+	 * oppure il canale dei messaggi della connessione di controllo stessa se
+	 * e' multiplexed. Il codec della connessione di controllo viene impostato
+	 * sul formato scelto, ma la risposta (vedi getReply) resta da inviare
+	 *
+	 * @param control
+	 *            il codec della connessione di controllo
+	 * @return il canale dei messaggi del client
+	 * @throws IOException
+	 *             se non e' possibile aprire la connessione dei messaggi
+	 */
+	public MessageChannel open(ConnectionCodec control) throws IOException {
+		if (this.multiplexed) {
+			control.setProtocol(this.protocol);
+			control.setMultiplexed(true);
+			return MessageChannel.Multiplexed(control);
+		}
+		Socket messageSocket = new Socket(control.getSocket().getInetAddress(), this.port);
+		control.setProtocol(this.protocol);
+		return MessageChannel.Dedicated(messageSocket, this.protocol);
+	}
+
+	/**
+	 * Restituisce la riga da inviare al client una volta aperta la connessione
+	 * dei messaggi
+	 *
+	 * @return i byte della risposta, null se il client non aspetta risposta
+	 */
+	public byte[] getReply() {
+		if (!this.negotiated)
+			return null;
+		return (this.protocol.getName() + "\n").getBytes();
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Tabella hash ad indirizzamento aperto da interi non negativi ad interi,
+ * usata dalle interrogazioni sul grafo (vedi FriendSuggestions e
+ * SocialGraph.getPath) per non creare un Integer per ogni utente visitato.
+ * Le chiavi sono memorizzate incrementate di uno, una posizione a 0 e'
+ * vuota. Non e' thread safe.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class IntMap {
+
+	private int[] keys;
+	private int[] values;
+	private int size;
+
+	/**
+	 * Crea una tabella dimensionata per un certo numero di chiavi, oltre il
+	 * quale viene ingrandita
+	 *
+	 * @param expected
+	 *            il numero di chiavi previsto
+	 */
+	public IntMap(int expected) {
+		// COSTRUTTORE
+		int capacity = 16;
+		while (capacity < (1 << 30) && capacity * 3L < expected * 4L)
+			capacity *= 2;
+		this.keys = new int[capacity];
+		this.values = new int[capacity];
+	}
+
+	/**
+	 * Restituisce il valore associato ad una chiave
+	 *
+	 * @param key
+	 *            la chiave
+	 * @param missing
+	 *            il valore da restituire se la chiave non e' presente
+	 * @return il valore associato, missing se non presente
+	 */
+	public int get(int key, int missing) {
+		int slot = this.find(key);
+		return this.keys[slot] == 0 ? missing : this.values[slot];
+	}
+
+	/**
+	 * Verifica se una chiave e' presente
+	 *
+	 * @param key
+	 *            la chiave
+	 * @return true se presente, false altrimenti
+	 */
+	public boolean containsKey(int key) {
+		return this.keys[this.find(key)] != 0;
+	}
+
+	/**
+	 * Associa un valore ad una chiave, se non gia' presente
+	 *
+	 * @param key
+	 *            la chiave, non negativa
+	 * @param value
+	 *            il valore
+	 * @return true se la chiave e' stata aggiunta, false se era gia' presente
+	 */
+	public boolean putIfAbsent(int key, int value) {
+		int slot = this.find(key);
+		if (this.keys[slot] != 0)
+			return false;
+		this.insert(slot, key, value);
+		return true;
+	}
+
+	/**
+	 * Incrementa di uno il valore associato ad una chiave, associandole 1 se
+	 * non presente
+	 *
+	 * @param key
+	 *            la chiave, non negativa
+	 */
+	public void increment(int key) {
+		int slot = this.find(key);
+		if (this.keys[slot] != 0)
+			this.values[slot]++;
+		else
+			this.insert(slot, key, 1);
+	}
+
+	/**
+	 * @return il numero di chiavi presenti
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Restituisce il numero di posizioni della tabella, da scorrere con keyAt
+	 * e valueAt
+	 *
+	 * @return il numero di posizioni
+	 */
+	public int capacity() {
+		return this.keys.length;
+	}
+
+	/**
+	 * @param slot
+	 *            la posizione
+	 * @return la chiave in una posizione, -1 se la posizione e' vuota
+	 */
+	public int keyAt(int slot) {
+		return this.keys[slot] - 1;
+	}
+
+	/**
+	 * @param slot
+	 *            la posizione
+	 * @return il valore in una posizione occupata
+	 */
+	public int valueAt(int slot) {
+		return this.values[slot];
+	}
+
+	/**
+	 * Funzione di utilita' privata, la posizione di una chiave o la posizione
+	 * vuota in cui andrebbe inserita
+	 */
+	private int find(int key) {
+		int mask = this.keys.length - 1;
+		int slot = slot(key, mask);
+		while (this.keys[slot] != 0 && this.keys[slot] != key + 1)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Funzione di utilita' privata, inserisce una chiave in una posizione
+	 * vuota, ingrandendo la tabella se troppo piena
+	 */
+	private void insert(int slot, int key, int value) {
+		if (key < 0)
+			throw new IllegalArgumentException();
+		this.keys[slot] = key + 1;
+		this.values[slot] = value;
+		if (++this.size * 4 > this.keys.length * 3)
+			this.grow();
+	}
+
+	/**
+	 * Funzione di utilita' privata, raddoppia la tabella
+	 */
+	private void grow() {
+		int[] keys = this.keys;
+		int[] values = this.values;
+		this.keys = new int[keys.length * 2];
+		this.values = new int[keys.length * 2];
+		int mask = this.keys.length - 1;
+		for (int i = 0; i < keys.length; i++)
+			if (keys[i] != 0) {
+				int slot = slot(keys[i] - 1, mask);
+				while (this.keys[slot] != 0)
+					slot = (slot + 1) & mask;
+				this.keys[slot] = keys[i];
+				this.values[slot] = values[i];
+			}
+	}
+
+	/**
+	 * Funzione di utilita' privata, la posizione iniziale di una chiave
+	 */
+	private static int slot(int key, int mask) {
+		int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+}
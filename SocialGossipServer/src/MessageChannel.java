@@ -0,0 +1,169 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+import condivise.BinaryCodec;
+import condivise.ConnectionCodec;
+import condivise.WireProtocol;
+
+/**
+ * Il canale dei messaggi di un client, su cui il server invia i messaggi
+ * destinati al client (ed alcune richieste, come quella di apertura di una
+ * connessione P2P) e legge le risposte del client a tali richieste. Puo'
+ * essere una connessione dedicata, aperta attivamente dal server verso la
+ * porta comunicata dal client, oppure il canale dei messaggi di una
+ * connessione multiplexed (vedi WireProtocol.MULTIPLEXED), che viaggia sulla
+ * connessione di controllo insieme a richieste e risposte.
+ *
+ * Le scritture passano sempre per la coda dei messaggi in uscita (vedi
+ * MessageWriter), le letture per il codec del canale.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class MessageChannel {
+
+	// il socket dei messaggi dedicato, null se la connessione e' multiplexed
+	private Socket socket;
+
+	// la coda dei messaggi in uscita
+	private MessageWriter writer;
+
+	// il codec per le letture dal canale
+	private ConnectionCodec codec;
+
+	// il formato dei messaggi negoziato con il client
+	private WireProtocol protocol;
+
+	private MessageChannel(Socket socket, MessageWriter writer, ConnectionCodec codec, WireProtocol protocol) {
+		// COSTRUTTORE PRIVATO, si usano i metodi statici
+		this.socket = socket;
+		this.writer = writer;
+		this.codec = codec;
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Crea il canale dei messaggi su una connessione dedicata
+	 *
+	 * @param socket
+	 *            il socket dei messaggi
+	 * @param protocol
+	 *            il formato dei messaggi negoziato con il client
+	 * @return il canale dei messaggi
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 */
+	public static MessageChannel Dedicated(Socket socket, WireProtocol protocol) {
+		if (socket == null || protocol == null)
+			throw new NullPointerException();
+		return new MessageChannel(socket, new MessageWriter(socket), new ConnectionCodec(socket, protocol), protocol);
+	}
+
+	/**
+	 * Crea il canale dei messaggi di una connessione multiplexed letta e
+	 * scritta tramite stream bloccanti
+	 *
+	 * @param control
+	 *            il codec del canale di controllo della connessione
+	 * @return il canale dei messaggi
+	 * @throws IllegalStateException
+	 *             se la connessione non e' multiplexed
+	 */
+	public static MessageChannel Multiplexed(ConnectionCodec control) {
+		return Multiplexed(control, new MessageWriter((data) -> control.writeBytes(data)));
+	}
+
+	/**
+	 * Crea il canale dei messaggi di una connessione multiplexed, su cui i
+	 * messaggi vengono scritti tramite la coda indicata
+	 *
+	 * @param control
+	 *            il codec del canale di controllo della connessione
+	 * @param writer
+	 *            la coda dei messaggi in uscita, che scrive i frame sulla
+	 *            connessione
+	 * @return il canale dei messaggi
+	 * @throws IllegalStateException
+	 *             se la connessione non e' multiplexed
+	 */
+	public static MessageChannel Multiplexed(ConnectionCodec control, MessageWriter writer) {
+		if (control == null || writer == null)
+			throw new NullPointerException();
+		return new MessageChannel(null, writer, control.openChannel(BinaryCodec.MESSAGE_CHANNEL),
+				control.getProtocol());
+	}
+
+	/**
+	 * Restituisce il socket dei messaggi dedicato
+	 *
+	 * @return il socket, null se la connessione e' multiplexed
+	 */
+	public Socket getSocket() {
+		return this.socket;
+	}
+
+	/**
+	 * Restituisce la coda dei messaggi in uscita
+	 *
+	 * @return la coda dei messaggi
+	 */
+	public MessageWriter getWriter() {
+		return this.writer;
+	}
+
+	/**
+	 * Restituisce il codec per le letture dal canale
+	 *
+	 * @return il codec
+	 */
+	public ConnectionCodec getCodec() {
+		return this.codec;
+	}
+
+	/**
+	 * Restituisce il formato dei messaggi negoziato con il client
+	 *
+	 * @return il formato
+	 */
+	public WireProtocol getProtocol() {
+		return this.protocol;
+	}
+
+	/**
+	 * Restituisce true se il canale viaggia su una connessione multiplexed
+	 *
+	 * @return il valore di verita' di "la connessione e' multiplexed"
+	 */
+	public boolean isMultiplexed() {
+		return this.socket == null;
+	}
+
+	/**
+	 * Restituisce il canale con cui codificare i messaggi da accodare nel
+	 * writer (vedi MessageHandler.Message2Bytes)
+	 *
+	 * @return il canale dei frame, BinaryCodec.NO_CHANNEL se la connessione
+	 *         e' dedicata
+	 */
+	public int getChannel() {
+		return this.codec.getChannel();
+	}
+
+	/**
+	 * Chiude il canale: scarta i messaggi in attesa, sveglia chi aspetta una
+	 * risposta dal client e chiude la connessione dedicata. La connessione di
+	 * controllo resta aperta
+	 */
+	public void close() {
+		this.writer.close();
+		if (this.socket == null) {
+			this.codec.fail(new EOFException());
+			return;
+		}
+		try {
+			this.socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coda dei messaggi in uscita sul socket dei messaggi di un utente online. I
+ * thread che servono le richieste non scrivono piu' direttamente sul socket
+ * del destinatario: accodano il messaggio gia' codificato e ritornano subito,
+ * mentre un task di scrittura (al piu' uno alla volta per ogni coda) svuota la
+ * coda scrivendo tutti i messaggi in attesa con una sola write ed un solo
+ * flush. In questo modo piu' mittenti concorrenti verso lo stesso utente non
+ * possono mescolare i propri messaggi sul socket, ed un destinatario lento
+ * blocca solo il task di scrittura, non il thread del mittente.
+ *
+ * La coda ha una profondita' massima MAX_DEPTH: quando e' piena i nuovi
+ * messaggi vengono rifiutati (e il mittente ne viene informato), mentre quelli
+ * gia' accodati restano in attesa di essere scritti. Dopo un errore di
+ * scrittura la coda viene chiusa e tutti i messaggi successivi rifiutati; la
+ * disconnessione vera e propria dell'utente resta compito di chi gestisce il
+ * suo socket di controllo.
+ *
+ * I task di scrittura sono eseguiti da un executor comune a tutte le code, con
+ * thread creati su richiesta: una write verso un client lento occupa un
+ * thread, e con un numero fissato di thread pochi client lenti potrebbero
+ * bloccare le scritture verso tutti gli altri.
+ *
+ * Se i messaggi non hanno un socket dedicato (connessioni multiplexed, vedi
+ * MessageChannel) la coda scrive su una Output, che riceve in un'unica
+ * chiamata tutti i messaggi raccolti da un task di scrittura.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class MessageWriter {
+
+	// numero massimo di messaggi in attesa di essere scritti
+	public static final int MAX_DEPTH = 1024;
+
+	// l'executor dei task di scrittura, con thread daemon per non impedire la
+	// terminazione del server
+	private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "MessageWriter");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * La destinazione dei messaggi quando il destinatario non ha un socket
+	 * dei messaggi dedicato
+	 */
+	public interface Output {
+
+		/**
+		 * Scrive dei messaggi gia' codificati, senza mescolarli con altre
+		 * scritture sulla stessa connessione
+		 *
+		 * @param data
+		 *            i byte dei messaggi
+		 * @throws IOException
+		 *             se il destinatario non e' piu' raggiungibile
+		 */
+		void write(byte[] data) throws IOException;
+	}
+
+	// il socket dei messaggi del destinatario, null se si scrive su output
+	private Socket socket;
+
+	// la destinazione dei messaggi, null se si scrive su socket
+	private Output output;
+
+	// lo stream bufferizzato sul socket (o il buffer dei messaggi destinati
+	// ad output), creato dal primo task di scrittura
+	private OutputStream out;
+
+	// i messaggi codificati in attesa di essere scritti
+	private ConcurrentLinkedQueue<byte[]> pending;
+
+	// numero di messaggi in attesa, la size della ConcurrentLinkedQueue non e'
+	// a tempo costante
+	private AtomicInteger depth;
+
+	// true se un task di scrittura e' stato schedulato e non e' ancora finito
+	private AtomicBoolean scheduled;
+
+	// true dopo un errore di scrittura o la chiusura della coda
+	private volatile boolean closed;
+
+	public MessageWriter(Socket socket) {
+		// COSTRUTTORE
+		if (socket == null)
+			throw new NullPointerException();
+		this.socket = socket;
+		this.init();
+	}
+
+	public MessageWriter(Output output) {
+		// COSTRUTTORE
+		if (output == null)
+			throw new NullPointerException();
+		this.output = output;
+		this.init();
+	}
+
+	/**
+	 * Funzione di utilita' privata, inizializza la coda vuota
+	 */
+	private void init() {
+		this.pending = new ConcurrentLinkedQueue<byte[]>();
+		this.depth = new AtomicInteger(0);
+		this.scheduled = new AtomicBoolean(false);
+		this.closed = false;
+	}
+
+	/**
+	 * Accoda un messaggio gia' codificato (vedi MessageHandler.Message2Bytes)
+	 * e ne schedula la scrittura. Non si blocca mai
+	 *
+	 * @param frame
+	 *            i byte del messaggio
+	 * @return true se il messaggio e' stato accodato, false se la coda e'
+	 *         piena o chiusa
+	 * @throws NullPointerException
+	 *             se frame e' null
+	 */
+	public boolean send(byte[] frame) {
+		if (frame == null)
+			throw new NullPointerException();
+		if (this.closed)
+			return false;
+		if (this.depth.incrementAndGet() > MAX_DEPTH) {
+			// politica di overflow: rifiuto il messaggio piu' recente
+			this.depth.decrementAndGet();
+			return false;
+		}
+		this.pending.add(frame);
+		this.schedule();
+		return true;
+	}
+
+	/**
+	 * Chiude la coda, scartando i messaggi ancora in attesa. Non chiude il
+	 * socket
+	 */
+	public void close() {
+		this.closed = true;
+		while (this.pending.poll() != null)
+			this.depth.decrementAndGet();
+	}
+
+	/**
+	 * Restituisce true se la coda e' stata chiusa
+	 *
+	 * @return il valore di verita' di "la coda e' chiusa"
+	 */
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Funzione di utilita' privata, schedula un task di scrittura se non ve
+	 * n'e' gia' uno
+	 */
+	private void schedule() {
+		if (!this.scheduled.compareAndSet(false, true))
+			return;
+		try {
+			writers.execute(() -> this.drain());
+		} catch (RejectedExecutionException e) {
+			this.scheduled.set(false);
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, invia i messaggi scritti su out
+	 */
+	private void flush() throws IOException {
+		if (this.output == null) {
+			this.out.flush();
+			return;
+		}
+		ByteArrayOutputStream batch = (ByteArrayOutputStream) this.out;
+		try {
+			this.output.write(batch.toByteArray());
+		} finally {
+			batch.reset();
+		}
+	}
+
+	/**
+	 * Task di scrittura: scrive tutti i messaggi in attesa con un solo flush,
+	 * finche' la coda non e' vuota
+	 */
+	private void drain() {
+		while (true) {
+			try {
+				if (this.out == null)
+					this.out = this.output != null ? new ByteArrayOutputStream()
+							: new BufferedOutputStream(this.socket.getOutputStream());
+				byte[] frame;
+				int written = 0;
+				while ((frame = this.pending.poll()) != null) {
+					this.depth.decrementAndGet();
+					if (!this.closed)
+						this.out.write(frame);
+					written++;
+				}
+				if (written > 0 && !this.closed)
+					this.flush();
+			} catch (IOException e) {
+				// il destinatario non e' piu' raggiungibile
+				this.close();
+			}
+
+			this.scheduled.set(false);
+			// un messaggio potrebbe essere stato accodato dopo l'ultima poll
+			// ma prima di liberare la coda, in tal caso riprendo la scrittura
+			if (this.pending.isEmpty() || !this.scheduled.compareAndSet(false, true))
+				return;
+		}
+	}
+
+}
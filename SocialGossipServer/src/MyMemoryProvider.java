@@ -0,0 +1,142 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import exceptions.IllegalLanguageException;
+
+/**
+ * Traduzione tramite il servizio REST offerto da myMemory.Translated, o da un
+ * server che ne imita l'interfaccia (ad esempio TranslationStandIn, per i test
+ * di carico senza dipendere dal servizio vero). Ogni richiesta ha un timeout di
+ * connessione e di lettura; le risposte vengono lette per intero e gli stream
+ * chiusi, cosi' che le connessioni restino aperte (keep-alive) e vengano
+ * riutilizzate dalle richieste successive.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class MyMemoryProvider implements TranslationProvider {
+
+	// il path del servizio a cui fare richiesta, senza i parametri della query
+	private static final String pathName = "https://api.mymemory.translated.net/";
+
+	// formato della query:
+	// "pathname + get?q=stringadiprova'=it|en
+	// ha compresi i segnaposto per stringa e coppia di lingue
+	private static final String format = "get?q=%s&langpair=%s";
+
+	// timeout di connessione e di lettura di una richiesta al servizio, in
+	// millisecondi
+	public static final int CONNECT_TIMEOUT = 2000;
+	public static final int READ_TIMEOUT = 3000;
+
+	// numero massimo di connessioni tenute aperte per riutilizzarle
+	public static final int MAX_CONNECTIONS = 8;
+
+	// proprieta' del runtime HTTP che limita le connessioni keep-alive
+	// conservate per ogni server
+	private static final String MAX_CONNECTIONS_PROPERTY = "http.maxConnections";
+
+	static {
+		// il numero di connessioni va impostato prima della prima richiesta,
+		// a meno che non sia gia' stato scelto all'avvio della JVM
+		if (System.getProperty(MAX_CONNECTIONS_PROPERTY) == null)
+			System.setProperty(MAX_CONNECTIONS_PROPERTY, String.valueOf(MAX_CONNECTIONS));
+	}
+
+	// il path del servizio usato da questo provider
+	private String path;
+
+	public MyMemoryProvider() {
+		this(pathName);
+	}
+
+	public MyMemoryProvider(String path) {
+		// COSTRUTTORE
+		if (path == null)
+			throw new NullPointerException();
+		this.path = path.endsWith("/") ? path : path + "/";
+	}
+
+	public String translate(String text, String mittLanguage, String destLanguage)
+			throws IllegalLanguageException, IOException {
+		// preparo la query. format ha compreso il formato corretto di una
+		// query, testo e lingue vanno codificati per la URL (gli spazi come
+		// %20, la barra fra le lingue come %7C)
+		String toSend;
+		try {
+			toSend = this.path + String.format(format, URLEncoder.encode(text, "UTF-8").replace("+", "%20"),
+					URLEncoder.encode(mittLanguage + "|" + destLanguage, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 e' sempre supportato
+			throw new IllegalStateException(e);
+		}
+		HttpURLConnection uc;
+		try {
+			// creo la URL ed apro la connessione verso il servizio, che il
+			// runtime riutilizza se ne ha una keep-alive
+			uc = (HttpURLConnection) new URL(toSend).openConnection();
+		} catch (MalformedURLException e) {
+			// L'errore e' probabilmente nella stringa
+			throw new IllegalLanguageException();
+		}
+		uc.setConnectTimeout(CONNECT_TIMEOUT);
+		uc.setReadTimeout(READ_TIMEOUT);
+		// leggo la risposta per intero e chiudo lo stream, cosi' che la
+		// connessione torni disponibile per le richieste successive
+		StringBuffer sb = new StringBuffer();
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(uc.getInputStream(), StandardCharsets.UTF_8))) {
+			String reply = null;
+			while ((reply = in.readLine()) != null)
+				sb.append(reply);
+		} catch (IOException e) {
+			drain(uc);
+			throw e;
+		}
+
+		try {
+			// letta l'intera risposta, faccio il parsing JSON
+			JSONObject obj = (JSONObject) new JSONParser().parse(sb.toString());
+			// ottengo i dati della risposta
+			JSONObject results = (JSONObject) obj.get("responseData");
+			if (results == null) // non mi ha fatto la traduzione
+				return null;
+			return (String) results.get("translatedText");
+		} catch (ParseException | ClassCastException e) {
+			throw new IOException("Risposta del servizio non valida");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MyMemory (" + this.path + ")";
+	}
+
+	/**
+	 * Funzione di utilita' privata, legge e chiude lo stream di errore di una
+	 * richiesta fallita, cosi' che la connessione possa essere riutilizzata
+	 */
+	private static void drain(HttpURLConnection uc) {
+		try (InputStream err = uc.getErrorStream()) {
+			if (err != null) {
+				byte[] buffer = new byte[512];
+				while (err.read(buffer) >= 0)
+					;
+			}
+		} catch (IOException e) {
+			// connessione non riutilizzabile, il runtime la chiudera'
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+import java.net.Socket;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import condivise.PresenceEvent;
+
+/**
+ * Registro degli utenti attualmente online, condiviso da tutti i thread del
+ * server. Sostituisce la lista di OnlineUser: ogni utente online e' indicizzato
+ * sia per username, per le ricerche fatte dalle richieste (login, notifiche
+ * agli amici, invio di messaggi), sia per socket di controllo, per
+ * individuare l'utente a cui appartiene una connessione chiusa dal client.
+ * Entrambi gli indici sono delle ConcurrentHashMap, per cui ogni ricerca costa
+ * O(1) e non richiede di acquisire la lock sull'intera struttura.
+ *
+ * I socket non ridefiniscono equals e hashCode, per cui l'indice per socket
+ * confronta i socket per identita', esattamente come faceva la ricerca
+ * lineare sulla lista.
+ *
+ * Il registro mantiene inoltre il PresenceDispatcher che recapita le notifiche
+ * di presenza agli utenti online, e gli segnala quando un utente smette di
+ * essere online cosi' che ne possa scartare le notifiche in attesa.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class OnlineRegistry {
+
+	// associazione username -> utente online
+	private ConcurrentHashMap<String, OnlineUser> byName;
+
+	// associazione socket di controllo -> utente online
+	private ConcurrentHashMap<Socket, OnlineUser> byControlSocket;
+
+	// il dispatcher delle notifiche di presenza agli utenti online
+	private PresenceDispatcher presence;
+
+	public OnlineRegistry(PresenceDispatcher presence) {
+		// COSTRUTTORE
+		if (presence == null)
+			throw new NullPointerException();
+		this.presence = presence;
+		this.byName = new ConcurrentHashMap<String, OnlineUser>();
+		this.byControlSocket = new ConcurrentHashMap<Socket, OnlineUser>();
+	}
+
+	/**
+	 * Inserisce un utente fra quelli online. Se un utente con lo stesso
+	 * username era gia' online, viene sostituito dal nuovo e restituito
+	 *
+	 * @param user
+	 *            l'utente online da inserire
+	 * @return l'utente online sostituito, null se l'utente non era online
+	 * @throws NullPointerException
+	 *             se user e' null
+	 */
+	public OnlineUser put(OnlineUser user) {
+		if (user == null)
+			throw new NullPointerException();
+
+		OnlineUser prev = this.byName.put(user.getUsername(), user);
+		if (prev != null) {
+			// la vecchia connessione non appartiene piu' all'utente
+			if (prev.getControlSocket() != null)
+				this.byControlSocket.remove(prev.getControlSocket(), prev);
+			this.presence.forget(prev);
+		}
+		if (user.getControlSocket() != null)
+			this.byControlSocket.put(user.getControlSocket(), user);
+		return prev;
+	}
+
+	/**
+	 * Cerca un utente fra quelli online
+	 *
+	 * @param nickname
+	 *            l'utente che cerco online
+	 * @return l'OnlineUser, null se esso non e' online
+	 * @throws NullPointerException
+	 *             se nickname e' null
+	 */
+	public OnlineUser get(String nickname) {
+		if (nickname == null)
+			throw new NullPointerException();
+		return this.byName.get(nickname);
+	}
+
+	/**
+	 * Cerca l'utente online a cui appartiene un socket di controllo
+	 *
+	 * @param controlSocket
+	 *            il socket di controllo
+	 * @return l'OnlineUser, null se il socket non appartiene ad alcun utente
+	 *         online
+	 * @throws NullPointerException
+	 *             se controlSocket e' null
+	 */
+	public OnlineUser getByControlSocket(Socket controlSocket) {
+		if (controlSocket == null)
+			throw new NullPointerException();
+		return this.byControlSocket.get(controlSocket);
+	}
+
+	/**
+	 * Restituisce il valore di verita' di: l'utente e' online
+	 *
+	 * @param nickname
+	 *            il nome dell'utente
+	 * @return true se l'utente e' online, false altrimenti
+	 */
+	public boolean isOnline(String nickname) {
+		return this.get(nickname) != null;
+	}
+
+	/**
+	 * Rimuove un utente da quelli online, solo se e' ancora registrato con
+	 * questo stesso oggetto OnlineUser (se l'utente ha gia' rifatto login da
+	 * un'altra connessione non viene rimosso). Le notifiche ed i messaggi
+	 * ancora in attesa per l'utente vengono scartati
+	 *
+	 * @param user
+	 *            l'utente online da rimuovere
+	 * @return true se l'utente e' stato rimosso, false altrimenti
+	 * @throws NullPointerException
+	 *             se user e' null
+	 */
+	public boolean remove(OnlineUser user) {
+		if (user == null)
+			throw new NullPointerException();
+
+		if (user.getControlSocket() != null)
+			this.byControlSocket.remove(user.getControlSocket(), user);
+		if (!this.byName.remove(user.getUsername(), user))
+			return false;
+		this.presence.forget(user);
+		if (user.getWriter() != null)
+			user.getWriter().close();
+		return true;
+	}
+
+	/**
+	 * Accoda una notifica di presenza per un utente online. La notifica viene
+	 * recapitata in modo asincrono, vedi PresenceDispatcher
+	 *
+	 * @param recipient
+	 *            l'utente online da notificare
+	 * @param event
+	 *            la notifica
+	 */
+	public void notify(OnlineUser recipient, PresenceEvent event) {
+		this.presence.notify(recipient, event);
+	}
+
+	/**
+	 * Restituisce il numero degli utenti online, approssimativamente poiche'
+	 * la struttura potrebbe venire modificata poco dopo da un altro thread
+	 *
+	 * @return il numero di utenti online
+	 */
+	public int size() {
+		return this.byName.size();
+	}
+
+	/**
+	 * Restituisce una vista degli utenti online, debolmente consistente
+	 *
+	 * @return gli utenti online
+	 */
+	public Collection<OnlineUser> values() {
+		return this.byName.values();
+	}
+
+}
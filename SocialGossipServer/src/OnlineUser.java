@@ -1,6 +1,8 @@
 import java.net.Socket;
 
+import condivise.ConnectionCodec;
 import condivise.Notifier;
+import condivise.WireProtocol;
 
 /**
  * Rappresentazione di un utente online, classe utilizzata per creare un
@@ -9,9 +11,12 @@ import condivise.Notifier;
  * passaggio di un amico da online-offline e viceversa, o di notifiche
  * 'standard' come la creazione di una nuova relazione di amicizia.
  * 
- * Ogni utente online e' rappresentato da un username, uno stub RMI ed una
- * coppia di socket (il socket attraverso il quale il client ricevera' messaggi 
- * dai suoi amici in chat e quello di controllo).
+ * Ogni utente online e' rappresentato da un username, uno stub RMI, il socket
+ * di controllo ed il canale dei messaggi attraverso il quale il client
+ * ricevera' i messaggi dai suoi amici in chat (vedi MessageChannel): una
+ * connessione dedicata o il canale dei messaggi di una connessione
+ * multiplexed. Le scritture sul canale dei messaggi passano per la coda in
+ * uscita dell'utente, vedi MessageWriter.
  * 
  * @author Lorenzo Bellomo, Nicolo' Lucchesi
  */
@@ -23,19 +28,45 @@ public class OnlineUser {
 	// Stub dell'interfaccia RMI fornita dal client al login
 	private Notifier stub;
 
-	// Socket su cui il client ricevera' i messaggi dai suoi amici in chat
-	private Socket messageSocket;
+	// canale su cui il client ricevera' i messaggi dai suoi amici in chat,
+	// con la coda dei messaggi in uscita ed il codec per le letture (le
+	// risposte del client alle richieste del server)
+	private MessageChannel channel;
 
 	// Socket di controllo del client, in cui si scambia i messaggi di controllo
 	// (richiesta e risposta) con il server
 	private Socket controlSocket;
 
+	// il formato dei messaggi negoziato con il client
+	private WireProtocol protocol;
+
 	public OnlineUser(String username, Notifier stub, Socket controlSock, Socket messageSock) {
 		// COSTRUTTORE
+		this(username, stub, controlSock, messageSock, WireProtocol.JSON);
+	}
+
+	public OnlineUser(String username, Notifier stub, Socket controlSock, Socket messageSock,
+			WireProtocol protocol) {
+		// COSTRUTTORE
+		if (protocol == null)
+			throw new NullPointerException();
+		this.protocol = protocol;
+		this.username = username;
+		this.stub = stub;
+		this.controlSocket = controlSock;
+		if (messageSock != null)
+			this.channel = MessageChannel.Dedicated(messageSock, protocol);
+	}
+
+	public OnlineUser(String username, Notifier stub, Socket controlSock, MessageChannel channel) {
+		// COSTRUTTORE
+		if (channel == null)
+			throw new NullPointerException();
+		this.protocol = channel.getProtocol();
 		this.username = username;
 		this.stub = stub;
 		this.controlSocket = controlSock;
-		this.messageSocket = messageSock;
+		this.channel = channel;
 	}
 
 	/**
@@ -50,10 +81,22 @@ public class OnlineUser {
 	/**
 	 * Metodo getter per il socket per i messaggi dell'utente online
 	 * 
-	 * @return il socket dell'utente
+	 * @return il socket dell'utente, null se l'utente non ha una connessione
+	 *         dei messaggi dedicata
 	 */
 	public Socket getMessageSocket() {
-		return this.messageSocket;
+		if (this.channel == null)
+			return null;
+		return this.channel.getSocket();
+	}
+
+	/**
+	 * Metodo getter per il canale dei messaggi dell'utente online
+	 * 
+	 * @return il canale dei messaggi, null se l'utente non ne ha uno
+	 */
+	public MessageChannel getMessageChannel() {
+		return this.channel;
 	}
 
 	/**
@@ -66,6 +109,39 @@ public class OnlineUser {
 		return this.controlSocket;
 	}
 
+	/**
+	 * Metodo getter per la coda dei messaggi in uscita dell'utente online
+	 * 
+	 * @return la coda dei messaggi, null se l'utente non ha un canale dei
+	 *         messaggi
+	 */
+	public MessageWriter getWriter() {
+		if (this.channel == null)
+			return null;
+		return this.channel.getWriter();
+	}
+
+	/**
+	 * Metodo getter per il codec delle letture dal canale dei messaggi. Le
+	 * scritture passano invece per la coda dei messaggi (vedi getWriter)
+	 * 
+	 * @return il codec, null se l'utente non ha un canale dei messaggi
+	 */
+	public ConnectionCodec getMessageCodec() {
+		if (this.channel == null)
+			return null;
+		return this.channel.getCodec();
+	}
+
+	/**
+	 * Metodo getter per il formato dei messaggi negoziato con il client
+	 * 
+	 * @return il formato delle connessioni dell'utente
+	 */
+	public WireProtocol getProtocol() {
+		return this.protocol;
+	}
+
 	/**
 	 * Metodo getter per lo stub RMI dell'utente
 	 * 
@@ -104,7 +180,8 @@ public class OnlineUser {
 	 */
 	public void setMessageSocket(Socket socket) {
 		if(socket == null) throw new NullPointerException();
-		this.messageSocket = socket;
+		if(this.channel != null) this.channel.getWriter().close();
+		this.channel = MessageChannel.Dedicated(socket, this.protocol);
 	}
 
 
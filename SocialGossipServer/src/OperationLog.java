@@ -0,0 +1,672 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import exceptions.AlreadyAFriendException;
+import exceptions.AlreadyInChatroomException;
+import exceptions.NameAlreadyInUseException;
+import exceptions.UnknownUserException;
+
+/**
+ * Persistenza dello stato del server (utenti registrati, amicizie e chatroom),
+ * che sopravvive cosi' al riavvio. Ogni modifica allo stato viene aggiunta in
+ * fondo ad un log delle operazioni su disco; periodicamente l'intero stato
+ * viene scritto in uno snapshot compatto, dopo il quale il log ricomincia da
+ * capo. All'avvio viene caricato l'ultimo snapshot e rieseguite le operazioni
+ * del log successive ad esso.
+ *
+ * Le modifiche allo stato avvengono sincronizzandosi sul SocialGraph: chi
+ * modifica lo stato registra l'operazione con Record mentre ne detiene la
+ * lock, per cui l'ordine delle operazioni nel log e' quello in cui sono state
+ * applicate, e poi, rilasciata la lock, attende con Commit che l'operazione
+ * sia su disco prima di rispondere al client. Le operazioni vengono scritte su
+ * disco da un thread dedicato che, ad ogni giro, scrive tutte quelle
+ * accumulate nel frattempo con una sola write ed una sola fsync (group
+ * commit): con molti client che si registrano o stringono amicizie
+ * contemporaneamente il costo della fsync viene diviso fra tutti.
+ *
+ * Gli snapshot sono nel formato di GraphSnapshot, che all'avvio viene mappato
+ * in memoria invece di essere letto: il grafo risponde direttamente dallo
+ * snapshot, per cui il ripristino dura quanto la riesecuzione dei log
+ * successivi, indipendentemente dal numero di utenti.
+ *
+ * Nella cartella dello stato si trovano snapshot-N e log-N, dove log-N
+ * contiene le operazioni successive a snapshot-N (e precedenti a log-N+1, se
+ * presente). Uno snapshot viene scritto in un file temporaneo e rinominato
+ * solo quando e' completo, per cui un crash durante la scrittura lascia
+ * valido lo snapshot precedente, ed il ripristino riesegue tutti i log a
+ * partire da quello dell'ultimo snapshot valido. Ogni record del log ha
+ * lunghezza e CRC, per cui un record scritto a meta' da un crash viene
+ * riconosciuto ed ignorato, insieme a quelli successivi.
+ *
+ * Record: lunghezza del contenuto e CRC32 (int), seguiti dal contenuto: il
+ * tipo di operazione (byte) ed i suoi campi (stringhe in UTF-8 modificato).
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class OperationLog {
+
+	// i tipi di operazione
+	public static final byte ADD_USER = 1; // nome, codice della lingua
+	public static final byte REMOVE_USER = 2; // nome
+	public static final byte ADD_FRIENDSHIP = 3; // utente 1, utente 2
+	public static final byte REMOVE_FRIENDSHIP = 4; // utente 1, utente 2
+	public static final byte NEW_CHATROOM = 5; // chatroom, creatore, lingua
+	public static final byte JOIN_CHATROOM = 6; // chatroom, utente
+	public static final byte CLOSE_CHATROOM = 7; // chatroom
+
+	// versione degli snapshot scritti prima di GraphSnapshot, che vengono
+	// ancora letti all'avvio
+	private static final int LEGACY_VERSION = 1;
+
+	// operazioni nel log dopo le quali viene scritto un nuovo snapshot
+	public static final int SNAPSHOT_RECORDS = 50000;
+
+	// intervallo fra i controlli sulla necessita' di un nuovo snapshot, e
+	// tempo massimo fra uno snapshot e l'altro se il log non e' vuoto, in
+	// millisecondi
+	public static final long SNAPSHOT_CHECK = 30 * 1000;
+	public static final long SNAPSHOT_INTERVAL = 10 * 60 * 1000;
+
+	// attesa prima di riprovare una scrittura del log fallita, in
+	// millisecondi
+	public static final long FLUSH_RETRY = 1000;
+
+	// dimensione massima di un record, oltre la quale un record letto dal log
+	// viene considerato corrotto
+	private static final int MAX_RECORD = 64 * 1024;
+
+	// nomi dei file nella cartella dello stato
+	private static final String SNAPSHOT = "snapshot-";
+	private static final String LOG = "log-";
+	private static final String TEMP = ".tmp";
+
+	// la cartella dello stato
+	private File directory;
+
+	// lo stato del server
+	private SocialGraph graph;
+	private Vector<ChatRoom> chatrooms;
+
+	// numero del log corrente, e dell'ultimo snapshot
+	private int generation;
+
+	// il log corrente, scritto solo dal thread flusher
+	private FileChannel channel;
+
+	// le operazioni registrate e non ancora scritte su disco
+	private ByteArrayOutputStream pending;
+
+	// numero dell'ultima operazione registrata e dell'ultima scritta su disco
+	private long appended;
+	private long durable;
+
+	// operazioni registrate dall'ultimo snapshot ed istante dell'ultimo
+	// snapshot
+	private int sinceSnapshot;
+	private long lastSnapshot;
+
+	// true se il log e' stato chiuso
+	private boolean closed;
+
+	// il thread che scrive le operazioni su disco
+	private Thread flusher;
+
+	// l'executor che controlla periodicamente se serve un nuovo snapshot
+	private ScheduledExecutorService snapshots;
+
+	/**
+	 * Ripristina lo stato del server dalla cartella indicata (creandola se
+	 * non esiste) ed inizia a registrare le operazioni successive in un log
+	 * nuovo; i log rieseguiti restano su disco fino al prossimo snapshot. Il
+	 * grafo e le chatroom devono essere vuoti, e non ancora utilizzati da
+	 * altri thread
+	 *
+	 * @param directory
+	 *            la cartella dello stato
+	 * @param graph
+	 *            il grafo degli utenti da ripristinare
+	 * @param chatrooms
+	 *            le chatroom da ripristinare
+	 * @throws IOException
+	 *             se lo stato non puo' essere letto o il log non puo' essere
+	 *             creato
+	 */
+	public OperationLog(File directory, SocialGraph graph, Vector<ChatRoom> chatrooms) throws IOException {
+		// COSTRUTTORE
+		if (directory == null || graph == null || chatrooms == null)
+			throw new NullPointerException();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Impossibile creare " + directory);
+		this.directory = directory;
+		this.graph = graph;
+		this.chatrooms = chatrooms;
+		this.pending = new ByteArrayOutputStream();
+
+		// cerco l'ultimo snapshot completo ed i log da rieseguire
+		int snapshot = -1;
+		int lastLog = -1;
+		for (String name : directory.list()) {
+			int n = generation(name, SNAPSHOT);
+			if (n >= 0)
+				snapshot = Math.max(snapshot, n);
+			n = generation(name, LOG);
+			if (n >= 0)
+				lastLog = Math.max(lastLog, n);
+		}
+		int replayed = 0;
+		if (snapshot >= 0)
+			this.load(new File(directory, SNAPSHOT + snapshot));
+		for (int n = Math.max(snapshot, 0); n <= lastLog; n++) {
+			File log = new File(directory, LOG + n);
+			if (log.exists())
+				replayed += this.replay(log);
+		}
+		System.out.println("Stato ripristinato: " + graph.numberOfNodes() + " utenti, " + chatrooms.size()
+				+ " chatroom, " + replayed + " operazioni dal log");
+
+		// riparto da un log vuoto, cosi' da non scrivere mai dopo un record
+		// corrotto; i log rieseguiti restano fino al prossimo snapshot
+		this.generation = Math.max(snapshot, lastLog);
+		this.rotate();
+		this.sinceSnapshot = replayed;
+		this.lastSnapshot = System.currentTimeMillis();
+		this.clean();
+
+		this.flusher = new Thread(this::flush, "OperationLog");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+		this.snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		this.snapshots.scheduleWithFixedDelay(this::checkSnapshot, SNAPSHOT_CHECK, SNAPSHOT_CHECK,
+				TimeUnit.MILLISECONDS);
+
+		// da ora le modifiche al grafo vengono registrate
+		graph.setLog(this);
+	}
+
+	/**
+	 * Registra un'operazione, da chiamare mentre si detiene la lock del
+	 * SocialGraph subito dopo aver applicato l'operazione. L'operazione non e'
+	 * ancora su disco: per attenderla va chiamato Commit, dopo aver rilasciato
+	 * la lock
+	 *
+	 * @param op
+	 *            il tipo di operazione
+	 * @param fields
+	 *            i campi dell'operazione
+	 * @return il numero dell'operazione, da passare a Commit
+	 */
+	public synchronized long Record(byte op, String... fields) {
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(content);
+			out.writeByte(op);
+			for (String field : fields)
+				out.writeUTF(field);
+			byte[] data = content.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			DataOutputStream record = new DataOutputStream(this.pending);
+			record.writeInt(data.length);
+			record.writeInt((int) crc.getValue());
+			record.write(data);
+		} catch (IOException e) {
+			// scrittura in memoria, non succede
+			throw new IllegalStateException(e);
+		}
+		this.sinceSnapshot++;
+		this.appended++;
+		this.notifyAll();
+		return this.appended;
+	}
+
+	/**
+	 * Attende che un'operazione registrata sia scritta su disco. Da non
+	 * chiamare mentre si detiene la lock del SocialGraph, per non bloccare le
+	 * altre modifiche durante la scrittura
+	 *
+	 * @param lsn
+	 *            il numero dell'operazione, restituito da Record
+	 */
+	public synchronized void Commit(long lsn) {
+		boolean interrupted = false;
+		while (this.durable < lsn && !this.closed) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Scrive uno snapshot dello stato corrente, dopo il quale il log
+	 * ricomincia da capo. Le modifiche allo stato vengono sospese solo per il
+	 * tempo di copiarlo in memoria
+	 *
+	 * @throws IOException
+	 *             se lo snapshot non puo' essere scritto
+	 */
+	public void snapshot() throws IOException {
+		Snapshot state;
+		int generation;
+		synchronized (this.graph) {
+			state = this.capture();
+			synchronized (this) {
+				// attendo che le operazioni del log corrente siano su disco,
+				// poi passo al log successivo
+				this.Commit(this.appended);
+				this.rotate();
+				generation = this.generation;
+				this.sinceSnapshot = 0;
+			}
+		}
+		this.writeSnapshot(generation, state);
+		this.clean();
+	}
+
+	/**
+	 * Scrive su disco le operazioni in sospeso e chiude il log; le modifiche
+	 * successive restano solo in memoria
+	 */
+	public void close() {
+		this.snapshots.shutdownNow();
+		synchronized (this) {
+			this.Commit(this.appended);
+			this.closed = true;
+			this.notifyAll();
+		}
+		try {
+			this.flusher.join();
+			this.channel.close();
+		} catch (InterruptedException | IOException e) {
+			// chiusura, ignoro
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Log delle operazioni: " + this.appended + " operazioni registrate, " + this.sinceSnapshot
+				+ " dall'ultimo snapshot (" + LOG + this.generation + ")";
+	}
+
+	/**
+	 * Il corpo del thread flusher: scrive su disco, con una sola write ed una
+	 * sola fsync, tutte le operazioni registrate dall'ultimo giro
+	 */
+	private void flush() {
+		while (true) {
+			byte[] batch;
+			long upTo;
+			FileChannel target;
+			synchronized (this) {
+				while (this.pending.size() == 0 && !this.closed) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (this.pending.size() == 0)
+					return;
+				batch = this.pending.toByteArray();
+				this.pending.reset();
+				upTo = this.appended;
+				target = this.channel;
+			}
+			long start = -1;
+			try {
+				start = target.position();
+				ByteBuffer buffer = ByteBuffer.wrap(batch);
+				while (buffer.hasRemaining())
+					target.write(buffer);
+				target.force(false);
+			} catch (IOException e) {
+				System.out.println("Errore nella scrittura del log delle operazioni: " + e.getMessage());
+				if (!this.retry(batch, target, start))
+					return;
+				continue;
+			}
+			synchronized (this) {
+				this.durable = upTo;
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, chiamata dal flusher dopo una scrittura
+	 * fallita: le operazioni del gruppo non sono su disco, per cui chi le
+	 * attende con Commit resta in attesa. Il gruppo torna in testa a quelle in
+	 * sospeso e, dopo FLUSH_RETRY millisecondi, viene riscritto in un nuovo
+	 * log: il log corrente potrebbe terminare con un record scritto a meta',
+	 * dopo il quale il ripristino non leggerebbe piu' nulla. Prima provo
+	 * comunque ad eliminare la parte scritta, che altrimenti verrebbe
+	 * rieseguita due volte al ripristino (un'operazione gia' applicata viene
+	 * ignorata o riporta lo stato dove era)
+	 *
+	 * @return false se il flusher e' stato interrotto
+	 */
+	private boolean retry(byte[] batch, FileChannel target, long start) {
+		if (start >= 0) {
+			try {
+				target.truncate(start);
+			} catch (IOException e) {
+				// resta il record a meta', il nuovo log lo scavalca
+			}
+		}
+		synchronized (this) {
+			ByteArrayOutputStream pending = new ByteArrayOutputStream(batch.length + this.pending.size());
+			pending.write(batch, 0, batch.length);
+			pending.write(this.pending.toByteArray(), 0, this.pending.size());
+			this.pending = pending;
+		}
+		try {
+			Thread.sleep(FLUSH_RETRY);
+		} catch (InterruptedException e) {
+			return false;
+		}
+		synchronized (this) {
+			try {
+				this.rotate();
+			} catch (IOException e) {
+				// il prossimo tentativo fallira' di nuovo e ripassera' di qui
+				System.out.println("Impossibile creare un nuovo log delle operazioni: " + e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Funzione di utilita' privata, eseguita periodicamente: scrive un nuovo
+	 * snapshot se il log e' cresciuto troppo o se l'ultimo snapshot e' vecchio
+	 */
+	private void checkSnapshot() {
+		int since;
+		synchronized (this) {
+			since = this.sinceSnapshot;
+		}
+		if (since >= SNAPSHOT_RECORDS
+				|| (since > 0 && System.currentTimeMillis() - this.lastSnapshot >= SNAPSHOT_INTERVAL)) {
+			try {
+				this.snapshot();
+			} catch (IOException e) {
+				System.out.println("Errore nella scrittura dello snapshot: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, passa ad un nuovo log vuoto. Chiamata con
+	 * la lock del log, senza operazioni in sospeso o dal flusher dopo una
+	 * scrittura fallita (le operazioni in sospeso vanno nel nuovo log)
+	 */
+	private void rotate() throws IOException {
+		if (this.channel != null)
+			this.channel.close();
+		this.generation++;
+		this.channel = FileChannel.open(new File(this.directory, LOG + this.generation).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Funzione di utilita' privata, copia in memoria lo stato corrente.
+	 * Chiamata con la lock del grafo o prima dell'avvio del server
+	 */
+	private Snapshot capture() {
+		Snapshot state = new Snapshot();
+		this.graph.export(state.users, state.languages, state.friends);
+		for (ChatRoom chat : this.chatrooms) {
+			state.chatrooms.add(chat.getChatName());
+			state.members.add(chat.getUserList());
+		}
+		return state;
+	}
+
+	/**
+	 * Funzione di utilita' privata, scrive uno snapshot in un file temporaneo
+	 * e lo rinomina una volta completo
+	 */
+	private void writeSnapshot(int generation, Snapshot state) throws IOException {
+		File temp = new File(this.directory, SNAPSHOT + generation + TEMP);
+		GraphSnapshot.Write(temp, state.users, state.languages, state.friends, state.chatrooms, state.members);
+		Files.move(temp.toPath(), new File(this.directory, SNAPSHOT + generation).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.lastSnapshot = System.currentTimeMillis();
+	}
+
+	/**
+	 * Funzione di utilita' privata, elimina gli snapshot ed i log precedenti
+	 * all'ultimo snapshot, ed i file temporanei rimasti
+	 */
+	private void clean() {
+		int last = -1;
+		for (String name : this.directory.list())
+			last = Math.max(last, generation(name, SNAPSHOT));
+		for (String name : this.directory.list()) {
+			int n = Math.max(generation(name, SNAPSHOT), generation(name, LOG));
+			if ((n >= 0 && n < last) || (name.endsWith(TEMP) && !name.equals(SNAPSHOT + last + TEMP)))
+				new File(this.directory, name).delete();
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, carica uno snapshot: lo mappa in memoria
+	 * e lo passa al grafo, e ricrea le chatroom
+	 */
+	private void load(File file) throws IOException {
+		int version;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			if (in.readInt() != GraphSnapshot.MAGIC)
+				throw new IOException("Snapshot non valido: " + file);
+			version = in.readInt();
+		}
+		if (version == LEGACY_VERSION) {
+			this.loadLegacy(file);
+			return;
+		}
+		GraphSnapshot snapshot = GraphSnapshot.Open(file);
+		this.graph.setSnapshot(snapshot);
+		for (int i = 0; i < snapshot.getChatrooms().size(); i++)
+			this.restoreChatroom(snapshot.getChatrooms().get(i), snapshot.getMembers().get(i));
+	}
+
+	/**
+	 * Funzione di utilita' privata, carica uno snapshot nel formato
+	 * precedente a GraphSnapshot, ricreando utenti ed amicizie uno per uno
+	 */
+	private void loadLegacy(File file) throws IOException {
+		byte[] data;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != GraphSnapshot.MAGIC || in.readInt() != LEGACY_VERSION)
+				throw new IOException("Snapshot non valido: " + file);
+			data = new byte[in.readInt()];
+			in.readFully(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if (in.readInt() != (int) crc.getValue())
+				throw new IOException("Snapshot corrotto: " + file);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		for (int n = in.readInt(); n > 0; n--)
+			this.apply(ADD_USER, in.readUTF(), in.readUTF());
+		for (int n = in.readInt(); n > 0; n--)
+			this.apply(ADD_FRIENDSHIP, in.readUTF(), in.readUTF());
+		for (int n = in.readInt(); n > 0; n--) {
+			String chatName = in.readUTF();
+			String[] members = new String[in.readInt()];
+			for (int i = 0; i < members.length; i++)
+				members[i] = in.readUTF();
+			this.restoreChatroom(chatName, members);
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, ricrea una chatroom di uno snapshot; il
+	 * primo membro e' il creatore
+	 */
+	private void restoreChatroom(String chatName, String[] members) {
+		for (int i = 0; i < members.length; i++) {
+			if (i == 0)
+				this.apply(NEW_CHATROOM, chatName, members[i], this.language(members[i]));
+			else
+				this.apply(JOIN_CHATROOM, chatName, members[i]);
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, riesegue le operazioni di un log fino
+	 * alla fine o al primo record non valido
+	 *
+	 * @return il numero di operazioni rieseguite
+	 */
+	private int replay(File file) throws IOException {
+		int count = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				int length = in.readInt();
+				int expected = in.readInt();
+				if (length <= 0 || length > MAX_RECORD)
+					break;
+				byte[] data = new byte[length];
+				in.readFully(data);
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				if ((int) crc.getValue() != expected)
+					break;
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(data));
+				byte op = record.readByte();
+				ArrayList<String> fields = new ArrayList<String>();
+				while (record.available() > 0)
+					fields.add(record.readUTF());
+				this.apply(op, fields.toArray(new String[0]));
+				count++;
+			}
+		} catch (EOFException e) {
+			// fine del log, o ultimo record scritto a meta'
+		}
+		return count;
+	}
+
+	/**
+	 * Funzione di utilita' privata, applica un'operazione al grafo ed alle
+	 * chatroom durante il ripristino. Le operazioni che non possono essere
+	 * applicate vengono ignorate
+	 */
+	private void apply(byte op, String... f) {
+		try {
+			switch (op) {
+			case ADD_USER:
+				this.graph.addNode(User.BuildFromCode(f[0], f[1]));
+				break;
+			case REMOVE_USER:
+				this.graph.removeNode(this.graph.getUser(f[0]));
+				break;
+			case ADD_FRIENDSHIP:
+				this.graph.newFriendship(f[0], f[1]);
+				break;
+			case REMOVE_FRIENDSHIP:
+				this.graph.removeEdge(this.graph.getUser(f[0]), this.graph.getUser(f[1]));
+				break;
+			case NEW_CHATROOM:
+				if (this.findChatroom(f[0]) == null)
+					this.chatrooms.add(new ChatRoom(f[0], f[1], f[2]));
+				break;
+			case JOIN_CHATROOM: {
+				ChatRoom chat = this.findChatroom(f[0]);
+				if (chat != null)
+					chat.addUser(f[1]);
+				break;
+			}
+			case CLOSE_CHATROOM: {
+				ChatRoom chat = this.findChatroom(f[0]);
+				if (chat != null)
+					this.chatrooms.remove(chat);
+				break;
+			}
+			default:
+				System.out.println("Operazione sconosciuta nel log: " + op);
+			}
+		} catch (NameAlreadyInUseException | UnknownUserException | AlreadyAFriendException
+				| AlreadyInChatroomException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			// operazione gia' applicata o non piu' valida, la ignoro
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, la lingua di un utente, o quella di
+	 * default se l'utente non esiste
+	 */
+	private String language(String nickname) {
+		try {
+			return this.graph.getUser(nickname).getLanguage();
+		} catch (UnknownUserException e) {
+			return User.DEFAULT_LANGUAGE;
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, cerca una chatroom per nome
+	 */
+	private ChatRoom findChatroom(String chatName) {
+		for (ChatRoom chat : this.chatrooms)
+			if (chat.getChatName().equals(chatName))
+				return chat;
+		return null;
+	}
+
+	/**
+	 * Funzione di utilita' privata, il numero di uno snapshot o di un log dal
+	 * nome del file
+	 *
+	 * @return il numero, -1 se il file non e' del tipo indicato
+	 */
+	private static int generation(String name, String prefix) {
+		if (!name.startsWith(prefix))
+			return -1;
+		try {
+			return Integer.parseInt(name.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Copia in memoria dello stato, da scrivere in uno snapshot
+	 */
+	private static class Snapshot {
+
+		// nome, lingua ed amici di ogni utente
+		final ArrayList<String> users = new ArrayList<String>();
+		final ArrayList<String> languages = new ArrayList<String>();
+		final ArrayList<String[]> friends = new ArrayList<String[]>();
+
+		// nome e membri di ogni chatroom, il primo membro e' il creatore
+		final ArrayList<String> chatrooms = new ArrayList<String>();
+		final ArrayList<String[]> members = new ArrayList<String[]>();
+	}
+
+}
@@ -0,0 +1,228 @@
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import condivise.Notifier;
+import condivise.PresenceEvent;
+
+/**
+ * Sottosistema che recapita le notifiche di presenza (amico online, amico
+ * offline, nuova amicizia) agli stub RMI degli utenti online. I thread che
+ * servono le richieste si limitano ad accodare le notifiche, che vengono poi
+ * recapitate da un executor dedicato con un numero limitato di thread; in
+ * questo modo la latenza di una richiesta (ad esempio il login di un utente
+ * con molti amici) non dipende piu' dalla latenza delle callback dei client.
+ *
+ * Ogni destinatario ha la propria coda (vedi PresenceQueue), servita da al piu'
+ * un task alla volta, per cui uno stub lento rallenta solo le proprie
+ * notifiche. Il task di consegna parte COALESCE_WINDOW millisecondi dopo la
+ * prima notifica accodata, e recapita tutte le notifiche raccolte nel
+ * frattempo con una sola invocazione di NotifyPresenceBatch; poiche' la coda
+ * mantiene solo l'ultima notifica per ogni amico, quando molti utenti fanno
+ * login insieme (ad esempio dopo un riavvio del server) ogni client riceve
+ * poche invocazioni invece di una per ogni amico. I client che non
+ * implementano NotifyPresenceBatch ricevono le notifiche una alla volta.
+ *
+ * Ogni invocazione ha un timeout, impostato tramite la proprieta'
+ * sun.rmi.transport.tcp.responseTimeout del runtime RMI; uno stub
+ * che fallisce MAX_FAILURES volte consecutive, o la cui connessione viene
+ * rifiutata, viene messo in quarantena e le sue notifiche vengono scartate
+ * finche' l'utente non rifa' login.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class PresenceDispatcher {
+
+	// timeout di default di una singola invocazione RMI, in millisecondi
+	public static final long CALL_TIMEOUT = 2000;
+
+	// intervallo in cui vengono raccolte le notifiche di un destinatario
+	// prima di inviarle, in millisecondi
+	public static final long COALESCE_WINDOW = 50;
+
+	// numero massimo di amici con notifiche in attesa per destinatario
+	public static final int MAX_PENDING = 256;
+
+	// fallimenti consecutivi dopo i quali uno stub va in quarantena
+	public static final int MAX_FAILURES = 3;
+
+	// proprieta' del runtime RMI che limita l'attesa di una risposta
+	private static final String RESPONSE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.responseTimeout";
+
+	// l'executor che recapita le notifiche
+	private ScheduledThreadPoolExecutor executor;
+
+	// le code dei destinatari, per identita' dell'OnlineUser
+	private ConcurrentHashMap<OnlineUser, PresenceQueue> queues;
+
+	public PresenceDispatcher(int nthreads) {
+		// COSTRUTTORE
+		if (nthreads <= 0)
+			throw new IllegalArgumentException();
+		// il timeout va impostato prima della prima invocazione RMI, a meno
+		// che non sia gia' stato scelto all'avvio della JVM
+		if (System.getProperty(RESPONSE_TIMEOUT_PROPERTY) == null)
+			System.setProperty(RESPONSE_TIMEOUT_PROPERTY, String.valueOf(CALL_TIMEOUT));
+		this.executor = new ScheduledThreadPoolExecutor(nthreads);
+		this.queues = new ConcurrentHashMap<OnlineUser, PresenceQueue>();
+	}
+
+	/**
+	 * Accoda una notifica per un utente online e ne schedula la consegna. Non
+	 * si blocca mai: se la coda del destinatario e' piena o il suo stub e' in
+	 * quarantena la notifica viene scartata. Se il destinatario ha gia' una
+	 * notifica in attesa relativa allo stesso amico, questa viene sostituita
+	 *
+	 * @param recipient
+	 *            l'utente online da notificare
+	 * @param event
+	 *            la notifica
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 */
+	public void notify(OnlineUser recipient, PresenceEvent event) {
+		if (recipient == null || event == null)
+			throw new NullPointerException();
+		// un utente senza stub non puo' ricevere notifiche
+		if (recipient.getStub() == null)
+			return;
+
+		PresenceQueue queue = this.queues.get(recipient);
+		if (queue == null) {
+			PresenceQueue created = new PresenceQueue(recipient);
+			queue = this.queues.putIfAbsent(recipient, created);
+			if (queue == null)
+				queue = created;
+		}
+		if (!queue.offer(event, MAX_PENDING))
+			return;
+		this.schedule(queue);
+	}
+
+	/**
+	 * Dimentica la coda di un utente che non e' piu' online, scartando le
+	 * notifiche ancora in attesa
+	 *
+	 * @param recipient
+	 *            l'utente online da dimenticare
+	 */
+	public void forget(OnlineUser recipient) {
+		if (recipient == null)
+			throw new NullPointerException();
+		PresenceQueue queue = this.queues.remove(recipient);
+		if (queue != null)
+			queue.quarantine();
+	}
+
+	/**
+	 * Termina l'executor delle notifiche, le notifiche ancora in coda vengono
+	 * scartate
+	 */
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Funzione di utilita' privata, schedula un task di consegna per una coda
+	 * se non ve n'e' gia' uno. Il task parte dopo COALESCE_WINDOW millisecondi
+	 *
+	 * @param queue
+	 *            la coda da servire
+	 */
+	private void schedule(PresenceQueue queue) {
+		if (!queue.trySchedule())
+			return;
+		try {
+			this.executor.schedule(() -> this.drain(queue), COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// dispatcher in chiusura, ignoro
+			queue.unschedule();
+		}
+	}
+
+	/**
+	 * Task di consegna: recapita con una sola invocazione tutte le notifiche
+	 * raccolte per un destinatario. Se nel frattempo ne sono arrivate altre
+	 * viene schedulato un nuovo task, per cui un destinatario riceve al piu'
+	 * un blocco di notifiche ogni COALESCE_WINDOW millisecondi
+	 *
+	 * @param queue
+	 *            la coda da servire
+	 */
+	private void drain(PresenceQueue queue) {
+		List<PresenceEvent> batch = queue.pollAll();
+		if (!batch.isEmpty())
+			this.deliver(queue, batch);
+		queue.unschedule();
+		// eventi accodati durante la consegna
+		if (!queue.isEmpty())
+			this.schedule(queue);
+	}
+
+	/**
+	 * Funzione di utilita' privata, invoca lo stub del destinatario per un
+	 * blocco di notifiche, mettendolo in quarantena se risulta irraggiungibile
+	 *
+	 * @param queue
+	 *            la coda del destinatario
+	 * @param batch
+	 *            le notifiche da recapitare
+	 */
+	private void deliver(PresenceQueue queue, List<PresenceEvent> batch) {
+		Notifier stub = queue.getRecipient().getStub();
+		try {
+			if (!queue.isLegacy()) {
+				try {
+					stub.NotifyPresenceBatch(batch);
+					queue.recordResult(true);
+					return;
+				} catch (RemoteException e) {
+					if (!isUnsupported(e))
+						throw e;
+					// client che non conosce NotifyPresenceBatch
+					queue.setLegacy();
+				}
+			}
+			for (PresenceEvent event : batch) {
+				if (event.isOnline())
+					stub.NotifyOnlineFriend(event.getFriend());
+				else
+					stub.NotifyOfflineFriend(event.getFriend());
+			}
+			queue.recordResult(true);
+		} catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+			// il client non esporta piu' lo stub
+			System.out.println("Stub di " + queue.getRecipient().getUsername() + " irraggiungibile");
+			queue.quarantine();
+		} catch (RemoteException e) {
+			// errore o timeout, le notifiche sono perse
+			if (queue.recordResult(false) >= MAX_FAILURES) {
+				System.out.println("Stub di " + queue.getRecipient().getUsername() + " in quarantena");
+				queue.quarantine();
+			}
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, riconosce l'errore restituito da un
+	 * oggetto remoto che non implementa il metodo invocato
+	 *
+	 * @param e
+	 *            l'eccezione dell'invocazione
+	 * @return true se il metodo non e' supportato dall'oggetto remoto
+	 */
+	private static boolean isUnsupported(RemoteException e) {
+		if (e instanceof ServerException)
+			return e.detail instanceof UnmarshalException;
+		return e instanceof UnmarshalException;
+	}
+
+}
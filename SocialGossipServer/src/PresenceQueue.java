@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import condivise.PresenceEvent;
+
+/**
+ * Coda delle notifiche di presenza destinate ad un singolo utente online,
+ * utilizzata dal PresenceDispatcher. Le notifiche in attesa vengono raggruppate
+ * per amico: una nuova notifica relativa ad un amico sostituisce quella ancora
+ * in attesa, cosi' che un amico che passa ripetutamente online ed offline
+ * produca al piu' una notifica, quella del suo ultimo stato.
+ *
+ * Oltre agli eventi in attesa mantiene lo stato del destinatario: se un task
+ * di consegna e' gia' stato schedulato (al piu' uno alla volta), il numero di
+ * invocazioni RMI fallite consecutivamente e se lo stub e' stato messo in
+ * quarantena perche' irraggiungibile.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class PresenceQueue {
+
+	// il destinatario delle notifiche
+	private OnlineUser recipient;
+
+	// le notifiche in attesa, al piu' una per amico, nell'ordine dell'ultima
+	// modifica. Acceduta solo sincronizzandosi sulla coda
+	private LinkedHashMap<String, PresenceEvent> events;
+
+	// true se un task di consegna e' stato schedulato e non e' ancora finito
+	private AtomicBoolean scheduled;
+
+	// invocazioni fallite consecutivamente, acceduto solo dal task di consegna
+	private int failures;
+
+	// true se il client non implementa l'invio a blocchi delle notifiche
+	private volatile boolean legacy;
+
+	// true se lo stub e' considerato irraggiungibile
+	private volatile boolean quarantined;
+
+	public PresenceQueue(OnlineUser recipient) {
+		// COSTRUTTORE
+		if (recipient == null)
+			throw new NullPointerException();
+		this.recipient = recipient;
+		this.events = new LinkedHashMap<String, PresenceEvent>();
+		this.scheduled = new AtomicBoolean(false);
+		this.failures = 0;
+		this.legacy = false;
+		this.quarantined = false;
+	}
+
+	/**
+	 * Restituisce il destinatario delle notifiche
+	 *
+	 * @return l'utente online destinatario
+	 */
+	public OnlineUser getRecipient() {
+		return this.recipient;
+	}
+
+	/**
+	 * Accoda un evento, sostituendo l'eventuale evento in attesa relativo allo
+	 * stesso amico. L'evento viene scartato se la coda e' in quarantena o se
+	 * e' relativo ad un nuovo amico e la coda e' piena
+	 *
+	 * @param e
+	 *            l'evento da accodare
+	 * @param maxPending
+	 *            il numero massimo di amici con notifiche in attesa
+	 * @return true se l'evento e' stato accodato, false se e' stato scartato
+	 */
+	public synchronized boolean offer(PresenceEvent e, int maxPending) {
+		if (e == null)
+			throw new NullPointerException();
+		if (this.quarantined)
+			return false;
+
+		PresenceEvent prev = this.events.remove(e.getFriend());
+		if (prev == null && this.events.size() >= maxPending)
+			return false;
+		// un nuovo amico resta tale anche se nel frattempo ha cambiato stato,
+		// a meno che non sia passato offline
+		if (prev != null && prev.getType() == PresenceEvent.NEW_FRIEND && e.getType() == PresenceEvent.ONLINE)
+			e = prev;
+		this.events.put(e.getFriend(), e);
+		return true;
+	}
+
+	/**
+	 * Estrae tutte le notifiche in attesa
+	 *
+	 * @return le notifiche, nell'ordine in cui vanno applicate (eventualmente
+	 *         una lista vuota)
+	 */
+	public synchronized List<PresenceEvent> pollAll() {
+		ArrayList<PresenceEvent> batch = new ArrayList<PresenceEvent>(this.events.values());
+		this.events.clear();
+		return batch;
+	}
+
+	/**
+	 * Restituisce true se non ci sono eventi in attesa
+	 *
+	 * @return il valore di verita' di "la coda e' vuota"
+	 */
+	public synchronized boolean isEmpty() {
+		return this.events.isEmpty();
+	}
+
+	/**
+	 * Prova a prendere in carico la consegna degli eventi in coda
+	 *
+	 * @return true se il chiamante deve schedulare un task di consegna, false
+	 *         se un task e' gia' schedulato
+	 */
+	public boolean trySchedule() {
+		return this.scheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Segnala la fine del task di consegna corrente
+	 */
+	public void unschedule() {
+		this.scheduled.set(false);
+	}
+
+	/**
+	 * Registra l'esito di un'invocazione RMI
+	 *
+	 * @param success
+	 *            true se l'invocazione e' andata a buon fine
+	 * @return il numero di invocazioni fallite consecutivamente
+	 */
+	public int recordResult(boolean success) {
+		if (success)
+			this.failures = 0;
+		else
+			this.failures++;
+		return this.failures;
+	}
+
+	/**
+	 * Segnala che lo stub del destinatario non implementa l'invio a blocchi,
+	 * per cui le notifiche vanno recapitate una alla volta
+	 */
+	public void setLegacy() {
+		this.legacy = true;
+	}
+
+	/**
+	 * Restituisce true se le notifiche vanno recapitate una alla volta
+	 *
+	 * @return il valore di verita' di "il client non supporta i blocchi"
+	 */
+	public boolean isLegacy() {
+		return this.legacy;
+	}
+
+	/**
+	 * Mette in quarantena lo stub del destinatario, scartando tutti gli
+	 * eventi in attesa e quelli che verranno accodati in futuro
+	 */
+	public synchronized void quarantine() {
+		this.quarantined = true;
+		this.events.clear();
+	}
+
+	/**
+	 * Restituisce true se lo stub del destinatario e' in quarantena
+	 *
+	 * @return il valore di verita' di "lo stub e' irraggiungibile"
+	 */
+	public boolean isQuarantined() {
+		return this.quarantined;
+	}
+
+}
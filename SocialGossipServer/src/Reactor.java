@@ -0,0 +1,605 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import condivise.BinaryCodec;
+import condivise.ConnectionCodec;
+import condivise.Message;
+import condivise.MessageHandler;
+import condivise.Notifier;
+import condivise.ResponseMessage;
+import condivise.WireProtocol;
+import exceptions.MalformedMessageException;
+
+/**
+ * Thread reactor, alternativo alla coppia Acceptor + Worker. Un unico thread
+ * gestisce tramite un Selector sia il ServerSocketChannel (non bloccante) sulla
+ * porta nota del server, sia tutti i canali di controllo dei client connessi.
+ * Un client inattivo non costa quindi nulla al server, mentre una richiesta
+ * viene presa in carico non appena i suoi byte arrivano sul canale.
+ *
+ * Il thread del Reactor si limita alle operazioni di I/O non bloccanti: quando
+ * su un canale arrivano dei dati, toglie il canale dal Selector e passa al
+ * thread pool un task che ricostruisce la richiesta e la serve tramite il
+ * RequestDispatcher. Terminato il task, la risposta codificata viene accodata
+ * alla sessione ed il canale viene registrato nuovamente sul Selector per la
+ * scrittura della risposta e la lettura della richiesta successiva. In questo
+ * modo ogni client ha al piu' una richiesta in servizio alla volta e le
+ * risposte mantengono l'ordine delle richieste.
+ *
+ * Anche l'apertura attiva della connessione dei messaggi (bloccante) viene
+ * eseguita da un task del pool, come accadeva per i WorkerTask di tipo ACCEPT.
+ * Con il formato binario (vedi WireProtocol) la completezza di una richiesta
+ * si riconosce dalla lunghezza in testa al frame, senza doverla decodificare.
+ *
+ * Se il client chiede una connessione multiplexed non viene aperta alcuna
+ * connessione dei messaggi: i messaggi destinati al client vengono accodati
+ * alla sessione come le risposte, ed il Reactor viene avvisato di osservare il
+ * canale in scrittura; i frame del client sul canale dei messaggi (le risposte
+ * alle richieste del server) vengono consegnati al codec del canale dei
+ * messaggi, dove li attende chi ha inviato la richiesta.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class Reactor extends Thread {
+
+	// dimensione del buffer di lettura dai canali
+	private static final int BUFFER_SIZE = 8192;
+
+	// dimensione massima di una richiesta, oltre la quale il client viene
+	// disconnesso
+	private static final int MAX_REQUEST_SIZE = 1 << 20;
+
+	// il selector su cui sono registrati tutti i canali
+	private Selector selector;
+
+	// il canale che accetta nuove connessioni di controllo
+	private ServerSocketChannel serverChannel;
+
+	// il pool che esegue il servizio vero e proprio delle richieste
+	private ExecutorService pool;
+
+	// sessioni che un task del pool ha restituito al Reactor e che devono
+	// essere registrate nuovamente sul Selector
+	private ConcurrentLinkedQueue<ReactorSession> toRearm;
+
+	// sessioni multiplexed a cui e' stato accodato un messaggio, da osservare
+	// in scrittura
+	private ConcurrentLinkedQueue<ReactorSession> toFlush;
+
+	// ogni thread del pool ha il proprio RequestDispatcher, che non e' thread
+	// safe
+	private ThreadLocal<RequestDispatcher> dispatchers;
+
+	// ogni thread del pool ha anche il proprio MessageHandler per codificare
+	// le risposte
+	private ThreadLocal<MessageHandler> messageHandlers;
+
+	public Reactor(ExecutorService pool, OnlineRegistry list, SocialGraph g, Vector<ChatRoom> chatrooms,
+			DatagramSocket chatSock, TranslationPipeline translations,
+			FriendSuggestions suggestions) {
+		// COSTRUTTORE
+		this.pool = pool;
+		this.toRearm = new ConcurrentLinkedQueue<ReactorSession>();
+		this.toFlush = new ConcurrentLinkedQueue<ReactorSession>();
+		this.dispatchers = ThreadLocal.withInitial(() -> new RequestDispatcher(list, g, chatrooms, chatSock, translations,
+				suggestions));
+		this.messageHandlers = ThreadLocal.withInitial(() -> new MessageHandler());
+	}
+
+	public void run() {
+
+		try {
+			// creo il selector ed il canale del server, non bloccante
+			this.selector = Selector.open();
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.socket().bind(new InetSocketAddress(SocialGossipServer.CONTROL_SOCKET_PORT));
+			this.serverChannel.configureBlocking(false);
+			this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			System.out.println("Errore nell'apertura del canale del server");
+			return;
+		}
+
+		// buffer condiviso per le letture, usato solo da questo thread
+		ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		System.out.println("Server pronto per ricevere  nuove connessioni!");
+
+		while (!SocialGossipServer.stop) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.out.println("Errore nella select");
+				break;
+			}
+
+			// registro nuovamente le sessioni restituite dal pool
+			ReactorSession session;
+			while ((session = toRearm.poll()) != null)
+				this.rearm(session);
+			// ed osservo in scrittura quelle con nuovi messaggi
+			while ((session = toFlush.poll()) != null)
+				this.flush(session);
+
+			Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				try {
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						this.accept();
+					else {
+						if (key.isWritable())
+							this.write(key);
+						if (key.isValid() && key.isReadable())
+							this.read(key, readBuffer);
+					}
+				} catch (IOException e) {
+					// errore su un canale, chiudo la sessione
+					this.close((ReactorSession) key.attachment());
+				}
+			}
+		}
+		// uscito dal while, devo terminare
+
+		System.out.println("Chiudendo il Reactor..");
+
+		try {
+			for (SelectionKey key : selector.keys())
+				key.channel().close();
+			selector.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Accetta una nuova connessione di controllo e la registra sul Selector in
+	 * attesa della porta della connessione dei messaggi
+	 *
+	 * @throws IOException
+	 *             in caso di errore nella registrazione del canale
+	 */
+	private void accept() throws IOException {
+		SocketChannel client = this.serverChannel.accept();
+		if (client == null)
+			return;
+		client.configureBlocking(false);
+		ReactorSession session = new ReactorSession(client);
+		session.setKey(client.register(selector, SelectionKey.OP_READ, session));
+		System.out.println("Ricevuta nuova connessione!");
+	}
+
+	/**
+	 * Legge i dati disponibili sul canale di una sessione e, se la sessione ha
+	 * dati sufficienti, passa il lavoro al thread pool
+	 *
+	 * @param key
+	 *            la chiave del canale pronto in lettura
+	 * @param buffer
+	 *            il buffer di lettura condiviso
+	 * @throws IOException
+	 *             in caso di errore nella lettura
+	 */
+	private void read(SelectionKey key, ByteBuffer buffer) throws IOException {
+		ReactorSession session = (ReactorSession) key.attachment();
+		SocketChannel channel = session.getControlChannel();
+
+		// leggo tutto cio' che e' disponibile sul canale
+		int n;
+		while ((n = channel.read(buffer)) > 0) {
+			buffer.flip();
+			session.append(buffer);
+			buffer.clear();
+		}
+
+		if (n == -1) {
+			// il client ha chiuso la connessione
+			System.out.println("un client ha chiuso");
+			this.close(session);
+			return;
+		}
+
+		this.dispatch(session);
+	}
+
+	/**
+	 * Controlla se il buffer di ingresso di una sessione contiene qualcosa da
+	 * servire e, in caso affermativo, toglie la sessione dal Selector e passa
+	 * al pool il task corrispondente
+	 *
+	 * @param session
+	 *            la sessione da controllare
+	 */
+	private void dispatch(ReactorSession session) {
+		if (session.getInputSize() == 0 || session.isIncomplete())
+			return;
+
+		Runnable task;
+		if (session.getType() == WorkerTask.ACCEPT) {
+			// aspetto la riga contenente la porta della connessione dei
+			// messaggi
+			int newline = -1;
+			byte[] input = session.getInput();
+			for (int i = 0; i < session.getInputSize() && newline == -1; i++)
+				if (input[i] == '\n')
+					newline = i;
+			if (newline == -1)
+				return;
+			String line = new String(input, 0, newline).trim();
+			session.consume(newline + 1);
+			task = () -> this.openMessageConnection(session, line);
+		} else {
+			task = () -> this.serve(session);
+		}
+
+		// finche' il task non termina il canale non viene piu' osservato
+		session.getKey().interestOps(session.getKey().interestOps() & ~SelectionKey.OP_READ);
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			// il pool e' stato chiuso, il server sta terminando
+			this.close(session);
+		}
+	}
+
+	/**
+	 * Scrive sul canale le risposte accodate alla sessione, fin quanto il
+	 * canale le accetta
+	 *
+	 * @param key
+	 *            la chiave del canale pronto in scrittura
+	 * @throws IOException
+	 *             in caso di errore nella scrittura
+	 */
+	private void write(SelectionKey key) throws IOException {
+		ReactorSession session = (ReactorSession) key.attachment();
+		ByteBuffer pending;
+		while ((pending = session.getOutput().peek()) != null) {
+			session.getControlChannel().write(pending);
+			if (pending.hasRemaining())
+				// il canale non accetta altri byte, riprovo alla prossima
+				// select
+				return;
+			session.getOutput().poll();
+		}
+		// ho scritto tutto
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Registra nuovamente una sessione sul Selector dopo che un task del pool
+	 * ha terminato di lavorarci. Eseguito solo dal thread del Reactor
+	 *
+	 * @param session
+	 *            la sessione da registrare nuovamente
+	 */
+	private void rearm(ReactorSession session) {
+		SelectionKey key = session.getKey();
+		if (!key.isValid())
+			return;
+		int ops = SelectionKey.OP_READ;
+		if (!session.getOutput().isEmpty())
+			ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+		// potrei aver gia' ricevuto la richiesta successiva
+		this.dispatch(session);
+	}
+
+	/**
+	 * Osserva in scrittura il canale di una sessione a cui e' stato accodato
+	 * un messaggio, senza toccare l'osservazione in lettura (la sessione
+	 * potrebbe essere in servizio presso un task del pool). Eseguito solo dal
+	 * thread del Reactor
+	 *
+	 * @param session
+	 *            la sessione con dei messaggi da scrivere
+	 */
+	private void flush(ReactorSession session) {
+		SelectionKey key = session.getKey();
+		if (!key.isValid() || session.getOutput().isEmpty())
+			return;
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Accoda un messaggio destinato al client di una sessione multiplexed e
+	 * avvisa il Reactor. Eseguito dai task di scrittura dei MessageWriter
+	 *
+	 * @param session
+	 *            la sessione del destinatario
+	 * @param data
+	 *            i frame dei messaggi
+	 * @throws IOException
+	 *             se la sessione e' stata chiusa
+	 */
+	private void push(ReactorSession session, byte[] data) throws IOException {
+		if (!session.getKey().isValid())
+			throw new IOException("Sessione chiusa");
+		session.enqueueOutput(data);
+		toFlush.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Restituisce una sessione al Reactor da parte di un task del pool
+	 *
+	 * @param session
+	 *            la sessione da restituire
+	 */
+	private void release(ReactorSession session) {
+		toRearm.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Chiude le connessioni di una sessione. Se il client era un utente online
+	 * la notifica ai suoi amici viene eseguita da un task del pool
+	 *
+	 * @param session
+	 *            la sessione da chiudere
+	 */
+	private void close(ReactorSession session) {
+		if (session == null)
+			return;
+		session.getKey().cancel();
+		try {
+			session.getControlChannel().close();
+		} catch (IOException e) {
+			// ignore
+		}
+		if (session.getType() == WorkerTask.SERVE) {
+			try {
+				pool.execute(() -> {
+					dispatchers.get().disconnectClient(session.getControlSocket());
+					session.getMessageChannel().close();
+				});
+			} catch (RejectedExecutionException e) {
+				// server in chiusura, ignoro
+			}
+		}
+	}
+
+	/**
+	 * Task del pool: apre attivamente la connessione dei messaggi verso la
+	 * porta comunicata dal client, oppure prepara il canale dei messaggi della
+	 * connessione di controllo se il client l'ha chiesta multiplexed
+	 *
+	 * @param session
+	 *            la sessione di tipo accept
+	 * @param line
+	 *            la riga contenente la porta inviata dal client
+	 */
+	private void openMessageConnection(ReactorSession session, String line) {
+		// parsing della porta e dei formati offerti
+		Handshake handshake;
+		try {
+			handshake = Handshake.Parse(line);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Errore con " + line);
+			this.closeFromPool(session);
+			return;
+		}
+		try {
+			if (handshake.isMultiplexed()) {
+				// i frame vengono letti dal Reactor e consegnati al codec,
+				// i messaggi accodati alla sessione
+				ConnectionCodec codec = new ConnectionCodec(session.getControlSocket(), handshake.getProtocol());
+				codec.setMultiplexed(false);
+				session.setServing(
+						MessageChannel.Multiplexed(codec, new MessageWriter((data) -> this.push(session, data))));
+			} else {
+				// adesso in port ho la porta, apro una connessione per i
+				// messaggi verso quella porta
+				Socket messageSocket = new Socket(session.getControlSocket().getInetAddress(),
+						handshake.getPort());
+				session.setServing(MessageChannel.Dedicated(messageSocket, handshake.getProtocol()));
+			}
+			// comunico al client il formato scelto, verra' scritto insieme
+			// alle risposte
+			byte[] reply = handshake.getReply();
+			if (reply != null)
+				session.enqueueOutput(reply);
+		} catch (IOException e) {
+			this.closeFromPool(session);
+			return;
+		}
+		this.release(session);
+	}
+
+	/**
+	 * Task del pool: prova a ricostruire una richiesta dai byte ricevuti e, se
+	 * la richiesta e' completa, la serve ed accoda la risposta alla sessione.
+	 * Se i byte non sono ancora sufficienti lascia tutto nel buffer della
+	 * sessione, in attesa di nuovi dati
+	 *
+	 * @param session
+	 *            la sessione di tipo serve
+	 */
+	private void serve(ReactorSession session) {
+		if (session.getProtocol() == WireProtocol.BINARY) {
+			this.serveBinary(session);
+			return;
+		}
+		String request = null;
+		Notifier stub = null;
+		ByteArrayInputStream in = new ByteArrayInputStream(session.getInput(), 0, session.getInputSize());
+		try {
+			// il client crea un nuovo ObjectOutputStream per ogni richiesta,
+			// quindi ogni richiesta inizia con l'header dello stream
+			ObjectInputStream stubStream = new ObjectInputStream(in);
+			// prima mi arriva la size
+			int size = stubStream.readInt();
+			// poi la richiesta
+			request = (String) stubStream.readObject();
+			// se la lunghezza del messaggio non corrisponde allora
+			// mi devo aspettare un Notifier
+			if (size > request.length())
+				stub = (Notifier) stubStream.readObject();
+		} catch (IOException e) {
+			// richiesta non ancora arrivata per intero (uno stream troncato
+			// puo' lanciare sia EOFException che StreamCorruptedException),
+			// aspetto altri dati
+			if (session.getInputSize() > MAX_REQUEST_SIZE) {
+				System.out.println("Richiesta troppo grande, chiudo la connessione");
+				this.closeFromPool(session);
+				return;
+			}
+			session.markIncomplete();
+			this.release(session);
+			return;
+		} catch (ClassNotFoundException | ClassCastException e) {
+			// stream non valido, non posso piu' sincronizzarmi con il client
+			System.out.println("Richiesta non valida, chiudo la connessione");
+			this.closeFromPool(session);
+			return;
+		}
+		// scarto i byte della richiesta letta
+		session.consume(session.getInputSize() - in.available());
+
+		// adesso in request ho un messaggio, che devo servire
+		ResponseMessage reply = dispatchers.get().serveRequest(request, stub, session.getControlSocket(),
+				session.getMessageChannel());
+
+		this.reply(session, reply);
+	}
+
+	/**
+	 * Task del pool per le sessioni in formato binario: se il buffer della
+	 * sessione contiene un frame completo lo decodifica e lo serve, altrimenti
+	 * resta in attesa di nuovi dati. La lunghezza in testa al frame permette
+	 * di capire se la richiesta e' completa senza doverla decodificare. Sulle
+	 * connessioni multiplexed i frame del canale dei messaggi non sono
+	 * richieste, e vengono consegnati al codec del canale, mentre le richieste
+	 * con un identificativo (vedi Message.getRequestId) restituiscono la
+	 * sessione al Reactor prima di essere servite: la richiesta successiva
+	 * puo' essere servita da un altro thread del pool, e la risposta viene
+	 * accodata appena pronta, anche fuori ordine
+	 *
+	 * @param session
+	 *            la sessione di tipo serve
+	 */
+	private void serveBinary(ReactorSession session) {
+		Message msg;
+		try {
+			int frameLen = BinaryCodec.frameLength(session.getInput(), 0, session.getInputSize());
+			if (frameLen == -1) {
+				session.markIncomplete();
+				this.release(session);
+				return;
+			}
+			if (session.isMultiplexed()) {
+				int channel = BinaryCodec.frameChannel(session.getInput(), 0, frameLen);
+				msg = messageHandlers.get().getBinaryCodec().decodeChannelFrame(session.getInput(), 0, frameLen);
+				session.consume(frameLen);
+				if (channel == BinaryCodec.MESSAGE_CHANNEL) {
+					// risposta del client ad una richiesta del server
+					session.getMessageChannel().getCodec().deliver(channel, msg);
+					this.release(session);
+					return;
+				}
+				if (msg.getRequestId() != 0) {
+					this.release(session);
+					this.pipelined(session, msg);
+					return;
+				}
+			} else {
+				msg = messageHandlers.get().getBinaryCodec().decodeFrame(session.getInput(), 0, frameLen);
+				session.consume(frameLen);
+			}
+		} catch (MalformedMessageException e) {
+			// frame non valido, non posso piu' sincronizzarmi con il client
+			System.out.println("Richiesta non valida, chiudo la connessione");
+			this.closeFromPool(session);
+			return;
+		}
+
+		ResponseMessage reply = dispatchers.get().serveRequest(msg, session.getControlSocket(),
+				session.getMessageChannel());
+		this.reply(session, reply);
+	}
+
+	/**
+	 * Funzione di utilita' privata, serve una richiesta di una sessione
+	 * multiplexed gia' restituita al Reactor e le accoda la risposta
+	 *
+	 * @param session
+	 *            la sessione del client
+	 * @param msg
+	 *            la richiesta, con il suo identificativo
+	 */
+	private void pipelined(ReactorSession session, Message msg) {
+		ResponseMessage reply = dispatchers.get().serveRequest(msg, session.getControlSocket(),
+				session.getMessageChannel());
+		if (reply == null)
+			return;
+		try {
+			this.push(session, messageHandlers.get().Message2Bytes(reply, session.getProtocol(),
+					BinaryCodec.CONTROL_CHANNEL));
+		} catch (MalformedMessageException e) {
+			System.out.println("Errore nell'invio di un messaggio di risposta");
+		} catch (IOException e) {
+			// sessione chiusa nel frattempo, la risposta non serve piu'
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, accoda alla sessione la risposta ad una
+	 * richiesta, codificata nel formato della sessione, e restituisce la
+	 * sessione al Reactor
+	 *
+	 * @param session
+	 *            la sessione servita
+	 * @param reply
+	 *            la risposta, null se la richiesta non ne prevede
+	 */
+	private void reply(ReactorSession session, ResponseMessage reply) {
+		if (reply != null) {
+			try {
+				int channel = session.isMultiplexed() ? BinaryCodec.CONTROL_CHANNEL : BinaryCodec.NO_CHANNEL;
+				session.enqueueOutput(messageHandlers.get().Message2Bytes(reply, session.getProtocol(), channel));
+			} catch (MalformedMessageException e) {
+				System.out.println("Errore nell'invio di un messaggio di risposta");
+			}
+		}
+		this.release(session);
+	}
+
+	/**
+	 * Chiude una sessione da un thread del pool, notificando gli amici se il
+	 * client era un utente online. La chiave viene cancellata, per cui il
+	 * Reactor smettera' di osservare il canale
+	 *
+	 * @param session
+	 *            la sessione da chiudere
+	 */
+	private void closeFromPool(ReactorSession session) {
+		session.getKey().cancel();
+		try {
+			session.getControlChannel().close();
+		} catch (IOException e) {
+			// ignore
+		}
+		if (session.getType() == WorkerTask.SERVE) {
+			dispatchers.get().disconnectClient(session.getControlSocket());
+			session.getMessageChannel().close();
+		}
+	}
+
+}
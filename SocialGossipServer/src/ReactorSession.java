@@ -0,0 +1,251 @@
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import condivise.WireProtocol;
+
+/**
+ * Stato di una connessione di controllo gestita dal Reactor. E' l'equivalente
+ * del WorkerTask per la modalita' basata su Selector: mantiene il canale di
+ * controllo (non bloccante) del client, il canale dei messaggi una volta
+ * aperto (vedi MessageChannel), i byte letti dal canale ma non ancora
+ * consumati da una richiesta e la coda delle risposte ancora da scrivere sul
+ * canale. Su una connessione multiplexed nella stessa coda finiscono anche i
+ * messaggi destinati al client.
+ *
+ * Come il WorkerTask, una sessione puo' essere di tipo Accept (il client deve
+ * ancora comunicare la porta della connessione dei messaggi) o di tipo Serve
+ * (entrambe le connessioni sono aperte). Il buffer di ingresso viene
+ * modificato dal thread del Reactor solo quando nessun task del pool sta
+ * lavorando sulla sessione, e viceversa, per cui non necessita di
+ * sincronizzazione.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class ReactorSession {
+
+	// il tipo accept o serve della sessione, come in WorkerTask
+	private volatile int type;
+
+	// il canale di controllo del client, sempre valido
+	private SocketChannel controlChannel;
+
+	// la chiave di registrazione del canale di controllo sul Selector
+	private SelectionKey key;
+
+	// il canale dei messaggi, null finche' la sessione e' di tipo accept
+	private volatile MessageChannel messageChannel;
+
+	// il formato dei messaggi negoziato con il client
+	private volatile WireProtocol protocol;
+
+	// byte letti dal canale di controllo e non ancora consumati
+	private byte[] input;
+
+	// numero di byte validi in input
+	private int inputSize;
+
+	// true se l'ultimo tentativo di ricostruire una richiesta e' fallito per
+	// mancanza di dati, e nessun nuovo byte e' arrivato da allora
+	private boolean incomplete;
+
+	// risposte codificate in attesa di essere scritte sul canale
+	private ConcurrentLinkedQueue<ByteBuffer> output;
+
+	public ReactorSession(SocketChannel control) {
+		// COSTRUTTORE
+		this.type = WorkerTask.ACCEPT;
+		this.controlChannel = control;
+		this.protocol = WireProtocol.JSON;
+		this.input = new byte[512];
+		this.inputSize = 0;
+		this.output = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	/**
+	 * Restituisce il tipo della sessione (WorkerTask.ACCEPT o
+	 * WorkerTask.SERVE)
+	 *
+	 * @return il tipo della sessione
+	 */
+	public int getType() {
+		return this.type;
+	}
+
+	/**
+	 * Restituisce il canale di controllo del client
+	 *
+	 * @return il SocketChannel di controllo
+	 */
+	public SocketChannel getControlChannel() {
+		return this.controlChannel;
+	}
+
+	/**
+	 * Restituisce il socket di controllo del client. Il SocketChannel
+	 * restituisce sempre lo stesso oggetto, per cui puo' essere usato per
+	 * riconoscere l'utente online a cui appartiene la connessione
+	 *
+	 * @return il socket di controllo
+	 */
+	public Socket getControlSocket() {
+		return this.controlChannel.socket();
+	}
+
+	/**
+	 * Restituisce il canale dei messaggi del client
+	 *
+	 * @return il canale dei messaggi, null se la sessione e' di tipo accept
+	 */
+	public MessageChannel getMessageChannel() {
+		return this.messageChannel;
+	}
+
+	/**
+	 * Restituisce true se la connessione del client e' multiplexed
+	 *
+	 * @return il valore di verita' di "la connessione e' multiplexed"
+	 */
+	public boolean isMultiplexed() {
+		MessageChannel channel = this.messageChannel;
+		return channel != null && channel.isMultiplexed();
+	}
+
+	/**
+	 * Restituisce il formato dei messaggi usato dal client
+	 *
+	 * @return il formato, JSON finche' la sessione e' di tipo accept
+	 */
+	public WireProtocol getProtocol() {
+		return this.protocol;
+	}
+
+	/**
+	 * Restituisce la chiave di registrazione della sessione sul Selector
+	 *
+	 * @return la SelectionKey della sessione
+	 */
+	public SelectionKey getKey() {
+		return this.key;
+	}
+
+	/**
+	 * Setter per la chiave di registrazione sul Selector
+	 *
+	 * @param key
+	 */
+	public void setKey(SelectionKey key) {
+		if (key == null)
+			throw new NullPointerException();
+		this.key = key;
+	}
+
+	/**
+	 * Trasforma la sessione in una sessione di tipo serve, una volta aperto il
+	 * canale dei messaggi
+	 *
+	 * @param channel
+	 *            il canale dei messaggi del client, con il formato
+	 *            negoziato
+	 */
+	public void setServing(MessageChannel channel) {
+		if (channel == null)
+			throw new NullPointerException();
+		this.messageChannel = channel;
+		this.protocol = channel.getProtocol();
+		this.type = WorkerTask.SERVE;
+	}
+
+	/**
+	 * Accoda al buffer di ingresso i byte contenuti nel ByteBuffer (che deve
+	 * essere gia' in modalita' lettura)
+	 *
+	 * @param data
+	 *            i byte appena letti dal canale
+	 */
+	public void append(ByteBuffer data) {
+		int n = data.remaining();
+		if (inputSize + n > input.length)
+			input = Arrays.copyOf(input, Math.max(input.length * 2, inputSize + n));
+		data.get(input, inputSize, n);
+		inputSize += n;
+		incomplete = false;
+	}
+
+	/**
+	 * Segnala che i byte presenti nel buffer di ingresso non bastano a
+	 * ricostruire una richiesta, e che occorre aspettare nuovi dati
+	 */
+	public void markIncomplete() {
+		this.incomplete = true;
+	}
+
+	/**
+	 * Restituisce true se il buffer di ingresso non contiene una richiesta
+	 * completa e non sono arrivati nuovi byte dall'ultimo tentativo
+	 *
+	 * @return true se bisogna aspettare nuovi dati
+	 */
+	public boolean isIncomplete() {
+		return this.incomplete;
+	}
+
+	/**
+	 * Restituisce il buffer di ingresso; sono significativi solo i primi
+	 * getInputSize() byte
+	 *
+	 * @return il buffer di ingresso
+	 */
+	public byte[] getInput() {
+		return this.input;
+	}
+
+	/**
+	 * Restituisce il numero di byte validi nel buffer di ingresso
+	 *
+	 * @return il numero di byte non ancora consumati
+	 */
+	public int getInputSize() {
+		return this.inputSize;
+	}
+
+	/**
+	 * Scarta i primi n byte del buffer di ingresso, gia' consumati da una
+	 * richiesta
+	 *
+	 * @param n
+	 *            il numero di byte consumati
+	 */
+	public void consume(int n) {
+		if (n < 0 || n > inputSize)
+			throw new IllegalArgumentException();
+		System.arraycopy(input, n, input, 0, inputSize - n);
+		inputSize -= n;
+	}
+
+	/**
+	 * Accoda una risposta (o un messaggio, se la connessione e' multiplexed)
+	 * da scrivere sul canale di controllo
+	 *
+	 * @param data
+	 *            i byte della risposta
+	 */
+	public void enqueueOutput(byte[] data) {
+		if (data == null)
+			throw new NullPointerException();
+		this.output.add(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Restituisce la coda delle risposte da scrivere
+	 *
+	 * @return la coda delle risposte
+	 */
+	public ConcurrentLinkedQueue<ByteBuffer> getOutput() {
+		return this.output;
+	}
+
+}
@@ -0,0 +1,565 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Vector;
+
+import condivise.Message;
+import condivise.MessageHandler;
+import condivise.Notifier;
+import condivise.PresenceEvent;
+import condivise.RequestCode;
+import condivise.RequestMessage;
+import condivise.ResponseCode;
+import condivise.ResponseMessage;
+import condivise.TextMessage;
+import exceptions.*;
+
+/**
+ * Classe che si occupa di servire una singola richiesta gia' letta dal socket
+ * di controllo di un client, indipendentemente da come essa sia stata letta.
+ * Dato il messaggio ricevuto (ed eventualmente lo stub RMI allegato),
+ * questa classe ricostruisce il messaggio, invoca l'operazione corrispondente
+ * del RequestHandler e costruisce il messaggio di risposta da inviare al
+ * client, traducendo le eccezioni lanciate nei codici di errore definiti da
+ * ResponseCode.
+ * 
+ * E' utilizzata sia dai Worker del thread pool che dal Reactor basato su
+ * Selector, in modo che le diverse modalita' di esecuzione del server
+ * condividano la stessa logica di servizio delle richieste. Come il
+ * RequestHandler che contiene, un oggetto di questa classe non e' thread safe
+ * e va quindi usato da un solo thread alla volta.
+ * 
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class RequestDispatcher {
+
+	// rappresentazione della rete di utenti di SocialGraph
+	private SocialGraph graph;
+
+	// registro degli utenti online con associazione Username-Stub utente
+	private OnlineRegistry onlineUsers;
+
+	// l'handler delle richieste. Vedi classe RequestHandler
+	private RequestHandler handler;
+
+	// handler della relazione JSON<->Message
+	private MessageHandler messageHandler;
+
+	public RequestDispatcher(OnlineRegistry list, SocialGraph g, Vector<ChatRoom> chatrooms,
+			DatagramSocket chatSock, TranslationPipeline translations,
+			FriendSuggestions suggestions) {
+		// COSTRUTTORE
+		this.onlineUsers = list;
+		this.graph = g;
+		this.handler = new RequestHandler(graph, onlineUsers, chatrooms, chatSock, translations,
+				suggestions);
+		this.messageHandler = new MessageHandler();
+	}
+
+	/**
+	 * Funzione di utilita' privata, cerca un utente fra quelli online. Se lo
+	 * trova lo ritorna altrimenti ritorna null
+	 * 
+	 * @param nickname
+	 *            l'utente che cerco online
+	 * @return l'OnlineUser, null se esso non esiste
+	 */
+	private OnlineUser findOnlineUserByName(String nickname) {
+		return this.onlineUsers.get(nickname);
+	}
+
+	/**
+	 * Funzione di utilita' privata, notifica tutti gli amici online di un
+	 * utente che esso e' passato offline
+	 * 
+	 * @param u
+	 *            utente da disconnettere
+	 */
+	private void disconnectUserAndNotifyFriends(OnlineUser u) {
+
+		// devo notificare gli amici
+		try {
+			// ottengo l'utente
+			User user = this.graph.getUser(u.getUsername());
+			// ne ottengo gli amici
+			String friends[] = this.graph.getFriends(user.getUsername());
+			for (String friend : friends) {
+				// controllo se tale amico e' online
+				OnlineUser onlineFriend = this.findOnlineUserByName(friend);
+				if (onlineFriend != null) // e' online
+					this.onlineUsers.notify(onlineFriend,
+							new PresenceEvent(PresenceEvent.OFFLINE, user.getUsername()));
+			}
+		} catch (UnknownUserException e) {
+			// ??
+			return;
+		}
+
+	}
+
+	/**
+	 * Gestisce la chiusura della connessione di controllo di un client: se il
+	 * socket chiuso apparteneva ad un utente online, lo rimuove da quelli
+	 * online e ne notifica gli amici. Non chiude i socket, compito che resta al
+	 * chiamante
+	 * 
+	 * @param clientSocket
+	 *            il socket di controllo chiuso dal client
+	 */
+	public void disconnectClient(Socket clientSocket) {
+		// controllo se il socket chiuso appartiene ad un utente online
+		OnlineUser u = onlineUsers.getByControlSocket(clientSocket);
+		// rimuovo l'utente da quelli online, a meno che nel frattempo non
+		// abbia gia' rifatto login da un'altra connessione
+		if (u != null && onlineUsers.remove(u)) {
+			System.out.println(u.getUsername());
+			this.disconnectUserAndNotifyFriends(u);
+		}
+	}
+
+	/**
+	 * Serve una richiesta JSON ricevuta sul socket di controllo di un client e
+	 * restituisce il messaggio di risposta da inviargli. Non si occupa
+	 * dell'invio della risposta, che resta compito del chiamante
+	 * 
+	 * @param request
+	 *            la stringa JSON della richiesta
+	 * @param stub
+	 *            lo stub RMI allegato alla richiesta, null se assente
+	 * @param clientSocket
+	 *            il socket di controllo del client
+	 * @param channel
+	 *            il canale dei messaggi del client
+	 * @return il messaggio di risposta, null se la richiesta non era valida e
+	 *         non va risposta
+	 */
+	public ResponseMessage serveRequest(String request, Notifier stub, Socket clientSocket, MessageChannel channel) {
+		if (request == null)
+			throw new NullPointerException();
+
+		// ottengo cosi un oggetto messaggio corrispondente a quello
+		// inviato dal client
+		Message msg;
+		try {
+			msg = (Message) messageHandler.JSONString2Message(request);
+		} catch (MalformedMessageException e) {
+			// problema nel parsing del messaggio, ignoriamo la
+			// richiesta
+			return null;
+		}
+		// lo stub viaggia accanto al messaggio JSON
+		if (msg.getType() == Message.REQUEST)
+			((RequestMessage) msg).setStub(stub);
+
+		return this.serveRequest(msg, clientSocket, channel);
+	}
+
+	/**
+	 * Serve una richiesta gia' decodificata, qualunque sia il formato in cui e'
+	 * arrivata, e restituisce il messaggio di risposta da inviare al client.
+	 * Lo stub RMI eventualmente allegato e' quello di RequestMessage.getStub
+	 * 
+	 * @param msg
+	 *            il messaggio ricevuto
+	 * @param clientSocket
+	 *            il socket di controllo del client
+	 * @param channel
+	 *            il canale dei messaggi del client, con il formato dei
+	 *            messaggi negoziato
+	 * @return il messaggio di risposta, con l'identificativo della richiesta,
+	 *         null se la richiesta non era valida e non va risposta
+	 */
+	public ResponseMessage serveRequest(Message msg, Socket clientSocket, MessageChannel channel) {
+		if (msg == null || channel == null)
+			throw new NullPointerException();
+
+		// adesso identifico il tipo di messaggio inviato dal client
+		if (msg.getType() != Message.REQUEST) {
+			// richiesta non accettata, le richieste di invio di
+			// messaggio devono essere inviate con un RequestMessage, e
+			// non con un TextMessage ed i response message devono
+			// necessariamente viaggiare sull'altro canale
+			System.out.println("Ottenuto un Messaggio non valido");
+			// non mando alcun codice d'errore al client che ha inviato
+			// mi limito ad ignorare la richiesta malformata
+			return null;
+		}
+
+		// re-cast del messaggio al sottotipo appropriato
+		RequestMessage reqMsg = (RequestMessage) msg;
+		// messaggio che conterra' la risposta del server al client
+		ResponseMessage reply = null;
+
+		// se il messaggio ricevuto e' un RequestMessage, leggo il
+		// tipo di richiesta ricevuto
+		switch (reqMsg.TypeOfRequest()) {
+		case REGISTER: {
+			// gestisco la richiesta di registrazione
+			try {
+				// creo un oggetto OnlineUser, che sara' inserito
+				// nella lista solo se il client si registra con
+				// successo
+				OnlineUser newUser = new OnlineUser(reqMsg.getSender(), reqMsg.getStub(), clientSocket, channel);
+				handler.RegisterUser(reqMsg.getSender(), reqMsg.getLanguage(), newUser);
+				// richiesta di registrazione a buon fine, rispondo
+				// con ack positivo
+				reply = ResponseMessage.BuildAck(reqMsg.getSender(), RequestCode.REGISTER);
+			} catch (NameAlreadyInUseException e) {
+				// il nome utente che il client sta tentando di
+				// usare e' gia' in uso rispondo con un appropriato
+				// messaggio di errore
+				reply = ResponseMessage.BuildError(ResponseCode.NICK_ALREADY_TAKEN, RequestCode.REGISTER,
+						"");
+			} catch (NotAFieldException e) {
+				// il messaggio ricevuto non presenta uno o piu'
+				// campi necessari ad eseguire la richiesta rispondo
+				// con un messaggio di errore generico
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.REGISTER, "");
+			}
+			break;
+
+		}
+		case LOGIN: {
+			// gestisco la richiesta di login dell'utente
+			try {
+				// creo un oggetto OnlineUser, che sara' inserito
+				// nella lista solo se il client logga con successo
+				OnlineUser newUser = new OnlineUser(reqMsg.getSender(), reqMsg.getStub(), clientSocket, channel);
+				handler.LogInUser(newUser);
+				// richiesta a buon fine, genero un messaggio di ack
+				// positivo
+				reply = ResponseMessage.BuildAck(reqMsg.getSender(), RequestCode.LOGIN);
+			} catch (UnknownUserException e) {
+				// il nome utente inserito non e' presente fra
+				// quelli registrati
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.LOGIN,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case LOOKUP: {
+			// gestisco la richiesta di lookup
+			try {
+				boolean isOnline;
+				isOnline = handler.LookUpUser(reqMsg.getTarget());
+				// user trovato
+				reply = ResponseMessage.BuildOnlineAck(reqMsg.getSender(), RequestCode.LOOKUP, isOnline);
+			} catch (UnknownUserException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.LOOKUP,
+						reqMsg.getSender());
+			} catch (NotAFieldException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.LOOKUP,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case FRIENDSHIP: {
+			// gestisco la richiesta di aggiunta di un amico
+			try {
+				// tento di aggiungere la nuova relazione di
+				// amicizia
+				boolean isOnline = handler.NewFriendship(reqMsg.getSender(), reqMsg.getTarget());
+				// amicizia aggiunta correttamente
+				reply = ResponseMessage.BuildOnlineAck(reqMsg.getSender(), RequestCode.FRIENDSHIP,
+						isOnline);
+			} catch (UnknownUserException e) {
+				// uno dei due utenti non esiste
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.FRIENDSHIP,
+						reqMsg.getSender());
+			} catch (AlreadyAFriendException e) {
+				// la relazione di amicizia e' gia' presente
+				reply = ResponseMessage.BuildError(ResponseCode.ALREADY_A_FRIEND, RequestCode.FRIENDSHIP,
+						reqMsg.getSender());
+			} catch (NotAFieldException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.FRIENDSHIP,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case FRIEND_LIST: {
+			// gestisco la richiesta dell'invio della lista di amici
+			try {
+				String friends[] = handler.ListFriends(reqMsg.getSender());
+				// operazione eseguita, preparo il messaggio da
+				// inviare indietro all'utente, contente la lista
+				// dei suoi amici
+				reply = ResponseMessage.BuildListAck(reqMsg.getSender(), RequestCode.FRIEND_LIST, friends);
+
+			} catch (UnknownUserException e) {
+				// utente sconosciuto
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.FRIEND_LIST,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case SUGGEST_FRIENDS: {
+			// gestisco la richiesta dei suggerimenti di amicizia
+			try {
+				String suggested[] = handler.SuggestFriends(reqMsg.getSender());
+				// operazione eseguita, invio indietro gli utenti
+				// suggeriti, dal piu' consigliato
+				reply = ResponseMessage.BuildListAck(reqMsg.getSender(), RequestCode.SUGGEST_FRIENDS, suggested);
+			} catch (UnknownUserException e) {
+				// utente sconosciuto
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.SUGGEST_FRIENDS,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case MUTUAL_FRIENDS: {
+			// gestisco la richiesta degli amici in comune con un utente
+			try {
+				String mutual[] = handler.MutualFriends(reqMsg.getSender(), reqMsg.getTarget());
+				reply = ResponseMessage.BuildListAck(reqMsg.getSender(), RequestCode.MUTUAL_FRIENDS, mutual);
+			} catch (UnknownUserException e) {
+				// uno dei due utenti non esiste
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.MUTUAL_FRIENDS,
+						reqMsg.getSender());
+			} catch (NotAFieldException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.MUTUAL_FRIENDS,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case FRIENDSHIP_PATH: {
+			// gestisco la richiesta della catena di amicizie verso un
+			// utente
+			try {
+				String path[] = handler.FriendshipPath(reqMsg.getSender(), reqMsg.getTarget());
+				// la catena, dal mittente all'utente richiesto
+				reply = ResponseMessage.BuildListAck(reqMsg.getSender(), RequestCode.FRIENDSHIP_PATH, path);
+			} catch (UnknownUserException e) {
+				// uno dei due utenti non esiste
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.FRIENDSHIP_PATH,
+						reqMsg.getSender());
+			} catch (NoPathException e) {
+				// utenti non collegati, o troppo lontani
+				reply = ResponseMessage.BuildError(ResponseCode.NO_PATH, RequestCode.FRIENDSHIP_PATH,
+						reqMsg.getSender());
+			} catch (NotAFieldException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.FRIENDSHIP_PATH,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case SEARCH_USERS: {
+			// gestisco la ricerca degli utenti per prefisso del nickname
+			try {
+				// il metodo mi restituisce la pagina di utenti da inviare
+				reply = handler.SearchUsers(reqMsg.getSender(), reqMsg.getTarget(), reqMsg.getAfter());
+			} catch (NotAFieldException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.SEARCH_USERS,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case FILE2FRIEND: {
+			// gestisco la richiesta dell'invio di un file ad un
+			// amico
+			try {
+				// il metodo mi restituisce l'ack da inviare
+				reply = handler.SendFileToFriend(reqMsg.getSender(), reqMsg.getTarget());
+			} catch (UserNotOnlineException e) {
+				// destinatario offline
+				reply = ResponseMessage.BuildError(ResponseCode.USER_OFFLINE, RequestCode.FILE2FRIEND,
+						reqMsg.getSender());
+			} catch (NoSuchFriendException e) {
+				// il destinatario non e' amico del mittente
+				reply = ResponseMessage.BuildError(ResponseCode.NOT_A_FRIEND, RequestCode.FILE2FRIEND,
+						reqMsg.getSender());
+			} catch (UnknownUserException e) {
+				// utente sconosciuto
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.FILE2FRIEND,
+						reqMsg.getSender());
+			} catch (MalformedMessageException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.FILE2FRIEND,
+						reqMsg.getSender());
+			} catch (NotAFieldException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.FILE2FRIEND,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case MSG2FRIEND: {
+			// gestione della richiesta di invio messaggio
+			TextMessage txtMsg = null;
+
+			// provo ad inviare il messaggio al destinatario
+			reply = null;
+			try {
+				txtMsg = reqMsg.getTextMessage();
+				handler.SendMessageToFriend(txtMsg);
+				// operazione a buon fine
+				reply = ResponseMessage.BuildAck(txtMsg.getSender(), RequestCode.MSG2FRIEND);
+			} catch (UnknownUserException e) {
+				// uno dei due utenti non esiste
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.MSG2FRIEND,
+						txtMsg.getSender());
+			} catch (NoSuchFriendException e) {
+				// i due utenti non sono amici
+				reply = ResponseMessage.BuildError(ResponseCode.NOT_A_FRIEND, RequestCode.MSG2FRIEND,
+						txtMsg.getSender());
+			} catch (UserNotOnlineException e) {
+				// l'utente con cui vogliamo chattare non e' online
+				reply = ResponseMessage.BuildError(ResponseCode.USER_OFFLINE, RequestCode.MSG2FRIEND,
+						txtMsg.getSender());
+			} catch (MalformedMessageException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.MSG2FRIEND,
+						txtMsg.getSender());
+			} catch (NotAFieldException e) {
+				// l'utente mi ha inviato una richiesta mal formata
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.MSG2FRIEND,
+						msg.getSender());
+			}
+			break;
+		}
+		case CHATROOM_MSG: {
+			// i messaggi destinati ad una chatroom devono essere
+			// inviati con UDP
+			try {
+				// ottengo il messaggio testuale da inviare, fra i
+				// suoi campi esso conterra' il nome della chatroom
+				// a cui inviare i messaggi
+				TextMessage textMessage = reqMsg.getTextMessage();
+				// invio il messaggio alla chatroom (puo' lanciare
+				// eccezioni)
+				handler.SendMessageToChatroom(textMessage);
+				// invio andato a buon fine, creo un ack positivo
+				reply = ResponseMessage.BuildAck(msg.getSender(), RequestCode.CHATROOM_MSG);
+			} catch (NotAFieldException e) {
+				// il campo textmessage non era valido nel messaggio
+				// di richiesta, che non e' sensato per il server
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.CHATROOM_MSG,
+						msg.getSender());
+			} catch (NoSuchChatException e) {
+				// se la chatroom richiesta e' inesistente
+				reply = ResponseMessage.BuildError(ResponseCode.CHATROOM_UNKNOWN, RequestCode.CHATROOM_MSG,
+						msg.getSender());
+			} catch (UnknownUserException e) {
+				// se l'utente che ha fatto richiesta non e' nella
+				// chatroom
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.CHATROOM_MSG,
+						msg.getSender());
+			} catch (NoOneOnlineException e) {
+				// se l'unico utente online della chatroom e' il
+				// mittente
+				reply = ResponseMessage.BuildError(ResponseCode.NO_ONE_ONLINE, RequestCode.CHATROOM_MSG,
+						msg.getSender());
+			} catch (IOException e) {
+				// se avviene un errore nell'invio del datagram o
+				// nell'apertura del socket
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.CHATROOM_MSG,
+						msg.getSender());
+				e.printStackTrace();
+			} catch (MalformedMessageException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.CHATROOM_MSG,
+						msg.getSender());
+			}
+			break;
+		}
+		case CREATE_CHATROOM: {
+			// gestisco creazione di una chatroom
+			try {
+				// provo a creare una chatroom
+				InetAddress address = handler.NewChatroom(reqMsg.getTarget(), reqMsg.getSender());
+				// operazione eseguita con successo
+				reply = ResponseMessage.BuildChatroomAck(reqMsg.getSender(), RequestCode.CREATE_CHATROOM,
+						address);
+			} catch (NameAlreadyInUseException e) {
+				// nome della chatroom occupato
+				reply = ResponseMessage.BuildError(ResponseCode.NICK_ALREADY_TAKEN,
+						RequestCode.CREATE_CHATROOM, reqMsg.getSender());
+			} catch (NotAFieldException e) {
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.CREATE_CHATROOM,
+						reqMsg.getSender());
+			} catch (UnknownUserException e) {
+				// l'utente richiedente non esiste
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN,
+						RequestCode.CREATE_CHATROOM, reqMsg.getSender());
+			}
+			break;
+		}
+		case ADD_TO_CHATROOM: {
+			try {
+				// gestisco l'aggiunta di un utente ad una chatroom
+				InetAddress address = handler.AddUserToChatroom(reqMsg.getSender(), reqMsg.getTarget());
+				// operazione eseguita con successo
+				reply = ResponseMessage.BuildChatroomAck(reqMsg.getSender(), RequestCode.ADD_TO_CHATROOM,
+						address);
+			} catch (NotAFieldException e) {
+				// il campo target non era significativo, chissa'
+				// cosa mi e' stato inviato
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.ADD_TO_CHATROOM,
+						reqMsg.getSender());
+			} catch (UnknownUserException e) {
+				// se l'utente che fa richiesta non esiste
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN,
+						RequestCode.ADD_TO_CHATROOM, reqMsg.getSender());
+			} catch (NoSuchChatException e) {
+				// se la chat richiesta non esiste
+				reply = ResponseMessage.BuildError(ResponseCode.CHATROOM_UNKNOWN,
+						RequestCode.ADD_TO_CHATROOM, reqMsg.getSender());
+			} catch (AlreadyInChatroomException e) {
+				// se l'utente era gia' nella chatroom richiesta
+				reply = ResponseMessage.BuildError(ResponseCode.ALREADY_IN_CHATROOM,
+						RequestCode.ADD_TO_CHATROOM, reqMsg.getSender());
+			}
+			break;
+		}
+		case CHATROOM_LIST: {
+			// gestisco l'invio della lista di chatroom attive
+			try {
+				String[] chatList = handler.GetChatRoomList(reqMsg.getSender());
+				// operazione eseguita con successo
+				reply = ResponseMessage.BuildListAck(reqMsg.getSender(), RequestCode.CHATROOM_LIST,
+						chatList);
+			} catch (UnknownUserException e) {
+				// se l'utente che ha fatto richiesta non esiste
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.CHATROOM_LIST,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case CLOSE_CHAT: {
+			// gestisco la richiesta di chiusura di una chatroom
+			try {
+				// provo ad eliminare la chatroom
+				handler.CloseChatRoom(reqMsg.getSender(), reqMsg.getTarget());
+				// operazione eseguita con successo
+				reply = ResponseMessage.BuildAck(reqMsg.getSender(), RequestCode.CLOSE_CHAT);
+			} catch (UnknownUserException e) {
+				// se l'utente non fosse esistente o parte della
+				// chat
+				reply = ResponseMessage.BuildError(ResponseCode.NICKNAME_UNKNOWN, RequestCode.CLOSE_CHAT,
+						reqMsg.getSender());
+			} catch (NoSuchChatException e) {
+				// se la chatroom non esistesse
+				reply = ResponseMessage.BuildError(ResponseCode.CHATROOM_UNKNOWN, RequestCode.CLOSE_CHAT,
+						reqMsg.getSender());
+			} catch (NotAFieldException e) {
+				// se il campo target non fosse stato valido nella
+				// richiesta
+				reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, RequestCode.CLOSE_CHAT,
+						reqMsg.getSender());
+			}
+			break;
+		}
+		case OPEN_P2PCONN: {
+			// questa richiesta e' solo per i client, la ignoro
+			break;
+		}
+		default: {
+			// tipo di richiesta non valido
+			reply = ResponseMessage.BuildError(ResponseCode.OP_FAIL, null, reqMsg.getSender());
+		}
+		}
+		// finito lo switch sul tipo di richiesta, la risposta porta lo stesso
+		// identificativo della richiesta, cosi' che il client possa
+		// riconoscerla anche se arriva fuori ordine
+		if (reply != null)
+			reply.setRequestId(reqMsg.getRequestId());
+		return reply;
+	}
+
+}
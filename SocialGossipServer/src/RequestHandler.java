@@ -1,27 +1,25 @@
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Vector;
 
+import condivise.ConnectionCodec;
 import condivise.Message;
 import condivise.MessageHandler;
+import condivise.PresenceEvent;
 import condivise.RequestCode;
 import condivise.RequestMessage;
 import condivise.ResponseMessage;
 import condivise.TextMessage;
 import exceptions.AlreadyAFriendException;
 import exceptions.AlreadyInChatroomException;
-import exceptions.IllegalLanguageException;
 import exceptions.MalformedMessageException;
 import exceptions.NameAlreadyInUseException;
 import exceptions.NoOneOnlineException;
+import exceptions.NoPathException;
 import exceptions.NoSuchChatException;
 import exceptions.NoSuchFriendException;
 import exceptions.NotAFieldException;
@@ -40,11 +38,18 @@ import exceptions.UserNotOnlineException;
  */
 public class RequestHandler {
 
+	// numero massimo di utenti visitati nella ricerca di una catena di
+	// amicizie, oltre il quale la richiesta fallisce
+	public static final int PATH_BUDGET = 100000;
+
+	// numero massimo di utenti restituiti da una pagina di ricerca
+	public static final int SEARCH_LIMIT = 20;
+
 	// il grafo del server
 	private SocialGraph graph;
 
-	// il vettore con gli utenti online
-	private Vector<OnlineUser> online;
+	// il registro degli utenti online
+	private OnlineRegistry online;
 
 	// il vettore delle chatroom
 	private Vector<ChatRoom> chatrooms;
@@ -52,19 +57,24 @@ public class RequestHandler {
 	// per il parsing dei messaggi da inviare
 	private MessageHandler messageHandler;
 
-	// il traduttore per l'invio di messaggi
-	private Translator translator;
+	// la pipeline che traduce e recapita i messaggi fra amici di lingua
+	// diversa
+	private TranslationPipeline translations;
+
+	// i suggerimenti di amicizia, calcolati sul grafo
+	private FriendSuggestions suggestions;
 
 	// socket per l'invio dei messaggi in multicast
 	private DatagramSocket datagramSocket;
 
-	public RequestHandler(SocialGraph graph, Vector<OnlineUser> online, Vector<ChatRoom> chatrooms,
-			DatagramSocket chatroomSocket) {
+	public RequestHandler(SocialGraph graph, OnlineRegistry online, Vector<ChatRoom> chatrooms,
+			DatagramSocket chatroomSocket, TranslationPipeline translations, FriendSuggestions suggestions) {
 		// COSTRUTTORE
 		this.graph = graph;
 		this.online = online;
 		this.messageHandler = new MessageHandler();
-		this.translator = new Translator();
+		this.translations = translations;
+		this.suggestions = suggestions;
 		this.chatrooms = chatrooms;
 		this.datagramSocket = chatroomSocket;
 	}
@@ -80,11 +90,28 @@ public class RequestHandler {
 	 * @return l'OnlineUser, null se esso non esiste
 	 */
 	private OnlineUser findOnlineUserByName(String nickname) {
-		for (OnlineUser online : this.online) {
-			if (online.getUsername().equals(nickname))
-				return online;
-		}
-		return null;
+		return this.online.get(nickname);
+	}
+
+	/**
+	 * Funzione di utilita' privata, accoda un messaggio nella coda in uscita
+	 * sul canale dei messaggi di un utente online
+	 * 
+	 * @param receiver
+	 *            l'utente online destinatario
+	 * @param m
+	 *            il messaggio da inviare
+	 * @return true se il messaggio e' stato accodato, false se la coda del
+	 *         receiver e' piena o chiusa
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti
+	 */
+	private boolean sendToMessageSocket(OnlineUser receiver, Message m) throws MalformedMessageException {
+		MessageChannel channel = receiver.getMessageChannel();
+		if (channel == null)
+			return false;
+		return channel.getWriter()
+				.send(this.messageHandler.Message2Bytes(m, channel.getProtocol(), channel.getChannel()));
 	}
 
 	/**
@@ -136,7 +163,7 @@ public class RequestHandler {
 		// se sono qua l'eccezione non e' stata lanciata, quindi la
 		// registrazione e' avvenuta con successo.
 		// non devo notificare gli amici perche' ancora non ne ha
-		this.online.add(onUser);
+		this.online.put(onUser);
 	}
 
 	/**
@@ -163,15 +190,9 @@ public class RequestHandler {
 		// inserisco un nuovo utente online.
 		// la notifica a tutti i suoi amici pero' la voglio fare solo se
 		// l'utente non era online prima
-		boolean toNotify = true;
-		OnlineUser prev;
-		if ((prev = this.findOnlineUserByName(nickname)) != null) {
-			// l'utente era gia' online
-			toNotify = false;
-			this.online.remove(prev);
-		}
-		// aggiungo l'utente a quelli online
-		this.online.add(user);
+		// l'inserimento nel registro sostituisce l'eventuale utente online
+		// precedente con lo stesso nome e me lo restituisce
+		boolean toNotify = (this.online.put(user) == null);
 
 		// adesso forse devo notificare ogni amico dell'utente
 		if (toNotify) {
@@ -179,14 +200,8 @@ public class RequestHandler {
 			for (String friend : friends) {
 				// guardo quali suoi amici sono online
 				OnlineUser online = this.findOnlineUserByName(friend);
-				if (online != null) {
-					// era online
-					try {
-						online.getStub().NotifyOnlineFriend(nickname);
-					} catch (RemoteException e) {
-						// ignora
-					}
-				}
+				if (online != null) // era online, la notifica e' asincrona
+					this.online.notify(online, new PresenceEvent(PresenceEvent.ONLINE, nickname));
 			}
 		}
 	}
@@ -242,13 +257,9 @@ public class RequestHandler {
 		// devo notificare il secondo utente
 		OnlineUser online = this.findOnlineUserByName(nick2);
 		if (online != null) {
-			// lo voglio notificare del suo nuovo amico online
-			try {
-				online.getStub().NotifyOnlineFriend(nick1);
-			} catch (RemoteException e) {
-				// ignoro, non informo l'utente nick2 della ricezione di una
-				// nuova amicizia
-			}
+			// lo voglio notificare del suo nuovo amico online, se il suo stub
+			// non risponde la notifica viene persa
+			this.online.notify(online, new PresenceEvent(PresenceEvent.NEW_FRIEND, nick1));
 			return true;
 		}
 		return false;
@@ -272,13 +283,97 @@ public class RequestHandler {
 		return this.graph.getFriends(nickname);
 	}
 
+	/**
+	 * Restituisce gli utenti suggeriti come amici ad un utente, cioe' gli
+	 * amici dei suoi amici con piu' amici in comune (vedi FriendSuggestions)
+	 * 
+	 * @param nickname
+	 *            l'utente che richiede i suggerimenti
+	 * @return gli utenti suggeriti, dal piu' consigliato
+	 * @throws UnknownUserException
+	 *             se l'utente non esiste
+	 */
+	public String[] SuggestFriends(String nickname) throws UnknownUserException {
+		if (nickname == null)
+			throw new NullPointerException();
+
+		return this.suggestions.suggest(nickname);
+	}
+
+	/**
+	 * Restituisce gli amici in comune fra due utenti
+	 * 
+	 * @param nickname
+	 *            l'utente che fa richiesta
+	 * @param target
+	 *            l'altro utente
+	 * @return gli amici in comune
+	 * @throws UnknownUserException
+	 *             se uno dei due utenti non esiste
+	 */
+	public String[] MutualFriends(String nickname, String target) throws UnknownUserException {
+		if (nickname == null || target == null)
+			throw new NullPointerException();
+
+		return this.graph.getMutualFriends(nickname, target);
+	}
+
+	/**
+	 * Restituisce la catena di amicizie piu' corta fra due utenti, visitando
+	 * al massimo PATH_BUDGET utenti
+	 * 
+	 * @param nickname
+	 *            l'utente che fa richiesta, da cui parte la catena
+	 * @param target
+	 *            l'utente in cui termina la catena
+	 * @return gli utenti della catena, estremi compresi
+	 * @throws UnknownUserException
+	 *             se uno dei due utenti non esiste
+	 * @throws NoPathException
+	 *             se la catena non esiste o non e' stata trovata
+	 */
+	public String[] FriendshipPath(String nickname, String target) throws UnknownUserException, NoPathException {
+		if (nickname == null || target == null)
+			throw new NullPointerException();
+
+		return this.graph.getPath(nickname, target, PATH_BUDGET);
+	}
+
+	/**
+	 * Cerca gli utenti il cui nickname inizia con un prefisso, una pagina di
+	 * al massimo SEARCH_LIMIT utenti alla volta, ognuno con il suo stato
+	 * 
+	 * @param nickname
+	 *            l'utente che fa richiesta
+	 * @param prefix
+	 *            l'inizio dei nickname cercati
+	 * @param after
+	 *            l'ultimo nickname della pagina precedente, null per la
+	 *            prima pagina
+	 * @return l'ack da inviare, con i nickname trovati in ordine
+	 */
+	public ResponseMessage SearchUsers(String nickname, String prefix, String after) {
+		if (nickname == null || prefix == null)
+			throw new NullPointerException();
+
+		String[] found = this.graph.search(prefix, after, SEARCH_LIMIT);
+		boolean[] online = new boolean[found.length];
+		for (int i = 0; i < found.length; i++)
+			online[i] = this.findOnlineUserByName(found[i]) != null;
+		return ResponseMessage.BuildSearchAck(nickname, found, online);
+	}
+
 	/* FINE SOCIAL OPS, INIZIO CHAT OPS */
 
 	/**
 	 * Gestisce l'invio di un messaggio richiesto. Controlla che sia l'utente
 	 * mittente che quello destinatario esistano, oltre a controllare che il
-	 * receiver siano online. Se l'esecuzione dell'invio va a buon fine non
-	 * viene lanciata alcuna eccezione
+	 * receiver siano online. Se il messaggio viene accodato nella coda in
+	 * uscita del receiver non viene lanciata alcuna eccezione, la scrittura
+	 * sul socket avviene in modo asincrono (vedi MessageWriter). Se mittente e
+	 * destinatario hanno lingue diverse il messaggio viene invece accodato
+	 * nella TranslationPipeline, che lo tradurra' e lo recapitera' senza
+	 * occupare il thread che serve la richiesta
 	 * 
 	 * @param message
 	 *            il TextMessage che vuol essere inviato
@@ -287,7 +382,8 @@ public class RequestHandler {
 	 * @throws NoSuchFriendException
 	 *             se mittente e destinatario non sono amici
 	 * @throws UserNotOnlineException
-	 *             se destinatario non e' online
+	 *             se destinatario non e' online o la sua coda in uscita (o
+	 *             quella dei messaggi da tradurre) e' piena
 	 * @throws MalformedMessageException
 	 *             se il textMessage e' scritto male
 	 */
@@ -315,18 +411,20 @@ public class RequestHandler {
 		// sia online e che i parametri non siano null, adesso posso provare ad
 		// inviare il messaggio al receiver
 
-		// prima pero' devo tradurre il messaggio
-		try {
-			message.setMessage(translator.Translate(message.getMessage(), mittLanguage, destLanguage));
-		} catch (IllegalLanguageException e1) {
-			// ignoro e invio il messaggio non tradotto
+		// se le lingue sono diverse il messaggio va prima tradotto: lo affido
+		// alla pipeline delle traduzioni e rispondo subito al mittente
+		if (!mittLanguage.equals(destLanguage)) {
+			if (!this.translations.submit(message, mittLanguage, destLanguage, receiver))
+				// troppi messaggi in attesa di traduzione
+				throw new UserNotOnlineException();
+			return;
 		}
-		try {
-			this.messageHandler.sendMessage(receiver.getMessageSocket(), message);
-		} catch (IOException e) {
-			// problema nell'invio all'utente receiver, lancio UserNotOnline,
-			// mentre la disconnessione vera e propria del receiver sara'
-			// compito del worker
+		// accodo il messaggio nella coda in uscita del receiver, la scrittura
+		// sul socket avverra' in modo asincrono
+		if (!this.sendToMessageSocket(receiver, message)) {
+			// coda piena o errore nell'invio all'utente receiver, lancio
+			// UserNotOnline, mentre la disconnessione vera e propria del
+			// receiver sara' compito del worker
 			throw new UserNotOnlineException();
 		}
 	}
@@ -373,37 +471,24 @@ public class RequestHandler {
 
 		RequestMessage req = RequestMessage.BuildOpenConnection(sender, friend);
 		try {
-			// per la size
-			long messageSize;
-			// prendo il socket del receiver, e gli invio il messaggio di
-			// richiesta di tipo OpenP2PConnection
-			Socket clientSocket = receiver.getMessageSocket();
-			// server aspettera' risposta per massimo 3 secondi
-			clientSocket.setSoTimeout(3000);
-			this.messageHandler.sendMessage(clientSocket, req);
-			// inviato la richiesta con successo, aspetto la risposta del client
-			InputStreamReader in = new InputStreamReader(clientSocket.getInputStream());
-			BufferedReader bufferin = new BufferedReader(in);
-
-			// leggo per prima cosa la size del messaggio
-			String size = bufferin.readLine();
-			if (size == null) {
-				// socket disconnesso, la disconnessione vera e propria sara'
+			// le letture dal socket dei messaggi del receiver passano per il
+			// suo codec, una richiesta alla volta
+			ConnectionCodec codec = receiver.getMessageCodec();
+			Message message;
+			synchronized (codec) {
+				// server aspettera' risposta per massimo 3 secondi
+				codec.setTimeouts(3000, 3000);
+				// la richiesta passa per la coda in uscita, cosi' da non
+				// mescolarsi con i messaggi inviati al receiver da altri
+				// thread
+				if (!this.sendToMessageSocket(receiver, req))
+					throw new UserNotOnlineException();
+				// inviato la richiesta con successo, aspetto la risposta del
+				// client, nel formato negoziato con il client stesso; se il
+				// socket viene chiuso la disconnessione vera e propria sara'
 				// compito del worker
-				throw new UserNotOnlineException();
+				message = codec.readMessage();
 			}
-
-			// parso la size
-			messageSize = Long.parseLong(size);
-
-			// ottengo il messaggio vero e proprio
-			String strMessage = bufferin.readLine();
-			if (messageSize != strMessage.length())
-				System.out.println("size del messaggio e dichiarata non corrispondono");
-			// ignoro questo errore e controllo se comunque il messaggio avesse
-			// senso
-
-			Message message = this.messageHandler.JSONString2Message(strMessage);
 			// adesso ho il messaggio, controllo che sia un ack
 			if (message.getType() == Message.RESPONSE) {
 				ResponseMessage ack = (ResponseMessage) message;
@@ -425,9 +510,12 @@ public class RequestHandler {
 	}
 
 	/**
-	 * Metodo che gestisce l'invio di un messaggio sul gruppo multicast relavito
+	 * Metodo che gestisce l'invio di un messaggio sui gruppi multicast relativi
 	 * alla chatroom richiesta. Tale invio non viene eseguito se l'unico utente
-	 * online appartenente alla chat e' il sender stesso
+	 * online appartenente alla chat e' il sender stesso. Il messaggio viene
+	 * affidato alla TranslationPipeline, che lo traduce una volta per ogni
+	 * lingua degli utenti online della chatroom e lo invia al gruppo di quella
+	 * lingua
 	 * 
 	 * @param message
 	 *            il messaggio da inviare sulla chatroom
@@ -438,7 +526,7 @@ public class RequestHandler {
 	 * @throws NoOneOnlineException
 	 *             se l'unica persona online e' il mittente
 	 * @throws IOException
-	 *             in caso di errore di I/O
+	 *             se il messaggio non puo' essere accodato per l'invio
 	 * @throws MalformedMessageException
 	 *             se il messaggio di testo e' fatto male
 	 */
@@ -450,7 +538,7 @@ public class RequestHandler {
 			throw new NullPointerException();
 
 		// lancia MalformedMessage se il messaggio di testo fosse errato
-		String text = this.messageHandler.Message2JSONObject(message).toJSONString();
+		this.messageHandler.Message2JSONString(message);
 
 		// ottengo i riferimenti al nome della chat, al nome del mittente e alla
 		// chatroom
@@ -472,35 +560,31 @@ public class RequestHandler {
 		// e' il mittente
 		boolean noOneOnline = true;
 
-		// ottengo il messaggio come stringa dal TextMessage
-
-		byte[] data = text.getBytes();
-		// preparo il pacchetto da spedire
-		// indirizzo della chatroom e porta nota ChatRoom.MULTICAST_PORT
-		DatagramPacket datagram = new DatagramPacket(data, data.length, chat.getAddress(), ChatRoom.MULTICAST_PORT);
+		// i gruppi a cui inviare il messaggio, uno per lingua degli utenti
+		// online; il mittente riceve il proprio messaggio nella sua lingua
+		String mittLanguage = this.graph.getUser(sender).getLanguage();
+		HashMap<String, InetAddress> groups = new HashMap<String, InetAddress>();
+		groups.put(mittLanguage, chat.getAddress(mittLanguage));
 
-		// verifico se almeno un membro e' online
 		for (String member : party) {
-			// verifico che non sia il mittente
-			if (!member.equals(sender)) {
-				// utente trovato non e' il mittente
-				OnlineUser online = this.findOnlineUserByName(member);
-				if (online != null) {
-					// ho trovato almeno un utente diverso dal mittente online
-					noOneOnline = false;
-					// posso proseguire con l'invio
-					break;
-				}
+			// verifico che non sia il mittente e che sia online
+			if (!member.equals(sender) && this.findOnlineUserByName(member) != null) {
+				// ho trovato almeno un utente diverso dal mittente online
+				noOneOnline = false;
+				String language = this.graph.getUser(member).getLanguage();
+				if (!groups.containsKey(language))
+					groups.put(language, chat.getAddress(language));
 			}
 		}
 
 		// devo controllare se ho trovato almeno un utente online adesso
 		if (noOneOnline) // non ho trovato alcun utente online
 			throw new NoOneOnlineException();
-		// ho trovato almeno un utente online, invio il datagram
 
-		this.datagramSocket.send(datagram);
-		System.out.println("SPEDITO MESSAGGIO AL GRUPPO! "+text);
+		// ho trovato almeno un utente online, la pipeline traduce il
+		// messaggio ed invia i datagram
+		if (!this.translations.submit(message, mittLanguage, groups, this.datagramSocket))
+			throw new IOException("Troppi messaggi in attesa per la chatroom " + chatName);
 	}
 
 	/* FINE CHAT OPS, INIZIO CHATROOM OPS */
@@ -533,19 +617,30 @@ public class RequestHandler {
 		if (!this.graph.isUser(creator))
 			throw new UnknownUserException();
 
-		// vedo se esistesse gia' una chatroom con questo nome
-		ChatRoom chatRoom = this.findChatroomByName(chatName);
-		if (chatRoom != null) // chatroom gia' esistente
-			throw new NameAlreadyInUseException();
-		// chatroom non esistente, la creo
-		chatRoom = new ChatRoom(chatName, creator);
-		this.chatrooms.add(chatRoom);
-		return chatRoom.getAddress();
+		String language = this.graph.getUser(creator).getLanguage();
+		ChatRoom chatRoom;
+		long lsn;
+		// le modifiche alle chatroom, come quelle al grafo, avvengono con la
+		// lock del grafo e vengono registrate nel log delle operazioni
+		synchronized (this.graph) {
+			// vedo se esistesse gia' una chatroom con questo nome
+			chatRoom = this.findChatroomByName(chatName);
+			if (chatRoom != null) // chatroom gia' esistente
+				throw new NameAlreadyInUseException();
+			// chatroom non esistente, la creo, con il gruppo per la lingua
+			// del creatore
+			chatRoom = new ChatRoom(chatName, creator, language);
+			this.chatrooms.add(chatRoom);
+			lsn = this.record(OperationLog.NEW_CHATROOM, chatName, creator, language);
+		}
+		this.commit(lsn);
+		return chatRoom.getAddress(language);
 	}
 
 	/**
 	 * Gestisce la richiesta di tipo "Aggiungi utente a una chatroom".
-	 * Restituisce l'indirizzo multicast della chatroom a cui vuol essere unito
+	 * Restituisce l'indirizzo multicast della chatroom a cui vuol essere unito,
+	 * quello del gruppo della sua lingua
 	 * 
 	 * @param user
 	 *            il nome dell'utente che si vuole unire alla chatroom
@@ -569,18 +664,24 @@ public class RequestHandler {
 		if (!this.graph.isUser(user))
 			throw new UnknownUserException();
 
-		// controllo che una chatroom con quel nome esista e ne
-		// ottengo il riferimento
-		ChatRoom chat = this.findChatroomByName(chatroom);
-		if (chat == null)
-			throw new NoSuchChatException();
-
-		// aggiungo l'utente a tale chatroom, se tale utente vi fosse
-		// gia' presente lancia AlreadyInChatroom
-		chat.addUser(user);
+		ChatRoom chat;
+		long lsn;
+		synchronized (this.graph) {
+			// controllo che una chatroom con quel nome esista e ne
+			// ottengo il riferimento
+			chat = this.findChatroomByName(chatroom);
+			if (chat == null)
+				throw new NoSuchChatException();
+
+			// aggiungo l'utente a tale chatroom, se tale utente vi fosse
+			// gia' presente lancia AlreadyInChatroom
+			chat.addUser(user);
+			lsn = this.record(OperationLog.JOIN_CHATROOM, chatroom, user);
+		}
+		this.commit(lsn);
 
-		// restituisco l'indirizzo
-		return chat.getAddress();
+		// restituisco l'indirizzo del gruppo della lingua dell'utente
+		return chat.getAddress(this.graph.getUser(user).getLanguage());
 	}
 
 	/**
@@ -637,17 +738,43 @@ public class RequestHandler {
 		if (chatroom == null || user == null)
 			throw new NullPointerException();
 
-		// ottengo un riferimento alla chatroom
-		ChatRoom chat = this.findChatroomByName(chatroom);
-		if (chat == null) // non esiste tale chatroom
-			throw new NoSuchChatException();
+		long lsn;
+		synchronized (this.graph) {
+			// ottengo un riferimento alla chatroom
+			ChatRoom chat = this.findChatroomByName(chatroom);
+			if (chat == null) // non esiste tale chatroom
+				throw new NoSuchChatException();
+
+			// controllo che l'utente sia effettivamente nella chatroom per
+			// proseguire con l'eliminazione
+			if (chat.isInChatroom(user)) // era nella chatroom
+				this.chatrooms.remove(chat);
+			else // non era nella chatroom
+				throw new UnknownUserException();
+			lsn = this.record(OperationLog.CLOSE_CHATROOM, chatroom);
+		}
+		this.commit(lsn);
+	}
 
-		// controllo che l'utente sia effettivamente nella chatroom per
-		// proseguire con l'eliminazione
-		if (chat.isInChatroom(user)) // era nella chatroom
-			this.chatrooms.remove(chat);
-		else // non era nella chatroom
-			throw new UnknownUserException();
+	/**
+	 * Funzione di utilita' privata, registra una modifica alle chatroom nel
+	 * log delle operazioni, se presente. Chiamata con la lock del grafo
+	 * 
+	 * @return il numero dell'operazione nel log, 0 se non registrata
+	 */
+	private long record(byte op, String... fields) {
+		OperationLog log = this.graph.getLog();
+		return log == null ? 0 : log.Record(op, fields);
+	}
+
+	/**
+	 * Funzione di utilita' privata, attende che una modifica registrata sia
+	 * su disco. Chiamata senza la lock del grafo
+	 */
+	private void commit(long lsn) {
+		OperationLog log = this.graph.getLog();
+		if (log != null && lsn > 0)
+			log.Commit(lsn);
 	}
 
 }
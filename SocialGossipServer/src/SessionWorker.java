@@ -0,0 +1,157 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Vector;
+
+import condivise.ConnectionCodec;
+import condivise.Message;
+import condivise.ResponseMessage;
+import exceptions.MalformedMessageException;
+
+/**
+ * Task che serve un singolo client per tutta la durata della sua connessione,
+ * utilizzato nella modalita' "thread" del server. A differenza del Worker, che
+ * estrae i client da una coda condivisa e legge con un timeout per poterli
+ * reinserire nella coda, questo task viene eseguito da un thread dedicato al
+ * client (un virtual thread se la JVM li supporta), che puo' quindi bloccarsi
+ * sulla read del socket di controllo senza alcun timeout fino all'arrivo della
+ * richiesta successiva.
+ *
+ * Il ciclo del task e' il seguente: per prima cosa apre la connessione dei
+ * messaggi verso la porta comunicata dal client (come un WorkerTask di tipo
+ * ACCEPT), dopo di che legge una richiesta alla volta dal socket di controllo,
+ * la serve tramite il RequestDispatcher e risponde al client, fino alla
+ * chiusura della connessione. Le richieste sono lette nel formato negoziato con
+ * il client all'apertura della connessione (vedi WireProtocol), tramite il
+ * ConnectionCodec creato all'apertura della connessione stessa. Se il client ha
+ * chiesto una connessione multiplexed i messaggi viaggiano invece sulla
+ * connessione di controllo (vedi MessageChannel). Le richieste vengono servite
+ * in ordine anche quando portano un identificativo (vedi
+ * Message.getRequestId), che viene comunque copiato nelle risposte.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class SessionWorker implements Runnable {
+
+	// il socket di controllo del client servito da questo task
+	private Socket clientSocket;
+
+	// il canale dei messaggi del client, aperto dal task stesso
+	private MessageChannel messageChannel;
+
+	// il servitore delle richieste, uno per client poiche' non e' thread safe
+	private RequestDispatcher dispatcher;
+
+	// il codec del socket di controllo, creato all'apertura della connessione
+	private ConnectionCodec codec;
+
+	public SessionWorker(Socket client, OnlineRegistry list, SocialGraph g, Vector<ChatRoom> chatrooms,
+			DatagramSocket chatSock, TranslationPipeline translations,
+			FriendSuggestions suggestions) {
+		// COSTRUTTORE
+		this.clientSocket = client;
+		this.dispatcher = new RequestDispatcher(list, g, chatrooms, chatSock, translations, suggestions);
+	}
+
+	public void run() {
+		// prima di tutto apro la connessione dei messaggi
+		try {
+			if (!this.openMessageConnection()) {
+				clientSocket.close();
+				return;
+			}
+		} catch (IOException e) {
+			try {
+				clientSocket.close();
+			} catch (IOException e1) {
+			}
+			return;
+		}
+
+		// servo le richieste del client finche' non chiude la connessione
+		while (!SocialGossipServer.stop) {
+			Message msg;
+			try {
+				// la read si blocca fino all'arrivo della prossima richiesta
+				msg = codec.readRequest();
+			} catch (MalformedMessageException e) {
+				// richiesta non valida, la ignoro
+				continue;
+			} catch (EOFException e) {
+				System.out.println("un client ha chiuso");
+				break;
+			} catch (IOException e) {
+				// errore sulla connessione, la considero chiusa
+				break;
+			}
+
+			// adesso in msg ho un messaggio, che devo servire
+			ResponseMessage reply = dispatcher.serveRequest(msg, clientSocket, messageChannel);
+
+			if (reply != null) {
+				try {
+					// invio la risposta
+					codec.writeMessage(reply);
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.out.println("Errore nell'invio di un messaggio di risposta");
+				}
+			}
+		}
+
+		// socket chiuso, notifico gli amici dell'utente a cui apparteneva
+		dispatcher.disconnectClient(clientSocket);
+		// chiudo le due connessioni
+		messageChannel.close();
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Legge dal socket di controllo la porta su cui il client aspetta la
+	 * connessione dei messaggi (ed i formati che conosce), ed apre tale
+	 * connessione, o il canale dei messaggi della connessione multiplexed
+	 *
+	 * @return true se la connessione e' stata aperta, false se il client non ha
+	 *         inviato una porta valida
+	 * @throws IOException
+	 *             in caso di errore sui socket
+	 */
+	private boolean openMessageConnection() throws IOException {
+		// il codec della connessione viene creato subito, cosi' che
+		// eventuali byte della prima richiesta letti insieme alla porta
+		// restino nel suo buffer
+		codec = new ConnectionCodec(clientSocket);
+		codec.setTimeouts(1000, 1000);
+		// mi appresto a leggere la porta del client
+		String s = null;
+		try {
+			s = codec.readLine();
+		} catch (SocketTimeoutException e) {
+			// il client non mi ha inviato la porta
+			return false;
+		}
+		// parsing della porta ed eventualmente dei formati offerti
+		Handshake handshake;
+		try {
+			handshake = Handshake.Parse(s);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Errore con " + s);
+			return false;
+		}
+		// adesso ho la porta, apro una connessione per i messaggi verso
+		// quella porta (o uso quella di controllo, se multiplexed)
+		messageChannel = handshake.open(codec);
+		// comunico al client il formato scelto, se lo aspetta
+		if (handshake.getReply() != null)
+			codec.writeBytes(handshake.getReply());
+		// da adesso le read sul socket di controllo non hanno timeout
+		codec.setTimeouts(0, 0);
+		return true;
+	}
+
+}
@@ -1,11 +1,13 @@
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.SocketException;
 import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -16,6 +18,32 @@ import java.util.concurrent.TimeUnit;
  * pool. Il thread pool si occupa di aprire invece la connessione TCP dei
  * messaggi e di eseguire le richieste degli utenti.
  * 
+ * In alternativa il server puo' essere avviato in modalita' "reactor": in tal
+ * caso un unico thread Reactor gestisce con un Selector sia le nuove
+ * connessioni che tutti i canali di controllo, e passa al thread pool solo le
+ * richieste effettivamente arrivate (vedi classe Reactor). Nella modalita'
+ * "thread" infine l'Acceptor affida ogni client ad un thread dedicato (un
+ * virtual thread se la JVM li supporta) che esegue un SessionWorker per tutta
+ * la durata della connessione. La modalita' si sceglie all'avvio con il primo
+ * argomento: "pool" (default), "reactor" o "thread".
+ * 
+ * Il servizio di traduzione si sceglie con la proprieta' di sistema
+ * socialgossip.translator: "mymemory" (default) per il servizio REST di
+ * MyMemory, "dictionary" per la traduzione interna senza rete (vedi
+ * DictionaryProvider) oppure la URL di un server compatibile con MyMemory, ad
+ * esempio un TranslationStandIn per i test di carico. Le traduzioni ottenute
+ * vengono conservate su disco nella cartella indicata dalla proprieta'
+ * socialgossip.translations ("translations" di default).
+ * 
+ * Utenti, amicizie e chatroom vengono conservati su disco (vedi OperationLog)
+ * nella cartella indicata dalla proprieta' socialgossip.data ("data" di
+ * default), e ripristinati all'avvio.
+ * 
+ * Se la proprieta' socialgossip.analytics indica un numero di minuti, con tale
+ * periodo vengono calcolate le statistiche del grafo (vedi GraphAnalytics) e
+ * scritte nella cartella indicata dalla proprieta' socialgossip.reports
+ * ("reports" di default).
+ * 
  * Questa classe si occuppa dello spawn e della gestione di tutti questi thread
  * e fornisce dei parametri di setting del server stesso che possono essere
  * modificati prima dell'esecuzione (come il numero di thread nel pool, il
@@ -32,14 +60,59 @@ public class SocialGossipServer {
 	// variabile che definisce il numero di thread nel pool di worker
 	private static int nthreads = 8;
 
+	// modalita' di esecuzione del server, scelta all'avvio
+	public static final String POOL_MODE = "pool";
+	public static final String REACTOR_MODE = "reactor";
+	public static final String THREAD_MODE = "thread";
+	private static String mode = POOL_MODE;
+
+	// proprieta' di sistema che sceglie il servizio di traduzione, ed i suoi
+	// valori
+	public static final String TRANSLATOR_PROPERTY = "socialgossip.translator";
+	public static final String MYMEMORY_TRANSLATOR = "mymemory";
+	public static final String DICTIONARY_TRANSLATOR = "dictionary";
+
+	// proprieta' di sistema che sceglie la cartella della memoria delle
+	// traduzioni, ed il suo valore di default
+	public static final String TRANSLATIONS_PROPERTY = "socialgossip.translations";
+	public static final String TRANSLATIONS_DIRECTORY = "translations";
+
+	// proprieta' di sistema che sceglie la cartella dello stato del server,
+	// ed il suo valore di default
+	public static final String DATA_PROPERTY = "socialgossip.data";
+	public static final String DATA_DIRECTORY = "data";
+
+	// proprieta' di sistema che sceglie ogni quanti minuti calcolare le
+	// statistiche del grafo (0 o assente per non calcolarle), e la cartella
+	// dei report con il suo valore di default
+	public static final String ANALYTICS_PROPERTY = "socialgossip.analytics";
+	public static final String REPORTS_PROPERTY = "socialgossip.reports";
+	public static final String REPORTS_DIRECTORY = "reports";
+
 	// variabile contenente il numero di porta del server che gestisce le
 	// connessioni di tipo 'controllo'
 	public static int CONTROL_SOCKET_PORT = 1898;
 
-	// lista degli utenti attualmente online (sottoinsieme degli utenti
+	// registro degli utenti attualmente online (sottoinsieme degli utenti
 	// registrati), associa ad ogni utente il suo stub ed il suo socket,
 	// passato al momento del login
-	private static Vector<OnlineUser> onlineUsers;
+	private static OnlineRegistry onlineUsers;
+
+	// il sottosistema che recapita le notifiche RMI di presenza agli utenti
+	// online, con i propri thread
+	private static PresenceDispatcher presence;
+
+	// la pipeline che traduce e recapita i messaggi fra amici di lingua
+	// diversa, con i propri thread
+	private static TranslationPipeline translations;
+
+	// i suggerimenti di amicizia, con i propri thread per gli utenti con
+	// molti amici
+	private static FriendSuggestions suggestions;
+
+	// le statistiche periodiche del grafo, null se disattivate
+	private static GraphAnalytics analytics;
+	private static ScheduledExecutorService analyticsTimer;
 
 	// implementazione del grafo che rappresenta la rete di utenti di
 	// SocialGossip, statico poiche' verra' inizializzato una sola volta
@@ -49,6 +122,9 @@ public class SocialGossipServer {
 	// vettore delle chatroom attualmente attive nel server
 	private static Vector<ChatRoom> chatrooms;
 
+	// il log su disco delle modifiche a grafo e chatroom
+	private static OperationLog operations;
+
 	// il socket utilizzato per l'invio di datagram sui vari gruppi multicast
 	// delle chatroom
 	private static DatagramSocket chatroomSocket;
@@ -58,11 +134,73 @@ public class SocialGossipServer {
 
 		System.setProperty("preferIPv4Stack", "true");
 
-		System.out.println("Server in fase di inizializzazione");
+		// usage check
+		if (args.length > 1) {
+			System.out.println(
+					"Error USAGE: ./SocialGossipServer [" + POOL_MODE + "|" + REACTOR_MODE + "|" + THREAD_MODE + "]");
+			System.exit(1);
+		}
+		if (args.length == 1)
+			mode = args[0];
+		if (!mode.equals(POOL_MODE) && !mode.equals(REACTOR_MODE) && !mode.equals(THREAD_MODE)) {
+			System.out.println("Modalita' sconosciuta: " + mode);
+			System.exit(1);
+		}
+
+		String translator = System.getProperty(TRANSLATOR_PROPERTY, MYMEMORY_TRANSLATOR);
+		TranslationProvider provider;
+		if (translator.equals(MYMEMORY_TRANSLATOR))
+			provider = new MyMemoryProvider();
+		else if (translator.equals(DICTIONARY_TRANSLATOR))
+			provider = new DictionaryProvider();
+		else if (translator.startsWith("http://") || translator.startsWith("https://"))
+			provider = new MyMemoryProvider(translator);
+		else {
+			System.out.println("Servizio di traduzione sconosciuto: " + translator);
+			System.exit(1);
+			return;
+		}
+
+		System.out.println("Server in fase di inizializzazione (modalita' " + mode + ", traduzioni: " + provider + ")");
 		// inizializzo le strutture condivise dai thread
 		graph = new SocialGraph();
-		onlineUsers = new Vector<OnlineUser>();
+		presence = new PresenceDispatcher(nthreads);
+		onlineUsers = new OnlineRegistry(presence);
+		TranslationStore store = null;
+		try {
+			store = new TranslationStore(new File(System.getProperty(TRANSLATIONS_PROPERTY, TRANSLATIONS_DIRECTORY)));
+		} catch (IOException e) {
+			// proseguo senza, le traduzioni restano solo in memoria
+			System.out.println("Memoria delle traduzioni non disponibile: " + e.getMessage());
+		}
+		translations = new TranslationPipeline(nthreads, provider, store);
 		chatrooms = new Vector<ChatRoom>();
+		try {
+			// ripristino utenti, amicizie e chatroom dell'esecuzione
+			// precedente
+			operations = new OperationLog(new File(System.getProperty(DATA_PROPERTY, DATA_DIRECTORY)), graph,
+					chatrooms);
+		} catch (IOException e) {
+			System.out.println("Impossibile ripristinare lo stato del server: " + e.getMessage());
+			System.exit(1);
+		}
+		suggestions = new FriendSuggestions(graph);
+		long period = Long.getLong(ANALYTICS_PROPERTY, 0);
+		if (period > 0) {
+			try {
+				analytics = new GraphAnalytics(graph,
+						new File(System.getProperty(REPORTS_PROPERTY, REPORTS_DIRECTORY)));
+				analyticsTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "Analytics");
+					t.setDaemon(true);
+					return t;
+				});
+				analyticsTimer.scheduleWithFixedDelay(analytics, period, period, TimeUnit.MINUTES);
+			} catch (IOException e) {
+				// proseguo senza statistiche
+				System.out.println("Statistiche del grafo non disponibili: " + e.getMessage());
+			}
+		}
 		try {
 			chatroomSocket = new DatagramSocket();
 		} catch (SocketException e) {
@@ -76,18 +214,38 @@ public class SocialGossipServer {
 		BlockingQueue<WorkerTask> sQueue = new LinkedBlockingQueue<WorkerTask>();
 
 		// creo la thread pool, che conterra' un numero fissato di thread che
-		// condivideranno la BlockingQueue di socket
-		ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(nthreads);
+		// condivideranno la BlockingQueue di socket; in modalita' thread
+		// invece un executor che crea un thread per ogni client
+		ExecutorService pool;
+		if (mode.equals(THREAD_MODE))
+			pool = newSessionExecutor();
+		else
+			pool = Executors.newFixedThreadPool(nthreads);
 
-		// avvio il thread acceptor
-		Acceptor acceptor = new Acceptor(sQueue);
-		acceptor.start();
+		// il thread che accetta le connessioni: l'Acceptor in modalita' pool e
+		// thread, il Reactor in modalita' reactor
+		Thread acceptor;
+		if (mode.equals(THREAD_MODE)) {
+			// ogni client accettato avra' il proprio SessionWorker
+			acceptor = new Acceptor(pool, onlineUsers, graph, chatrooms, chatroomSocket, translations, suggestions);
+			acceptor.start();
+		} else if (mode.equals(REACTOR_MODE)) {
+			// il reactor passa al thread pool un task per ogni richiesta
+			// ricevuta, i thread del pool non eseguono task continuativi
+			acceptor = new Reactor(pool, onlineUsers, graph, chatrooms, chatroomSocket, translations, suggestions);
+			acceptor.start();
+		} else {
+			// avvio il thread acceptor
+			acceptor = new Acceptor(sQueue);
+			acceptor.start();
 
-		// i task sono dei task 'continuativi', vengono dunque assegnati adesso
-		// al thread pool che continuera' ad eseguirli per tutto il tempo di
-		// vita del server
-		for (int i = 0; i < nthreads; i++)
-			pool.execute(new Worker(onlineUsers, graph, sQueue, chatrooms, chatroomSocket));
+			// i task sono dei task 'continuativi', vengono dunque assegnati
+			// adesso al thread pool che continuera' ad eseguirli per tutto il
+			// tempo di vita del server
+			for (int i = 0; i < nthreads; i++)
+				pool.execute(new Worker(onlineUsers, graph, sQueue, chatrooms, chatroomSocket, translations,
+						suggestions));
+		}
 
 		System.out.println("Server avviato correttamente");
 
@@ -102,6 +260,13 @@ public class SocialGossipServer {
 		// aspetto la terminazione di tutti i task attualmente in esecuzione nel
 		// thread pool per un tempo fissato
 		pool.shutdown();
+		presence.shutdown();
+		translations.shutdown();
+		suggestions.shutdown();
+		if (analytics != null) {
+			analyticsTimer.shutdownNow();
+			analytics.shutdown();
+		}
 
 		try {
 			pool.awaitTermination(10, TimeUnit.SECONDS);
@@ -111,7 +276,8 @@ public class SocialGossipServer {
 				WorkerTask s = sQueue.poll();
 				if (s != null) {
 					s.getControlSocket().close();
-					s.getMessageSocket().close();
+					if (s.getMessageChannel() != null)
+						s.getMessageChannel().close();
 				}
 			}
 		} catch (InterruptedException e) {
@@ -120,6 +286,38 @@ public class SocialGossipServer {
 			e.printStackTrace();
 		}
 
+		// scrivo su disco le ultime modifiche allo stato
+		operations.close();
+		System.out.println(operations);
+
+		// statistiche della cache e della memoria delle traduzioni
+		System.out.println(translations.getCache());
+		if (translations.getStore() != null)
+			System.out.println(translations.getStore());
+		System.out.println(suggestions);
+	}
+
+	/**
+	 * Crea l'executor per la modalita' thread, che esegue ogni task su un
+	 * thread nuovo. Se la JVM supporta i virtual thread (Java 21 e successivi)
+	 * viene usato un virtual thread per task, cosi' da poter sostenere decine
+	 * di migliaia di client bloccati sulla read; altrimenti si ripiega su un
+	 * cached thread pool di thread tradizionali. La ricerca avviene per
+	 * reflection poiche' il progetto e' compilato per Java 8
+	 * 
+	 * @return l'executor delle sessioni
+	 */
+	private static ExecutorService newSessionExecutor() {
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			System.out.println("Sessioni eseguite su virtual thread");
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			// JVM senza virtual thread
+			System.out.println("Virtual thread non disponibili, uso thread tradizionali");
+			return Executors.newCachedThreadPool();
+		}
 	}
 
 }
@@ -1,52 +1,133 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import exceptions.AlreadyAFriendException;
 import exceptions.NameAlreadyInUseException;
+import exceptions.NoPathException;
 import exceptions.UnknownUserException;
 
 /**
  * Implementazione del grafo(Graph) definito nelle interfacce, che
  * rappresentera' l'intera rete degli utenti e le relazioni di amicizia fra
- * essi. Il cuore dell'implementazione del network sociale e' rappresentato da
- * un'hash map che conterra' tutti gli utenti registrati a Social Gossip: questa
- * struttura permette l'associazione fra l'username di un utente(identificativo
- * unico) ed il suo oggetto User(la sua rappresentazione sul server); la scelta
- * dell'hash map come struttura dati e' conseguenza della ricerca di
- * un'efficienza nelle operazioni che il server deve svolgere piu' comunemente,
- * ossia la ricerca di un utente fra tutti quelli registrati, per le piu' varie
- * ragioni, e l'aggiunta efficiente di un nuovo User. La seconda struttura dati
- * al centro dell'implementazione del network e' la rappresentazione delle
- * relazioni fra gli utenti, le amicizie: anche in questo caso si tratta di
- * un'hash map, che associa ad ogni nickname la sua lista di amici, lista
- * rappresentata come un'ulteriore hash map che lega il nome utente dell'amico
- * alla sua rappresentazione; anche in questo caso la scelta della struttura
- * dati e' stata effettuata per ragioni di efficienza nel matching utente-amici
- * dell'utente, nella ricerca veloce di un amico fra una lista di amici, e per
- * privilegiare l'efficienza anche nelle operazioni di aggiunta di una nuova
- * relazione di amicizia. Entrambe le strutture sono concurrent, poiche' abbiamo
- * previsto la possibilita' di rimuovere una relazione di amicizia cosi come di
- * effettuare la deregistrazione da Social Gossip
+ * essi. Ogni utente registrato a Social Gossip riceve un identificativo
+ * intero, assegnato in ordine a partire da 0 e mai riutilizzato: l'hash map
+ * degli identificativi permette l'associazione fra l'username di un
+ * utente(identificativo unico) ed il suo identificativo intero, ed una tabella
+ * indicizzata dall'identificativo contiene il suo oggetto User(la sua
+ * rappresentazione sul server). La seconda struttura dati al centro
+ * dell'implementazione del network e' la rappresentazione delle relazioni fra
+ * gli utenti, le amicizie: anche in questo caso si tratta di una tabella
+ * indicizzata dall'identificativo, che contiene per ogni utente l'array
+ * ordinato degli identificativi dei suoi amici. Un'amicizia occupa cosi' due
+ * interi, invece di due elementi di hash map, ed i controlli sulle amicizie
+ * sono ricerche binarie che non allocano memoria.
+ * 
+ * Gli array degli amici non vengono mai modificati: ogni modifica ne crea una
+ * copia, che prende il posto della precedente nella tabella; la ricerca di un
+ * utente e la lettura degli amici avvengono cosi' senza alcuna lock, anche
+ * mentre altri thread modificano il grafo. La copia ha pero' un costo
+ * proporzionale al numero di amici, e viene fatta con la lock del grafo: per
+ * gli utenti con almeno HUB_DEGREE amici l'array resta quindi lo stesso, e le
+ * amicizie aggiunte e rimosse dopo di esso vengono raccolte in due piccoli
+ * array ordinati (Changes), anch'essi sostituiti ad ogni modifica. Quando le
+ * modifiche raccolte superano la radice quadrata del numero di amici vengono
+ * fuse in un nuovo array: una modifica costa cosi' al piu' la radice del
+ * numero di amici, anziche' il numero di amici. Chi legge gli amici di un
+ * tale utente riceve l'unione dell'array e delle modifiche, calcolata senza
+ * lock alla prima lettura e condivisa fino alla modifica successiva.
+ * 
+ * Le modifiche al grafo avvengono sincronizzandosi sul grafo stesso, e se il
+ * grafo ha un OperationLog vengono registrate nel log mentre si detiene la
+ * lock, cosi' che il log le contenga nell'ordine in cui sono state applicate;
+ * l'attesa della scrittura su disco avviene invece dopo aver rilasciato la
+ * lock, per non bloccare le altre modifiche. Allo stesso modo, mentre si
+ * detiene la lock, vengono avvisati i GraphListener registrati di ogni
+ * amicizia aggiunta o rimossa
+ * 
+ * Se il grafo e' stato ripristinato da uno snapshot (vedi GraphSnapshot), gli
+ * utenti dello snapshot hanno come identificativo la loro posizione nello
+ * snapshot, e vengono letti direttamente dal file mappato in memoria: l'hash
+ * map degli identificativi contiene solo gli utenti registrati dopo il
+ * ripristino, gli oggetti User degli utenti dello snapshot vengono creati alla
+ * prima richiesta, ed i loro amici vengono copiati dallo snapshot nella
+ * tabella alla prima modifica. Gli utenti eliminati restano nella tabella,
+ * marcati come eliminati.
+ * 
+ * Poiche' ogni modifica sostituisce l'array degli amici (o l'unione con le
+ * modifiche), l'array letto fa da versione della lista: i nomi degli amici
+ * di un utente, restituiti da
+ * getFriends ad ogni login, disconnessione e richiesta della lista amici,
+ * vengono calcolati una volta e condivisi finche' l'array degli amici da cui
+ * sono stati calcolati e' ancora quello nella tabella.
+ * 
+ * Per la ricerca degli utenti per prefisso del nome i nomi servono in
+ * ordine: quelli dello snapshot lo sono gia', quelli registrati dopo il
+ * ripristino sono mantenuti anche in un insieme ordinato concorrente, nello
+ * stesso ordine dello snapshot (per code point). Una ricerca unisce i due
+ * elenchi ordinati, senza acquisire la lock del grafo.
  * 
  * @author Lorenzo Bellomo, Nicolo' Lucchesi
  */
 public class SocialGraph implements Graph<User> {
 
-	// rappresentazione utenti
-	private ConcurrentHashMap<String, User> Nodes;
-	// rappresentazione relazioni fra utenti
-	private ConcurrentHashMap<String, ConcurrentHashMap<String, User>> Edges;
+	// segna nella tabella degli amici un utente eliminato
+	private static final int[] DELETED = new int[0];
+	// lista di amici vuota
+	private static final int[] EMPTY = new int[0];
+	// dimensione iniziale delle tabelle
+	private static final int INITIAL_CAPACITY = 1024;
+	// numero di amici da cui le modifiche vengono raccolte in un Changes
+	// invece di copiare l'array degli amici
+	public static final int HUB_DEGREE = 1024;
+	// ordine dei nomi per code point, lo stesso dei byte UTF-8 dello snapshot
+	private static final Comparator<String> CODE_POINT_ORDER = SocialGraph::compareCodePoints;
+
+	// identificativi degli utenti registrati dopo il ripristino
+	private ConcurrentHashMap<String, Integer> Ids;
+	// nomi degli utenti registrati dopo il ripristino, in ordine
+	private ConcurrentSkipListSet<String> Names;
+	// rappresentazione utenti, per identificativo
+	private volatile AtomicReferenceArray<User> Nodes;
+	// rappresentazione relazioni fra utenti, per identificativo: gli amici in
+	// ordine, null se sono ancora quelli dello snapshot
+	private volatile AtomicReferenceArray<int[]> Edges;
+	// le modifiche non ancora fuse negli amici di Edges, per identificativo,
+	// null se non ce ne sono
+	private volatile AtomicReferenceArray<Changes> Pending;
+	// i nomi degli amici gia' calcolati, per identificativo, insieme
+	// all'array degli amici da cui sono stati calcolati
+	private volatile AtomicReferenceArray<FriendNames> Friends;
+	// numero di identificativi assegnati
+	private volatile int next;
+	// lo snapshot da cui e' stato ripristinato il grafo, null se assente
+	private volatile GraphSnapshot snapshot;
+	// numero degli utenti registrati
+	private volatile int size;
+	// il log in cui registrare le modifiche, null se non vanno registrate
+	private volatile OperationLog log;
+	// chi va avvisato delle modifiche alle amicizie
+	private CopyOnWriteArrayList<GraphListener> listeners;
 
 	/**
 	 * Creazione di un grafo inizializzando la struttura dati contenente i nodi
 	 * e gli archi.
 	 */
 	public SocialGraph() {
-		Nodes = new ConcurrentHashMap<String, User>();
-		Edges = new ConcurrentHashMap<String, ConcurrentHashMap<String, User>>();
+		Ids = new ConcurrentHashMap<String, Integer>();
+		Names = new ConcurrentSkipListSet<String>(CODE_POINT_ORDER);
+		Nodes = new AtomicReferenceArray<User>(INITIAL_CAPACITY);
+		Edges = new AtomicReferenceArray<int[]>(INITIAL_CAPACITY);
+		Pending = new AtomicReferenceArray<Changes>(INITIAL_CAPACITY);
+		Friends = new AtomicReferenceArray<FriendNames>(INITIAL_CAPACITY);
+		listeners = new CopyOnWriteArrayList<GraphListener>();
 	}
 
 	/**
@@ -59,13 +140,21 @@ public class SocialGraph implements Graph<User> {
 	public void addNode(User user) throws NullPointerException, NameAlreadyInUseException {
 		if (user == null)
 			throw new NullPointerException();
-		// Controllo che l'utente inserito non sia gia' presente
-		if (Nodes.containsKey(user.getUsername()))
-			throw new NameAlreadyInUseException("L'utente inserito e' gi presente");
-
-		Nodes.put(user.getUsername(), user);
-		Edges.put(user.getUsername(), new ConcurrentHashMap<>());
+		long lsn;
+		synchronized (this) {
+			// Controllo che l'utente inserito non sia gia' presente
+			if (this.id(user.getUsername()) >= 0)
+				throw new NameAlreadyInUseException("L'utente inserito e' gi presente");
 
+			int id = this.allocate();
+			Nodes.set(id, user);
+			Edges.set(id, EMPTY);
+			Ids.put(user.getUsername(), id);
+			Names.add(user.getUsername());
+			size++;
+			lsn = this.record(OperationLog.ADD_USER, user.getUsername(), user.getLanguage());
+		}
+		this.commit(lsn);
 	}
 
 	/**
@@ -86,20 +175,37 @@ public class SocialGraph implements Graph<User> {
 	public void addEdge(User user1, User user2) throws IllegalArgumentException, NullPointerException {
 		if (user1 == null || user2 == null)
 			throw new NullPointerException();
+		long lsn;
+		synchronized (this) {
+			lsn = this.link(user1.getUsername(), user2.getUsername());
+		}
+		this.commit(lsn);
+	}
+
+	/**
+	 * Funzione di utilita' privata, aggiunge un arco e lo registra nel log.
+	 * Chiamata con la lock del grafo
+	 * 
+	 * @return il numero dell'operazione nel log, 0 se non registrata
+	 */
+	private long link(String user1, String user2) throws IllegalArgumentException {
 		if (user1.equals(user2))
 			throw new IllegalArgumentException("I due user inseriti coincidono");
 		// controlla che i nodi inseriti siano presenti nel grafo
-		if (!Nodes.containsKey(user1.getUsername()) || !Nodes.containsKey(user2.getUsername()))
+		int id1 = this.id(user1);
+		int id2 = this.id(user2);
+		if (id1 < 0 || id2 < 0)
 			throw new IllegalArgumentException("Almeno uno dei due nodi inseriti non fa parte del grafo");
 		// controlla che l'arco non sia gia presente
-		if (Edges.get(user1.getUsername()).containsKey(user2.getUsername()))
+		if (this.linked(id1, id2))
 			throw new IllegalArgumentException("I due nodi sono gi connessi da un arco");
 
 		// essendo la relazione di amcicizia un arco non orientato, aggiungo
 		// l'user2 agli amici di user1 e viceversa
-		Edges.get(user1.getUsername()).put(user2.getUsername(), user2);
-		Edges.get(user2.getUsername()).put(user1.getUsername(), user1);
-
+		this.update(id1, id2, true);
+		this.update(id2, id1, true);
+		this.changed(id1, id2);
+		return this.record(OperationLog.ADD_FRIENDSHIP, user1, user2);
 	}
 
 	/**
@@ -114,35 +220,43 @@ public class SocialGraph implements Graph<User> {
 	public void removeNode(User user) throws IllegalArgumentException, NullPointerException, UnknownUserException {
 		if (user == null)
 			throw new NullPointerException();
+		long lsn;
+		synchronized (this) {
+			lsn = this.unlink(user.getUsername());
+		}
+		this.commit(lsn);
+	}
+
+	/**
+	 * Funzione di utilita' privata, elimina un utente e lo registra nel log.
+	 * Chiamata con la lock del grafo
+	 * 
+	 * @return il numero dell'operazione nel log, 0 se non registrata
+	 */
+	private long unlink(String nickname) throws UnknownUserException {
 		// controllo se l'utente inserito e' presente fra quelli registrati
-		if (Nodes.containsKey(user.getUsername()))
+		int id = this.id(nickname);
+		if (id < 0)
 			throw new UnknownUserException("Utente inserito non e' presente!");
 
 		// rimuovo tutte le relazioni di amicizia relative all'utente inserito,
-		// andando a modificare la struttura dati degli utenti che
-		// sono amici di 'user'
-
-		// per eliminare l'utente dalle relazioni d'amicizia dei suoi amici, ho
-		// bisogno della lista degli amici dell'utente da eliminare;
-		// la lista degli amici di 'user' e' rappresentata da un Set di nickname
-		Set<String> friends = Edges.get(user.getUsername()).keySet();
-		Iterator<String> iter = friends.iterator();
-		// adesso posso iterare sugli amici di 'user', andando ad eliminare
-		// 'user' dalla lista degli amici di ogni amico di 'user'
-		while (iter.hasNext()) {
-			// prendo l'username di un amico di 'user'
-			String friend = iter.next();
-			// prendo la lista degli amici di 'friend' e rimuovo 'user' dagli
-			// amici di 'friend'
-			Edges.get(friend).remove(user.getUsername());
+		// andando a modificare la lista degli amici degli utenti che sono
+		// amici di 'user'
+		this.materialize(id);
+		for (int friend : this.row(id)) {
+			this.update(friend, id, false);
+			this.changed(id, friend);
 		}
 
-		// rimuovo la lista degli amici dell'utente da eliminare
-		Edges.remove(user.getUsername());
-
-		// rimuovo l'utente dalla struttura dati
-		Nodes.remove(user.getUsername());
-
+		// segno l'utente come eliminato, il suo identificativo non verra'
+		// riutilizzato; l'oggetto User resta per chi sta ancora leggendo
+		// una vecchia lista di amici
+		Edges.set(id, DELETED);
+		Pending.set(id, null);
+		Ids.remove(nickname);
+		Names.remove(nickname);
+		size--;
+		return this.record(OperationLog.REMOVE_USER, nickname);
 	}
 
 	/**
@@ -166,15 +280,25 @@ public class SocialGraph implements Graph<User> {
 		if (user1.equals(user2))
 			throw new IllegalArgumentException("I due User inseriti sono uguali!");
 
-		// Cerco node1 e node2 fra i nodi contenuti nel grafo
-		// controllo che entrambi i nodi siano presenti
-		if (Nodes.get(user1.getUsername()) == null || Nodes.get(user2.getUsername()) == null)
-			throw new UnknownUserException("Almeno uno dei due nodi inseriti non fa parte del grafo!");
+		long lsn;
+		synchronized (this) {
+			// Cerco node1 e node2 fra i nodi contenuti nel grafo
+			// controllo che entrambi i nodi siano presenti
+			int id1 = this.id(user1.getUsername());
+			int id2 = this.id(user2.getUsername());
+			if (id1 < 0 || id2 < 0)
+				throw new UnknownUserException("Almeno uno dei due nodi inseriti non fa parte del grafo!");
 
-		// rimuovo la relazione di amicizia fra i due nodi, eliminando gli
-		// utenti dalla lista degli amici di entrambi
-		Edges.get(user1.getUsername()).remove(user2.getUsername());
-		Edges.get(user2.getUsername()).remove(user1.getUsername());
+			// rimuovo la relazione di amicizia fra i due nodi, eliminando gli
+			// utenti dalla lista degli amici di entrambi
+			if (this.linked(id1, id2)) {
+				this.update(id1, id2, false);
+				this.update(id2, id1, false);
+				this.changed(id1, id2);
+			}
+			lsn = this.record(OperationLog.REMOVE_FRIENDSHIP, user1.getUsername(), user2.getUsername());
+		}
+		this.commit(lsn);
 	}
 
 	/**
@@ -191,9 +315,7 @@ public class SocialGraph implements Graph<User> {
 			throw new NullPointerException();
 
 		// controllo semplicemente se l'utente richiesto e' presente
-		if (Nodes.get(nickname) == null)
-			return false;
-		return true;
+		return this.id(nickname) >= 0;
 	}
 
 	/**
@@ -209,11 +331,11 @@ public class SocialGraph implements Graph<User> {
 		if (nickname == null)
 			throw new NullPointerException();
 
-		User user;
 		// controllo semplicemente se l'utente richiesto e' presente
-		if ((user = Nodes.get(nickname)) == null)
+		int id = this.id(nickname);
+		if (id < 0)
 			throw new UnknownUserException();
-		return user;
+		return this.user(id);
 	}
 
 	/**
@@ -234,12 +356,188 @@ public class SocialGraph implements Graph<User> {
 		// controllo la validita' dei parametri
 		if (u1 == null || u2 == null)
 			throw new NullPointerException();
-		if (Nodes.get(u1) == null || Nodes.get(u2) == null)
+		int id1 = this.id(u1);
+		int id2 = this.id(u2);
+		if (id1 < 0 || id2 < 0)
 			throw new UnknownUserException();
 
-		if (Edges.get(u1).containsKey(u2) || Edges.get(u2).containsKey(u1))
-			return true;
-		return false;
+		return this.linked(id1, id2);
+	}
+
+	/**
+	 * Restituisce gli amici in comune fra due utenti, intersecando le loro
+	 * liste di amici ordinate. Non acquisisce la lock del grafo: le liste
+	 * lette sono quelle valide al momento della lettura
+	 * 
+	 * @param u1
+	 *            il primo utente
+	 * @param u2
+	 *            il secondo utente
+	 * @return gli amici in comune, in ordine di registrazione
+	 * @throws NullPointerException
+	 *             se un parametro fosse null
+	 * @throws UnknownUserException
+	 *             se un utente non esistesse
+	 */
+	public String[] getMutualFriends(String u1, String u2) throws NullPointerException, UnknownUserException {
+		int[] friends1 = this.getFriendIds(this.getId(u1));
+		int[] friends2 = this.getFriendIds(this.getId(u2));
+		int[] mutual = new int[Math.min(friends1.length, friends2.length)];
+		int n = intersect(friends1, friends2, mutual);
+
+		String[] names = new String[n];
+		for (int i = 0; i < n; i++)
+			names[i] = this.user(mutual[i]).getUsername();
+		return names;
+	}
+
+	/**
+	 * Restituisce la catena di amicizie piu' corta fra due utenti, cercata con
+	 * una visita in ampiezza che parte da entrambi gli utenti ed allarga ogni
+	 * volta il lato con meno utenti da visitare, finche' i due lati non si
+	 * incontrano. La visita si ferma dopo aver raggiunto budget utenti, cosi'
+	 * che il costo di una richiesta resti limitato anche su grafi molto
+	 * grandi. Non acquisisce la lock del grafo: ogni lista di amici letta e'
+	 * quella valida al momento della lettura
+	 * 
+	 * @param u1
+	 *            l'utente da cui parte la catena
+	 * @param u2
+	 *            l'utente in cui termina la catena
+	 * @param budget
+	 *            il numero massimo di utenti da visitare
+	 * @return gli utenti della catena, da u1 ad u2 compresi
+	 * @throws NullPointerException
+	 *             se un parametro fosse null
+	 * @throws UnknownUserException
+	 *             se un utente non esistesse
+	 * @throws NoPathException
+	 *             se gli utenti non sono collegati o la catena non viene
+	 *             trovata entro budget utenti
+	 */
+	public String[] getPath(String u1, String u2, int budget)
+			throws NullPointerException, UnknownUserException, NoPathException {
+		int id1 = this.getId(u1);
+		int id2 = this.getId(u2);
+		if (id1 == id2)
+			return new String[] { this.user(id1).getUsername() };
+
+		// per ogni utente visitato da un lato, l'utente da cui e' stato
+		// raggiunto; ogni utente e' visitato da un solo lato, chi lo
+		// raggiunge dall'altro lato ha trovato la catena
+		IntMap parents1 = new IntMap(Math.min(budget, 1024));
+		IntMap parents2 = new IntMap(Math.min(budget, 1024));
+		parents1.putIfAbsent(id1, id1);
+		parents2.putIfAbsent(id2, id2);
+		int[] frontier1 = { id1 };
+		int[] frontier2 = { id2 };
+		int n1 = 1, n2 = 1;
+
+		while (n1 > 0 && n2 > 0) {
+			boolean first = n1 <= n2;
+			int[] frontier = first ? frontier1 : frontier2;
+			int n = first ? n1 : n2;
+			IntMap mine = first ? parents1 : parents2;
+			IntMap other = first ? parents2 : parents1;
+
+			// allargo di un livello il lato piu' piccolo
+			int[] next = new int[Math.max(16, n)];
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				int node = frontier[i];
+				for (int friend : this.getFriendIds(node)) {
+					if (other.containsKey(friend)) {
+						// i due lati si incontrano in friend
+						return first ? this.path(parents1, node, friend, parents2)
+								: this.path(parents1, friend, node, parents2);
+					}
+					if (!mine.putIfAbsent(friend, node))
+						continue;
+					if (parents1.size() + parents2.size() > budget)
+						throw new NoPathException();
+					if (m == next.length)
+						next = Arrays.copyOf(next, m * 2);
+					next[m++] = friend;
+				}
+			}
+			if (first) {
+				frontier1 = next;
+				n1 = m;
+			} else {
+				frontier2 = next;
+				n2 = m;
+			}
+		}
+		throw new NoPathException();
+	}
+
+	/**
+	 * Cerca gli utenti il cui nome inizia con un prefisso, in ordine di nome
+	 * (per code point). I risultati si leggono a pagine: ogni pagina riparte
+	 * dall'ultimo nome della precedente. Non acquisisce la lock del grafo, per
+	 * cui un utente registrato o eliminato durante la ricerca puo' esserne
+	 * incluso o meno
+	 * 
+	 * @param prefix
+	 *            il prefisso dei nomi, vuoto per scorrere tutti gli utenti
+	 * @param after
+	 *            l'ultimo nome della pagina precedente, escluso dai
+	 *            risultati; null per la prima pagina
+	 * @param limit
+	 *            il numero massimo di nomi da restituire
+	 * @return i nomi trovati, al massimo limit
+	 * @throws NullPointerException
+	 *             se prefix e' null
+	 */
+	public String[] search(String prefix, String after, int limit) throws NullPointerException {
+		if (prefix == null)
+			throw new NullPointerException();
+		// riparto da after solo se segue il prefisso, altrimenti dal prefisso
+		String from = prefix;
+		boolean inclusive = true;
+		if (after != null && compareCodePoints(after, prefix) >= 0) {
+			from = after;
+			inclusive = false;
+		}
+
+		// gli utenti dello snapshot con il prefisso, da position ad end
+		GraphSnapshot snapshot = this.snapshot;
+		int position = 0, end = 0;
+		if (snapshot != null) {
+			position = snapshot.ceiling(from, inclusive);
+			end = snapshot.prefixEnd(prefix);
+		}
+		Iterator<String> added = Names.tailSet(from, inclusive).iterator();
+		String next = added.hasNext() ? added.next() : null;
+		if (next != null && !next.startsWith(prefix))
+			next = null;
+
+		// unisco i due elenchi ordinati, saltando gli utenti dello snapshot
+		// eliminati
+		String[] found = new String[limit];
+		int n = 0;
+		String name = null;
+		while (n < limit) {
+			// salto gli eliminati solo prima di leggere il nome: un utente gia'
+			// letto e non ancora restituito resta in position anche se viene
+			// eliminato nel frattempo
+			while (name == null && position < end && Edges.get(position) == DELETED)
+				position++;
+			if (position < end && name == null)
+				name = snapshot.getName(position);
+			if (name != null && (next == null || compareCodePoints(name, next) < 0)) {
+				found[n++] = name;
+				name = null;
+				position++;
+			} else if (next != null) {
+				found[n++] = next;
+				next = added.hasNext() ? added.next() : null;
+				if (next != null && !next.startsWith(prefix))
+					next = null;
+			} else
+				break;
+		}
+		return n == limit ? found : Arrays.copyOf(found, n);
 	}
 
 	/**
@@ -249,7 +547,7 @@ public class SocialGraph implements Graph<User> {
 	 * @return numero degli utenti registrati
 	 */
 	public int numberOfNodes() {
-		return Nodes.size();
+		return size;
 	}
 
 	/**
@@ -264,17 +562,13 @@ public class SocialGraph implements Graph<User> {
 	public List<String> getEdges(User user) throws NullPointerException, UnknownUserException {
 		if (user == null)
 			throw new NullPointerException();
-		if (!Nodes.containsKey(user.getUsername()))
-			throw new UnknownUserException();
-		// ottengo la lista degli username degli amici di 'user', rappresentata
-		// da un Set di String
-		// converto il set in una lista
-		List<String> list = new ArrayList<String>(Edges.get(user.getUsername()).keySet());
-		return list;
+		return Collections.unmodifiableList(Arrays.asList(this.getFriends(user.getUsername())));
 	}
 
 	/**
-	 * Restituisce l'array di nickname amici di quello passato come parametro
+	 * Restituisce l'array di nickname amici di quello passato come parametro.
+	 * L'array e' condiviso fra tutte le richieste finche' gli amici
+	 * dell'utente non cambiano, e non va modificato
 	 * 
 	 * @param nickname
 	 *            il nick dell'utente di cui voglio scoprire gli amici
@@ -288,17 +582,34 @@ public class SocialGraph implements Graph<User> {
 
 		if (nickname == null)
 			throw new NullPointerException();
-		User u = this.Nodes.get(nickname);
-		if (u == null)
+		int id = this.id(nickname);
+		if (id < 0)
 			throw new UnknownUserException();
-		return this.getEdges(u).toArray(new String[0]);
+
+		// i nomi gia' calcolati valgono se gli amici sono ancora quelli
+		int[] friends = this.row(id);
+		FriendNames cached = Friends.get(id);
+		if (cached != null && cached.friends == friends)
+			return cached.names;
+		String[] names = this.names(id, friends);
+		Friends.set(id, new FriendNames(friends, names));
+		return names;
 	}
 
 	/**
 	 * Ritorna la rappresentazione del grafo
 	 */
 	public String toString() {
-		return Edges.toString();
+		List<String> users = new ArrayList<String>();
+		List<String[]> friends = new ArrayList<String[]>();
+		this.export(users, new ArrayList<String>(), friends);
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < users.size(); i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(users.get(i)).append('=').append(Arrays.toString(friends.get(i)));
+		}
+		return sb.append('}').toString();
 	}
 
 	/**
@@ -319,16 +630,584 @@ public class SocialGraph implements Graph<User> {
 			throws NullPointerException, UnknownUserException, AlreadyAFriendException {
 		if (user1 == null || user2 == null)
 			throw new NullPointerException();
-		User u1 = Nodes.get(user1);
-		User u2 = Nodes.get(user2);
-		if (u1 == null || u2 == null)
+		if (this.id(user1) < 0 || this.id(user2) < 0)
 			throw new UnknownUserException();
 		if (user1.equals(user2))
 			throw new AlreadyAFriendException();
-		if (!this.areFriends(user1, user2))
-			this.addEdge(u1, u2);
-		else
-			throw new AlreadyAFriendException();
+		long lsn;
+		synchronized (this) {
+			if (this.areFriends(user1, user2))
+				throw new AlreadyAFriendException();
+			lsn = this.link(user1, user2);
+		}
+		this.commit(lsn);
+	}
+
+	/**
+	 * Copia lo stato del grafo nelle liste indicate, per scriverne uno
+	 * snapshot: per ogni utente registrato il nome, il codice della lingua e
+	 * gli amici, nello stesso ordine
+	 * 
+	 * @param users
+	 *            la lista in cui aggiungere i nomi degli utenti
+	 * @param languages
+	 *            la lista in cui aggiungere le loro lingue
+	 * @param friends
+	 *            la lista in cui aggiungere i loro amici
+	 */
+	public synchronized void export(List<String> users, List<String> languages, List<String[]> friends) {
+		for (int id = 0; id < next; id++) {
+			if (Edges.get(id) == DELETED)
+				continue;
+			User user = this.user(id);
+			users.add(user.getUsername());
+			languages.add(user.getLanguage());
+			friends.add(this.names(id, this.row(id)));
+		}
+	}
+
+	/**
+	 * Imposta lo snapshot da cui leggere utenti ed amicizie, da chiamare sul
+	 * grafo vuoto prima che venga usato dagli altri thread
+	 * 
+	 * @param snapshot
+	 *            lo snapshot del grafo
+	 * @throws IllegalStateException
+	 *             se il grafo non e' vuoto
+	 */
+	public synchronized void setSnapshot(GraphSnapshot snapshot) {
+		if (snapshot == null)
+			throw new NullPointerException();
+		if (this.snapshot != null || next != 0)
+			throw new IllegalStateException();
+		// gli utenti dello snapshot occupano i primi identificativi
+		int capacity = Math.max(INITIAL_CAPACITY, snapshot.size() + snapshot.size() / 4);
+		Nodes = new AtomicReferenceArray<User>(capacity);
+		Edges = new AtomicReferenceArray<int[]>(capacity);
+		Pending = new AtomicReferenceArray<Changes>(capacity);
+		Friends = new AtomicReferenceArray<FriendNames>(capacity);
+		this.snapshot = snapshot;
+		next = snapshot.size();
+		size = snapshot.size();
+	}
+
+	/**
+	 * Imposta il log in cui registrare le modifiche al grafo, da chiamare
+	 * prima che il grafo venga usato dagli altri thread
+	 * 
+	 * @param log
+	 *            il log delle operazioni
+	 */
+	public void setLog(OperationLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Restituisce il log in cui vengono registrate le modifiche al grafo ed
+	 * alle chatroom
+	 * 
+	 * @return il log delle operazioni, null se le modifiche non vengono
+	 *         registrate
+	 */
+	public OperationLog getLog() {
+		return this.log;
+	}
+
+	/**
+	 * Restituisce l'identificativo intero di un utente registrato, che non
+	 * cambia finche' l'utente resta registrato
+	 * 
+	 * @param nickname
+	 *            il nome dell'utente
+	 * @return il suo identificativo
+	 * @throws NullPointerException
+	 *             se nickname e' null
+	 * @throws UnknownUserException
+	 *             se l'utente non esiste
+	 */
+	public int getId(String nickname) throws NullPointerException, UnknownUserException {
+		if (nickname == null)
+			throw new NullPointerException();
+		int id = this.id(nickname);
+		if (id < 0)
+			throw new UnknownUserException();
+		return id;
+	}
+
+	/**
+	 * Restituisce il nome dell'utente con un certo identificativo
+	 * 
+	 * @param id
+	 *            l'identificativo, restituito da getId o getFriendIds
+	 * @return il nome dell'utente
+	 */
+	public String getName(int id) {
+		return this.user(id).getUsername();
+	}
+
+	/**
+	 * Restituisce gli identificativi degli amici di un utente, in ordine
+	 * crescente. L'array restituito puo' essere quello usato dal grafo, e non
+	 * va modificato; un utente eliminato non ha amici
+	 * 
+	 * @param id
+	 *            l'identificativo dell'utente
+	 * @return gli identificativi dei suoi amici
+	 */
+	public int[] getFriendIds(int id) {
+		int[] friends = this.row(id);
+		if (friends != null)
+			return friends;
+		// amici mai modificati, li copio dallo snapshot
+		GraphSnapshot snapshot = this.snapshot;
+		friends = new int[snapshot.degree(id)];
+		for (int i = 0; i < friends.length; i++)
+			friends[i] = snapshot.friend(id, i);
+		return friends;
+	}
+
+	/**
+	 * Registra chi va avvisato delle modifiche alle amicizie
+	 * 
+	 * @param listener
+	 *            chi va avvisato
+	 */
+	public void addListener(GraphListener listener) {
+		if (listener == null)
+			throw new NullPointerException();
+		listeners.add(listener);
+	}
+
+	/**
+	 * Funzione di utilita' privata, l'identificativo di un utente registrato,
+	 * fra quelli registrati dopo il ripristino o fra quelli dello snapshot
+	 * 
+	 * @return l'identificativo, -1 se l'utente non e' registrato
+	 */
+	private int id(String nickname) {
+		Integer id = Ids.get(nickname);
+		if (id != null)
+			return id;
+		GraphSnapshot snapshot = this.snapshot;
+		if (snapshot == null)
+			return -1;
+		int position = snapshot.find(nickname);
+		return position < 0 || Edges.get(position) == DELETED ? -1 : position;
+	}
+
+	/**
+	 * Funzione di utilita' privata, l'utente con un certo identificativo; gli
+	 * utenti dello snapshot vengono creati alla prima richiesta
+	 */
+	private User user(int id) {
+		AtomicReferenceArray<User> nodes = Nodes;
+		User user = nodes.get(id);
+		if (user == null) {
+			GraphSnapshot snapshot = this.snapshot;
+			user = User.BuildFromCode(snapshot.getName(id), snapshot.getLanguage(id));
+			if (!nodes.compareAndSet(id, null, user))
+				user = nodes.get(id);
+		}
+		return user;
+	}
+
+	/**
+	 * Funzione di utilita' privata, i nomi degli amici di un utente, dato il
+	 * suo array di amici letto dalla tabella
+	 */
+	private String[] names(int id, int[] friends) {
+		if (friends == null) {
+			// amici mai modificati, li leggo dallo snapshot
+			GraphSnapshot snapshot = this.snapshot;
+			String[] names = new String[snapshot.degree(id)];
+			for (int i = 0; i < names.length; i++)
+				names[i] = this.user(snapshot.friend(id, i)).getUsername();
+			return names;
+		}
+		String[] names = new String[friends.length];
+		for (int i = 0; i < friends.length; i++)
+			names[i] = this.user(friends[i]).getUsername();
+		return names;
+	}
+
+	/**
+	 * Funzione di utilita' privata, verifica se due utenti registrati sono
+	 * amici, con una ricerca binaria fra gli amici del primo
+	 */
+	private boolean linked(int id1, int id2) {
+		Changes changes = Pending.get(id1);
+		int[] friends = Edges.get(id1);
+		if (changes != null && changes.base == friends)
+			return changes.contains(id2);
+		if (friends == null)
+			return this.snapshot.areFriends(id1, id2);
+		return Arrays.binarySearch(friends, id2) >= 0;
+	}
+
+	/**
+	 * Funzione di utilita' privata, l'array degli amici di un utente nella
+	 * tabella (senza le modifiche non ancora fuse), copiato dallo snapshot se
+	 * non ancora presente. Chiamata con la lock del grafo
+	 */
+	private int[] materialize(int id) {
+		int[] friends = Edges.get(id);
+		if (friends == null) {
+			friends = this.getFriendIds(id);
+			Edges.set(id, friends);
+		}
+		return friends;
+	}
+
+	/**
+	 * Funzione di utilita' privata, gli amici di un utente in ordine, uniti
+	 * alle modifiche non ancora fuse; null se sono ancora quelli dello
+	 * snapshot. Le modifiche vanno lette prima dell'array: chi le fonde
+	 * sostituisce prima l'array e poi le toglie, per cui delle modifiche
+	 * relative ad un array diverso da quello letto sono gia' state fuse
+	 */
+	private int[] row(int id) {
+		Changes changes = Pending.get(id);
+		int[] friends = Edges.get(id);
+		if (changes != null && changes.base == friends)
+			return changes.merged();
+		return friends;
+	}
+
+	/**
+	 * Funzione di utilita' privata, aggiunge o rimuove un amico di un utente:
+	 * copia l'array degli amici se sono pochi, altrimenti aggiorna le
+	 * modifiche non ancora fuse, fondendole quando superano la radice del
+	 * numero di amici. Chiamata con la lock del grafo
+	 */
+	private void update(int id, int friend, boolean add) {
+		int[] base = this.materialize(id);
+		Changes changes = Pending.get(id);
+		if (changes == null) {
+			if (base.length < HUB_DEGREE) {
+				Edges.set(id, add ? insert(base, friend) : delete(base, friend));
+				return;
+			}
+			changes = new Changes(base, EMPTY, EMPTY);
+		}
+
+		// added non contiene amici di base, removed solo amici di base
+		int[] added = changes.added;
+		int[] removed = changes.removed;
+		boolean inBase = Arrays.binarySearch(base, friend) >= 0;
+		if (add) {
+			if (inBase)
+				removed = delete(removed, friend);
+			else if (Arrays.binarySearch(added, friend) < 0)
+				added = insert(added, friend);
+		} else {
+			if (inBase) {
+				if (Arrays.binarySearch(removed, friend) < 0)
+					removed = insert(removed, friend);
+			} else
+				added = delete(added, friend);
+		}
+
+		changes = new Changes(base, added, removed);
+		if ((long) (added.length + removed.length) * (added.length + removed.length) > base.length) {
+			// troppe modifiche, le fondo in un nuovo array
+			Edges.set(id, changes.merged());
+			Pending.set(id, null);
+		} else
+			Pending.set(id, changes);
+	}
+
+	/**
+	 * Interseca due liste ordinate di identificativi. Se una lista e' molto
+	 * piu' corta dell'altra i suoi elementi vengono cercati nella piu' lunga,
+	 * restringendo ogni volta l'intervallo di ricerca, altrimenti le liste
+	 * vengono scorse insieme
+	 * 
+	 * @param friends1
+	 *            la prima lista
+	 * @param friends2
+	 *            la seconda lista
+	 * @param common
+	 *            dove scrivere gli elementi comuni, in ordine crescente, o null
+	 *            se vanno solo contati
+	 * @return il numero di elementi comuni
+	 */
+	static int intersect(int[] friends1, int[] friends2, int[] common) {
+		if (friends1.length > friends2.length) {
+			int[] tmp = friends1;
+			friends1 = friends2;
+			friends2 = tmp;
+		}
+		int n = 0;
+		if (friends1.length * 16 < friends2.length) {
+			int from = 0;
+			for (int friend : friends1) {
+				int i = Arrays.binarySearch(friends2, from, friends2.length, friend);
+				if (i >= 0) {
+					if (common != null)
+						common[n] = friend;
+					n++;
+				}
+				from = i >= 0 ? i + 1 : -i - 1;
+			}
+		} else {
+			int i = 0, j = 0;
+			while (i < friends1.length && j < friends2.length) {
+				if (friends1[i] < friends2[j])
+					i++;
+				else if (friends1[i] > friends2[j])
+					j++;
+				else {
+					if (common != null)
+						common[n] = friends1[i];
+					n++;
+					i++;
+					j++;
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Restituisce una vista del grafo in questo istante, che non cambia con
+	 * le modifiche successive (vedi GraphView). Le liste di amici non vengono
+	 * mai modificate ma sostituite, per cui la vista ne copia solo i
+	 * riferimenti: la lock del grafo viene detenuta per un tempo proporzionale
+	 * al numero di utenti, non di amicizie
+	 * 
+	 * @return la vista del grafo
+	 */
+	public GraphView view() {
+		int[][] rows;
+		GraphSnapshot snapshot;
+		int users;
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		ArrayList<Changes> changes = new ArrayList<Changes>();
+		synchronized (this) {
+			rows = new int[next][];
+			for (int id = 0; id < rows.length; id++) {
+				rows[id] = Edges.get(id);
+				Changes c = Pending.get(id);
+				if (c != null) {
+					ids.add(id);
+					changes.add(c);
+				}
+			}
+			snapshot = this.snapshot;
+			users = size;
+		}
+		// le modifiche non ancora fuse le unisco dopo aver rilasciato la
+		// lock, i Changes letti non cambiano
+		for (int i = 0; i < changes.size(); i++)
+			rows[ids.get(i)] = changes.get(i).merged();
+		return new GraphView(this, rows, DELETED, snapshot, users);
+	}
+
+	/**
+	 * Funzione di utilita' privata, ricostruisce la catena trovata da getPath,
+	 * in cui node1 (raggiunto dal primo lato) e node2 (raggiunto dal secondo)
+	 * sono amici
+	 */
+	private String[] path(IntMap parents1, int node1, int node2, IntMap parents2) {
+		ArrayList<String> path = new ArrayList<String>();
+		for (int node = node1;; node = parents1.get(node, node)) {
+			path.add(this.user(node).getUsername());
+			if (parents1.get(node, node) == node)
+				break;
+		}
+		Collections.reverse(path);
+		for (int node = node2;; node = parents2.get(node, node)) {
+			path.add(this.user(node).getUsername());
+			if (parents2.get(node, node) == node)
+				break;
+		}
+		return path.toArray(new String[path.size()]);
+	}
+
+	/**
+	 * Funzione di utilita' privata, avvisa i listener di un'amicizia aggiunta
+	 * o rimossa e scarta i nomi degli amici dei due utenti, che non valgono
+	 * piu'. Chiamata con la lock del grafo
+	 */
+	private void changed(int id1, int id2) {
+		Friends.set(id1, null);
+		Friends.set(id2, null);
+		for (GraphListener listener : listeners)
+			listener.friendshipChanged(id1, id2);
+	}
+
+	/**
+	 * Funzione di utilita' privata, assegna un nuovo identificativo,
+	 * ingrandendo le tabelle se piene. Chiamata con la lock del grafo
+	 */
+	private int allocate() {
+		if (next == Nodes.length()) {
+			int capacity = Nodes.length() * 2;
+			AtomicReferenceArray<User> nodes = new AtomicReferenceArray<User>(capacity);
+			AtomicReferenceArray<int[]> edges = new AtomicReferenceArray<int[]>(capacity);
+			AtomicReferenceArray<Changes> pending = new AtomicReferenceArray<Changes>(capacity);
+			AtomicReferenceArray<FriendNames> friends = new AtomicReferenceArray<FriendNames>(capacity);
+			for (int id = 0; id < next; id++) {
+				nodes.set(id, Nodes.get(id));
+				edges.set(id, Edges.get(id));
+				pending.set(id, Pending.get(id));
+				friends.set(id, Friends.get(id));
+			}
+			// pubblico prima la tabella degli utenti, cosi' chi legge un
+			// identificativo dalla nuova tabella degli amici trova anche
+			// l'utente; un utente dello snapshot creato nel frattempo da un
+			// lettore nella vecchia tabella verra' semplicemente ricreato
+			Nodes = nodes;
+			Edges = edges;
+			Pending = pending;
+			// i nomi calcolati nel frattempo nella vecchia tabella vanno
+			// persi, e verranno ricalcolati
+			Friends = friends;
+		}
+		return next++;
+	}
+
+	/**
+	 * Funzione di utilita' privata, confronta due nomi per code point, come
+	 * i byte UTF-8 dello snapshot: compareTo confronta i char, per cui i
+	 * caratteri rappresentati da due char (surrogati) finirebbero prima di
+	 * quelli da U+E000 a U+FFFF
+	 */
+	private static int compareCodePoints(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		for (int i = 0; i < n; i++) {
+			char c1 = a.charAt(i);
+			char c2 = b.charAt(i);
+			if (c1 != c2) {
+				if (c1 >= Character.MIN_SURROGATE && c2 >= Character.MIN_SURROGATE) {
+					// sposto i surrogati dopo gli altri char da U+D800 in su
+					c1 += c1 < 0xE000 ? 0x2000 : -0x800;
+					c2 += c2 < 0xE000 ? 0x2000 : -0x800;
+				}
+				return c1 - c2;
+			}
+		}
+		return a.length() - b.length();
+	}
+
+	/**
+	 * Funzione di utilita' privata, copia di un array ordinato con un
+	 * identificativo in piu'
+	 */
+	private static int[] insert(int[] friends, int id) {
+		int position = -Arrays.binarySearch(friends, id) - 1;
+		int[] copy = new int[friends.length + 1];
+		System.arraycopy(friends, 0, copy, 0, position);
+		copy[position] = id;
+		System.arraycopy(friends, position, copy, position + 1, friends.length - position);
+		return copy;
+	}
+
+	/**
+	 * Funzione di utilita' privata, copia di un array ordinato con un
+	 * identificativo in meno
+	 */
+	private static int[] delete(int[] friends, int id) {
+		int position = Arrays.binarySearch(friends, id);
+		if (position < 0)
+			return friends;
+		int[] copy = new int[friends.length - 1];
+		System.arraycopy(friends, 0, copy, 0, position);
+		System.arraycopy(friends, position + 1, copy, position, copy.length - position);
+		return copy;
+	}
+
+	/**
+	 * Funzione di utilita' privata, registra un'operazione nel log se
+	 * presente. Chiamata con la lock del grafo
+	 * 
+	 * @return il numero dell'operazione nel log, 0 se non registrata
+	 */
+	private long record(byte op, String... fields) {
+		OperationLog log = this.log;
+		return log == null ? 0 : log.Record(op, fields);
+	}
+
+	/**
+	 * Funzione di utilita' privata, attende che un'operazione registrata sia
+	 * su disco. Chiamata senza la lock del grafo
+	 */
+	private void commit(long lsn) {
+		OperationLog log = this.log;
+		if (log != null && lsn > 0)
+			log.Commit(lsn);
+	}
+
+	/**
+	 * Le amicizie aggiunte e rimosse dopo l'array degli amici base di un
+	 * utente con molti amici, in due array ordinati; gli amici dell'utente
+	 * sono quelli di base, meno removed, piu' added. Non cambia: ogni modifica
+	 * crea un nuovo Changes
+	 */
+	private static class Changes {
+
+		private final int[] base;
+		private final int[] added;
+		private final int[] removed;
+
+		// l'unione, calcolata alla prima lettura
+		private volatile int[] merged;
+
+		private Changes(int[] base, int[] added, int[] removed) {
+			// COSTRUTTORE
+			this.base = base;
+			this.added = added;
+			this.removed = removed;
+		}
+
+		/**
+		 * Verifica se un utente e' fra gli amici
+		 */
+		private boolean contains(int id) {
+			if (Arrays.binarySearch(this.added, id) >= 0)
+				return true;
+			return Arrays.binarySearch(this.base, id) >= 0 && Arrays.binarySearch(this.removed, id) < 0;
+		}
+
+		/**
+		 * Gli amici in ordine; due thread possono calcolarli insieme, ed
+		 * ottenere due array uguali
+		 */
+		private int[] merged() {
+			int[] merged = this.merged;
+			if (merged == null) {
+				merged = new int[this.base.length - this.removed.length + this.added.length];
+				int i = 0, a = 0, r = 0, n = 0;
+				while (i < this.base.length || a < this.added.length) {
+					if (a == this.added.length || (i < this.base.length && this.base[i] < this.added[a])) {
+						if (r < this.removed.length && this.removed[r] == this.base[i])
+							r++;
+						else
+							merged[n++] = this.base[i];
+						i++;
+					} else
+						merged[n++] = this.added[a++];
+				}
+				this.merged = merged;
+			}
+			return merged;
+		}
+	}
+
+	/**
+	 * I nomi degli amici di un utente, calcolati dal suo array di amici (null
+	 * se erano quelli dello snapshot)
+	 */
+	private static class FriendNames {
+
+		private final int[] friends;
+		private final String[] names;
+
+		private FriendNames(int[] friends, String[] names) {
+			// COSTRUTTORE
+			this.friends = friends;
+			this.names = names;
+		}
 	}
 
 }
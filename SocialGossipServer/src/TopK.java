@@ -0,0 +1,90 @@
+import java.util.Arrays;
+
+/**
+ * I valori piu' grandi fra quelli offerti, al massimo k, tenuti in un heap con
+ * il minimo in cima: un valore offerto entra solo se supera il minimo, per cui
+ * scegliere i migliori fra n valori costa O(n log k). Usato dalle
+ * interrogazioni sul grafo (vedi FriendSuggestions e GraphAnalytics) con
+ * valori che codificano un punteggio nella parte alta ed un identificativo
+ * di utente nella parte bassa. Non e' thread safe: il calcolo parallelo usa
+ * un TopK per parte e poi li unisce con addAll.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class TopK {
+
+	private long[] heap;
+	private int size;
+
+	/**
+	 * @param k
+	 *            il numero massimo di valori da tenere
+	 * @throws IllegalArgumentException
+	 *             se k e' negativo
+	 */
+	public TopK(int k) {
+		// COSTRUTTORE
+		if (k < 0)
+			throw new IllegalArgumentException();
+		this.heap = new long[k];
+	}
+
+	/**
+	 * Offre un valore, che viene tenuto se e' fra i k piu' grandi visti
+	 *
+	 * @param value
+	 *            il valore
+	 */
+	public void offer(long value) {
+		if (this.size < this.heap.length) {
+			// risalgo dall'ultima posizione
+			int i = this.size++;
+			while (i > 0 && this.heap[(i - 1) / 2] > value) {
+				this.heap[i] = this.heap[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			this.heap[i] = value;
+		} else if (this.size > 0 && value > this.heap[0]) {
+			// scendo dalla cima al posto del minimo
+			int i = 0;
+			while (2 * i + 1 < this.size) {
+				int child = 2 * i + 1;
+				if (child + 1 < this.size && this.heap[child + 1] < this.heap[child])
+					child++;
+				if (value <= this.heap[child])
+					break;
+				this.heap[i] = this.heap[child];
+				i = child;
+			}
+			this.heap[i] = value;
+		}
+	}
+
+	/**
+	 * Offre tutti i valori tenuti da un altro TopK
+	 *
+	 * @param other
+	 *            l'altro TopK
+	 * @return questo TopK
+	 */
+	public TopK addAll(TopK other) {
+		for (int i = 0; i < other.size; i++)
+			this.offer(other.heap[i]);
+		return this;
+	}
+
+	/**
+	 * @return i valori tenuti, dal piu' grande
+	 */
+	public long[] toArray() {
+		long[] values = Arrays.copyOf(this.heap, this.size);
+		Arrays.sort(values);
+		for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+			long tmp = values[i];
+			values[i] = values[j];
+			values[j] = tmp;
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,371 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache delle traduzioni, condivisa da tutti i thread del server, che associa
+ * ad ogni terna (testo, lingua del mittente, lingua del destinatario) il testo
+ * tradotto, cosi' che i messaggi ricorrenti (saluti, risposte brevi..) vengano
+ * tradotti dal servizio REST una sola volta.
+ *
+ * La cache ha un numero massimo di traduzioni ed e' divisa in segmenti, ognuno
+ * con la propria lock, per cui thread diversi raramente si contendono la
+ * stessa lock. Ogni segmento tiene le traduzioni in ordine di accesso e stima
+ * la frequenza con cui ogni terna viene richiesta, anche se non e' in cache,
+ * con uno sketch di contatori (count-min) che vengono dimezzati
+ * periodicamente, cosi' che le frequenze passate pesino sempre meno. Quando il
+ * segmento e' pieno una nuova traduzione prende il posto di quella usata meno
+ * di recente solo se e' stata richiesta piu' spesso: un messaggio scritto una
+ * volta sola non scaccia un saluto che viene tradotto di continuo.
+ *
+ * Opzionalmente le traduzioni scadono dopo un certo tempo dal loro
+ * inserimento, per non servire per sempre una traduzione che il servizio nel
+ * frattempo ha migliorato.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class TranslationCache {
+
+	// numero di segmenti, potenza di due
+	private static final int SEGMENTS = 16;
+
+	// i testi piu' lunghi non vengono messi in cache: difficilmente si
+	// ripetono ed occuperebbero molta memoria
+	public static final int MAX_TEXT_LENGTH = 500;
+
+	// i segmenti della cache
+	private Segment[] segments;
+
+	// durata di una traduzione in cache in millisecondi, 0 se non scade
+	private long ttl;
+
+	// statistiche della cache
+	private LongAdder hits;
+	private LongAdder misses;
+	private LongAdder evictions;
+
+	/**
+	 * Crea una cache delle traduzioni
+	 *
+	 * @param capacity
+	 *            il numero massimo di traduzioni in cache
+	 * @param ttl
+	 *            la durata di una traduzione in millisecondi, 0 se le
+	 *            traduzioni non scadono
+	 * @throws IllegalArgumentException
+	 *             se la capacita' non e' positiva o la durata e' negativa
+	 */
+	public TranslationCache(int capacity, long ttl) {
+		// COSTRUTTORE
+		if (capacity <= 0 || ttl < 0)
+			throw new IllegalArgumentException();
+		this.ttl = ttl;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.segments = new Segment[SEGMENTS];
+		// la capacita' viene divisa fra i segmenti, arrotondando per eccesso
+		int perSegment = (capacity + SEGMENTS - 1) / SEGMENTS;
+		for (int i = 0; i < SEGMENTS; i++)
+			this.segments[i] = new Segment(perSegment);
+	}
+
+	/**
+	 * Restituisce la traduzione in cache di un testo, se presente e non
+	 * scaduta. La richiesta viene comunque contata nella frequenza della terna
+	 *
+	 * @param text
+	 *            il testo da tradurre
+	 * @param from
+	 *            la lingua del testo
+	 * @param to
+	 *            la lingua in cui tradurlo
+	 * @return il testo tradotto, null se non e' in cache
+	 * @throws NullPointerException
+	 *             se un parametro e' null
+	 */
+	public String get(String text, String from, String to) {
+		Key key = new Key(text, from, to);
+		if (text.length() > MAX_TEXT_LENGTH) {
+			this.misses.increment();
+			return null;
+		}
+		String translation = this.segmentFor(key).get(key, System.currentTimeMillis());
+		if (translation == null)
+			this.misses.increment();
+		else
+			this.hits.increment();
+		return translation;
+	}
+
+	/**
+	 * Inserisce in cache la traduzione di un testo, se la politica di
+	 * rimpiazzamento lo permette (vedi descrizione della classe)
+	 *
+	 * @param text
+	 *            il testo tradotto
+	 * @param from
+	 *            la lingua del testo
+	 * @param to
+	 *            la lingua in cui e' stato tradotto
+	 * @param translation
+	 *            la traduzione
+	 * @return true se la traduzione e' stata inserita
+	 * @throws NullPointerException
+	 *             se un parametro e' null
+	 */
+	public boolean put(String text, String from, String to, String translation) {
+		if (translation == null)
+			throw new NullPointerException();
+		Key key = new Key(text, from, to);
+		if (text.length() > MAX_TEXT_LENGTH)
+			return false;
+		return this.segmentFor(key).put(key, translation, System.currentTimeMillis());
+	}
+
+	/**
+	 * Restituisce il numero di traduzioni in cache, scadute comprese
+	 *
+	 * @return il numero di traduzioni
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment s : this.segments)
+			size += s.size();
+		return size;
+	}
+
+	/**
+	 * Restituisce il numero di richieste servite dalla cache
+	 *
+	 * @return il numero di hit
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Restituisce il numero di richieste non servite dalla cache
+	 *
+	 * @return il numero di miss
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * Restituisce il numero di traduzioni tolte dalla cache per fare posto ad
+	 * altre
+	 *
+	 * @return il numero di rimpiazzamenti
+	 */
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		long h = this.getHits();
+		long m = this.getMisses();
+		long rate = h + m == 0 ? 0 : h * 100 / (h + m);
+		return "traduzioni in cache " + this.size() + ", hit " + h + ", miss " + m + " (" + rate + "% hit), rimpiazzate "
+				+ this.getEvictions();
+	}
+
+	/**
+	 * Funzione di utilita' privata, il segmento a cui appartiene una terna
+	 */
+	private Segment segmentFor(Key key) {
+		return this.segments[key.hash & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * La terna (testo, lingua del mittente, lingua del destinatario) che
+	 * identifica una traduzione
+	 */
+	private static class Key {
+
+		final String text;
+		final String from;
+		final String to;
+		final int hash;
+
+		Key(String text, String from, String to) {
+			// COSTRUTTORE
+			if (text == null || from == null || to == null)
+				throw new NullPointerException();
+			this.text = text;
+			this.from = from;
+			this.to = to;
+			int h = (text.hashCode() * 31 + from.hashCode()) * 31 + to.hashCode();
+			// mescolo i bit, i bit bassi scelgono il segmento
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return this.hash == k.hash && this.text.equals(k.text) && this.from.equals(k.from) && this.to.equals(k.to);
+		}
+	}
+
+	/**
+	 * Una traduzione in cache, con il momento del suo inserimento
+	 */
+	private static class Entry {
+
+		final String translation;
+		final long created;
+
+		Entry(String translation, long created) {
+			// COSTRUTTORE
+			this.translation = translation;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Un segmento della cache: le traduzioni in ordine di accesso (la prima e'
+	 * quella usata meno di recente) e lo sketch delle frequenze, protetti
+	 * dalla lock del segmento
+	 */
+	private class Segment {
+
+		// numero di righe dello sketch, ogni terna ha un contatore per riga
+		private static final int ROWS = 4;
+
+		// valore massimo di un contatore
+		private static final int MAX_COUNT = 15;
+
+		// le traduzioni, in ordine di accesso
+		private LinkedHashMap<Key, Entry> map;
+
+		// numero massimo di traduzioni del segmento
+		private int capacity;
+
+		// i contatori dello sketch, ROWS righe di width contatori
+		private byte[] counters;
+
+		// numero di contatori per riga, potenza di due
+		private int width;
+
+		// incrementi dall'ultimo dimezzamento dei contatori
+		private int additions;
+
+		// dopo quanti incrementi dimezzare i contatori
+		private int resetAfter;
+
+		Segment(int capacity) {
+			// COSTRUTTORE
+			this.capacity = capacity;
+			this.map = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+			this.width = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+			this.counters = new byte[ROWS * this.width];
+			this.resetAfter = 10 * Math.max(16, capacity);
+		}
+
+		synchronized String get(Key key, long now) {
+			this.increment(key);
+			Entry e = this.map.get(key);
+			if (e == null)
+				return null;
+			if (this.expired(e, now)) {
+				this.map.remove(key);
+				return null;
+			}
+			return e.translation;
+		}
+
+		synchronized boolean put(Key key, String translation, long now) {
+			if (this.map.containsKey(key) || this.map.size() < this.capacity) {
+				this.map.put(key, new Entry(translation, now));
+				return true;
+			}
+			// segmento pieno: prima faccio spazio togliendo le traduzioni
+			// scadute fra quelle usate meno di recente
+			if (ttl > 0) {
+				boolean removed = false;
+				Iterator<Entry> iter = this.map.values().iterator();
+				while (iter.hasNext() && this.expired(iter.next(), now)) {
+					iter.remove();
+					removed = true;
+				}
+				if (removed) {
+					this.map.put(key, new Entry(translation, now));
+					return true;
+				}
+			}
+			// poi confronto la nuova traduzione con quella usata meno di
+			// recente, che resta se e' richiesta almeno altrettanto spesso
+			Iterator<Map.Entry<Key, Entry>> iter = this.map.entrySet().iterator();
+			Map.Entry<Key, Entry> victim = iter.next();
+			if (this.frequency(key) <= this.frequency(victim.getKey()))
+				return false;
+			iter.remove();
+			evictions.increment();
+			this.map.put(key, new Entry(translation, now));
+			return true;
+		}
+
+		synchronized int size() {
+			return this.map.size();
+		}
+
+		/**
+		 * Funzione di utilita' privata, true se la traduzione e' scaduta
+		 */
+		private boolean expired(Entry e, long now) {
+			return ttl > 0 && now - e.created >= ttl;
+		}
+
+		/**
+		 * Funzione di utilita' privata, l'indice del contatore di una terna
+		 * nella riga indicata
+		 */
+		private int index(Key key, int row) {
+			int h = key.hash * (0x9E3779B9 + 2 * row) + row;
+			h ^= h >>> 15;
+			return row * this.width + (h & (this.width - 1));
+		}
+
+		/**
+		 * Funzione di utilita' privata, conta una richiesta della terna nello
+		 * sketch, dimezzando tutti i contatori ogni resetAfter richieste
+		 */
+		private void increment(Key key) {
+			for (int row = 0; row < ROWS; row++) {
+				int i = this.index(key, row);
+				if (this.counters[i] < MAX_COUNT)
+					this.counters[i]++;
+			}
+			if (++this.additions >= this.resetAfter) {
+				this.additions /= 2;
+				for (int i = 0; i < this.counters.length; i++)
+					this.counters[i] >>= 1;
+			}
+		}
+
+		/**
+		 * Funzione di utilita' privata, la frequenza stimata di una terna: il
+		 * minimo dei suoi contatori
+		 */
+		private int frequency(Key key) {
+			int min = MAX_COUNT;
+			for (int row = 0; row < ROWS; row++)
+				min = Math.min(min, this.counters[this.index(key, row)]);
+			return min;
+		}
+	}
+
+}
@@ -0,0 +1,379 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import condivise.MessageHandler;
+import condivise.TextMessage;
+import exceptions.IllegalLanguageException;
+import exceptions.MalformedMessageException;
+
+/**
+ * Sottosistema che traduce i messaggi fra amici di lingua diversa e li
+ * recapita al destinatario. I thread che servono le richieste si limitano ad
+ * accodare il messaggio e rispondono subito al mittente; la traduzione, che
+ * richiede una o piu' richieste al servizio REST (vedi Translator), viene
+ * eseguita da un executor dedicato con un numero limitato di thread, per cui un
+ * servizio di traduzione lento non occupa piu' i thread che servono le
+ * richieste di tutti gli altri utenti.
+ *
+ * I messaggi di ogni conversazione (mittente, destinatario) hanno la propria
+ * coda, servita da al piu' un task alla volta, per cui arrivano al
+ * destinatario nell'ordine in cui sono stati inviati, mentre conversazioni
+ * diverse vengono tradotte in parallelo. Un task traduce al piu' BATCH messaggi
+ * prima di lasciare il posto alle altre conversazioni. Tradotto il messaggio,
+ * questo viene accodato fra i messaggi in uscita del destinatario (vedi
+ * MessageWriter); se nel frattempo il destinatario e' andato offline il
+ * messaggio viene scartato.
+ *
+ * Allo stesso modo vengono recapitati i messaggi delle chatroom, con una coda
+ * per chatroom: ogni messaggio viene tradotto una sola volta per ogni lingua
+ * dei membri online, con le traduzioni nelle varie lingue eseguite in
+ * parallelo, ed inviato al gruppo multicast di quella lingua (vedi ChatRoom).
+ *
+ * Le traduzioni vengono conservate in una TranslationCache, per cui i messaggi
+ * ricorrenti vengono tradotti senza interrogare il servizio. Il servizio
+ * stesso e' il TranslationProvider indicato alla creazione, e le traduzioni
+ * ottenute vengono conservate anche nel TranslationStore su disco, se
+ * indicato.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class TranslationPipeline {
+
+	// numero massimo di messaggi in attesa di traduzione per conversazione
+	public static final int MAX_PENDING = 256;
+
+	// messaggi tradotti da un task prima di lasciare il posto alle altre
+	// conversazioni
+	public static final int BATCH = 16;
+
+	// numero massimo di traduzioni conservate e loro durata in millisecondi
+	public static final int CACHE_SIZE = 4096;
+	public static final long CACHE_TTL = 24 * 60 * 60 * 1000L;
+
+	// l'executor che traduce e recapita i messaggi
+	private ExecutorService executor;
+
+	// le code delle conversazioni con messaggi in attesa
+	private ConcurrentHashMap<String, Conversation> conversations;
+
+	// la cache delle traduzioni
+	private TranslationCache cache;
+
+	// la memoria delle traduzioni su disco, null se non usata
+	private TranslationStore store;
+
+	// il traduttore, condiviso da tutti i thread dell'executor
+	private Translator translator;
+
+	// handler per la codifica dei messaggi, uno per thread dell'executor
+	private ThreadLocal<MessageHandler> messageHandlers;
+
+	public TranslationPipeline(int nthreads, TranslationProvider provider, TranslationStore store) {
+		// COSTRUTTORE
+		if (provider == null)
+			throw new NullPointerException();
+		if (nthreads <= 0)
+			throw new IllegalArgumentException();
+		// thread daemon, per non impedire la terminazione del server
+		this.executor = new ThreadPoolExecutor(nthreads, nthreads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread t = new Thread(r, "TranslationPipeline");
+					t.setDaemon(true);
+					return t;
+				});
+		this.conversations = new ConcurrentHashMap<String, Conversation>();
+		this.cache = new TranslationCache(CACHE_SIZE, CACHE_TTL);
+		this.store = store;
+		this.translator = new Translator(provider, this.cache, store);
+		this.messageHandlers = ThreadLocal.withInitial(MessageHandler::new);
+	}
+
+	/**
+	 * Accoda un messaggio da tradurre e recapitare al destinatario. Non si
+	 * blocca mai: se la conversazione ha gia' MAX_PENDING messaggi in attesa
+	 * il messaggio viene rifiutato
+	 *
+	 * @param message
+	 *            il messaggio, nella lingua del mittente
+	 * @param mittLanguage
+	 *            la lingua del mittente
+	 * @param destLanguage
+	 *            la lingua del destinatario
+	 * @param receiver
+	 *            il destinatario online
+	 * @return true se il messaggio e' stato accodato, false se la coda della
+	 *         conversazione e' piena o la pipeline e' in chiusura
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 */
+	public boolean submit(TextMessage message, String mittLanguage, String destLanguage, OnlineUser receiver) {
+		if (message == null || mittLanguage == null || destLanguage == null || receiver == null)
+			throw new NullPointerException();
+		Job job = new Job(message, mittLanguage, destLanguage, receiver);
+		return this.enqueue(message.getSender() + '\n' + receiver.getUsername(), job);
+	}
+
+	/**
+	 * Accoda un messaggio di una chatroom da tradurre nelle lingue dei gruppi
+	 * ed inviare ad ognuno di essi. Non si blocca mai: se la chatroom ha gia'
+	 * MAX_PENDING messaggi in attesa il messaggio viene rifiutato
+	 *
+	 * @param message
+	 *            il messaggio, nella lingua del mittente, che ha come
+	 *            destinatario il nome della chatroom
+	 * @param mittLanguage
+	 *            la lingua del mittente
+	 * @param groups
+	 *            l'indirizzo multicast a cui inviare il messaggio per ogni
+	 *            lingua
+	 * @param socket
+	 *            il socket da cui inviare i datagram
+	 * @return true se il messaggio e' stato accodato, false se la coda della
+	 *         chatroom e' piena o la pipeline e' in chiusura
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 */
+	public boolean submit(TextMessage message, String mittLanguage, Map<String, InetAddress> groups,
+			DatagramSocket socket) {
+		if (message == null || mittLanguage == null || groups == null || socket == null)
+			throw new NullPointerException();
+		Job job = new Job(message, mittLanguage, groups, socket);
+		// nessun nome utente e' vuoto, la chiave non si confonde con quelle
+		// delle conversazioni fra amici
+		return this.enqueue('\n' + message.getReceiver(), job);
+	}
+
+	/**
+	 * Funzione di utilita' privata, accoda un messaggio alla coda indicata,
+	 * creandola se necessario, ed affida la coda all'executor se non lo era
+	 * gia'
+	 *
+	 * @return false se la coda e' piena o la pipeline e' in chiusura
+	 */
+	private boolean enqueue(String key, Job job) {
+		while (true) {
+			Conversation conversation = this.conversations.computeIfAbsent(key, k -> new Conversation(k));
+			synchronized (conversation) {
+				// coda appena svuotata e tolta dalla map, ne creo un'altra
+				if (conversation.closed)
+					continue;
+				if (conversation.jobs.size() >= MAX_PENDING)
+					return false;
+				conversation.jobs.add(job);
+				if (conversation.scheduled)
+					return true;
+				conversation.scheduled = true;
+			}
+			return this.schedule(conversation);
+		}
+	}
+
+	/**
+	 * Restituisce la cache delle traduzioni della pipeline
+	 *
+	 * @return la cache delle traduzioni
+	 */
+	public TranslationCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Restituisce la memoria delle traduzioni su disco della pipeline
+	 *
+	 * @return la memoria delle traduzioni, null se non usata
+	 */
+	public TranslationStore getStore() {
+		return this.store;
+	}
+
+	/**
+	 * Termina l'executor della pipeline, i messaggi ancora in coda vengono
+	 * scartati; le traduzioni conservate su disco vengono scritte
+	 */
+	public void shutdown() {
+		this.executor.shutdownNow();
+		if (this.store != null)
+			this.store.flush();
+	}
+
+	/**
+	 * Funzione di utilita' privata, affida all'executor il task di una
+	 * conversazione
+	 *
+	 * @return false se la pipeline e' in chiusura
+	 */
+	private boolean schedule(Conversation conversation) {
+		try {
+			this.executor.execute(() -> this.drain(conversation));
+			return true;
+		} catch (RejectedExecutionException e) {
+			// pipeline in chiusura, scarto i messaggi
+			synchronized (conversation) {
+				conversation.jobs.clear();
+				conversation.scheduled = false;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Task di una conversazione: traduce e recapita, in ordine, al piu' BATCH
+	 * messaggi; un messaggio la cui traduzione fallisce con un'eccezione viene
+	 * scartato. Se ne restano altri il task viene riaccodato nell'executor,
+	 * altrimenti la conversazione viene tolta dalla map
+	 *
+	 * @param conversation
+	 *            la conversazione da servire
+	 */
+	private void drain(Conversation conversation) {
+		for (int i = 0; i < BATCH; i++) {
+			Job job;
+			synchronized (conversation) {
+				job = conversation.jobs.poll();
+				if (job == null) {
+					conversation.scheduled = false;
+					conversation.closed = true;
+					this.conversations.remove(conversation.key, conversation);
+					return;
+				}
+			}
+			try {
+				this.deliver(job);
+			} catch (RuntimeException e) {
+				// errore nella traduzione (o nella cache delle traduzioni):
+				// scarto solo questo messaggio, altrimenti il task morirebbe
+				// con la conversazione ancora segnata come in corso ed i
+				// messaggi successivi non verrebbero mai recapitati
+				System.out.println("Messaggio per " + job.message.getReceiver() + " scartato: " + e);
+			}
+		}
+		// messaggi rimasti, lascio il posto alle altre conversazioni
+		this.schedule(conversation);
+	}
+
+	/**
+	 * Funzione di utilita' privata, traduce un messaggio e lo accoda fra
+	 * quelli in uscita del destinatario
+	 *
+	 * @param job
+	 *            il messaggio da recapitare
+	 */
+	private void deliver(Job job) {
+		if (job.groups != null) {
+			this.multicast(job);
+			return;
+		}
+		TextMessage message = job.message;
+		try {
+			message.setMessage(this.translator.Translate(message.getMessage(), job.mittLanguage, job.destLanguage));
+		} catch (IllegalLanguageException e) {
+			// ignoro e invio il messaggio non tradotto
+		}
+		MessageChannel channel = job.receiver.getMessageChannel();
+		try {
+			if (channel == null || !channel.getWriter()
+					.send(this.messageHandlers.get().Message2Bytes(message, channel.getProtocol(), channel.getChannel())))
+				System.out.println("Messaggio per " + job.receiver.getUsername() + " scartato");
+		} catch (MalformedMessageException e) {
+			System.out.println("Messaggio per " + job.receiver.getUsername() + " non valido");
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, traduce un messaggio di una chatroom in
+	 * tutte le lingue dei gruppi e lo invia ad ognuno di essi. Un gruppo la
+	 * cui lingua non e' valida riceve il messaggio non tradotto
+	 *
+	 * @param job
+	 *            il messaggio da inviare
+	 */
+	private void multicast(Job job) {
+		TextMessage message = job.message;
+		Map<String, String> translations = this.translator.Translate(message.getMessage(), job.mittLanguage,
+				job.groups.keySet());
+		for (Map.Entry<String, InetAddress> group : job.groups.entrySet()) {
+			String text = translations.get(group.getKey());
+			TextMessage translated = TextMessage.BuildTextMessage(message.getSender(), message.getReceiver(),
+					text == null ? message.getMessage() : text);
+			try {
+				byte[] data = this.messageHandlers.get().Message2JSONString(translated).getBytes();
+				job.socket.send(new DatagramPacket(data, data.length, group.getValue(), ChatRoom.MULTICAST_PORT));
+			} catch (MalformedMessageException | IOException e) {
+				System.out.println("Messaggio per la chatroom " + message.getReceiver() + " non inviato");
+			}
+		}
+	}
+
+	/**
+	 * Un messaggio in attesa di traduzione, per un amico o per i gruppi di una
+	 * chatroom
+	 */
+	private static class Job {
+
+		final TextMessage message;
+		final String mittLanguage;
+
+		// per i messaggi fra amici
+		final String destLanguage;
+		final OnlineUser receiver;
+
+		// per i messaggi delle chatroom
+		final Map<String, InetAddress> groups;
+		final DatagramSocket socket;
+
+		Job(TextMessage message, String mittLanguage, String destLanguage, OnlineUser receiver) {
+			// COSTRUTTORE
+			this.message = message;
+			this.mittLanguage = mittLanguage;
+			this.destLanguage = destLanguage;
+			this.receiver = receiver;
+			this.groups = null;
+			this.socket = null;
+		}
+
+		Job(TextMessage message, String mittLanguage, Map<String, InetAddress> groups, DatagramSocket socket) {
+			// COSTRUTTORE
+			this.message = message;
+			this.mittLanguage = mittLanguage;
+			this.destLanguage = null;
+			this.receiver = null;
+			this.groups = groups;
+			this.socket = socket;
+		}
+	}
+
+	/**
+	 * La coda dei messaggi di una conversazione, acceduta solo
+	 * sincronizzandosi sulla conversazione
+	 */
+	private static class Conversation {
+
+		// la chiave della conversazione nella map
+		final String key;
+
+		// i messaggi in attesa, nell'ordine di invio
+		final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+
+		// true se un task della conversazione e' nell'executor
+		boolean scheduled = false;
+
+		// true se la conversazione e' stata tolta dalla map
+		boolean closed = false;
+
+		Conversation(String key) {
+			// COSTRUTTORE
+			this.key = key;
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+
+import exceptions.IllegalLanguageException;
+
+/**
+ * Un servizio in grado di tradurre un testo da una lingua ad un'altra,
+ * utilizzato dal Translator per tradurre i singoli pezzi di un messaggio. Le
+ * implementazioni disponibili sono il servizio REST di MyMemory
+ * (MyMemoryProvider, utilizzabile anche verso un server locale compatibile come
+ * TranslationStandIn) ed un dizionario interno al server (DictionaryProvider),
+ * che permette di eseguire il server senza rete.
+ *
+ * Le implementazioni devono essere thread safe: lo stesso provider viene
+ * usato da tutti i thread della TranslationPipeline.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public interface TranslationProvider {
+
+	/**
+	 * Traduce un testo, al piu' di qualche centinaio di caratteri
+	 *
+	 * @param text
+	 *            il testo da tradurre
+	 * @param mittLanguage
+	 *            la lingua del testo
+	 * @param destLanguage
+	 *            la lingua in cui tradurlo
+	 * @return il testo tradotto, null se il servizio ha risposto ma non ha
+	 *         saputo tradurre il testo
+	 * @throws IllegalLanguageException
+	 *             se una delle due lingue non e' valida
+	 * @throws IOException
+	 *             se il servizio non e' raggiungibile o ha risposto in modo
+	 *             non valido
+	 */
+	String translate(String text, String mittLanguage, String destLanguage)
+			throws IllegalLanguageException, IOException;
+
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import org.json.simple.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Server HTTP locale che imita l'interfaccia del servizio REST di MyMemory, da
+ * usare al posto del servizio vero nei test di carico (avviando il server con
+ * -Dsocialgossip.translator=http://localhost:porta/). Ad ogni richiesta
+ * get?q=testo&langpair=it|en risponde, dopo il ritardo indicato all'avvio, con
+ * il testo preceduto dalla lingua di destinazione, ad esempio "[en] testo".
+ *
+ * Uso: TranslationStandIn [porta [ritardo in millisecondi]]
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class TranslationStandIn {
+
+	// porta e ritardo di default
+	public static final int DEFAULT_PORT = 1899;
+	public static final long DEFAULT_DELAY = 0;
+
+	// numero di thread che servono le richieste
+	private static final int NTHREADS = 16;
+
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		long delay = DEFAULT_DELAY;
+		try {
+			if (args.length > 0)
+				port = Integer.parseInt(args[0]);
+			if (args.length > 1)
+				delay = Long.parseLong(args[1]);
+		} catch (NumberFormatException e) {
+			System.out.println("Error USAGE: ./TranslationStandIn [porta [ritardo]]");
+			System.exit(1);
+		}
+
+		final long d = delay;
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/get", exchange -> serve(exchange, d));
+		server.setExecutor(Executors.newFixedThreadPool(NTHREADS));
+		server.start();
+		System.out.println("Traduttore locale in ascolto sulla porta " + port + " (ritardo " + delay + " ms)");
+	}
+
+	/**
+	 * Funzione di utilita' privata, risponde ad una richiesta di traduzione
+	 */
+	@SuppressWarnings("unchecked")
+	private static void serve(HttpExchange exchange, long delay) throws IOException {
+		String text = null;
+		String destLanguage = null;
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String param : query.split("&")) {
+				int eq = param.indexOf('=');
+				if (eq < 0)
+					continue;
+				String value = URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+				if (param.startsWith("q="))
+					text = value;
+				else if (param.startsWith("langpair=") && value.indexOf('|') >= 0)
+					destLanguage = value.substring(value.indexOf('|') + 1);
+			}
+		}
+
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		JSONObject reply = new JSONObject();
+		int status = 200;
+		if (text == null || destLanguage == null) {
+			status = 400;
+			reply.put("responseData", null);
+		} else {
+			JSONObject data = new JSONObject();
+			data.put("translatedText", "[" + destLanguage + "] " + text);
+			reply.put("responseData", data);
+		}
+		byte[] body = reply.toJSONString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+}
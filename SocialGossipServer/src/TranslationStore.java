@@ -0,0 +1,327 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Memoria delle traduzioni su disco, che sopravvive al riavvio del server: ogni
+ * traduzione ottenuta dal servizio viene aggiunta in fondo ad un file di
+ * segmento, e consultata prima di interrogare di nuovo il servizio.
+ *
+ * I segmenti sono file di dimensione fissa, mappati in memoria. Ogni segmento
+ * comincia con un'intestazione, seguita da una tabella hash di SLOTS posizioni
+ * ed infine dai record. La tabella e' indirizzata con un hash (FNV-1a a 64
+ * bit) del testo e della coppia di lingue, ed ogni posizione contiene la
+ * parte alta dell'hash e l'offset del record, per cui una ricerca legge solo
+ * la posizione della tabella ed il record cercato. All'avvio i segmenti
+ * vengono soltanto mappati, senza leggerli: le pagine vengono caricate dal
+ * sistema operativo alla prima ricerca che le tocca, per cui il server parte
+ * subito ed e' gia' in grado di servire le traduzioni precedenti.
+ *
+ * Quando il segmento corrente e' pieno (tabella per tre quarti occupata o
+ * spazio dei record esaurito) ne viene creato uno nuovo; la ricerca scorre i
+ * segmenti dal piu' recente. Le traduzioni su disco non scadono.
+ *
+ * Intestazione: magic, versione, numero di record, fine dei record (int).
+ * Record: lunghezza della chiave, lunghezza della traduzione (int), chiave e
+ * traduzione in UTF-8. La chiave e' "lingua1|lingua2\ntesto".
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class TranslationStore {
+
+	// identificano un file di segmento ed il suo formato
+	private static final int MAGIC = 0x53475452;
+	private static final int VERSION = 1;
+
+	// posizioni della tabella hash di ogni segmento, potenza di due
+	public static final int SLOTS = 1 << 16;
+
+	// dimensione di un segmento su disco, in byte
+	public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	// dimensione dell'intestazione e inizio dei record
+	private static final int HEADER = 16;
+	private static final int DATA = HEADER + SLOTS * 8;
+
+	// record piu' grandi non vengono conservati
+	public static final int MAX_RECORD = 64 * 1024;
+
+	// posizioni dei campi dell'intestazione
+	private static final int COUNT_FIELD = 8;
+	private static final int END_FIELD = 12;
+
+	// prefisso e suffisso dei nomi dei file di segmento
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".tm";
+
+	// la cartella dei segmenti
+	private File directory;
+
+	// i segmenti, dal piu' vecchio al piu' recente (quello in cui si scrive)
+	private ArrayList<MappedByteBuffer> segments;
+
+	// numero del prossimo segmento da creare
+	private int nextSegment;
+
+	// le ricerche procedono in parallelo, le scritture in esclusiva
+	private ReentrantReadWriteLock lock;
+
+	// statistiche della memoria
+	private LongAdder hits;
+	private LongAdder misses;
+	private LongAdder appends;
+
+	/**
+	 * Apre la memoria delle traduzioni contenuta in una cartella, creandola se
+	 * non esiste. I segmenti non validi vengono ignorati
+	 *
+	 * @param directory
+	 *            la cartella dei segmenti
+	 * @throws IOException
+	 *             se la cartella non puo' essere creata o i segmenti non
+	 *             possono essere mappati
+	 * @throws NullPointerException
+	 *             se directory e' null
+	 */
+	public TranslationStore(File directory) throws IOException {
+		// COSTRUTTORE
+		if (directory == null)
+			throw new NullPointerException();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Impossibile creare " + directory);
+		this.directory = directory;
+		this.segments = new ArrayList<MappedByteBuffer>();
+		this.lock = new ReentrantReadWriteLock();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.appends = new LongAdder();
+
+		// i nomi dei segmenti sono numerati, li apro in ordine
+		String[] names = directory.list((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		Arrays.sort(names);
+		for (String name : names) {
+			int number;
+			try {
+				number = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			this.nextSegment = Math.max(this.nextSegment, number + 1);
+			MappedByteBuffer segment;
+			try {
+				segment = map(new File(directory, name), false);
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+				continue;
+			}
+			if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) {
+				System.out.println("Segmento di traduzioni non valido: " + name);
+				continue;
+			}
+			this.segments.add(segment);
+		}
+	}
+
+	/**
+	 * Cerca la traduzione di un testo
+	 *
+	 * @param text
+	 *            il testo
+	 * @param from
+	 *            la lingua del testo
+	 * @param to
+	 *            la lingua della traduzione
+	 * @return la traduzione, null se non presente
+	 */
+	public String get(String text, String from, String to) {
+		byte[] key = key(text, from, to);
+		long hash = hash(key);
+		this.lock.readLock().lock();
+		try {
+			for (int i = this.segments.size() - 1; i >= 0; i--) {
+				String translated = find(this.segments.get(i), key, hash);
+				if (translated != null) {
+					this.hits.increment();
+					return translated;
+				}
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		this.misses.increment();
+		return null;
+	}
+
+	/**
+	 * Aggiunge una traduzione, se non gia' presente
+	 *
+	 * @param text
+	 *            il testo
+	 * @param from
+	 *            la lingua del testo
+	 * @param to
+	 *            la lingua della traduzione
+	 * @param translated
+	 *            la traduzione
+	 * @throws IOException
+	 *             se non e' possibile creare un nuovo segmento
+	 */
+	public void put(String text, String from, String to, String translated) throws IOException {
+		byte[] key = key(text, from, to);
+		byte[] value = translated.getBytes(StandardCharsets.UTF_8);
+		int size = 8 + key.length + value.length;
+		if (size > MAX_RECORD)
+			return;
+		long hash = hash(key);
+		this.lock.writeLock().lock();
+		try {
+			for (int i = this.segments.size() - 1; i >= 0; i--)
+				if (find(this.segments.get(i), key, hash) != null)
+					return;
+
+			// segmento corrente pieno, ne creo uno nuovo
+			MappedByteBuffer segment = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+			if (segment == null || segment.getInt(COUNT_FIELD) >= SLOTS / 4 * 3
+					|| segment.getInt(END_FIELD) + size > SEGMENT_SIZE)
+				segment = this.create();
+
+			// scrivo prima il record e la nuova fine dei record, poi la
+			// posizione nella tabella, cosi' che una posizione occupata si
+			// riferisca sempre ad un record completo
+			int end = segment.getInt(END_FIELD);
+			ByteBuffer record = segment.duplicate();
+			record.position(end);
+			record.putInt(key.length).putInt(value.length).put(key).put(value);
+			segment.putInt(END_FIELD, end + size);
+			int slot = (int) hash & (SLOTS - 1);
+			while (segment.getLong(HEADER + slot * 8) != 0)
+				slot = (slot + 1) & (SLOTS - 1);
+			segment.putLong(HEADER + slot * 8, (hash & 0xFFFFFFFF00000000L) | end);
+			segment.putInt(COUNT_FIELD, segment.getInt(COUNT_FIELD) + 1);
+			this.appends.increment();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Scrive su disco le modifiche ai segmenti
+	 */
+	public void flush() {
+		this.lock.writeLock().lock();
+		try {
+			for (MappedByteBuffer segment : this.segments)
+				segment.force();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		this.lock.readLock().lock();
+		int records = 0;
+		try {
+			for (MappedByteBuffer segment : this.segments)
+				records += segment.getInt(COUNT_FIELD);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		return "Memoria delle traduzioni: " + records + " traduzioni in " + this.segments.size() + " segmenti, "
+				+ this.hits.sum() + " trovate, " + this.misses.sum() + " non trovate, " + this.appends.sum()
+				+ " aggiunte";
+	}
+
+	/**
+	 * Funzione di utilita' privata, crea e mappa un nuovo segmento vuoto.
+	 * Chiamata con la lock in scrittura
+	 */
+	private MappedByteBuffer create() throws IOException {
+		File file = new File(this.directory, String.format("%s%06d%s", PREFIX, this.nextSegment++, SUFFIX));
+		MappedByteBuffer segment = map(file, true);
+		segment.putInt(0, MAGIC);
+		segment.putInt(4, VERSION);
+		segment.putInt(COUNT_FIELD, 0);
+		segment.putInt(END_FIELD, DATA);
+		this.segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Funzione di utilita' privata, mappa in memoria un file di segmento. Il
+	 * mapping resta valido anche dopo la chiusura del file
+	 */
+	private static MappedByteBuffer map(File file, boolean create) throws IOException {
+		if (!create && file.length() != SEGMENT_SIZE)
+			throw new IOException("Segmento di traduzioni troncato: " + file);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, cerca un record in un segmento
+	 *
+	 * @return la traduzione, null se il segmento non la contiene
+	 */
+	private static String find(MappedByteBuffer segment, byte[] key, long hash) {
+		int slot = (int) hash & (SLOTS - 1);
+		long entry;
+		while ((entry = segment.getLong(HEADER + slot * 8)) != 0) {
+			if ((entry & 0xFFFFFFFF00000000L) == (hash & 0xFFFFFFFF00000000L)) {
+				int offset = (int) entry;
+				if (segment.getInt(offset) == key.length && matches(segment, offset + 8, key)) {
+					byte[] value = new byte[segment.getInt(offset + 4)];
+					ByteBuffer record = segment.duplicate();
+					record.position(offset + 8 + key.length);
+					record.get(value);
+					return new String(value, StandardCharsets.UTF_8);
+				}
+			}
+			slot = (slot + 1) & (SLOTS - 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Funzione di utilita' privata, confronta la chiave di un record con
+	 * quella cercata
+	 */
+	private static boolean matches(MappedByteBuffer segment, int offset, byte[] key) {
+		for (int i = 0; i < key.length; i++)
+			if (segment.get(offset + i) != key[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Funzione di utilita' privata, la chiave di un record
+	 */
+	private static byte[] key(String text, String from, String to) {
+		if (text == null || from == null || to == null)
+			throw new NullPointerException();
+		return (from + '|' + to + '\n' + text).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Funzione di utilita' privata, hash FNV-1a a 64 bit di una chiave, mai 0
+	 * nella parte alta (una posizione vuota della tabella vale 0)
+	 */
+	private static long hash(byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			h ^= b & 0xFF;
+			h *= 0x100000001b3L;
+		}
+		return (h & 0xFFFFFFFF00000000L) == 0 ? h | 0x100000000L : h;
+	}
+
+}
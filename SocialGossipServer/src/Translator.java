@@ -1,43 +1,101 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
-
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import exceptions.IllegalLanguageException;
 
 /**
  * Classe che si occupa di prendere una stringa, due lingue e tradurre la
  * stringa richiesta, se possibile, dalla prima lingua alla seconda lingua
- * Sfrutta il servizio REST offerto da myMemory.Translated e puo' fare
- * traduzioni di piu' di 500 caratteri (limite massimo imposto dal servizio)
+ * Sfrutta un TranslationProvider (di default il servizio REST offerto da
+ * myMemory.Translated) e puo' fare traduzioni di piu' di 500 caratteri (limite
+ * massimo imposto dal servizio)
+ * 
+ * Le stringhe lunghe vengono divise in pezzi, tradotti in parallelo da un
+ * executor condiviso da tutti i traduttori e poi riassemblati nell'ordine
+ * originale, per cui la traduzione costa circa quanto una sola richiesta al
+ * servizio. Allo stesso modo una stringa puo' essere tradotta in piu' lingue
+ * in parallelo (ad esempio per i membri di una chatroom), una richiesta per
+ * lingua. Un pezzo la cui traduzione fallisce resta nella lingua originale,
+ * senza rinunciare alla traduzione degli altri.
+ * 
+ * Le richieste al servizio passano da un CircuitBreaker: se il servizio fallisce
+ * o risponde lentamente per piu' richieste consecutive, per un po' i testi
+ * vengono restituiti non tradotti senza interrogarlo, cosi' che un servizio
+ * non disponibile non rallenti la consegna di tutti i messaggi.
+ * 
+ * Le traduzioni riuscite vengono conservate nella TranslationCache indicata
+ * alla creazione, per cui un testo gia' tradotto non richiede un'altra
+ * richiesta al servizio; quelle fallite, anche solo in parte, non vengono
+ * conservate. Se indicato, le traduzioni vengono inoltre aggiunte al
+ * TranslationStore su disco, consultato dopo la cache e prima del servizio,
+ * per cui restano disponibili anche dopo il riavvio del server.
  * 
  * @author Lorenzo Bellomo, Nicolo' Lucchesi
  */
 public class Translator {
 
-	// il path del servizio a cui fare richiesta, senza i parametri della query
-	private static final String pathName = "https://api.mymemory.translated.net/";
+	// numero massimo di richieste al servizio in corso contemporaneamente
+	public static final int MAX_PARALLEL = 8;
+
+	// tempo massimo di attesa della traduzione di un pezzo, in millisecondi
+	public static final long CHUNK_TIMEOUT = 5000;
+
+	// richieste consecutive fallite o lente dopo cui il servizio viene
+	// considerato non disponibile, durata oltre la quale una richiesta e' lenta
+	// e tempo per cui il servizio non viene interrogato, in millisecondi
+	public static final int FAILURE_THRESHOLD = 5;
+	public static final long SLOW_CALL_MILLIS = 2000;
+	public static final long OPEN_MILLIS = 10000;
+
+	// l'executor che traduce i pezzi delle stringhe lunghe, con thread daemon
+	// per non impedire la terminazione del server
+	private static final ExecutorService chunks = Executors.newFixedThreadPool(MAX_PARALLEL, r -> {
+		Thread t = new Thread(r, "Translator");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// il servizio che traduce i pezzi
+	private TranslationProvider provider;
+
+	// protegge il traduttore da un servizio non disponibile
+	private CircuitBreaker breaker;
+
+	// la cache delle traduzioni, null se le traduzioni non vanno conservate
+	private TranslationCache cache;
 
-	// formato della query:
-	// "pathname + get?q=stringadiprova'=it|en
-	// ha compresi i segnaposto per stringa, lingua 1 e lingua 2
-	private static final String format = pathName + "get?q=%s&langpair=%s|%s";
+	// la memoria delle traduzioni su disco, null se non va usata
+	private TranslationStore store;
 
 	public Translator() {
+		this(new MyMemoryProvider(), null, null);
+	}
+
+	public Translator(TranslationProvider provider, TranslationCache cache, TranslationStore store) {
 		// COSTRUTTORE
+		if (provider == null)
+			throw new NullPointerException();
+		this.provider = provider;
+		this.breaker = new CircuitBreaker(provider.toString(), FAILURE_THRESHOLD, SLOW_CALL_MILLIS, OPEN_MILLIS);
+		this.cache = cache;
+		this.store = store;
 	}
 
 	/**
 	 * Traduce una stringa passata come parametro trasformandola da una lingua
-	 * ad un altra connettendosi al servizio REST di mymemory.translated.net
-	 * Funziona anche per stringhe superiori a 500 caratteri (limite massimo di
-	 * caratteri per una query di questo servizio)
+	 * ad un altra tramite il provider del traduttore. Funziona anche per
+	 * stringhe superiori a 500 caratteri (limite massimo di caratteri per una
+	 * query di mymemory.translated.net)
 	 * 
 	 * @param toTranslate
 	 *            la stringa da trasformare
@@ -58,18 +116,169 @@ public class Translator {
 		if (toTranslate == null || mittLanguage == null || destLanguage == null)
 			throw new NullPointerException();
 
-		System.out.println(mittLanguage + " / " + destLanguage);
+		String translated = this.Translate(toTranslate, mittLanguage, Collections.singleton(destLanguage))
+				.get(destLanguage);
+		if (translated == null)
+			throw new IllegalLanguageException();
+		return translated;
+	}
+
+	/**
+	 * Traduce una stringa in piu' lingue, ad esempio per i membri di una
+	 * chatroom. Ogni lingua viene tradotta una volta sola, ed i pezzi della
+	 * stringa in tutte le lingue vengono tradotti in parallelo, per cui la
+	 * traduzione costa circa quanto una sola richiesta al servizio anche con
+	 * molte lingue
+	 * 
+	 * @param toTranslate
+	 *            la stringa da trasformare
+	 * @param mittLanguage
+	 *            la lingua del client mittente
+	 * @param destLanguages
+	 *            le lingue in cui tradurre la stringa, anche ripetute
+	 * @return la traduzione per ogni lingua richiesta; le lingue che non
+	 *         esistono non sono presenti
+	 * @throws NullPointerException
+	 *             se un parametro o una delle lingue fosse null
+	 */
+	public Map<String, String> Translate(String toTranslate, String mittLanguage, Collection<String> destLanguages) {
+
+		// controllo subito la correttezza dei parametri
+		if (toTranslate == null || mittLanguage == null || destLanguages == null)
+			throw new NullPointerException();
+
+		// prima le lingue che non richiedono il servizio, poi quelle da
+		// tradurre
+		HashMap<String, String> translations = new HashMap<String, String>();
+		ArrayList<String> missing = new ArrayList<String>();
+		for (String destLanguage : destLanguages) {
+			if (destLanguage == null)
+				throw new NullPointerException();
+			if (translations.containsKey(destLanguage) || missing.contains(destLanguage))
+				continue;
+			System.out.println(mittLanguage + " / " + destLanguage);
+			String known = this.lookup(toTranslate, mittLanguage, destLanguage);
+			if (known != null)
+				translations.put(destLanguage, known);
+			else
+				missing.add(destLanguage);
+		}
+		if (missing.isEmpty())
+			return translations;
+
+		// la stringa potrebbe essere piu' lunga di 500 caratteri, quindi devo
+		// creare un array di query di una lunghezza ragionevole per poterle
+		// mandare in parallelo e attendere i risultati
+		String[] query = split(toTranslate);
+
+		// affido all'executor tutti i pezzi di tutte le lingue tranne il primo,
+		// che traduco direttamente mentre gli altri sono in corso. Il pezzo i
+		// della lingua l e' in posizione l * query.length + i
+		int total = missing.size() * query.length;
+		ArrayList<Future<String>> pending = new ArrayList<Future<String>>(total);
+		pending.add(null);
+		for (int k = 1; k < total; k++) {
+			final String chunk = query[k % query.length];
+			final String destLanguage = missing.get(k / query.length);
+			pending.add(chunks.submit(() -> this.fetch(chunk, mittLanguage, destLanguage)));
+		}
+
+		try {
+			for (int l = 0; l < missing.size(); l++) {
+				String destLanguage = missing.get(l);
+				// preparo lo string buffer in cui concateno i risultati delle
+				// query, nell'ordine originale
+				StringBuffer toReturn = new StringBuffer("");
+				boolean complete = true;
+				try {
+					for (int i = 0; i < query.length; i++) {
+						int k = l * query.length + i;
+						String translated = k == 0 ? this.fetch(query[0], mittLanguage, destLanguage)
+								: collect(pending.get(k));
+						if (translated == null) {
+							// pezzo non tradotto, lo lascio nella lingua originale
+							translated = query[i];
+							complete = false;
+						} else if (i > 0 && query[i].startsWith(" ") && !translated.startsWith(" ")) {
+							// il servizio toglie lo spazio con cui inizia il pezzo
+							toReturn.append(' ');
+						}
+						toReturn.append(translated);
+					}
+				} catch (IllegalLanguageException e) {
+					// lingua non valida, la tralascio
+					continue;
+				}
+
+				String translated = toReturn.toString();
+				translations.put(destLanguage, translated);
+				// se un pezzo non e' stato tradotto non conservo il risultato,
+				// cosi' che la prossima volta venga riprovato
+				if (complete)
+					this.remember(toTranslate, mittLanguage, destLanguage, translated);
+			}
+		} finally {
+			// in caso di errore non aspetto i pezzi rimasti
+			for (Future<String> f : pending)
+				if (f != null)
+					f.cancel(true);
+		}
+		return translations;
+	}
 
+	/**
+	 * Funzione di utilita' privata, cerca una traduzione gia' nota nella cache
+	 * e nella memoria su disco
+	 * 
+	 * @return la traduzione, null se va chiesta al servizio
+	 */
+	private String lookup(String toTranslate, String mittLanguage, String destLanguage) {
 		// stessa lingua per mittende e destinatario, non devo far nulla
 		if (mittLanguage.equals(destLanguage))
 			return toTranslate;
 
-		// la stringa potrebbe essere pi lunga di 500 caratteri, quindi devo
-		// creare un array di query di una lunghezza ragionevole per poterle
-		// mandare una dopo l'altra e attendere i risultati
-		// non devo pero' fare split a caso altrimenti rischio di mandare parole
-		// non compiute.
+		// testo gia' tradotto in precedenza, non serve interrogare il servizio
+		if (this.cache != null) {
+			String cached = this.cache.get(toTranslate, mittLanguage, destLanguage);
+			if (cached != null)
+				return cached;
+		}
+
+		// testo tradotto prima dell'ultimo riavvio, lo riporto in cache
+		if (this.store != null) {
+			String stored = this.store.get(toTranslate, mittLanguage, destLanguage);
+			if (stored != null) {
+				if (this.cache != null)
+					this.cache.put(toTranslate, mittLanguage, destLanguage, stored);
+				return stored;
+			}
+		}
+		return null;
+	}
 
+	/**
+	 * Funzione di utilita' privata, conserva una traduzione riuscita nella
+	 * cache e nella memoria su disco
+	 */
+	private void remember(String toTranslate, String mittLanguage, String destLanguage, String translated) {
+		if (this.cache != null)
+			this.cache.put(toTranslate, mittLanguage, destLanguage, translated);
+		if (this.store != null) {
+			try {
+				this.store.put(toTranslate, mittLanguage, destLanguage, translated);
+			} catch (IOException e) {
+				System.out.println("Impossibile salvare la traduzione: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, divide una stringa in pezzi di circa 300
+	 * caratteri, tagliando sugli spazi per non mandare parole non compiute
+	 * 
+	 * @return i pezzi, nell'ordine originale
+	 */
+	private static String[] split(String toTranslate) {
 		// alloco un array di query da 300 caratteri l'una (per stare tranquillo
 		// sulla size della query)
 		String[] query = new String[(toTranslate.length() / 300) + 1];
@@ -94,52 +303,64 @@ public class Translator {
 		// adesso devo fare lo split effettivo e creare le query vere e proprie
 		for (int i = 0; i < query.length; i++)
 			query[i] = toTranslate.substring(splittingPoints[i], splittingPoints[i + 1]);
+		return query;
+	}
 
-		// preparo lo string buffer in cui concateno i risultati delle query
-		StringBuffer toReturn = new StringBuffer("");
+	/**
+	 * Funzione di utilita' privata, attende la traduzione di un pezzo affidata
+	 * all'executor
+	 * 
+	 * @return il pezzo tradotto, null se la traduzione e' fallita o non e'
+	 *         arrivata in tempo
+	 * @throws IllegalLanguageException
+	 *             se una delle due lingue non esiste
+	 */
+	private static String collect(Future<String> chunk) throws IllegalLanguageException {
+		try {
+			return chunk.get(CHUNK_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IllegalLanguageException)
+				throw (IllegalLanguageException) e.getCause();
+			return null;
+		} catch (TimeoutException e) {
+			System.out.println("Timeout: Unable to Translate");
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
 
-		// adesso devo inviare una per una le query al servizio di traduzione
-		for (int i = 0; i < query.length; i++) {
-			// prima cosa: sostituisco ogni spazio con %20 per la URL
-			query[i] = query[i].replaceAll(" ", "%20");
-			// preparo la singola query i-Esima. format ha compreso il formato
-			// corretto di una query.
-			String toSend = String.format(format, query[i], mittLanguage, destLanguage);
-			try {
-				// creo la URL
-				URL url = new URL(toSend);
-				// apro la connessione verso il servizio
-				URLConnection uc = url.openConnection();
-				uc.connect();
-				// mi preparo a leggere la risposta
-				BufferedReader in = new BufferedReader(new InputStreamReader(uc.getInputStream()));
-				String reply = null;
-				StringBuffer sb = new StringBuffer();
-				while ((reply = in.readLine()) != null)
-					sb.append(reply);
-
-				// letta l'intera risposta, faccio il parsing JSON
-				JSONObject obj = (JSONObject) new JSONParser().parse(sb.toString());
-				// ottengo i dati della risposta
-				JSONObject results = (JSONObject) obj.get("responseData");
-				if (results == null) // non mi ha fatto la traduzione
-					return toTranslate; // ritorno il messaggio non tradotto
-				else // ho tradotto un pezzo, me lo salvo nello StringBuffer
-					toReturn.append((String) results.get("translatedText"));
-
-			} catch (MalformedURLException e) {
-				// L'errore e' probabilmente nella stringa
-				throw new IllegalLanguageException();
-			} catch (IOException e) {
-				System.out.println("IoException: Unable to Translate");
-				return toTranslate;
-			} catch (ParseException e) {
-				System.out.println("Error: Unable to Translate");
-				return toTranslate;
-			}
+	/**
+	 * Funzione di utilita' privata, traduce un pezzo di stringa con una
+	 * richiesta al servizio, se il CircuitBreaker lo permette
+	 * 
+	 * @return il pezzo tradotto, null se la traduzione e' fallita o il servizio
+	 *         non e' disponibile
+	 * @throws IllegalLanguageException
+	 *             se una delle due lingue non esiste
+	 */
+	private String fetch(String chunk, String mittLanguage, String destLanguage) throws IllegalLanguageException {
+		// servizio non disponibile, non aspetto il timeout della richiesta
+		if (!this.breaker.allow())
+			return null;
+		long start = System.currentTimeMillis();
+		try {
+			String translated = this.provider.translate(chunk, mittLanguage, destLanguage);
+			this.breaker.success(System.currentTimeMillis() - start);
+			return translated;
+		} catch (IllegalLanguageException e) {
+			// errore nei parametri, non dice nulla sullo stato del servizio
+			this.breaker.ignore();
+			throw e;
+		} catch (IOException e) {
+			System.out.println("IoException: Unable to Translate");
+			this.breaker.failure();
+			return null;
+		} catch (RuntimeException e) {
+			this.breaker.failure();
+			throw e;
 		}
-		// traduzione finita con successo, posso ritornare la stringa tradotta
-		return toReturn.toString();
 	}
 
 }
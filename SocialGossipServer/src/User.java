@@ -21,6 +21,9 @@ public class User {
 	// cosi esclusivamente messaggi tradotti nella lingua scelta
 	private String language;
 
+	// codice della lingua degli utenti la cui lingua non e' riconosciuta
+	public static final String DEFAULT_LANGUAGE = "it";
+
 	// associazione lingua -> codice. un italiano dovr inserire la lingua
 	// come "italiano", un francese come "franais" ...
 	private static final Map<String, String> languagesMap;
@@ -62,12 +65,30 @@ public class User {
 		String lang = languagesMap.get(language);
 		// non ho trovato il codice, metto italiano di default
 		if (lang == null)
-			this.language = "it";
+			this.language = DEFAULT_LANGUAGE;
 		// altrimenti metto il codice ottenuto
 		else
 			this.language = lang;
 	}
 
+	/**
+	 * Ricrea un utente a partire dal codice iso della sua lingua, come
+	 * restituito da getLanguage; usato per ripristinare gli utenti registrati
+	 * all'avvio del server (vedi OperationLog)
+	 * 
+	 * @param username
+	 *            il nickname dell'utente
+	 * @param code
+	 *            il codice iso della lingua dell'utente
+	 * @return l'utente
+	 */
+	public static User BuildFromCode(String username, String code) {
+		User user = new User(username, code);
+		if (code != null && languagesMap.containsValue(code))
+			user.language = code;
+		return user;
+	}
+
 	/**
 	 * Confronta l'utente corrente con quello passato come parametro: due utenti
 	 * sono uguali se i loro username sono gli stessi, essendo l'username un
@@ -1,14 +1,19 @@
 import java.net.Socket;
 
+import condivise.ConnectionCodec;
+import condivise.WireProtocol;
+
 /**
  * Classe che tiene traccia dei doppi socket degli utenti. Un worker task puo'
  * essere di due tipo: Tipo Accept che mantiene il socket di controllo. La
  * connessione messaggi di tale utente non esiste, in quanto il thread Acceptor,
  * dopo aver accettato la connessione di controllo, genera un task di
  * accettazione, in cui il worker deve ottenere dal canale la porta del client
- * in attesa ed aprire la connessione attivamente per i messaggi. Il tipo Serve
- * invece e' il classico task di lettura delle richieste di un client che pero'
- * ha gia' aperto entrambe le connessioni
+ * in attesa ed aprire la connessione attivamente per i messaggi (oppure, se il
+ * client lo chiede, usare la connessione di controllo anche per i messaggi,
+ * vedi MessageChannel). Il tipo Serve invece e' il classico task di lettura
+ * delle richieste di un client che pero' ha gia' aperto il canale dei
+ * messaggi
  * 
  * @author Lorenzo Bellomo, Nicolo' Lucchesi
  */
@@ -23,15 +28,24 @@ public class WorkerTask {
 	// il socket di controllo, sempre valido
 	private Socket controlConn;
 
-	// il socket dei messaggi, null se tipo e' accept (devo ancora aprire tale
-	// connessione)
-	private Socket messageConn;
+	// il canale dei messaggi, null se tipo e' accept (devo ancora aprirlo)
+	private MessageChannel channel;
+
+	// il codec della connessione di controllo, creato all'handshake e null se
+	// il tipo e' accept
+	private ConnectionCodec codec;
+
+	public WorkerTask(int type, Socket control, MessageChannel channel) {
+		// COSTRUTTORE
+		this(type, control, channel, null);
+	}
 
-	public WorkerTask(int type, Socket control, Socket message) {
+	public WorkerTask(int type, Socket control, MessageChannel channel, ConnectionCodec codec) {
 		// COSTRUTTORE
 		this.type = type;
 		this.controlConn = control;
-		this.messageConn = message;
+		this.channel = channel;
+		this.codec = codec;
 	}
 
 	/**
@@ -55,10 +69,43 @@ public class WorkerTask {
 	/**
 	 * restituisce il socket dei messaggi di un client
 	 * 
-	 * @return il message Socket
+	 * @return il message Socket, null se il task e' di accettazione o la
+	 *         connessione e' multiplexed
 	 */
 	public Socket getMessageSocket() {
-		return this.messageConn;
+		if (this.channel == null)
+			return null;
+		return this.channel.getSocket();
+	}
+
+	/**
+	 * restituisce il canale dei messaggi di un client
+	 * 
+	 * @return il canale dei messaggi, null se il task e' di accettazione
+	 */
+	public MessageChannel getMessageChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Restituisce il formato dei messaggi negoziato con il client
+	 * 
+	 * @return il formato della connessione
+	 */
+	public WireProtocol getProtocol() {
+		if (this.codec == null)
+			return WireProtocol.JSON;
+		return this.codec.getProtocol();
+	}
+
+	/**
+	 * Restituisce il codec della connessione di controllo, che mantiene lo
+	 * stream ed i buffer della connessione fra una richiesta e l'altra
+	 * 
+	 * @return il codec, null se il task e' di accettazione
+	 */
+	public ConnectionCodec getCodec() {
+		return this.codec;
 	}
 
 }
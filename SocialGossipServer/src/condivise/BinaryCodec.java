@@ -0,0 +1,881 @@
+package condivise;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import exceptions.MalformedMessageException;
+import exceptions.NoSuchCodeException;
+import exceptions.NotAFieldException;
+
+/**
+ * Codifica e decodifica dei messaggi nel formato binario (WireProtocol.BINARY),
+ * alternativo al formato JSON gestito da MessageHandler. Ogni messaggio viaggia
+ * in un frame composto dalla lunghezza del contenuto, codificata come varint,
+ * seguita dal contenuto stesso:
+ *
+ * - un byte con il tipo del messaggio (Message.REQUEST/RESPONSE/TEXT)
+ *
+ * - per le richieste il codice numerico di RequestCode, mittente, destinatario,
+ * i campi significativi per il tipo di richiesta (gli stessi del formato JSON)
+ * ed infine lo stub RMI eventualmente allegato, serializzato
+ *
+ * - per le risposte i codici numerici di ResponseCode e RequestCode, mittente,
+ * destinatario e, se la risposta e' positiva, i campi significativi per il
+ * tipo di richiesta (lista di nomi, indirizzo e porta, stato online)
+ *
+ * - per i messaggi di testo mittente, destinatario e testo
+ *
+ * Gli interi sono codificati come varint (7 bit per byte, il bit piu'
+ * significativo indica che segue un altro byte), le stringhe come la lunghezza
+ * in byte piu' uno (zero per la stringa null) seguita dai byte UTF-8, gli
+ * indirizzi come la lunghezza (4 o 16) seguita dai byte dell'indirizzo. Un
+ * messaggio di testo annidato in una richiesta viene codificato in linea, senza
+ * essere prima trasformato in una stringa.
+ *
+ * Sulle connessioni multiplexed (vedi WireProtocol.MULTIPLEXED) il contenuto
+ * di ogni frame inizia con un byte in piu', il canale a cui appartiene il
+ * messaggio: CONTROL_CHANNEL per le richieste del client e le risposte del
+ * server, MESSAGE_CHANNEL per i messaggi inviati dal server al client e le
+ * risposte del client a tali messaggi. Al canale segue l'identificativo della
+ * richiesta (vedi Message.getRequestId), codificato come varint: su una
+ * connessione multiplexed il client puo' inviare piu' richieste senza
+ * attendere le risposte, che il server puo' inviare in un ordine diverso.
+ *
+ * Un oggetto di questa classe riutilizza lo stesso buffer per tutte le
+ * codifiche, per cui non e' thread safe.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class BinaryCodec {
+
+	// dimensione massima del contenuto di un frame
+	public static final int MAX_FRAME = 1 << 20;
+
+	// frame senza canale, su una connessione non multiplexed
+	public static final int NO_CHANNEL = -1;
+
+	// canale delle richieste del client e delle relative risposte
+	public static final int CONTROL_CHANNEL = 0;
+
+	// canale dei messaggi inviati dal server al client
+	public static final int MESSAGE_CHANNEL = 1;
+
+	// spazio riservato in testa al buffer per la lunghezza del frame
+	private static final int HEADER = 5;
+
+	// il buffer di codifica, cresce all'occorrenza
+	private byte[] out;
+
+	// numero di byte validi in out
+	private int outSize;
+
+	// il buffer da cui si sta decodificando
+	private byte[] in;
+
+	// posizione di lettura in in
+	private int inPos;
+
+	// fine del contenuto da decodificare in in
+	private int inEnd;
+
+	public BinaryCodec() {
+		// COSTRUTTORE
+		this.out = new byte[256];
+	}
+
+	/* CODIFICA */
+
+	/**
+	 * Codifica un messaggio in un frame, lunghezza compresa. Se il messaggio
+	 * e' una richiesta con uno stub allegato, anche lo stub viene codificato
+	 * nel frame
+	 *
+	 * @param m
+	 *            il messaggio da codificare
+	 * @return i byte del frame
+	 * @throws NullPointerException
+	 *             se il messaggio e' null
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public byte[] encode(Message m) throws MalformedMessageException {
+		return this.encode(m, NO_CHANNEL);
+	}
+
+	/**
+	 * Codifica un messaggio in un frame di una connessione multiplexed, con il
+	 * canale e l'identificativo della richiesta in testa al contenuto
+	 *
+	 * @param m
+	 *            il messaggio da codificare
+	 * @param channel
+	 *            il canale del messaggio, NO_CHANNEL per un frame senza canale
+	 * @return i byte del frame
+	 * @throws NullPointerException
+	 *             se il messaggio e' null
+	 * @throws IllegalArgumentException
+	 *             se il canale non esiste
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public byte[] encode(Message m, int channel) throws MalformedMessageException {
+		if (m == null)
+			throw new NullPointerException();
+		if (channel != NO_CHANNEL && !isChannel(channel))
+			throw new IllegalArgumentException();
+
+		this.outSize = HEADER;
+		if (channel != NO_CHANNEL) {
+			this.writeByte(channel);
+			this.writeVarint(m.getRequestId());
+		}
+		this.writeByte(m.getType());
+		try {
+			switch (m.getType()) {
+			case Message.REQUEST:
+				this.writeRequest((RequestMessage) m);
+				break;
+			case Message.RESPONSE:
+				this.writeResponse((ResponseMessage) m);
+				break;
+			case Message.TEXT:
+				this.writeText((TextMessage) m);
+				break;
+			default:
+				throw new MalformedMessageException();
+			}
+		} catch (NotAFieldException e) {
+			throw new MalformedMessageException();
+		}
+
+		// scrivo la lunghezza subito prima del contenuto
+		int length = this.outSize - HEADER;
+		if (length > MAX_FRAME)
+			throw new MalformedMessageException();
+		int start = HEADER - varintSize(length);
+		int pos = start;
+		int v = length;
+		while ((v & ~0x7F) != 0) {
+			this.out[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		this.out[pos] = (byte) v;
+		return Arrays.copyOfRange(this.out, start, this.outSize);
+	}
+
+	/**
+	 * Funzione di utilita' privata, codifica i campi di una richiesta
+	 */
+	private void writeRequest(RequestMessage msg) throws NotAFieldException, MalformedMessageException {
+		this.writeVarint(msg.TypeOfRequest().getCode());
+		this.writeString(msg.getSender());
+		this.writeString(msg.getReceiver());
+		switch (msg.TypeOfRequest()) {
+		case CHATROOM_MSG:
+		case MSG2FRIEND:
+			// messaggio di testo in linea, poi il destinatario
+			this.writeText(msg.getTextMessage());
+			this.writeString(msg.getTarget());
+			break;
+		case CLOSE_CHAT:
+		case CREATE_CHATROOM:
+		case ADD_TO_CHATROOM:
+		case FILE2FRIEND:
+		case FRIENDSHIP:
+		case LOOKUP:
+		case OPEN_P2PCONN:
+		case MUTUAL_FRIENDS:
+		case FRIENDSHIP_PATH:
+			this.writeString(msg.getTarget());
+			break;
+		case SEARCH_USERS:
+			// il prefisso, poi l'ultimo nickname della pagina precedente
+			// (eventualmente null)
+			this.writeString(msg.getTarget());
+			this.writeString(msg.getAfter());
+			break;
+		case REGISTER:
+			this.writeString(msg.getLanguage());
+			break;
+		case LOGIN:
+		case FRIEND_LIST:
+		case CHATROOM_LIST:
+		case SUGGEST_FRIENDS:
+			break;
+		default:
+			throw new MalformedMessageException();
+		}
+
+		// infine l'eventuale stub, serializzato
+		if (msg.getStub() == null) {
+			this.writeVarint(0);
+		} else {
+			byte[] stub;
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream objOut = new ObjectOutputStream(bytes);
+				objOut.writeObject(msg.getStub());
+				objOut.close();
+				stub = bytes.toByteArray();
+			} catch (IOException e) {
+				throw new MalformedMessageException();
+			}
+			this.writeVarint(stub.length);
+			this.writeBytes(stub, 0, stub.length);
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, codifica i campi di una risposta
+	 */
+	private void writeResponse(ResponseMessage msg) throws NotAFieldException {
+		this.writeVarint(msg.TypeOfResponse().getCode());
+		this.writeVarint(msg.TypeOfRequest().getCode());
+		this.writeString(msg.getSender());
+		this.writeString(msg.getReceiver());
+		if (msg.TypeOfResponse() != ResponseCode.OP_OK)
+			return;
+		switch (msg.TypeOfRequest()) {
+		case CHATROOM_LIST:
+		case FRIEND_LIST:
+		case SUGGEST_FRIENDS:
+		case MUTUAL_FRIENDS:
+		case FRIENDSHIP_PATH: {
+			String[] list = msg.getList();
+			this.writeVarint(list.length);
+			for (String s : list)
+				this.writeString(s);
+			break;
+		}
+		case SEARCH_USERS: {
+			// ogni nickname seguito dal suo stato
+			String[] list = msg.getList();
+			boolean[] online = msg.getOnlineList();
+			this.writeVarint(list.length);
+			for (int i = 0; i < list.length; i++) {
+				this.writeString(list[i]);
+				this.writeByte(online[i] ? 1 : 0);
+			}
+			break;
+		}
+		case OPEN_P2PCONN:
+		case FILE2FRIEND:
+			this.writeAddress(msg.getPeerAddress());
+			this.writeVarint(msg.getPeerPort());
+			break;
+		case FRIENDSHIP:
+		case LOOKUP:
+			this.writeByte(msg.isOnline() ? 1 : 0);
+			break;
+		case CREATE_CHATROOM:
+		case ADD_TO_CHATROOM:
+			this.writeAddress(msg.getChatroomAddress());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, codifica i campi di un messaggio di testo
+	 */
+	private void writeText(TextMessage msg) {
+		this.writeString(msg.getSender());
+		this.writeString(msg.getReceiver());
+		this.writeString(msg.getMessage());
+	}
+
+	/**
+	 * Funzione di utilita' privata, garantisce che nel buffer di codifica ci
+	 * sia spazio per altri n byte
+	 */
+	private void ensure(int n) {
+		if (this.outSize + n > this.out.length)
+			this.out = Arrays.copyOf(this.out, Math.max(this.out.length * 2, this.outSize + n));
+	}
+
+	private void writeByte(int b) {
+		this.ensure(1);
+		this.out[this.outSize++] = (byte) b;
+	}
+
+	private void writeBytes(byte[] b, int off, int len) {
+		this.ensure(len);
+		System.arraycopy(b, off, this.out, this.outSize, len);
+		this.outSize += len;
+	}
+
+	private void writeVarint(int v) {
+		this.ensure(5);
+		while ((v & ~0x7F) != 0) {
+			this.out[this.outSize++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		this.out[this.outSize++] = (byte) v;
+	}
+
+	private void writeAddress(InetAddress addr) {
+		byte[] raw = addr.getAddress();
+		this.writeByte(raw.length);
+		this.writeBytes(raw, 0, raw.length);
+	}
+
+	/**
+	 * Funzione di utilita' privata, codifica una stringa in UTF-8
+	 * direttamente nel buffer, senza allocare un array intermedio
+	 */
+	private void writeString(String s) {
+		if (s == null) {
+			this.writeVarint(0);
+			return;
+		}
+		// calcolo la lunghezza in byte UTF-8
+		int n = s.length();
+		int length = 0;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				length += 1;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else
+				length += 3;
+		}
+		this.writeVarint(length + 1);
+		this.ensure(length);
+		byte[] b = this.out;
+		int pos = this.outSize;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				b[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				b[pos++] = (byte) (0xC0 | (c >> 6));
+				b[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				b[pos++] = (byte) (0xF0 | (cp >> 18));
+				b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				b[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else {
+				// i surrogati spaiati vengono codificati come tali, il decoder
+				// li sostituira' con il carattere di rimpiazzo
+				b[pos++] = (byte) (0xE0 | (c >> 12));
+				b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				b[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		this.outSize = pos;
+	}
+
+	/* DECODIFICA */
+
+	/**
+	 * Legge un frame da uno stream bloccante
+	 *
+	 * @param stream
+	 *            lo stream da cui leggere
+	 * @return il contenuto del frame, lunghezza esclusa
+	 * @throws EOFException
+	 *             se lo stream viene chiuso prima dell'inizio del frame
+	 * @throws IOException
+	 *             in caso di errore nella lettura o di frame non valido
+	 */
+	public byte[] readFrame(InputStream stream) throws IOException {
+		int first = stream.read();
+		if (first < 0)
+			throw new EOFException();
+		return this.readFrame(first, stream);
+	}
+
+	/**
+	 * Legge un frame da uno stream bloccante, di cui il primo byte e' gia'
+	 * stato letto dal chiamante (ad esempio per attendere l'arrivo di un frame
+	 * con un timeout diverso da quello usato per il resto del frame)
+	 *
+	 * @param first
+	 *            il primo byte del frame
+	 * @param stream
+	 *            lo stream da cui leggere il resto del frame
+	 * @return il contenuto del frame, lunghezza esclusa
+	 * @throws IOException
+	 *             in caso di errore nella lettura o di frame non valido
+	 */
+	public byte[] readFrame(int first, InputStream stream) throws IOException {
+		// lunghezza del contenuto
+		int length = readLength(first, stream);
+
+		// contenuto
+		byte[] payload = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = stream.read(payload, read, length - read);
+			if (n < 0)
+				throw new EOFException();
+			read += n;
+		}
+		return payload;
+	}
+
+	/**
+	 * Legge da uno stream bloccante la lunghezza in testa ad un frame, di cui
+	 * il primo byte e' gia' stato letto dal chiamante
+	 *
+	 * @param first
+	 *            il primo byte del frame
+	 * @param stream
+	 *            lo stream da cui leggere il resto della lunghezza
+	 * @return la lunghezza del contenuto del frame
+	 * @throws IOException
+	 *             in caso di errore nella lettura o di lunghezza non valida
+	 */
+	public static int readLength(int first, InputStream stream) throws IOException {
+		int length = 0;
+		int shift = 0;
+		int b = first;
+		while (true) {
+			if (b < 0)
+				throw new EOFException();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+			shift += 7;
+			if (shift > 28)
+				throw new IOException("Lunghezza del frame non valida");
+			b = stream.read();
+		}
+		if (length < 0 || length > MAX_FRAME)
+			throw new IOException("Frame troppo grande");
+		return length;
+	}
+
+	/**
+	 * Restituisce la lunghezza complessiva (lunghezza compresa) del primo
+	 * frame contenuto in un buffer, se il buffer lo contiene per intero
+	 *
+	 * @param buf
+	 *            il buffer
+	 * @param off
+	 *            l'inizio del frame nel buffer
+	 * @param len
+	 *            il numero di byte validi a partire da off
+	 * @return la lunghezza del frame, -1 se il frame non e' ancora completo
+	 * @throws MalformedMessageException
+	 *             se la lunghezza del frame non e' valida
+	 */
+	public static int frameLength(byte[] buf, int off, int len) throws MalformedMessageException {
+		int length = 0;
+		int shift = 0;
+		int i = 0;
+		while (true) {
+			if (i >= len)
+				return -1;
+			int b = buf[off + i++] & 0xFF;
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+			shift += 7;
+			if (shift > 28)
+				throw new MalformedMessageException();
+		}
+		if (length < 0 || length > MAX_FRAME)
+			throw new MalformedMessageException();
+		if (len - i < length)
+			return -1;
+		return i + length;
+	}
+
+	/**
+	 * Decodifica un frame completo contenuto in un buffer, lunghezza compresa
+	 * (vedi frameLength)
+	 *
+	 * @param buf
+	 *            il buffer
+	 * @param off
+	 *            l'inizio del frame
+	 * @param frameLen
+	 *            la lunghezza complessiva del frame
+	 * @return il messaggio decodificato
+	 * @throws MalformedMessageException
+	 *             se il frame non contiene un messaggio valido
+	 */
+	public Message decodeFrame(byte[] buf, int off, int frameLen) throws MalformedMessageException {
+		int header = headerLength(buf, off, frameLen);
+		return this.decode(buf, off + header, frameLen - header);
+	}
+
+	/**
+	 * Restituisce il canale di un frame completo di una connessione
+	 * multiplexed contenuto in un buffer, lunghezza compresa
+	 *
+	 * @param buf
+	 *            il buffer
+	 * @param off
+	 *            l'inizio del frame
+	 * @param frameLen
+	 *            la lunghezza complessiva del frame
+	 * @return il canale del frame
+	 * @throws MalformedMessageException
+	 *             se il frame non contiene un canale valido
+	 */
+	public static int frameChannel(byte[] buf, int off, int frameLen) throws MalformedMessageException {
+		int header = headerLength(buf, off, frameLen);
+		if (header >= frameLen || !isChannel(buf[off + header] & 0xFF))
+			throw new MalformedMessageException();
+		return buf[off + header] & 0xFF;
+	}
+
+	/**
+	 * Decodifica un frame completo di una connessione multiplexed contenuto in
+	 * un buffer, lunghezza e canale compresi (vedi frameChannel). Il messaggio
+	 * restituito porta l'identificativo di richiesta del frame
+	 *
+	 * @param buf
+	 *            il buffer
+	 * @param off
+	 *            l'inizio del frame
+	 * @param frameLen
+	 *            la lunghezza complessiva del frame
+	 * @return il messaggio decodificato
+	 * @throws MalformedMessageException
+	 *             se il frame non contiene un messaggio valido
+	 */
+	public Message decodeChannelFrame(byte[] buf, int off, int frameLen) throws MalformedMessageException {
+		int header = headerLength(buf, off, frameLen);
+		return this.decodeChannel(buf, off + header, frameLen - header);
+	}
+
+	/**
+	 * Decodifica il contenuto di un frame di una connessione multiplexed,
+	 * lunghezza esclusa: il canale, che viene ignorato, l'identificativo della
+	 * richiesta ed il messaggio
+	 *
+	 * @param buf
+	 *            il buffer
+	 * @param off
+	 *            l'inizio del contenuto, cioe' il byte del canale
+	 * @param len
+	 *            la lunghezza del contenuto
+	 * @return il messaggio decodificato, con il suo identificativo di richiesta
+	 * @throws MalformedMessageException
+	 *             se il contenuto non e' un messaggio valido
+	 */
+	public Message decodeChannel(byte[] buf, int off, int len) throws MalformedMessageException {
+		if (buf == null)
+			throw new NullPointerException();
+		if (len < 2 || !isChannel(buf[off] & 0xFF))
+			throw new MalformedMessageException();
+		// l'identificativo, al massimo 5 byte dopo il canale
+		int requestId = 0;
+		int shift = 0;
+		int pos = off + 1;
+		int end = off + len;
+		while (true) {
+			if (pos >= end || shift > 28)
+				throw new MalformedMessageException();
+			int b = buf[pos++] & 0xFF;
+			requestId |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+			shift += 7;
+		}
+		if (requestId < 0)
+			throw new MalformedMessageException();
+		Message msg = this.decode(buf, pos, end - pos);
+		msg.setRequestId(requestId);
+		return msg;
+	}
+
+	/**
+	 * Restituisce true se il numero indicato e' un canale delle connessioni
+	 * multiplexed
+	 *
+	 * @param channel
+	 *            il numero del canale
+	 * @return il valore di verita' di "channel e' un canale"
+	 */
+	public static boolean isChannel(int channel) {
+		return channel == CONTROL_CHANNEL || channel == MESSAGE_CHANNEL;
+	}
+
+	/**
+	 * Funzione di utilita' privata, restituisce il numero di byte della
+	 * lunghezza in testa ad un frame completo
+	 */
+	private static int headerLength(byte[] buf, int off, int frameLen) {
+		int header = 0;
+		while (header < frameLen && (buf[off + header] & 0x80) != 0)
+			header++;
+		return header + 1;
+	}
+
+	/**
+	 * Decodifica il contenuto di un frame, lunghezza esclusa. Se il messaggio
+	 * e' una richiesta con uno stub allegato, lo stub e' accessibile tramite
+	 * RequestMessage.getStub
+	 *
+	 * @param buf
+	 *            il buffer
+	 * @param off
+	 *            l'inizio del contenuto
+	 * @param len
+	 *            la lunghezza del contenuto
+	 * @return il messaggio decodificato
+	 * @throws MalformedMessageException
+	 *             se il contenuto non e' un messaggio valido
+	 */
+	public Message decode(byte[] buf, int off, int len) throws MalformedMessageException {
+		if (buf == null)
+			throw new NullPointerException();
+		this.in = buf;
+		this.inPos = off;
+		this.inEnd = off + len;
+		try {
+			Message msg;
+			int type = this.readByte();
+			switch (type) {
+			case Message.REQUEST:
+				msg = this.readRequest();
+				break;
+			case Message.RESPONSE:
+				msg = this.readResponse();
+				break;
+			case Message.TEXT:
+				msg = this.readText();
+				break;
+			default:
+				throw new MalformedMessageException();
+			}
+			return msg;
+		} catch (NoSuchCodeException | NullPointerException | UnknownHostException e) {
+			// codice sconosciuto o campo obbligatorio mancante
+			throw new MalformedMessageException();
+		} finally {
+			this.in = null;
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, decodifica una richiesta
+	 */
+	private RequestMessage readRequest() throws MalformedMessageException, NoSuchCodeException {
+		RequestCode request = RequestCode.DescriptionOf(this.readVarint());
+		String sender = this.readString();
+		String receiver = this.readString();
+		RequestMessage msg;
+		switch (request) {
+		case CHATROOM_MSG: {
+			TextMessage text = this.readText();
+			msg = RequestMessage.BuildMessageToChatroom(sender, this.readString(), text);
+			break;
+		}
+		case MSG2FRIEND: {
+			TextMessage text = this.readText();
+			msg = RequestMessage.BuildMessageToFriend(sender, this.readString(), text);
+			break;
+		}
+		case CLOSE_CHAT:
+			msg = RequestMessage.BuildDeleteChatroom(sender, this.readString());
+			break;
+		case CREATE_CHATROOM:
+			msg = RequestMessage.BuildCreateChatroom(sender, this.readString());
+			break;
+		case ADD_TO_CHATROOM:
+			msg = RequestMessage.BuildJoinChatroom(sender, this.readString());
+			break;
+		case FILE2FRIEND:
+			msg = RequestMessage.BuildFileToFriend(sender, this.readString());
+			break;
+		case FRIENDSHIP:
+			msg = RequestMessage.BuildFriendship(sender, this.readString());
+			break;
+		case LOOKUP:
+			msg = RequestMessage.BuildLookUp(sender, this.readString());
+			break;
+		case MUTUAL_FRIENDS:
+			msg = RequestMessage.BuildMutualFriends(sender, this.readString());
+			break;
+		case FRIENDSHIP_PATH:
+			msg = RequestMessage.BuildFriendshipPath(sender, this.readString());
+			break;
+		case SEARCH_USERS: {
+			String prefix = this.readString();
+			msg = RequestMessage.BuildSearchUsers(sender, prefix, this.readString());
+			break;
+		}
+		case OPEN_P2PCONN:
+			msg = RequestMessage.BuildOpenConnection(this.readString(), receiver);
+			break;
+		case REGISTER:
+			msg = RequestMessage.BuildRegister(sender, this.readString());
+			break;
+		case LOGIN:
+			msg = RequestMessage.BuildLogin(sender);
+			break;
+		case FRIEND_LIST:
+			msg = RequestMessage.BuildFriendList(sender);
+			break;
+		case CHATROOM_LIST:
+			msg = RequestMessage.BuildChatroomList(sender);
+			break;
+		case SUGGEST_FRIENDS:
+			msg = RequestMessage.BuildSuggestFriends(sender);
+			break;
+		default:
+			throw new MalformedMessageException();
+		}
+
+		// lo stub eventualmente allegato
+		int stubLength = this.readVarint();
+		if (stubLength > 0) {
+			this.check(stubLength);
+			try {
+				ObjectInputStream objIn = new ObjectInputStream(
+						new ByteArrayInputStream(this.in, this.inPos, stubLength));
+				msg.setStub((Notifier) objIn.readObject());
+			} catch (IOException | ClassNotFoundException | ClassCastException e) {
+				throw new MalformedMessageException();
+			}
+			this.inPos += stubLength;
+		}
+		return msg;
+	}
+
+	/**
+	 * Funzione di utilita' privata, decodifica una risposta
+	 */
+	private ResponseMessage readResponse()
+			throws MalformedMessageException, NoSuchCodeException, UnknownHostException {
+		ResponseCode response = ResponseCode.DescriptionOf(this.readVarint());
+		RequestCode request = RequestCode.DescriptionOf(this.readVarint());
+		String sender = this.readString();
+		String receiver = this.readString();
+		if (response != ResponseCode.OP_OK)
+			return ResponseMessage.BuildError(response, request, receiver);
+
+		switch (request) {
+		case CHATROOM_LIST:
+		case FRIEND_LIST:
+		case SUGGEST_FRIENDS:
+		case MUTUAL_FRIENDS:
+		case FRIENDSHIP_PATH: {
+			int n = this.readVarint();
+			// ogni nome occupa almeno un byte
+			this.check(n);
+			String[] list = new String[n];
+			for (int i = 0; i < n; i++)
+				list[i] = this.readString();
+			return ResponseMessage.BuildListAck(receiver, request, list);
+		}
+		case SEARCH_USERS: {
+			int n = this.readVarint();
+			// ogni utente occupa almeno due byte
+			this.check(2 * n);
+			String[] list = new String[n];
+			boolean[] online = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				list[i] = this.readString();
+				online[i] = this.readByte() != 0;
+			}
+			return ResponseMessage.BuildSearchAck(receiver, list, online);
+		}
+		case OPEN_P2PCONN:
+		case FILE2FRIEND: {
+			InetAddress address = this.readAddress();
+			int port = this.readVarint();
+			return ResponseMessage.BuildConnectionP2PAck(sender, receiver, request, address, port);
+		}
+		case FRIENDSHIP:
+		case LOOKUP:
+			return ResponseMessage.BuildOnlineAck(receiver, request, this.readByte() != 0);
+		case CREATE_CHATROOM:
+		case ADD_TO_CHATROOM:
+			return ResponseMessage.BuildChatroomAck(receiver, request, this.readAddress());
+		default:
+			return ResponseMessage.BuildAck(receiver, request);
+		}
+	}
+
+	/**
+	 * Funzione di utilita' privata, decodifica un messaggio di testo
+	 */
+	private TextMessage readText() throws MalformedMessageException {
+		String sender = this.readString();
+		String receiver = this.readString();
+		String text = this.readString();
+		return TextMessage.BuildTextMessage(sender, receiver, text);
+	}
+
+	/**
+	 * Funzione di utilita' privata, verifica che nel contenuto restino almeno
+	 * n byte da decodificare
+	 */
+	private void check(int n) throws MalformedMessageException {
+		if (n < 0 || this.inEnd - this.inPos < n)
+			throw new MalformedMessageException();
+	}
+
+	private int readByte() throws MalformedMessageException {
+		this.check(1);
+		return this.in[this.inPos++] & 0xFF;
+	}
+
+	private int readVarint() throws MalformedMessageException {
+		int v = 0;
+		int shift = 0;
+		while (true) {
+			int b = this.readByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+			shift += 7;
+			if (shift > 28)
+				throw new MalformedMessageException();
+		}
+	}
+
+	private InetAddress readAddress() throws MalformedMessageException, UnknownHostException {
+		int n = this.readByte();
+		this.check(n);
+		byte[] raw = Arrays.copyOfRange(this.in, this.inPos, this.inPos + n);
+		this.inPos += n;
+		return InetAddress.getByAddress(raw);
+	}
+
+	private String readString() throws MalformedMessageException {
+		int length = this.readVarint();
+		if (length == 0)
+			return null;
+		length--;
+		this.check(length);
+		String s = new String(this.in, this.inPos, length, StandardCharsets.UTF_8);
+		this.inPos += length;
+		return s;
+	}
+
+	/**
+	 * Funzione di utilita' privata, numero di byte occupati da un varint
+	 */
+	private static int varintSize(int v) {
+		int size = 1;
+		while ((v & ~0x7F) != 0) {
+			size++;
+			v >>>= 7;
+		}
+		return size;
+	}
+
+}
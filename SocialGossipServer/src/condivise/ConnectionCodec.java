@@ -0,0 +1,797 @@
+package condivise;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import exceptions.MalformedMessageException;
+
+/**
+ * Codifica e decodifica dei messaggi su una singola connessione, per tutta la
+ * durata della connessione stessa. Viene creato all'apertura della connessione
+ * (prima ancora di leggere la riga con la porta ed i formati offerti, vedi
+ * WireProtocol) e mantiene lo stream bufferizzato da cui vengono letti tutti i
+ * messaggi successivi ed i buffer riutilizzati per le letture e le scritture,
+ * al posto degli ObjectInputStream, BufferedReader e ObjectOutputStream creati
+ * ad ogni richiesta. Poiche' lo stream bufferizzato e' unico, i byte letti in
+ * anticipo (ad esempio la richiesta che segue la riga della porta) non vanno
+ * piu' persi.
+ *
+ * Nel formato JSON le richieste mantengono la forma di sempre, quella prodotta
+ * da un ObjectOutputStream nuovo per ogni richiesta (header dello stream, size
+ * e stringa JSON, eventualmente lo stub), che viene pero' scritta e letta
+ * direttamente senza creare gli stream di oggetti; solo lo stub RMI di login e
+ * registrazione passa ancora per un ObjectOutputStream/ObjectInputStream. Le
+ * risposte ed i messaggi sono la size seguita dal messaggio JSON, ognuno su una
+ * riga. Nel formato binario ogni messaggio e' un frame di BinaryCodec.
+ *
+ * Le letture attendono il primo byte di un messaggio con il timeout di attesa,
+ * dopo di che leggono il resto del messaggio con il timeout di frame (vedi
+ * setTimeouts): un timeout durante l'attesa viene segnalato con una
+ * SocketTimeoutException e non consuma alcun byte, mentre un timeout a
+ * messaggio iniziato rende la connessione inutilizzabile e viene segnalato con
+ * una IOException.
+ *
+ * Su una connessione multiplexed (vedi WireProtocol.MULTIPLEXED) il codec
+ * creato all'apertura diventa quello del canale di controllo (vedi
+ * setMultiplexed), mentre il codec del canale dei messaggi si ottiene con
+ * openChannel. I codec dei due canali condividono gli stream della
+ * connessione: ogni lettura restituisce il prossimo messaggio del proprio
+ * canale, ed un frame letto dal socket per conto di un canale ma destinato
+ * all'altro viene conservato per il codec di quest'ultimo, che lo trovera'
+ * alla sua lettura successiva. Un solo thread alla volta legge dal socket,
+ * gli altri attendono che il frame del proprio canale venga letto; se i frame
+ * sono letti da altri (il Reactor) vengono invece consegnati con deliver.
+ *
+ * Un oggetto di questa classe non e' thread safe, ma i codec dei canali di
+ * una stessa connessione multiplexed possono essere usati da thread diversi.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public class ConnectionCodec {
+
+	// dimensione del buffer dello stream in ingresso
+	private static final int BUFFER_SIZE = 8192;
+
+	// l'header con cui inizia ogni ObjectOutputStream
+	private static final byte[] STREAM_HEADER = { (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8),
+			(byte) ObjectStreamConstants.STREAM_MAGIC, (byte) (ObjectStreamConstants.STREAM_VERSION >> 8),
+			(byte) ObjectStreamConstants.STREAM_VERSION };
+
+	// il socket della connessione
+	private Socket socket;
+
+	// il formato dei messaggi della connessione
+	private WireProtocol protocol;
+
+	// lo stream bufferizzato in ingresso, creato alla prima lettura
+	private BufferedInputStream buffered;
+
+	// lettura dei tipi primitivi da buffered
+	private DataInputStream in;
+
+	// lo stream in uscita, creato alla prima scrittura
+	private OutputStream out;
+
+	// buffer in cui vengono preparate le richieste prima della scrittura
+	private ByteArrayOutputStream scratch;
+
+	// scrittura dei tipi primitivi in scratch
+	private DataOutputStream scratchData;
+
+	// buffer riutilizzato per le righe ed i frame in ingresso
+	private byte[] buffer;
+
+	// l'handler dei messaggi JSON e binari della connessione
+	private MessageHandler handler;
+
+	// timeout di attesa del primo byte di un messaggio
+	private int pollTimeout;
+
+	// timeout per il resto di un messaggio gia' iniziato
+	private int frameTimeout;
+
+	// numero massimo di messaggi conservati per il canale dei messaggi, se
+	// nessuno li legge
+	private static final int MAX_PENDING = 64;
+
+	// il canale di questo codec, BinaryCodec.NO_CHANNEL se la connessione non
+	// e' multiplexed
+	private int channel;
+
+	// il codec che possiede gli stream della connessione multiplexed (quello
+	// del canale di controllo), null se la connessione non e' multiplexed
+	private ConnectionCodec owner;
+
+	// solo per l'owner: false se i frame non vengono letti dal socket ma
+	// consegnati tramite deliver
+	private boolean readsSocket;
+
+	// solo per l'owner: true mentre un thread legge un frame dal socket
+	private boolean reading;
+
+	// solo per l'owner: i messaggi gia' letti per ciascun canale
+	private ArrayDeque<Message> controlInbox;
+	private ArrayDeque<Message> messageInbox;
+
+	// solo per l'owner: l'errore che ha reso inutilizzabile la connessione
+	private IOException failure;
+
+	// lock delle scritture sugli stream di questo codec
+	private Object writeLock;
+
+	public ConnectionCodec(Socket socket) {
+		// COSTRUTTORE
+		this(socket, WireProtocol.JSON);
+	}
+
+	public ConnectionCodec(Socket socket, WireProtocol protocol) {
+		// COSTRUTTORE
+		if (socket == null || protocol == null)
+			throw new NullPointerException();
+		this.socket = socket;
+		this.protocol = protocol;
+		this.scratch = new ByteArrayOutputStream(256);
+		this.scratchData = new DataOutputStream(this.scratch);
+		this.buffer = new byte[256];
+		this.handler = new MessageHandler();
+		this.channel = BinaryCodec.NO_CHANNEL;
+		this.writeLock = new Object();
+	}
+
+	/**
+	 * Restituisce il socket della connessione
+	 *
+	 * @return il socket
+	 */
+	public Socket getSocket() {
+		return this.socket;
+	}
+
+	/**
+	 * Restituisce il formato dei messaggi della connessione
+	 *
+	 * @return il formato
+	 */
+	public WireProtocol getProtocol() {
+		return this.protocol;
+	}
+
+	/**
+	 * Setter per il formato dei messaggi, una volta concluso l'handshake
+	 *
+	 * @param protocol
+	 *            il formato negoziato
+	 */
+	public void setProtocol(WireProtocol protocol) {
+		if (protocol == null)
+			throw new NullPointerException();
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Rende la connessione multiplexed, una volta concluso l'handshake: questo
+	 * codec diventa quello del canale di controllo
+	 *
+	 * @param readsSocket
+	 *            true se i frame vengono letti dal socket dai codec dei
+	 *            canali, false se vengono letti da altri e consegnati tramite
+	 *            deliver
+	 * @throws IllegalStateException
+	 *             se il formato della connessione non e' quello binario
+	 */
+	public void setMultiplexed(boolean readsSocket) {
+		if (this.protocol != WireProtocol.BINARY)
+			throw new IllegalStateException();
+		this.channel = BinaryCodec.CONTROL_CHANNEL;
+		this.owner = this;
+		this.readsSocket = readsSocket;
+		this.controlInbox = new ArrayDeque<Message>();
+		this.messageInbox = new ArrayDeque<Message>();
+	}
+
+	/**
+	 * Restituisce true se la connessione e' multiplexed
+	 *
+	 * @return il valore di verita' di "la connessione e' multiplexed"
+	 */
+	public boolean isMultiplexed() {
+		return this.owner != null;
+	}
+
+	/**
+	 * Restituisce il canale di questo codec
+	 *
+	 * @return il canale, BinaryCodec.NO_CHANNEL se la connessione non e'
+	 *         multiplexed
+	 */
+	public int getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Restituisce il codec di un altro canale della stessa connessione
+	 * multiplexed, con i propri timeout ed il proprio handler dei messaggi
+	 *
+	 * @param channel
+	 *            il canale, vedi BinaryCodec
+	 * @return il codec del canale
+	 * @throws IllegalStateException
+	 *             se la connessione non e' multiplexed
+	 * @throws IllegalArgumentException
+	 *             se il canale non esiste
+	 */
+	public ConnectionCodec openChannel(int channel) {
+		if (this.owner == null)
+			throw new IllegalStateException();
+		if (!BinaryCodec.isChannel(channel))
+			throw new IllegalArgumentException();
+		ConnectionCodec codec = new ConnectionCodec(this.socket, this.protocol);
+		codec.channel = channel;
+		codec.owner = this.owner;
+		return codec;
+	}
+
+	/**
+	 * Consegna un messaggio letto da altri (vedi setMultiplexed) al codec del
+	 * suo canale
+	 *
+	 * @param channel
+	 *            il canale del messaggio
+	 * @param m
+	 *            il messaggio
+	 * @throws IllegalStateException
+	 *             se la connessione non e' multiplexed
+	 */
+	public void deliver(int channel, Message m) {
+		if (this.owner == null)
+			throw new IllegalStateException();
+		if (m == null)
+			throw new NullPointerException();
+		this.owner.pending(channel, m);
+	}
+
+	/**
+	 * Segnala che la connessione multiplexed non e' piu' utilizzabile: le
+	 * letture in attesa e quelle successive lanciano un'eccezione
+	 *
+	 * @param cause
+	 *            l'errore della connessione
+	 */
+	public void fail(IOException cause) {
+		if (this.owner == null)
+			return;
+		synchronized (this.owner) {
+			if (this.owner.failure == null)
+				this.owner.failure = cause;
+			this.owner.notifyAll();
+		}
+	}
+
+	/**
+	 * Imposta i timeout delle letture (0 per attendere indefinitamente)
+	 *
+	 * @param pollTimeout
+	 *            il timeout di attesa del primo byte di un messaggio
+	 * @param frameTimeout
+	 *            il timeout per il resto di un messaggio gia' iniziato
+	 * @throws IOException
+	 *             se non e' possibile impostare il timeout sul socket
+	 */
+	public void setTimeouts(int pollTimeout, int frameTimeout) throws IOException {
+		// sulle connessioni multiplexed il timeout del socket viene impostato
+		// ad ogni lettura, da chi legge
+		if (this.owner == null)
+			this.socket.setSoTimeout(pollTimeout);
+		this.pollTimeout = pollTimeout;
+		this.frameTimeout = frameTimeout;
+	}
+
+	/* LETTURA */
+
+	/**
+	 * Legge una riga di testo, ad esempio quella dell'handshake
+	 *
+	 * @return la riga senza il terminatore, null se la connessione e' stata
+	 *         chiusa
+	 * @throws SocketTimeoutException
+	 *             se non e' arrivato alcun byte entro il timeout di attesa
+	 * @throws IOException
+	 *             in caso di errore nella lettura
+	 */
+	public String readLine() throws IOException {
+		try {
+			this.begin();
+		} catch (EOFException e) {
+			return null;
+		}
+		try {
+			return this.line();
+		} finally {
+			this.end();
+		}
+	}
+
+	/**
+	 * Legge una richiesta inviata da un client nel formato della connessione.
+	 * Lo stub RMI eventualmente allegato e' accessibile tramite
+	 * RequestMessage.getStub
+	 *
+	 * @return il messaggio ricevuto
+	 * @throws SocketTimeoutException
+	 *             se non e' arrivato alcun byte entro il timeout di attesa
+	 * @throws EOFException
+	 *             se la connessione e' stata chiusa
+	 * @throws IOException
+	 *             in caso di errore nella lettura, dopo il quale la
+	 *             connessione non e' piu' utilizzabile
+	 * @throws MalformedMessageException
+	 *             se il messaggio ricevuto non e' valido
+	 */
+	public Message readRequest() throws IOException, MalformedMessageException {
+		if (this.owner != null)
+			return this.owner.receive(this);
+		this.begin();
+		try {
+			if (this.protocol == WireProtocol.BINARY)
+				return this.frame();
+
+			// header dello stream e size del messaggio, scritta dal client
+			// come unico dato primitivo del blocco
+			for (int i = 0; i < STREAM_HEADER.length; i++)
+				if (this.in.readByte() != STREAM_HEADER[i])
+					throw new StreamCorruptedException("header non valido");
+			if (this.in.readByte() != ObjectStreamConstants.TC_BLOCKDATA
+					|| this.in.readUnsignedByte() != Integer.BYTES)
+				throw new StreamCorruptedException("size non valida");
+			int size = this.in.readInt();
+
+			// la stringa JSON della richiesta
+			String request;
+			byte tc = this.in.readByte();
+			if (tc == ObjectStreamConstants.TC_STRING)
+				request = this.in.readUTF();
+			else if (tc == ObjectStreamConstants.TC_LONGSTRING)
+				request = this.longString();
+			else
+				throw new StreamCorruptedException("richiesta non valida");
+
+			// se la lunghezza del messaggio non corrisponde allora segue
+			// uno stub
+			Notifier stub = null;
+			if (size > request.length())
+				stub = this.stub();
+
+			Message msg = this.handler.JSONString2Message(request);
+			if (msg.getType() == Message.REQUEST)
+				((RequestMessage) msg).setStub(stub);
+			return msg;
+		} catch (SocketTimeoutException e) {
+			throw new IOException("Messaggio incompleto", e);
+		} finally {
+			this.end();
+		}
+	}
+
+	/**
+	 * Legge una risposta o un messaggio inviato dal server nel formato della
+	 * connessione
+	 *
+	 * @return il messaggio ricevuto
+	 * @throws SocketTimeoutException
+	 *             se non e' arrivato alcun byte entro il timeout di attesa
+	 * @throws EOFException
+	 *             se la connessione e' stata chiusa
+	 * @throws IOException
+	 *             in caso di errore nella lettura, dopo il quale la
+	 *             connessione non e' piu' utilizzabile
+	 * @throws MalformedMessageException
+	 *             se il messaggio ricevuto non e' valido
+	 */
+	public Message readMessage() throws IOException, MalformedMessageException {
+		if (this.owner != null)
+			return this.owner.receive(this);
+		this.begin();
+		try {
+			if (this.protocol == WireProtocol.BINARY)
+				return this.frame();
+
+			// leggo la size e poi il messaggio vero e proprio
+			String size = this.line();
+			String msg = this.line();
+			if (size == null || msg == null)
+				throw new EOFException();
+			try {
+				if (Long.parseLong(size) != msg.length())
+					System.out.println("Lunghezza messaggio e size non corrispondono");
+				// ignoro questo errore, e vedo se il messaggio e' comunque
+				// sensato
+			} catch (NumberFormatException e) {
+				throw new MalformedMessageException();
+			}
+			return this.handler.JSONString2Message(msg);
+		} catch (SocketTimeoutException e) {
+			throw new IOException("Messaggio incompleto", e);
+		} finally {
+			this.end();
+		}
+	}
+
+	/* SCRITTURA */
+
+	/**
+	 * Invia una richiesta nel formato della connessione, compreso lo stub RMI
+	 * di RequestMessage.getStub se presente
+	 *
+	 * @param m
+	 *            la richiesta da inviare
+	 * @throws IOException
+	 *             in caso di errore nella scrittura
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public void writeRequest(RequestMessage m) throws IOException, MalformedMessageException {
+		if (m == null)
+			throw new NullPointerException();
+		if (this.protocol == WireProtocol.BINARY) {
+			this.writeBytes(this.handler.getBinaryCodec().encode(m, this.channel));
+			return;
+		}
+
+		String msg = this.handler.Message2JSONString(m);
+		Notifier stub = m.getStub();
+		this.scratch.reset();
+		boolean written = false;
+		if (stub == null) {
+			// gli stessi byte di un ObjectOutputStream nuovo su cui vengono
+			// scritte la size e la stringa
+			try {
+				this.scratchData.write(STREAM_HEADER);
+				this.scratchData.writeByte(ObjectStreamConstants.TC_BLOCKDATA);
+				this.scratchData.writeByte(Integer.BYTES);
+				this.scratchData.writeInt(msg.length());
+				this.scratchData.writeByte(ObjectStreamConstants.TC_STRING);
+				this.scratchData.writeUTF(msg);
+				written = true;
+			} catch (UTFDataFormatException e) {
+				// stringa troppo lunga per TC_STRING, la scrivo come sempre
+				this.scratch.reset();
+			}
+		}
+		if (!written) {
+			// devo mandare la size del messaggio se non devo inviare anche lo
+			// stub, altrimenti la size + 1
+			ObjectOutputStream objOut = new ObjectOutputStream(this.scratch);
+			objOut.writeInt(stub == null ? msg.length() : msg.length() + 1);
+			objOut.writeObject(msg);
+			if (stub != null)
+				objOut.writeObject(stub);
+			objOut.flush();
+		}
+		this.output().write(this.scratch.toByteArray(), 0, this.scratch.size());
+		this.output().flush();
+	}
+
+	/**
+	 * Invia una risposta o un messaggio nel formato della connessione, con una
+	 * sola write
+	 *
+	 * @param m
+	 *            il messaggio da inviare
+	 * @throws IOException
+	 *             in caso di errore nella scrittura
+	 * @throws MalformedMessageException
+	 *             se il messaggio non contiene i campi corretti per il suo tipo
+	 */
+	public void writeMessage(Message m) throws IOException, MalformedMessageException {
+		if (m == null)
+			throw new NullPointerException();
+		this.writeBytes(this.handler.Message2Bytes(m, this.protocol, this.channel));
+	}
+
+	/**
+	 * Invia dei byte gia' codificati, ad esempio la risposta dell'handshake.
+	 * Su una connessione multiplexed i byte devono essere frame completi, e
+	 * vengono scritti senza mescolarsi con quelli degli altri canali
+	 *
+	 * @param data
+	 *            i byte da inviare
+	 * @throws IOException
+	 *             in caso di errore nella scrittura
+	 */
+	public void writeBytes(byte[] data) throws IOException {
+		if (data == null)
+			throw new NullPointerException();
+		ConnectionCodec target = this.owner == null ? this : this.owner;
+		synchronized (target.writeLock) {
+			target.output().write(data);
+			target.output().flush();
+		}
+	}
+
+	/* UTILITY PRIVATE */
+
+	/**
+	 * Attende il primo byte di un messaggio con il timeout di attesa, senza
+	 * consumarlo, dopo di che imposta il timeout di frame per il resto del
+	 * messaggio
+	 *
+	 * @throws SocketTimeoutException
+	 *             se non e' arrivato alcun byte
+	 * @throws EOFException
+	 *             se la connessione e' stata chiusa
+	 */
+	private void begin() throws IOException {
+		this.input();
+		if (this.buffered.available() == 0) {
+			this.buffered.mark(1);
+			if (this.buffered.read() < 0)
+				throw new EOFException();
+			this.buffered.reset();
+		}
+		if (this.frameTimeout != this.pollTimeout)
+			this.socket.setSoTimeout(this.frameTimeout);
+	}
+
+	/**
+	 * Ripristina il timeout di attesa al termine di una lettura
+	 */
+	private void end() throws IOException {
+		if (this.frameTimeout != this.pollTimeout)
+			this.socket.setSoTimeout(this.pollTimeout);
+	}
+
+	/**
+	 * Crea lo stream in ingresso alla prima lettura
+	 */
+	private void input() throws IOException {
+		if (this.buffered == null) {
+			this.buffered = new BufferedInputStream(this.socket.getInputStream(), BUFFER_SIZE);
+			this.in = new DataInputStream(this.buffered);
+		}
+	}
+
+	/**
+	 * Restituisce lo stream in uscita, creandolo alla prima scrittura
+	 */
+	private OutputStream output() throws IOException {
+		if (this.out == null)
+			this.out = this.socket.getOutputStream();
+		return this.out;
+	}
+
+	/**
+	 * Restituisce il buffer di lettura, ingrandendolo se necessario; il
+	 * contenuto gia' letto viene mantenuto (line() lo riempie un byte alla
+	 * volta)
+	 */
+	private byte[] buffer(int size) {
+		if (this.buffer.length < size) {
+			int length = this.buffer.length;
+			while (length < size)
+				length *= 2;
+			this.buffer = Arrays.copyOf(this.buffer, length);
+		}
+		return this.buffer;
+	}
+
+	/**
+	 * Legge una riga terminata da '\n' (eventualmente preceduto da '\r')
+	 *
+	 * @return la riga, null se lo stream termina prima di un qualsiasi byte
+	 */
+	private String line() throws IOException {
+		int length = 0;
+		int b;
+		while ((b = this.buffered.read()) != '\n') {
+			if (b < 0) {
+				if (length == 0)
+					return null;
+				break;
+			}
+			if (length == BinaryCodec.MAX_FRAME)
+				throw new IOException("Riga troppo lunga");
+			this.buffer(length + 1)[length++] = (byte) b;
+		}
+		if (length > 0 && this.buffer[length - 1] == '\r')
+			length--;
+		return new String(this.buffer, 0, length);
+	}
+
+	/**
+	 * Legge un frame binario nel buffer riutilizzato e lo decodifica
+	 */
+	private Message frame() throws IOException, MalformedMessageException {
+		int length = BinaryCodec.readLength(this.buffered.read(), this.buffered);
+		byte[] payload = this.buffer(length);
+		this.in.readFully(payload, 0, length);
+		return this.handler.getBinaryCodec().decode(payload, 0, length);
+	}
+
+	/**
+	 * Solo per l'owner di una connessione multiplexed: restituisce il prossimo
+	 * messaggio del canale di un codec, conservato in precedenza oppure letto
+	 * dal socket. Se un altro thread sta gia' leggendo, attende che il
+	 * messaggio arrivi o che il socket si liberi. I timeout sono quelli del
+	 * codec del canale; un frame letto per l'altro canale viene conservato e
+	 * la lettura prosegue, senza superare il timeout di attesa
+	 */
+	private Message receive(ConnectionCodec codec) throws IOException, MalformedMessageException {
+		long deadline = codec.pollTimeout > 0 ? System.currentTimeMillis() + codec.pollTimeout : 0;
+		synchronized (this) {
+			while (true) {
+				Message m = this.inbox(codec.channel).poll();
+				if (m != null)
+					return m;
+				if (this.failure != null)
+					throw this.failure instanceof EOFException ? new EOFException()
+							: new IOException("Connessione non piu' utilizzabile", this.failure);
+				if (this.readsSocket && !this.reading) {
+					// il socket e' libero, leggo io
+					this.reading = true;
+					break;
+				}
+				long wait = 0;
+				if (deadline != 0) {
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						throw new SocketTimeoutException();
+				}
+				try {
+					this.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		try {
+			this.input();
+			while (true) {
+				// attendo l'inizio del frame per il tempo rimasto
+				if (this.buffered.available() == 0) {
+					int timeout = 0;
+					if (deadline != 0) {
+						timeout = (int) (deadline - System.currentTimeMillis());
+						if (timeout <= 0)
+							throw new SocketTimeoutException();
+					}
+					this.socket.setSoTimeout(timeout);
+					this.buffered.mark(1);
+					if (this.buffered.read() < 0)
+						throw new EOFException();
+					this.buffered.reset();
+				}
+				// il resto del frame con il timeout di frame
+				this.socket.setSoTimeout(codec.frameTimeout);
+				int length;
+				byte[] payload;
+				try {
+					length = BinaryCodec.readLength(this.buffered.read(), this.buffered);
+					payload = this.buffer(length);
+					this.in.readFully(payload, 0, length);
+				} catch (SocketTimeoutException e) {
+					throw new IOException("Messaggio incompleto", e);
+				}
+				if (length == 0 || !BinaryCodec.isChannel(payload[0] & 0xFF))
+					// frame senza un canale valido, lo scarto
+					continue;
+				int target = payload[0] & 0xFF;
+				Message m;
+				try {
+					m = codec.handler.getBinaryCodec().decodeChannel(payload, 0, length);
+				} catch (MalformedMessageException e) {
+					// il frame e' stato letto per intero, per cui posso
+					// proseguire; lo segnalo solo se era per il mio canale
+					if (target == codec.channel)
+						throw e;
+					continue;
+				}
+				if (target == codec.channel)
+					return m;
+				this.pending(target, m);
+			}
+		} catch (IOException e) {
+			if (!(e instanceof SocketTimeoutException))
+				this.fail(e);
+			throw e;
+		} finally {
+			synchronized (this) {
+				this.reading = false;
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Solo per l'owner di una connessione multiplexed: conserva un messaggio
+	 * per il codec del suo canale e sveglia chi lo sta aspettando. Oltre
+	 * MAX_PENDING messaggi non letti sul canale dei messaggi viene scartato il
+	 * piu' vecchio; sul canale di controllo nessuno, perche' con le richieste
+	 * con identificativo (vedi Message.getRequestId) le risposte in attesa di
+	 * essere lette possono essere molte, e vanno lette tutte
+	 */
+	private synchronized void pending(int channel, Message m) {
+		ArrayDeque<Message> inbox = this.inbox(channel);
+		if (channel == BinaryCodec.MESSAGE_CHANNEL && inbox.size() >= MAX_PENDING)
+			inbox.poll();
+		inbox.add(m);
+		this.notifyAll();
+	}
+
+	/**
+	 * Solo per l'owner di una connessione multiplexed: i messaggi conservati
+	 * per un canale
+	 */
+	private ArrayDeque<Message> inbox(int channel) {
+		if (channel == BinaryCodec.CONTROL_CHANNEL)
+			return this.controlInbox;
+		if (channel == BinaryCodec.MESSAGE_CHANNEL)
+			return this.messageInbox;
+		throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Legge una stringa TC_LONGSTRING (lunghezza su 8 byte seguita dalla
+	 * codifica UTF-8 modificata della stringa)
+	 */
+	private String longString() throws IOException {
+		long length = this.in.readLong();
+		if (length < 0 || length > BinaryCodec.MAX_FRAME)
+			throw new StreamCorruptedException("richiesta troppo grande");
+		byte[] bytes = this.buffer((int) length);
+		this.in.readFully(bytes, 0, (int) length);
+		// decodifica UTF-8 modificata, al piu' 3 byte per carattere
+		StringBuilder s = new StringBuilder((int) length);
+		int i = 0;
+		while (i < length) {
+			int c = bytes[i++] & 0xFF;
+			if (c >= 0xE0) {
+				if (i + 2 > length)
+					throw new UTFDataFormatException();
+				c = ((c & 0x0F) << 12) | ((bytes[i] & 0x3F) << 6) | (bytes[i + 1] & 0x3F);
+				i += 2;
+			} else if (c >= 0xC0) {
+				if (i + 1 > length)
+					throw new UTFDataFormatException();
+				c = ((c & 0x1F) << 6) | (bytes[i] & 0x3F);
+				i += 1;
+			}
+			s.append((char) c);
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Legge lo stub RMI che segue una richiesta. Lo stub e' scritto sullo
+	 * stesso ObjectOutputStream della richiesta, per cui al nuovo
+	 * ObjectInputStream va restituito l'header gia' consumato
+	 */
+	private Notifier stub() throws IOException, MalformedMessageException {
+		ObjectInputStream stubStream = new ObjectInputStream(
+				new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER), this.buffered));
+		try {
+			return (Notifier) stubStream.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new MalformedMessageException();
+		}
+	}
+
+}
@@ -23,6 +23,10 @@ public class Message {
 	// tipo del messaggio
 	private int msgType;
 
+	// identificativo della richiesta, copiato dal server nella risposta
+	// corrispondente; 0 se il messaggio non ne ha uno
+	private int requestId = 0;
+
 	protected Message(String sender, String receiver, int msgType) {
 		// COSTRUTTORE PROTECTED, usato dalle sottoclassi per settare
 		// sender e receiver
@@ -58,4 +62,32 @@ public class Message {
 	public int getType() {
 		return this.msgType;
 	}
+
+	/**
+	 * Restituisce l'identificativo della richiesta a cui il messaggio si
+	 * riferisce. Significativo solo per richieste e risposte: il client che
+	 * invia piu' richieste senza attendere le risposte le distingue con
+	 * identificativi diversi, ed il server lo copia nella risposta, che puo'
+	 * arrivare in un ordine diverso da quello delle richieste
+	 * 
+	 * @return l'identificativo, 0 se il messaggio non ne ha uno
+	 */
+	public int getRequestId() {
+		return this.requestId;
+	}
+
+	/**
+	 * Imposta l'identificativo della richiesta a cui il messaggio si riferisce
+	 * (vedi getRequestId)
+	 * 
+	 * @param requestId
+	 *            l'identificativo, 0 per nessuno
+	 * @throws IllegalArgumentException
+	 *             se l'identificativo e' negativo
+	 */
+	public void setRequestId(int requestId) {
+		if (requestId < 0)
+			throw new IllegalArgumentException();
+		this.requestId = requestId;
+	}
 }
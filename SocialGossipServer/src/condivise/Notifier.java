@@ -2,12 +2,13 @@ package condivise;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Interfaccia RMI fornita dal client al server per ottenere aggiornamenti 
  * su un cambiamento di stato di amici di un utente. 
- * Consta di due metodi , utilizzati per notificare un amico online o un
- * amico offline. 
+ * Consta di tre metodi, due utilizzati per notificare un amico online o un
+ * amico offline, ed uno che recapita piu' notifiche in una volta sola.
  * 
  * @author Lorenzo Bellomo, Nicolo' Lucchesi
  */
@@ -32,4 +33,16 @@ public interface Notifier extends Remote {
 	 */
 	public void NotifyOfflineFriend(String nickname) throws RemoteException;
 
+	/**
+	 * Il server notifica il client di un blocco di cambiamenti di stato dei
+	 * suoi amici, in una sola invocazione. Il server raggruppa le notifiche
+	 * destinate al client per un breve intervallo di tempo e ne invia solo
+	 * l'effetto netto: per ogni amico e' presente al piu' una notifica, quella
+	 * corrispondente al suo ultimo stato
+	 *
+	 * @param events le notifiche, nell'ordine in cui vanno applicate
+	 * @throws RemoteException
+	 */
+	public void NotifyPresenceBatch(List<PresenceEvent> events) throws RemoteException;
+
 }
\ No newline at end of file
@@ -26,6 +26,10 @@ public enum RequestCode {
 	ADD_TO_CHATROOM(109), 
 	CHATROOM_LIST(110), 
 	CLOSE_CHAT(111),
+	SUGGEST_FRIENDS(112),
+	MUTUAL_FRIENDS(113),
+	FRIENDSHIP_PATH(114),
+	SEARCH_USERS(115),
 	OPEN_P2PCONN(300);
 
 	// il codice relativo ad ogni opzione
@@ -41,6 +41,14 @@ public class RequestMessage extends Message {
 	// per la registrazione, specifica il linguaggio dell'utente che si registra
 	private String language;
 
+	// per la ricerca degli utenti, l'ultimo nickname della pagina precedente
+	// (null per la prima pagina)
+	private String after;
+
+	// lo stub RMI del client, allegato alle richieste di registrazione e di
+	// login; non e' un campo del messaggio JSON ma viaggia accanto ad esso
+	private Notifier stub;
+
 	private RequestMessage(RequestCode reqCode, String sender, String receiver, String nickname, String language,
 			TextMessage text) {
 		// COSTRUTTORE PRIVATO, viene invocato dai metodi statici sottostanti
@@ -147,6 +155,88 @@ public class RequestMessage extends Message {
 		return new RequestMessage(RequestCode.FRIEND_LIST, sender, Message.SERVERNAME, null, null, null);
 	}
 
+	/**
+	 * Metodo statico per la creazione di un messaggio di tipo "Suggerisci
+	 * amici".
+	 * 
+	 * @param sender
+	 *            l'utente che fa richiesta
+	 * @return il messaggio di richiesta costruito
+	 * @throws NullPointerException
+	 *             se il parametro e' null
+	 */
+	public static RequestMessage BuildSuggestFriends(String sender) {
+		if (sender == null)
+			throw new NullPointerException();
+
+		return new RequestMessage(RequestCode.SUGGEST_FRIENDS, sender, Message.SERVERNAME, null, null, null);
+	}
+
+	/**
+	 * Metodo statico per la creazione di un messaggio di tipo "Amici in
+	 * comune".
+	 * 
+	 * @param sender
+	 *            l'utente che fa richiesta
+	 * @param nickname
+	 *            l'utente di cui voglio conoscere gli amici in comune
+	 * @return il messaggio di richiesta costruito
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 */
+	public static RequestMessage BuildMutualFriends(String sender, String nickname) {
+		if (nickname == null || sender == null)
+			throw new NullPointerException();
+
+		return new RequestMessage(RequestCode.MUTUAL_FRIENDS, sender, Message.SERVERNAME, nickname, null, null);
+	}
+
+	/**
+	 * Metodo statico per la creazione di un messaggio di tipo "Catena di
+	 * amicizie".
+	 * 
+	 * @param sender
+	 *            l'utente che fa richiesta
+	 * @param nickname
+	 *            l'utente a cui voglio arrivare tramite amici di amici
+	 * @return il messaggio di richiesta costruito
+	 * @throws NullPointerException
+	 *             se uno dei parametri e' null
+	 */
+	public static RequestMessage BuildFriendshipPath(String sender, String nickname) {
+		if (nickname == null || sender == null)
+			throw new NullPointerException();
+
+		return new RequestMessage(RequestCode.FRIENDSHIP_PATH, sender, Message.SERVERNAME, nickname, null, null);
+	}
+
+	/**
+	 * Metodo statico per la creazione di un messaggio di tipo "Cerca utenti".
+	 * I risultati arrivano a pagine, in ordine di nickname: per avere la
+	 * pagina successiva si ripete la richiesta passando come after l'ultimo
+	 * nickname ricevuto.
+	 * 
+	 * @param sender
+	 *            l'utente che fa richiesta
+	 * @param prefix
+	 *            l'inizio dei nickname da cercare
+	 * @param after
+	 *            l'ultimo nickname della pagina precedente, null per la prima
+	 *            pagina
+	 * @return il messaggio di richiesta costruito
+	 * @throws NullPointerException
+	 *             se sender o prefix sono null
+	 */
+	public static RequestMessage BuildSearchUsers(String sender, String prefix, String after) {
+		if (prefix == null || sender == null)
+			throw new NullPointerException();
+
+		RequestMessage msg = new RequestMessage(RequestCode.SEARCH_USERS, sender, Message.SERVERNAME, prefix, null,
+				null);
+		msg.after = after;
+		return msg;
+	}
+
 	/**
 	 * Metodo statico per la creazione di un messaggio di tipo "Invia il file ad
 	 * un amico".
@@ -345,6 +435,7 @@ public class RequestMessage extends Message {
 		switch (this.reqCode) {
 		case FRIEND_LIST:
 		case CHATROOM_LIST:
+		case SUGGEST_FRIENDS:
 			throw new NotAFieldException();
 		default:
 			return this.nickname;
@@ -368,4 +459,42 @@ public class RequestMessage extends Message {
 		}
 	}
 
+	/**
+	 * Restituisce l'ultimo nickname della pagina precedente di una ricerca
+	 * 
+	 * @return il nickname da cui riprendere la ricerca, null per la prima
+	 *         pagina
+	 * @throws NotAFieldException
+	 *             se il campo richiesto non e' significativo nella richiesta di
+	 *             questo particolare messaggio di richiesta
+	 */
+	public String getAfter() throws NotAFieldException {
+		switch (this.reqCode) {
+		case SEARCH_USERS:
+			return this.after;
+		default:
+			throw new NotAFieldException();
+		}
+	}
+
+	/**
+	 * Restituisce lo stub RMI allegato alla richiesta
+	 * 
+	 * @return lo stub del client, null se la richiesta non ne ha uno
+	 */
+	public Notifier getStub() {
+		return this.stub;
+	}
+
+	/**
+	 * Allega alla richiesta lo stub RMI del client, per le richieste di
+	 * registrazione e di login
+	 * 
+	 * @param stub
+	 *            lo stub del client, null per rimuoverlo
+	 */
+	public void setStub(Notifier stub) {
+		this.stub = stub;
+	}
+
 }
@@ -44,6 +44,10 @@ public class ResponseMessage extends Message {
 
 	private boolean isOnline;
 
+	// lo stato di online/offline di ogni utente della lista, per la ricerca
+	// degli utenti
+	private boolean[] onlineList;
+
 	private ResponseMessage(String sender, String receiver, ResponseCode respCode, RequestCode request, String[] list,
 			InetAddress addr, int port, InetAddress chatRoomAddr, boolean isOnline) {
 		// COSTRUTTORE PRIVATO, un messaggio di risposta si puo' creare solo
@@ -189,6 +193,33 @@ public class ResponseMessage extends Message {
 				isOnline);
 	}
 
+	/**
+	 * Metodo statico per creare un ack ad una ricerca di utenti: una pagina
+	 * di nickname, ognuno con il suo stato
+	 * 
+	 * @param receiver
+	 *            client a cui devo inviare la risposta
+	 * @param list
+	 *            i nickname trovati
+	 * @param online
+	 *            lo stato di ogni nickname, nello stesso ordine
+	 * @return il messaggio costruito
+	 * @throws NullPointerException
+	 *             se un parametro fosse null
+	 * @throws IllegalArgumentException
+	 *             se list ed online hanno lunghezze diverse
+	 */
+	public static ResponseMessage BuildSearchAck(String receiver, String[] list, boolean[] online) {
+		if (receiver == null || list == null || online == null)
+			throw new NullPointerException();
+		if (list.length != online.length)
+			throw new IllegalArgumentException();
+		ResponseMessage msg = new ResponseMessage(Message.SERVERNAME, receiver, ResponseCode.OP_OK,
+				RequestCode.SEARCH_USERS, list, null, 0, null, false);
+		msg.onlineList = online;
+		return msg;
+	}
+
 	/* Adesso una serie di metodi getter per reperire i campi del messaggio */
 
 	/**
@@ -285,4 +316,19 @@ public class ResponseMessage extends Message {
 		throw new NotAFieldException();
 	}
 
+	/**
+	 * Restituisce lo stato di online/offline degli utenti della lista
+	 * 
+	 * @return per ogni nickname della lista, true se l'utente e' online
+	 * @throws NotAFieldException
+	 *             se il campo richiesto non e' significativo nella richiesta di
+	 *             questo particolare messaggio di richiesta
+	 */
+	public boolean[] getOnlineList() throws NotAFieldException {
+
+		if (this.onlineList == null)
+			throw new NotAFieldException();
+		return this.onlineList;
+	}
+
 }
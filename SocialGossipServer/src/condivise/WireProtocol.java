@@ -0,0 +1,97 @@
+package condivise;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import exceptions.NoSuchCodeException;
+
+/**
+ * I formati con cui i messaggi possono viaggiare sulle connessioni fra client
+ * e server. Il formato viene negoziato all'apertura della connessione: il
+ * client, insieme alla porta della connessione dei messaggi, invia sulla
+ * connessione di controllo la lista dei formati che conosce, in ordine di
+ * preferenza e separati da virgole (ad esempio "4567 bin,json"); il server
+ * sceglie il primo formato che conosce e lo comunica al client con una riga
+ * sulla connessione di controllo. Un client che invia solo la porta utilizza
+ * il formato JSON e non riceve alcuna riga di risposta.
+ *
+ * Al posto della porta il client puo' inviare la parola MULTIPLEXED (ad
+ * esempio "mux bin"): in tal caso il server non apre alcuna connessione dei
+ * messaggi, ma invia risposte e messaggi sulla stessa connessione di
+ * controllo, distinguendoli con il canale in testa ad ogni frame (vedi
+ * BinaryCodec). Una connessione multiplexed usa sempre il formato binario, per
+ * cui il client deve offrirlo; il server risponde comunque con la riga del
+ * formato scelto.
+ *
+ * @author Lorenzo Bellomo, Nicolo' Lucchesi
+ */
+public enum WireProtocol {
+
+	// size e messaggio JSON su due righe, richieste in un ObjectStream
+	JSON("json"),
+	// frame binari, vedi BinaryCodec
+	BINARY("bin");
+
+	// la parola che nella negoziazione prende il posto della porta, per
+	// chiedere una connessione multiplexed
+	public static final String MULTIPLEXED = "mux";
+
+	// il nome del formato usato nella negoziazione
+	private String name;
+
+	// la map che associa al nome il relativo formato
+	private static Map<String, WireProtocol> map = new HashMap<String, WireProtocol>();
+
+	// inizializzo tutte le associazioni nome -> WireProtocol, una sola volta
+	static {
+		for (WireProtocol protocol : WireProtocol.values()) {
+			map.put(protocol.name, protocol);
+		}
+	}
+
+	private WireProtocol(final String name) {
+		// COSTRUTTORE
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Restituisce il formato corrispondente ad un nome
+	 *
+	 * @param name
+	 *            il nome del formato
+	 * @return il formato
+	 * @throws NoSuchCodeException
+	 *             se il nome non corrisponde ad alcun formato
+	 */
+	public static WireProtocol DescriptionOf(String name) throws NoSuchCodeException {
+		WireProtocol toRet = map.get(name);
+		if (toRet == null)
+			throw new NoSuchCodeException();
+		return toRet;
+	}
+
+	/**
+	 * Sceglie il formato da utilizzare data la lista di formati offerti dal
+	 * client: il primo che il server conosce, JSON se nessuno e' noto
+	 *
+	 * @param offer
+	 *            i nomi dei formati separati da virgole, in ordine di
+	 *            preferenza
+	 * @return il formato scelto
+	 */
+	public static WireProtocol Negotiate(String offer) {
+		if (offer == null)
+			return JSON;
+		for (String name : offer.split(",")) {
+			WireProtocol protocol = map.get(name.trim());
+			if (protocol != null)
+				return protocol;
+		}
+		return JSON;
+	}
+
+}